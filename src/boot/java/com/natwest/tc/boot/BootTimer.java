@@ -0,0 +1,159 @@
+package com.natwest.tc.boot;
+
+import com.natwest.tc.service.EngineStartup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures time to first GREEN: how long a freshly launched controller is dark.
+ * <p>
+ * Each run launches the packaged application in its own JVM, from the plain application jar and its
+ * runtime dependencies, and times from the launch to the line {@code EngineStartup} prints once the
+ * first GREEN is shown; the JVM's own uptime at that moment is reported alongside. The run is then
+ * stopped. Every run starts cold: on a free port and without the engine checkpoint, as a standby
+ * taking over from a failed controller would.
+ * <p>
+ * Three configurations are timed: the default one, the {@code fast-boot} profile, and the
+ * {@code fast-boot} profile with an AppCDS archive. The archive is written by a training run, itself
+ * timed, that boots to the first GREEN with {@code -XX:ArchiveClassesAtExit} and is then stopped,
+ * which dumps every class loaded on the way. The results go to {@code first-green.txt} in the work
+ * directory and each run's output to its own log there.
+ * <p>
+ * Arguments: the work directory (holding the plain jar, with its dependencies in {@code lib}), then
+ * optionally the runs per configuration (median reported) and a budget in milliseconds for the
+ * {@code fast-boot} profile with AppCDS; a median over budget fails the build. 0 means no budget.
+ */
+public final class BootTimer {
+
+    private static final long TIMEOUT_SECONDS = 180;
+
+    private final Path workDir;
+    private final List<String> classpath;
+    private final Path java = Path.of(System.getProperty("java.home"), "bin", "java");
+
+    private BootTimer(Path workDir) throws IOException {
+        this.workDir = workDir;
+        this.classpath = new ArrayList<>();
+        try (Stream<Path> app = Files.list(workDir); Stream<Path> lib = Files.list(workDir.resolve("lib"))) {
+            app.filter(path -> path.toString().endsWith(".jar")).sorted().forEach(path -> classpath.add(path.toString()));
+            if (classpath.size() != 1) {
+                throw new IllegalStateException("Expected one application jar in " + workDir + ", found " + classpath);
+            }
+            // A fixed order, since an AppCDS archive only applies to the classpath it was trained on
+            lib.filter(path -> path.toString().endsWith(".jar")).sorted().forEach(path -> classpath.add(path.toString()));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path workDir = Path.of(args[0]);
+        int runs = args.length > 1 ? Math.max(1, Integer.parseInt(args[1])) : 1;
+        long budgetMillis = args.length > 2 ? Long.parseLong(args[2]) : 0;
+        BootTimer timer = new BootTimer(workDir);
+        Path archive = workDir.resolve("fast-boot.jsa");
+        Files.deleteIfExists(archive);
+
+        List<String> report = new ArrayList<>();
+        report.add(String.format(Locale.ROOT, "%-22s %10s %10s %10s", "configuration", "median ms", "min ms", "uptime ms"));
+        timer.measure("default", runs, List.of(), List.of(), report);
+        timer.measure("fast-boot", runs, List.of(), List.of("--spring.profiles.active=fast-boot"), report);
+        timer.measure("AppCDS training", 1, List.of("-XX:ArchiveClassesAtExit=" + archive),
+                List.of("--spring.profiles.active=fast-boot"), report);
+        long withArchive = timer.measure("fast-boot + AppCDS", runs, List.of("-XX:SharedArchiveFile=" + archive),
+                List.of("--spring.profiles.active=fast-boot"), report);
+
+        Path results = workDir.resolve("first-green.txt");
+        Files.write(results, report, StandardCharsets.UTF_8);
+        System.out.printf(Locale.ROOT, "%nTime to first GREEN (%d run%s each, from launch; results in %s)%n",
+                runs, runs == 1 ? "" : "s", results);
+        report.forEach(System.out::println);
+        if (budgetMillis > 0 && withArchive > budgetMillis) {
+            System.out.printf(Locale.ROOT, "fast-boot + AppCDS took %d ms, over the %d ms budget%n", withArchive, budgetMillis);
+            System.exit(1);
+        }
+    }
+
+    /** Times {@code runs} launches, adds a line to the report and returns the median wall time in ms. */
+    private long measure(String name, int runs, List<String> jvmOptions, List<String> appArguments,
+                         List<String> report) throws IOException, InterruptedException {
+        long[] wall = new long[runs];
+        long[] uptime = new long[runs];
+        for (int run = 0; run < runs; run++) {
+            long[] timing = launch(name.replaceAll("[^A-Za-z]+", "-") + "-" + run, jvmOptions, appArguments);
+            wall[run] = timing[0];
+            uptime[run] = timing[1];
+        }
+        Arrays.sort(wall);
+        Arrays.sort(uptime);
+        long median = wall[runs / 2];
+        report.add(String.format(Locale.ROOT, "%-22s %10d %10d %10d", name, median, wall[0], uptime[runs / 2]));
+        return median;
+    }
+
+    /** Launches the application, waits for the first GREEN and stops it; returns wall and uptime ms. */
+    private long[] launch(String label, List<String> jvmOptions, List<String> appArguments)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(java.toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(String.join(File.pathSeparator, classpath));
+        command.add("com.natwest.tc.TrafficcontrollerApplication");
+        command.add("--server.port=0");
+        command.add("--traffic.checkpoint.enabled=false");
+        command.addAll(appArguments);
+
+        Path log = workDir.resolve(label + ".log");
+        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+        long started = System.nanoTime();
+        Process process = builder.start();
+        long wallMillis = -1;
+        long uptimeMillis = -1;
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter copy = new PrintWriter(Files.newBufferedWriter(log, StandardCharsets.UTF_8))) {
+            Thread watchdog = new Thread(() -> {
+                try {
+                    if (!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                        process.destroyForcibly();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "boot-timer-watchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+
+            String line;
+            while ((line = output.readLine()) != null) {
+                copy.println(line);
+                if (wallMillis < 0 && line.startsWith(EngineStartup.FIRST_GREEN)) {
+                    wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+                    uptimeMillis = Long.parseLong(line.substring(EngineStartup.FIRST_GREEN.length()).split(" ")[0]);
+                    // A normal shutdown, so a training run writes its archive on the way out. Through the
+                    // handle, since Process.destroy() would also close the output still being drained
+                    process.toHandle().destroy();
+                }
+            }
+        } finally {
+            process.waitFor();
+        }
+        if (wallMillis < 0) {
+            throw new IllegalStateException(label + " exited with " + process.exitValue()
+                    + " before showing GREEN; see " + log);
+        }
+        System.out.printf(Locale.ROOT, "%-28s first GREEN after %6d ms (JVM uptime %6d ms)%n", label, wallMillis, uptimeMillis);
+        return new long[]{wallMillis, uptimeMillis};
+    }
+}
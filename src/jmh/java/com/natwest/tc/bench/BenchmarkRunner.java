@@ -0,0 +1,102 @@
+package com.natwest.tc.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Runs the benchmarks, writes JMH's JSON result and, given an earlier result as a baseline, reports
+ * every benchmark whose score or allocation per operation got worse by more than the threshold.
+ * Exits with status 1 when anything regressed, so a release build can fail on it.
+ * <p>
+ * Arguments: {@code <result.json> <baseline.json|none> <threshold> [JMH options...]}
+ */
+public final class BenchmarkRunner {
+
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+    // Allocation differences smaller than this are noise from the harness itself
+    private static final double MIN_ALLOCATION_DELTA_BYTES = 16;
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path result = Path.of(args[0]);
+        String baseline = args[1];
+        double threshold = Double.parseDouble(args[2]);
+        Files.createDirectories(result.getParent());
+
+        CommandLineOptions jmhOptions = new CommandLineOptions(Arrays.copyOfRange(args, 3, args.length));
+        new Runner(new OptionsBuilder()
+                .parent(jmhOptions)
+                .include(jmhOptions.getIncludes().isEmpty() ? "com.natwest.tc.bench" : jmhOptions.getIncludes().get(0))
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.toString())
+                .build()).run();
+
+        if (!"none".equals(baseline) && !baseline.isBlank()) {
+            int regressions = compare(new File(baseline), result.toFile(), threshold);
+            if (regressions > 0) {
+                System.out.println(regressions + " benchmark(s) regressed by more than " + (int) (threshold * 100) + "%");
+                System.exit(1);
+            }
+            System.out.println("No regressions against " + baseline);
+        }
+    }
+
+    /** Prints a line per benchmark present in both files and returns the number of regressions. */
+    static int compare(File baselineFile, File currentFile, double threshold) throws Exception {
+        Map<String, JsonNode> baseline = index(baselineFile);
+        Map<String, JsonNode> current = index(currentFile);
+        int regressions = 0;
+        for (Map.Entry<String, JsonNode> entry : current.entrySet()) {
+            JsonNode before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("  NEW        %s%n", entry.getKey());
+                continue;
+            }
+            JsonNode after = entry.getValue();
+            boolean higherIsBetter = "thrpt".equals(after.path("mode").asText());
+            double oldScore = before.path("primaryMetric").path("score").asDouble();
+            double newScore = after.path("primaryMetric").path("score").asDouble();
+            double change = oldScore == 0 ? 0 : (newScore - oldScore) / oldScore;
+            boolean slower = higherIsBetter ? change < -threshold : change > threshold;
+
+            double oldBytes = before.path("secondaryMetrics").path(ALLOCATION).path("score").asDouble();
+            double newBytes = after.path("secondaryMetrics").path(ALLOCATION).path("score").asDouble();
+            boolean allocates = newBytes - oldBytes > Math.max(MIN_ALLOCATION_DELTA_BYTES, oldBytes * threshold);
+
+            if (slower || allocates) {
+                regressions++;
+            }
+            System.out.printf("  %-10s %s: %.3f -> %.3f %s (%+.1f%%), %.0f -> %.0f B/op%n",
+                    slower || allocates ? "REGRESSED" : "ok", entry.getKey(), oldScore, newScore,
+                    after.path("primaryMetric").path("scoreUnit").asText(), change * 100, oldBytes, newBytes);
+        }
+        return regressions;
+    }
+
+    /** Benchmark results keyed by name plus parameters, e.g. {@code EngineBenchmark.advanceOneSecond{intersections=1024}}. */
+    private static Map<String, JsonNode> index(File file) throws Exception {
+        Map<String, JsonNode> results = new LinkedHashMap<>();
+        for (JsonNode run : new ObjectMapper().readTree(file)) {
+            StringBuilder key = new StringBuilder(run.path("benchmark").asText().replace("com.natwest.tc.bench.", ""));
+            JsonNode params = run.path("params");
+            if (!params.isMissingNode()) {
+                key.append(params);
+            }
+            results.put(key.toString(), run);
+        }
+        return results;
+    }
+}
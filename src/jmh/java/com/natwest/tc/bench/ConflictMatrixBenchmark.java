@@ -0,0 +1,66 @@
+package com.natwest.tc.bench;
+
+import com.natwest.tc.engine.ConflictMatrix;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The safety check behind every GREEN: is a phase free of conflicting movements, and may it take
+ * over from the previous one. Rule sets from a single junction up to a large corridor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class ConflictMatrixBenchmark {
+
+    @Param({"16", "128", "1024"})
+    int directions;
+
+    private ConflictMatrix matrix;
+    private int phaseId;
+    private long[] from;
+    private long[] to;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        ConflictMatrix.Builder builder = ConflictMatrix.builder();
+        for (int d = 1; d <= directions; d++) {
+            builder.direction(d);
+            for (int k = 0; k < 8; k++) {
+                int other = 1 + random.nextInt(directions);
+                // Keep each phase's own movements (blocks of eight) conflict-free
+                if ((other - 1) / 8 != (d - 1) / 8) {
+                    builder.conflict(d, other);
+                }
+            }
+        }
+        int phases = Math.max(1, directions / 8);
+        for (int p = 0; p < phases; p++) {
+            int[] ids = new int[Math.min(8, directions)];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = p * 8 + i + 1;
+            }
+            builder.phase(p + 1, ids);
+        }
+        matrix = builder.build();
+        phaseId = phases;
+        from = matrix.phaseMask(1);
+        to = matrix.phaseMask(phases);
+    }
+
+    @Benchmark
+    public boolean isPhaseConflictFree() {
+        return matrix.isPhaseConflictFree(phaseId);
+    }
+
+    @Benchmark
+    public boolean transitionIntersects() {
+        return matrix.intersects(from, to);
+    }
+}
@@ -0,0 +1,53 @@
+package com.natwest.tc.bench;
+
+import com.natwest.tc.engine.DetectorCounters;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detector ingestion: one detection added to the striped counters of one of 1024 intersections,
+ * from four threads at once (JMH reports their combined throughput), and the engine rolling one
+ * intersection's window at the end of a passage interval.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class DetectorBenchmark {
+
+    private static final int SLOTS = 1024;
+    private static final int[] GREEN_DIRECTIONS = {1, 3, 4, 6};
+
+    @Param({"1", "8"})
+    int stripes;
+
+    private DetectorCounters counters;
+
+    @Setup
+    public void setUp() {
+        counters = new DetectorCounters(SLOTS, 256, stripes);
+        for (int slot = 0; slot < SLOTS; slot++) {
+            counters.define(slot, new int[]{0, 1, 2, 3, 4, 5, 6, 7});
+            counters.record(slot, 0, 1);
+        }
+    }
+
+    /** Expected to allocate nothing once every slot has its counters. */
+    @Benchmark
+    @Threads(4)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean record() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return counters.record(random.nextInt(SLOTS), random.nextInt(8), 1);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long roll() {
+        return counters.roll(ThreadLocalRandom.current().nextInt(SLOTS), GREEN_DIRECTIONS);
+    }
+}
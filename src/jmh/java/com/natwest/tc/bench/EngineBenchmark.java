@@ -0,0 +1,61 @@
+package com.natwest.tc.bench;
+
+import com.natwest.tc.model.IntersectionState;
+import com.natwest.tc.service.TrafficCacheService;
+import com.natwest.tc.service.TrafficEngineService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One simulated second across all intersections, and reading the published state, on the seeded
+ * rules. A second is a thousand wheel ticks plus every transition that falls due in it; all the
+ * intersections start together, so most seconds fire nothing and a few fire one per intersection.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class EngineBenchmark {
+
+    @Param({"1", "1024", "16384"})
+    int intersections;
+
+    private EmbeddedDatabase database;
+    private TrafficEngineService engine;
+
+    @Setup
+    public void setUp() {
+        database = Fixtures.database();
+        TrafficCacheService cacheService = Fixtures.cacheService(new JdbcTemplate(database));
+        engine = Fixtures.engine(cacheService);
+        engine.startCycle(List.of(1, 2, 3, 4));
+        for (int i = 1; i < intersections; i++) {
+            engine.startCycle("JUNCTION_" + i, List.of(1, 2, 3, 4));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.shutdown();
+        database.shutdown();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void advanceOneSecond() {
+        engine.advanceTime(1);
+    }
+
+    /** Expected to allocate nothing: the state is a prebuilt snapshot. */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public IntersectionState getCurrentState() {
+        return engine.getCurrentState();
+    }
+}
@@ -0,0 +1,105 @@
+package com.natwest.tc.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.natwest.tc.engine.VirtualClock;
+import com.natwest.tc.entity.HistoryEvent;
+import com.natwest.tc.repository.RuleProjectionRepository;
+import com.natwest.tc.service.HistoryStore;
+import com.natwest.tc.service.StateStreamService;
+import com.natwest.tc.service.TrafficCacheService;
+import com.natwest.tc.service.TrafficEngineService;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Builds the services under benchmark without a Spring context. */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /** An in-memory H2 database with the application schema and seed rules. */
+    static EmbeddedDatabase database() {
+        return new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true)
+                .addScript("data.sql").build();
+    }
+
+    /**
+     * Adds {@code directions} generated directions, one phase per {@code directionsPerPhase} of them
+     * and {@code conflictsPerDirection} conflicts each. Phases are built from non-conflicting
+     * directions, as a real junction's would be. The same seed always gives the same rules.
+     */
+    static void populateRules(JdbcTemplate jdbc, int directions, int directionsPerPhase, int conflictsPerDirection) {
+        int firstDirection = jdbc.queryForObject("SELECT COALESCE(MAX(direction_id), 0) FROM directions", Integer.class) + 1;
+        List<Object[]> directionRows = new ArrayList<>(directions);
+        for (int d = 0; d < directions; d++) {
+            directionRows.add(new Object[]{"BENCH_DIRECTION_" + d, "Generated direction " + d});
+        }
+        jdbc.batchUpdate("INSERT INTO directions (direction_name, description) VALUES (?, ?)", directionRows);
+
+        Random random = new Random(42);
+        List<Object[]> conflictRows = new ArrayList<>();
+        for (int d = 0; d < directions; d++) {
+            for (int k = 1; k <= conflictsPerDirection; k++) {
+                // Conflicts only between directions in different phase groups
+                int other = (d + k * directionsPerPhase + random.nextInt(directionsPerPhase)) % directions;
+                if (other / directionsPerPhase != d / directionsPerPhase) {
+                    conflictRows.add(new Object[]{firstDirection + d, firstDirection + other});
+                }
+            }
+        }
+        jdbc.batchUpdate("MERGE INTO direction_conflicts (direction_id, conflicts_with_direction_id) "
+                + "KEY (direction_id, conflicts_with_direction_id) VALUES (?, ?)", conflictRows);
+
+        int firstPhase = jdbc.queryForObject("SELECT COALESCE(MAX(phase_id), 0) FROM signal_phases", Integer.class) + 1;
+        int phases = directions / directionsPerPhase;
+        List<Object[]> phaseRows = new ArrayList<>(phases);
+        List<Object[]> allowedRows = new ArrayList<>(directions);
+        for (int p = 0; p < phases; p++) {
+            phaseRows.add(new Object[]{"Bench phase " + p, 30 + p % 30});
+            for (int d = p * directionsPerPhase; d < (p + 1) * directionsPerPhase; d++) {
+                allowedRows.add(new Object[]{firstPhase + p, firstDirection + d});
+            }
+        }
+        jdbc.batchUpdate("INSERT INTO signal_phases (phase_name, duration_seconds) VALUES (?, ?)", phaseRows);
+        jdbc.batchUpdate("INSERT INTO phase_allowed_directions (phase_id, direction_id) VALUES (?, ?)", allowedRows);
+    }
+
+    static TrafficCacheService cacheService(JdbcTemplate jdbc) {
+        TrafficCacheService cacheService = new TrafficCacheService(new RuleProjectionRepository(jdbc), 5);
+        cacheService.reloadCache();
+        return cacheService;
+    }
+
+    /**
+     * An engine on virtual time whose history goes nowhere, so the benchmark decides when time
+     * passes and the transitions themselves are what is measured.
+     */
+    static TrafficEngineService engine(TrafficCacheService cacheService) {
+        StateStreamService stateStream = new StateStreamService(new ObjectMapper(), 1024, 16, 1, 1, 1000, 1000, 1000);
+        TrafficEngineService engine = new TrafficEngineService(cacheService, DISCARD, stateStream);
+        engine.setClock(new VirtualClock(Instant.parse("2024-01-01T00:00:00Z"), ZoneOffset.UTC));
+        engine.init();
+        return engine;
+    }
+
+    static final HistoryStore DISCARD = new HistoryStore() {
+        @Override
+        public void append(HistoryEvent event) {
+        }
+
+        @Override
+        public List<HistoryEvent> findPage(String intersectionId, String eventType, LocalDateTime from,
+                                           LocalDateTime to, LocalDateTime afterTimestamp, Long afterId, int limit) {
+            return List.of();
+        }
+    };
+}
@@ -0,0 +1,69 @@
+package com.natwest.tc.bench;
+
+import com.natwest.tc.engine.EventJournal;
+import com.natwest.tc.entity.HistoryEvent;
+import com.natwest.tc.model.LightColor;
+import com.natwest.tc.service.HistoryWriter;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What recording one engine event costs the tick: an enqueue onto the JDBC writer's ring (batches
+ * are written to H2 in the background) or a record written into the memory-mapped journal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+
+    private static final LocalDateTime TIMESTAMP = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+    private EmbeddedDatabase database;
+    private HistoryWriter writer;
+    private Path journalDir;
+    private EventJournal journal;
+
+    @Setup
+    public void setUp() throws Exception {
+        database = Fixtures.database();
+        writer = new HistoryWriter(new JdbcTemplate(database), 65536, 500, 200, HistoryWriter.OverflowPolicy.DROP_OLDEST,
+                Files.createTempFile("bench-history", ".spill").toString());
+        writer.start();
+        journalDir = Files.createTempDirectory("bench-journal");
+        journal = new EventJournal(journalDir, 16 << 20, 4);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        writer.stop();
+        journal.close();
+        database.shutdown();
+        try (var files = Files.list(journalDir)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(journalDir);
+    }
+
+    @Benchmark
+    public void jdbcWriterAppend() {
+        writer.append(new HistoryEvent(TIMESTAMP, "MAIN_JUNCTION_01", "STATE_CHANGE", 1, LightColor.GREEN,
+                "Phase 1 turned GREEN"));
+    }
+
+    @Benchmark
+    public long journalAppend() {
+        return journal.append(TIMESTAMP, "MAIN_JUNCTION_01", "STATE_CHANGE", 1, LightColor.GREEN,
+                "Phase 1 turned GREEN");
+    }
+}
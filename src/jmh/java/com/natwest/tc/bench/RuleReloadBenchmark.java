@@ -0,0 +1,62 @@
+package com.natwest.tc.bench;
+
+import com.natwest.tc.model.RuleValidationReport;
+import com.natwest.tc.service.TrafficCacheService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rule cache reloads against a populated H2: the checksum-only path when nothing changed, the
+ * incremental path after one phase changed, and a full staged load with validation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class RuleReloadBenchmark {
+
+    @Param({"64", "1024"})
+    int directions;
+
+    private EmbeddedDatabase database;
+    private JdbcTemplate jdbc;
+    private TrafficCacheService cacheService;
+    private int duration;
+
+    @Setup
+    public void setUp() {
+        database = Fixtures.database();
+        jdbc = new JdbcTemplate(database);
+        Fixtures.populateRules(jdbc, directions, 8, 8);
+        cacheService = Fixtures.cacheService(jdbc);
+    }
+
+    @TearDown
+    public void tearDown() {
+        database.shutdown();
+    }
+
+    @Benchmark
+    public long reloadUnchanged() {
+        cacheService.reloadCache();
+        return cacheService.getGeneration();
+    }
+
+    /** Includes the one-row UPDATE that makes the reload find a change. */
+    @Benchmark
+    public long reloadOneChangedPhase() {
+        jdbc.update("UPDATE signal_phases SET duration_seconds = ? WHERE phase_id = 1", 30 + (++duration & 15));
+        cacheService.reloadCache();
+        return cacheService.getGeneration();
+    }
+
+    @Benchmark
+    public RuleValidationReport stageFullLoad() {
+        return cacheService.stage();
+    }
+}
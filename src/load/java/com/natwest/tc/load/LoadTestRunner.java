@@ -0,0 +1,252 @@
+package com.natwest.tc.load;
+
+import com.natwest.tc.TrafficcontrollerApplication;
+import com.natwest.tc.service.BlockingCallExecutor;
+import com.natwest.tc.service.TrafficEngineService;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop HTTP load test of the traffic API.
+ * <p>
+ * Boots the application on a free local port, then gives every endpoint in the mix its own
+ * dispatcher that sends requests at a fixed arrival rate whether or not earlier ones have answered.
+ * Latency is measured from when a request was due, not when it was actually sent, so a stalled
+ * server shows up in the percentiles instead of quietly lowering the load (coordinated omission).
+ * While the load runs, the engine reports how late its signal transitions fired against their
+ * deadlines and how long each scheduler turn took, which shows whether API traffic delays the
+ * signal timing.
+ * <p>
+ * Arguments: {@code <seconds> <endpoint>=<requests per second>,...} with endpoints {@code state},
+ * {@code sequence}, {@code pause} (alternates pause and resume), {@code refresh} and {@code history}
+ * (a full page of the newest history, a slow database query), then optionally the most requests
+ * allowed in flight; due requests beyond it are counted as dropped rather than sent. Each one holds a
+ * socket on both sides, so keep it under half the open-file limit. The last, optional argument is the
+ * {@code traffic.execution.mode} to run the server in, so the same mix can be compared on platform and
+ * virtual threads. The first fifth of the run, at most 10 seconds, warms up and is not recorded.
+ */
+public final class LoadTestRunner {
+
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    enum Endpoint {
+        STATE, SEQUENCE, PAUSE, REFRESH, HISTORY
+    }
+
+    /** Counters and the latency recorder of one endpoint. */
+    private static final class Stats {
+        final Recorder latency = new Recorder(MAX_LATENCY_MICROS, 3);
+        final LongAdder sent = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        final LongAdder measured = new LongAdder();
+    }
+
+    private final String baseUrl;
+    private final HttpClient client;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final Map<Endpoint, Stats> stats = new EnumMap<>(Endpoint.class);
+    private final AtomicLong pauseToggle = new AtomicLong();
+
+    private LoadTestRunner(int port, ExecutorService httpExecutor, int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.baseUrl = "http://localhost:" + port + "/api/traffic";
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(httpExecutor)
+                .build();
+        for (Endpoint endpoint : Endpoint.values()) {
+            stats.put(endpoint, new Stats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        Map<Endpoint, Double> rates = parseRates(args.length > 1 ? args[1] : "state=2000,sequence=5,pause=2,refresh=0.5");
+        int maxInFlight = args.length > 2 ? Integer.parseInt(args[2]) : 4000;
+        String executionMode = args.length > 3 ? args[3].toUpperCase(Locale.ROOT) : "PLATFORM";
+        int warmUpSeconds = Math.min(10, Math.max(1, seconds / 5));
+
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(TrafficcontrollerApplication.class)
+                .run("--server.port=0", "--spring.jpa.show-sql=false", "--logging.level.com.natwest.tc=WARN",
+                        "--server.tomcat.threads.max=400", "--server.tomcat.max-connections=" + (maxInFlight + 100),
+                        "--traffic.execution.mode=" + executionMode);
+        int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+        TrafficEngineService engine = context.getBean(TrafficEngineService.class);
+
+        Recorder transitionLateness = new Recorder(MAX_LATENCY_MICROS, 3);
+        Recorder turnDuration = new Recorder(MAX_LATENCY_MICROS, 3);
+        engine.setTickListener((latenessNanos, durationNanos) -> {
+            transitionLateness.recordValue(Math.min(latenessNanos / 1000, MAX_LATENCY_MICROS));
+            turnDuration.recordValue(Math.min(durationNanos / 1000, MAX_LATENCY_MICROS));
+        });
+
+        ExecutorService httpExecutor = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+        LoadTestRunner runner = new LoadTestRunner(port, httpExecutor, maxInFlight);
+        System.out.printf(Locale.ROOT, "Load test against port %d on %s threads: %d s (+%d s warm-up), rates %s%n",
+                port, context.getBean(BlockingCallExecutor.class).getMode().name().toLowerCase(Locale.ROOT),
+                seconds, warmUpSeconds, rates);
+
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmUpSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> dispatchers = new ArrayList<>();
+        rates.forEach((endpoint, rate) -> {
+            Thread dispatcher = new Thread(() -> runner.dispatch(endpoint, rate, start, measureFrom, end),
+                    "load-" + endpoint.name().toLowerCase(Locale.ROOT));
+            dispatcher.start();
+            dispatchers.add(dispatcher);
+        });
+
+        // Discard what the warm-up recorded
+        LockSupport.parkNanos(measureFrom - System.nanoTime());
+        transitionLateness.getIntervalHistogram();
+        turnDuration.getIntervalHistogram();
+        for (Thread dispatcher : dispatchers) {
+            dispatcher.join();
+        }
+        runner.awaitInFlight(TimeUnit.SECONDS.toNanos(10));
+        Histogram lateness = transitionLateness.getIntervalHistogram();
+        Histogram duration = turnDuration.getIntervalHistogram();
+
+        runner.report(seconds);
+        System.out.printf(Locale.ROOT, "%nScheduler turns that fired transitions: %d%n", lateness.getTotalCount());
+        printPercentiles("lateness", lateness);
+        printPercentiles("turn duration", duration);
+
+        httpExecutor.shutdownNow();
+        context.close();
+        System.exit(0);
+    }
+
+    /** Sends requests for one endpoint at {@code rate} per second from {@code start} until {@code end}. */
+    private void dispatch(Endpoint endpoint, double rate, long start, long measureFrom, long end) {
+        Stats endpointStats = stats.get(endpoint);
+        double interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        for (long i = 0; ; i++) {
+            long due = start + (long) (i * interval);
+            if (due >= end) {
+                return;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            boolean measure = due >= measureFrom;
+            if (!inFlight.tryAcquire()) {
+                if (measure) {
+                    endpointStats.dropped.increment();
+                }
+                continue;
+            }
+            if (measure) {
+                endpointStats.sent.increment();
+            }
+            client.sendAsync(request(endpoint), HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, error) -> {
+                        inFlight.release();
+                        if (!measure) {
+                            return;
+                        }
+                        if (error != null || response.statusCode() >= 400) {
+                            endpointStats.errors.increment();
+                        } else {
+                            endpointStats.latency.recordValue(
+                                    Math.min((System.nanoTime() - due) / 1000, MAX_LATENCY_MICROS));
+                        }
+                        endpointStats.measured.increment();
+                    });
+        }
+    }
+
+    private HttpRequest request(Endpoint endpoint) {
+        return switch (endpoint) {
+            case STATE -> HttpRequest.newBuilder(URI.create(baseUrl + "/state")).GET().build();
+            case SEQUENCE -> HttpRequest.newBuilder(URI.create(baseUrl + "/sequence"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString("[1, 2, 3, 4]"))
+                    .build();
+            case PAUSE -> HttpRequest.newBuilder(URI.create(baseUrl
+                            + (pauseToggle.getAndIncrement() % 2 == 0 ? "/pause" : "/resume")))
+                    .POST(HttpRequest.BodyPublishers.noBody())
+                    .build();
+            case REFRESH -> HttpRequest.newBuilder(URI.create(baseUrl + "/refresh-cache"))
+                    .POST(HttpRequest.BodyPublishers.noBody())
+                    .build();
+            case HISTORY -> HttpRequest.newBuilder(URI.create(baseUrl + "/history?limit=1000")).GET().build();
+        };
+    }
+
+    private void awaitInFlight(long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (inFlight.availablePermits() < maxInFlight && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+    }
+
+    private void report(int seconds) {
+        System.out.printf(Locale.ROOT, "%n%-9s %9s %9s %7s %7s %9s %9s %9s %9s %9s%n", "endpoint", "sent",
+                "req/s", "errors", "dropped", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "mean ms");
+        stats.forEach((endpoint, endpointStats) -> {
+            if (endpointStats.sent.sum() == 0 && endpointStats.dropped.sum() == 0) {
+                return;
+            }
+            Histogram histogram = endpointStats.latency.getIntervalHistogram();
+            System.out.printf(Locale.ROOT, "%-9s %9d %9.1f %7d %7d %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                    endpoint.name().toLowerCase(Locale.ROOT), endpointStats.sent.sum(),
+                    endpointStats.measured.sum() / (double) seconds, endpointStats.errors.sum(),
+                    endpointStats.dropped.sum(), millis(histogram.getValueAtPercentile(50)),
+                    millis(histogram.getValueAtPercentile(99)), millis(histogram.getValueAtPercentile(99.9)),
+                    millis(histogram.getMaxValue()), histogram.getMean() / 1000);
+        });
+    }
+
+    private static void printPercentiles(String name, Histogram histogram) {
+        System.out.printf(Locale.ROOT, "  %-14s p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n", name,
+                millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(99)),
+                millis(histogram.getValueAtPercentile(99.9)), millis(histogram.getMaxValue()));
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    static Map<Endpoint, Double> parseRates(String spec) {
+        Map<Endpoint, Double> rates = new EnumMap<>(Endpoint.class);
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected <endpoint>=<requests per second>, got: " + entry);
+            }
+            double rate = Double.parseDouble(parts[1]);
+            if (rate > 0) {
+                rates.put(Endpoint.valueOf(parts[0].trim().toUpperCase(Locale.ROOT)), rate);
+            }
+        }
+        return rates;
+    }
+}
@@ -0,0 +1,164 @@
+package com.natwest.tc.load;
+
+import com.natwest.tc.TrafficcontrollerApplication;
+import com.natwest.tc.engine.TelemetryFrame;
+import com.natwest.tc.service.TelemetryListener;
+import com.natwest.tc.service.TrafficEngineService;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throughput test of the binary telemetry listener.
+ * <p>
+ * Boots the application with {@code traffic.telemetry.enabled=true} on free ports, then has each
+ * sender thread push detector frames for {@code MAIN_JUNCTION_01} as fast as its socket accepts
+ * them, batched into 4 KB writes on TCP and 1 KB datagrams on UDP. Reports the frames the listener
+ * decoded per second, what the engine accepted, and the time the selector thread spent decoding
+ * each socket read. UDP is lossy by design, so frames sent over it and never decoded are reported
+ * rather than treated as errors.
+ * <p>
+ * Arguments: {@code <seconds> <tcp connections> <udp senders>}. The first fifth of the run, at most
+ * 10 seconds, warms up and is not recorded.
+ */
+public final class TelemetryGenerator {
+
+    private static final long MAX_DECODE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int TCP_BATCH_FRAMES = 256;
+    private static final int UDP_BATCH_FRAMES = 64;
+
+    private final LongAdder sent = new LongAdder();
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int tcpConnections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int udpSenders = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int warmUpSeconds = Math.min(10, Math.max(1, seconds / 5));
+
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(TrafficcontrollerApplication.class)
+                .run("--server.port=0", "--spring.jpa.show-sql=false", "--logging.level.com.natwest.tc=WARN",
+                        "--traffic.telemetry.enabled=true", "--traffic.telemetry.tcp-port=0",
+                        "--traffic.telemetry.udp-port=0");
+        TelemetryListener listener = context.getBean(TelemetryListener.class);
+        TrafficEngineService engine = context.getBean(TrafficEngineService.class);
+        Recorder decode = new Recorder(MAX_DECODE_NANOS, 3);
+        listener.setDecodeListener(nanos -> decode.recordValue(Math.min(nanos, MAX_DECODE_NANOS)));
+
+        TelemetryGenerator generator = new TelemetryGenerator();
+        System.out.printf(Locale.ROOT, "Telemetry load against TCP %d / UDP %d: %d s (+%d s warm-up), %d TCP connections, %d UDP senders%n",
+                listener.getTcpPort(), listener.getUdpPort(), seconds, warmUpSeconds, tcpConnections, udpSenders);
+
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < tcpConnections; i++) {
+            senders.add(generator.start("tcp-" + i, () -> generator.sendTcp(listener.getTcpPort())));
+        }
+        for (int i = 0; i < udpSenders; i++) {
+            senders.add(generator.start("udp-" + i, () -> generator.sendUdp(listener.getUdpPort())));
+        }
+
+        TimeUnit.SECONDS.sleep(warmUpSeconds);
+        decode.getIntervalHistogram();
+        Map<String, Long> before = listener.getStats();
+        long acceptedBefore = engine.getDetectorStats().get("accepted");
+        long sentBefore = generator.sent.sum();
+        long measureFrom = System.nanoTime();
+        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(seconds));
+        double elapsed = (System.nanoTime() - measureFrom) / 1e9;
+        Map<String, Long> after = listener.getStats();
+        long accepted = engine.getDetectorStats().get("accepted") - acceptedBefore;
+        long sentFrames = generator.sent.sum() - sentBefore;
+        Histogram decodeTimes = decode.getIntervalHistogram();
+
+        generator.running = false;
+        for (Thread sender : senders) {
+            sender.join(TimeUnit.SECONDS.toMillis(5));
+        }
+
+        long frames = after.get("frames") - before.get("frames");
+        System.out.printf(Locale.ROOT, "%nFrames sent %d, decoded %d (%.0f frames/s, %.1f MB/s), accepted by the engine %d, malformed %d%n",
+                sentFrames, frames, frames / elapsed,
+                (after.get("bytes") - before.get("bytes")) / elapsed / (1 << 20), accepted,
+                after.get("malformed") - before.get("malformed"));
+        System.out.printf(Locale.ROOT, "Socket reads decoded: %d, %.1f frames each%n", decodeTimes.getTotalCount(),
+                decodeTimes.getTotalCount() > 0 ? (double) frames / decodeTimes.getTotalCount() : 0.0);
+        System.out.printf(Locale.ROOT, "  %-14s p50 %.2f us, p99 %.2f us, p99.9 %.2f us, max %.2f us%n", "decode per read",
+                decodeTimes.getValueAtPercentile(50) / 1000.0, decodeTimes.getValueAtPercentile(99) / 1000.0,
+                decodeTimes.getValueAtPercentile(99.9) / 1000.0, decodeTimes.getMaxValue() / 1000.0);
+        if (frames > 0) {
+            System.out.printf(Locale.ROOT, "  %-14s %.1f ns%n", "mean per frame",
+                    decodeTimes.getMean() * decodeTimes.getTotalCount() / frames);
+        }
+
+        context.close();
+        System.exit(0);
+    }
+
+    private interface Sender {
+        void run() throws IOException;
+    }
+
+    private Thread start(String name, Sender sender) {
+        Thread thread = new Thread(() -> {
+            try {
+                sender.run();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.printf(Locale.ROOT, "Sender %s failed: %s%n", name, e.getMessage());
+                }
+            }
+        }, "telemetry-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void sendTcp(int port) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+            ByteBuffer batch = ByteBuffer.allocateDirect(TCP_BATCH_FRAMES * TelemetryFrame.SIZE);
+            for (long sequence = 0; running; ) {
+                sequence = fill(batch, TCP_BATCH_FRAMES, sequence);
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                sent.add(TCP_BATCH_FRAMES);
+            }
+        }
+    }
+
+    private void sendUdp(int port) throws IOException {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.connect(new InetSocketAddress("localhost", port));
+            ByteBuffer batch = ByteBuffer.allocateDirect(UDP_BATCH_FRAMES * TelemetryFrame.SIZE);
+            for (long sequence = 0; running; ) {
+                sequence = fill(batch, UDP_BATCH_FRAMES, sequence);
+                channel.write(batch);
+                sent.add(UDP_BATCH_FRAMES);
+            }
+        }
+    }
+
+    /** Fills the batch with detector frames spread over 16 directions, ready to write. */
+    private static long fill(ByteBuffer batch, int frames, long sequence) {
+        batch.clear();
+        for (int i = 0; i < frames; i++, sequence++) {
+            TelemetryFrame.put(batch, TelemetryFrame.DETECTOR, 0, (int) (sequence & 15), 1, sequence);
+        }
+        batch.flip();
+        return sequence;
+    }
+}
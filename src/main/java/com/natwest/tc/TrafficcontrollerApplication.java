@@ -1,13 +1,26 @@
 package com.natwest.tc;
 
+import com.natwest.tc.engine.VirtualClock;
+import com.natwest.tc.service.BlockingCallExecutor;
+import com.natwest.tc.service.HistoryWriter;
+import com.natwest.tc.service.StateStreamService;
+import com.natwest.tc.service.TrafficCacheService;
 import com.natwest.tc.service.TrafficEngineService;
-import org.springframework.boot.CommandLineRunner;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.LazyInitializationExcludeFilter;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.scheduling.annotation.EnableScheduling;
 
-import java.util.Arrays;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.Executor;
 
 @SpringBootApplication
 @EnableScheduling
@@ -16,12 +29,86 @@ public class TrafficcontrollerApplication {
 	public static void main(String[] args) {
 		SpringApplication.run(TrafficcontrollerApplication.class, args);
 	}
+	/**
+	 * The engine's time source: the system clock, or with traffic.clock.mode=virtual a clock that
+	 * starts at traffic.clock.start and only moves through POST /api/traffic/clock/advance.
+	 */
 	@Bean
-	public CommandLineRunner startupScript(TrafficEngineService trafficService) {
-		return args -> {
-			System.out.println("Starting Traffic Signal Engine...");
-			// Start the default cycle (Phases 1, 2, 3, 4)
-			trafficService.startCycle(Arrays.asList(1, 2, 3, 4));
+	public Clock trafficClock(@Value("${traffic.clock.mode:system}") String mode,
+							  @Value("${traffic.clock.start:2024-01-01T00:00:00Z}") String start) {
+		return "virtual".equalsIgnoreCase(mode)
+				? new VirtualClock(Instant.parse(start), ZoneOffset.UTC)
+				: Clock.systemDefaultZone();
+	}
+
+	/**
+	 * With traffic.execution.mode=VIRTUAL, Tomcat handles each request on a new virtual thread
+	 * instead of its bounded worker pool. A no-op on platform threads.
+	 */
+	@Bean
+	public TomcatProtocolHandlerCustomizer<?> requestThreads(BlockingCallExecutor blockingCalls) {
+		Executor executor = blockingCalls.requestExecutor();
+		return protocolHandler -> {
+			if (executor != null) {
+				protocolHandler.setExecutor(executor);
+			}
 		};
 	}
+
+	/**
+	 * Gauges and counters over state the services already keep. They are read when the registry is
+	 * scraped, never on the tick; the timers the engine records into live in TrafficMetrics.
+	 */
+	@Bean
+	public MeterBinder trafficGauges(TrafficCacheService cacheService, HistoryWriter historyWriter,
+									 StateStreamService stateStream, TrafficEngineService engineService) {
+		return registry -> {
+			Gauge.builder("traffic.rules.generation", cacheService, TrafficCacheService::getGeneration)
+					.description("Rule generation the engine is running on").register(registry);
+			Gauge.builder("traffic.rules.entries", cacheService, cache -> cache.getRuleSet().phaseCount())
+					.tag("kind", "phases").register(registry);
+			Gauge.builder("traffic.rules.entries", cacheService, cache -> cache.getRuleSet().directionCount())
+					.tag("kind", "directions").register(registry);
+			Gauge.builder("traffic.rules.entries", cacheService, cache -> cache.getRuleSet().allowanceCount())
+					.tag("kind", "allowances").register(registry);
+			Gauge.builder("traffic.rules.entries", cacheService, cache -> cache.getRuleSet().conflictCount())
+					.tag("kind", "conflicts").register(registry);
+			Gauge.builder("traffic.rules.footprint", cacheService, cache -> cache.getRuleSet().footprintBytes())
+					.baseUnit("bytes").register(registry);
+
+			Gauge.builder("traffic.history.queue.depth", historyWriter, HistoryWriter::getQueueDepth)
+					.description("History events waiting for the database").register(registry);
+			for (String outcome : new String[]{"enqueued", "written", "dropped", "spilled", "failed"}) {
+				FunctionCounter.builder("traffic.history.events", historyWriter, writer -> writer.getStats().get(outcome))
+						.tag("outcome", outcome).register(registry);
+			}
+
+			Gauge.builder("traffic.stream.subscribers", stateStream, stream -> stream.getStats().get("subscribers"))
+					.register(registry);
+			for (String outcome : new String[]{"published", "delivered", "coalesced", "dropped"}) {
+				FunctionCounter.builder("traffic.stream.deltas", stateStream, stream -> stream.getStats().get(outcome))
+						.tag("outcome", outcome).register(registry);
+			}
+
+			for (String outcome : new String[]{"accepted", "rejected"}) {
+				FunctionCounter.builder("traffic.detector.events", engineService, engine -> engine.getDetectorStats().get(outcome))
+						.tag("outcome", outcome).register(registry);
+			}
+			for (String outcome : new String[]{"extensions", "gapOuts", "maxOuts"}) {
+				FunctionCounter.builder("traffic.actuation.greens", engineService, engine -> engine.getDetectorStats().get(outcome))
+						.tag("outcome", outcome).register(registry);
+			}
+		};
+	}
+
+	/**
+	 * With spring.main.lazy-initialization (the fast-boot profile) the application's services stay
+	 * eager: the engine and what it reads, and the beans that schedule, listen or write in the
+	 * background, which would otherwise not start until something asked for them. Static, since the
+	 * filter is read while bean definitions are still being post-processed.
+	 */
+	@Bean
+	public static LazyInitializationExcludeFilter eagerServices() {
+		return (beanName, definition, type) -> type.getPackageName().equals(TrafficEngineService.class.getPackageName());
+	}
 }
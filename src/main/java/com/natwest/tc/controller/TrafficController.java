@@ -1,31 +1,133 @@
 package com.natwest.tc.controller;
 
-import com.natwest.tc.model.IntersectionState;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.natwest.tc.engine.StateSnapshot;
+import com.natwest.tc.model.ClockAdvance;
+import com.natwest.tc.model.CorridorRequest;
+import com.natwest.tc.model.DetectorEvent;
+import com.natwest.tc.model.GreenWavePlan;
+import com.natwest.tc.model.HistoryPage;
+import com.natwest.tc.model.HistoryQuery;
+import com.natwest.tc.model.PhaseHourRollup;
+import com.natwest.tc.model.PhasePlanReport;
+import com.natwest.tc.model.PhaseSetReport;
+import com.natwest.tc.model.RuleGeneration;
+import com.natwest.tc.model.RuleValidationReport;
 import com.natwest.tc.model.TrafficHistory;
+import com.natwest.tc.service.BlockingCallExecutor;
+import com.natwest.tc.service.ClusterService;
+import com.natwest.tc.service.GreenWaveService;
+import com.natwest.tc.service.HistoryRetentionService;
+import com.natwest.tc.service.HistoryWriter;
+import com.natwest.tc.service.PhasePlannerService;
+import com.natwest.tc.service.StandbyException;
+import com.natwest.tc.service.StateStreamService;
+import com.natwest.tc.service.TelemetryListener;
 import com.natwest.tc.service.TrafficCacheService;
 import com.natwest.tc.service.TrafficEngineService;
+import com.natwest.tc.service.TrafficMetrics;
+import com.natwest.tc.service.UnsafePlanException;
+import com.natwest.tc.service.UnsafeRulesException;
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/api/traffic")
 @RequiredArgsConstructor
 public class TrafficController {
 
+    static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
     private final TrafficEngineService engineService;
     private final TrafficCacheService cacheService;
+    private final HistoryWriter historyWriter;
+    private final HistoryRetentionService retentionService;
+    private final StateStreamService stateStream;
+    private final ObjectMapper objectMapper;
+    // Endpoints that wait on the database run here, never on the container's request threads
+    private final BlockingCallExecutor blockingCalls;
+    private final PhasePlannerService phasePlanner;
+    private final GreenWaveService greenWave;
+
+    private TrafficMetrics metrics = TrafficMetrics.NOOP;
+    private TelemetryListener telemetry;
+    private ClusterService cluster;
+
+    @Autowired(required = false)
+    public void setMetrics(TrafficMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Autowired(required = false)
+    public void setTelemetry(TelemetryListener telemetry) {
+        this.telemetry = telemetry;
+    }
+
+    @Autowired(required = false)
+    public void setCluster(ClusterService cluster) {
+        this.cluster = cluster;
+    }
 
     /**
      * GET /api/traffic/state
-     * Returns the current color and active directions.
+     * Returns the current color and active directions. Answers If-None-Match with 304 while the
+     * state is unchanged.
      */
     @GetMapping("/state")
-    public ResponseEntity<IntersectionState> getCurrentState() {
-        return ResponseEntity.ok(engineService.getCurrentState());
+    public ResponseEntity<byte[]> getCurrentState(WebRequest request) {
+        return stateResponse(engineService.getSnapshot(), request);
+    }
+
+    /** Serves the snapshot's cached JSON, or nothing (304) when the client's ETag is current. */
+    private ResponseEntity<byte[]> stateResponse(StateSnapshot snapshot, WebRequest request) {
+        metrics.recordStateRequest();
+        if (request.checkNotModified(snapshot.etag())) {
+            // Status and ETag header are already set
+            return null;
+        }
+        return ResponseEntity.ok()
+                .eTag(snapshot.etag())
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(snapshot.json(objectMapper));
+    }
+
+    /**
+     * GET /api/traffic/stream
+     * Server-Sent Events stream of state deltas ("state" events), for one intersection or all of them.
+     * A slow client receives only the latest delta per intersection.
+     */
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamState(@RequestParam(required = false) String intersectionId) {
+        if (intersectionId != null && !engineService.hasIntersection(intersectionId)) {
+            return ResponseEntity.notFound().build();
+        }
+        if (!stateStream.hasCapacity()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return ResponseEntity.ok(stateStream.subscribe(intersectionId,
+                intersectionId != null ? engineService.getStateDelta(intersectionId) : null));
+    }
+
+    /**
+     * GET /api/traffic/stream/stats
+     * Subscriber count and published/delivered/coalesced/dropped delta counters.
+     */
+    @GetMapping("/stream/stats")
+    public ResponseEntity<Map<String, Long>> getStreamStats() {
+        return ResponseEntity.ok(stateStream.getStats());
     }
 
     /**
@@ -33,9 +135,68 @@ public class TrafficController {
      * Reloads data from the DB into the TrafficCacheService.
      */
     @PostMapping("/refresh-cache")
-    public ResponseEntity<Map<String, String>> refreshCache() {
-        cacheService.reloadCache();
-        return ResponseEntity.ok(Map.of("status", "success", "message", "Caches reloaded from database"));
+    public CompletableFuture<ResponseEntity<Map<String, String>>> refreshCache() {
+        return blockingCalls.submit(() -> {
+            cacheService.reloadCache();
+            return ResponseEntity.ok(Map.of("status", "success", "message", "Caches reloaded from database"));
+        });
+    }
+
+    /**
+     * GET /api/traffic/rules
+     * Counts of the cached rules and their approximate in-memory footprint.
+     */
+    @GetMapping("/rules")
+    public ResponseEntity<Map<String, Object>> getRuleStats() {
+        return ResponseEntity.ok(cacheService.getStats());
+    }
+
+    /**
+     * GET /api/traffic/rules/generations
+     * The active rule generation followed by the ones kept for rollback, newest first.
+     */
+    @GetMapping("/rules/generations")
+    public ResponseEntity<List<RuleGeneration>> getRuleGenerations() {
+        return ResponseEntity.ok(cacheService.getGenerations());
+    }
+
+    /**
+     * POST /api/traffic/rules/stage
+     * Loads and validates a candidate rule generation without using it.
+     */
+    @PostMapping("/rules/stage")
+    public CompletableFuture<ResponseEntity<RuleValidationReport>> stageRules() {
+        return blockingCalls.submit(() -> ResponseEntity.ok(cacheService.stage()));
+    }
+
+    /**
+     * GET /api/traffic/rules/plan?greenSeconds=30&proposals=3
+     * Proposes the fewest conflict-free phases covering every movement, with cycle figures, and lists
+     * the movements each configured phase could also serve. Runs on the planner's own pool.
+     */
+    @GetMapping("/rules/plan")
+    public CompletableFuture<ResponseEntity<PhaseSetReport>> planPhases(@RequestParam(required = false) Integer greenSeconds,
+                                                                         @RequestParam(required = false) Integer proposals) {
+        return phasePlanner.plan(greenSeconds, proposals).thenApply(ResponseEntity::ok);
+    }
+
+    /**
+     * POST /api/traffic/rules/promote?generation=...
+     * Makes the staged generation active. Unsafe candidates are refused (422) unless force=true.
+     */
+    @PostMapping("/rules/promote")
+    public ResponseEntity<RuleGeneration> promoteRules(@RequestParam long generation,
+                                                       @RequestParam(defaultValue = "false") boolean force) {
+        return ResponseEntity.ok(cacheService.promote(generation, force));
+    }
+
+    /**
+     * POST /api/traffic/rules/rollback
+     * Reactivates the previous rule generation.
+     */
+    @PostMapping("/rules/rollback")
+    public ResponseEntity<RuleGeneration> rollbackRules() {
+        return ResponseEntity.ok(cacheService.rollback());
     }
 
     /**
@@ -48,6 +209,15 @@ public class TrafficController {
         return ResponseEntity.ok("New sequence started successfully.");
     }
 
+    /**
+     * POST /api/traffic/sequence/validate
+     * Compiles a sequence against the current rules and reports on every phase without starting it.
+     */
+    @PostMapping("/sequence/validate")
+    public ResponseEntity<PhasePlanReport> validateSequence(@RequestBody List<Integer> sequence) {
+        return ResponseEntity.ok(engineService.validateSequence(sequence));
+    }
+
     /**
      * POST /api/traffic/pause
      */
@@ -68,9 +238,201 @@ public class TrafficController {
 
     /**
      * GET /api/traffic/history
+     * One page of history, newest first, optionally filtered. When more rows exist the
+     * cursor for the next page is returned in the X-Next-Cursor header.
      */
     @GetMapping("/history")
-    public ResponseEntity<List<TrafficHistory>> getHistory() {
-        return ResponseEntity.ok(engineService.getHistory());
+    public CompletableFuture<ResponseEntity<List<TrafficHistory>>> getHistory(
+            @RequestParam(required = false) String intersectionId,
+            @RequestParam(required = false) String eventType,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) Integer limit) {
+        HistoryQuery query = new HistoryQuery(intersectionId, eventType, from, to, cursor, limit);
+        return blockingCalls.submit(() -> {
+            HistoryPage page = engineService.getHistory(query);
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+            if (page.getNextCursor() != null) {
+                response.header(NEXT_CURSOR_HEADER, page.getNextCursor());
+            }
+            return response.body(page.getItems());
+        });
+    }
+
+    /**
+     * GET /api/traffic/history/writer
+     * Queue depth and enqueued/written/dropped/spilled/failed counters of the history writer.
+     */
+    @GetMapping("/history/writer")
+    public ResponseEntity<Map<String, Long>> getHistoryWriterStats() {
+        return ResponseEntity.ok(historyWriter.getStats());
+    }
+
+    /**
+     * GET /api/traffic/history/rollups
+     * Hourly green seconds, cycles and lockouts per intersection and phase, newest hour first.
+     */
+    @GetMapping("/history/rollups")
+    public CompletableFuture<ResponseEntity<List<PhaseHourRollup>>> getHistoryRollups(
+            @RequestParam(required = false) String intersectionId,
+            @RequestParam(required = false) Integer phaseId,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(defaultValue = "168") int limit) {
+        return blockingCalls.submit(() -> ResponseEntity.ok(retentionService.getRollups(intersectionId, phaseId, from, to, limit)));
+    }
+
+    /**
+     * GET /api/traffic/history/retention
+     * Rollup watermark and compaction counters.
+     */
+    @GetMapping("/history/retention")
+    public ResponseEntity<Map<String, Object>> getHistoryRetentionStats() {
+        return ResponseEntity.ok(retentionService.getStats());
+    }
+
+    /**
+     * POST /api/traffic/detectors/events
+     * A batch of detector counts ({intersectionId, directionId, count}) for actuated greens.
+     * Only adds to in-memory counters; answers how many events were accepted and rejected.
+     */
+    @PostMapping("/detectors/events")
+    public ResponseEntity<Map<String, Integer>> ingestDetections(@RequestBody List<DetectorEvent> events) {
+        int accepted = engineService.recordDetections(events);
+        return ResponseEntity.accepted().body(Map.of("accepted", accepted, "rejected", events.size() - accepted));
+    }
+
+    /**
+     * GET /api/traffic/detectors
+     * Detector event counters and how actuated greens were extended, gapped out or maxed out.
+     */
+    @GetMapping("/detectors")
+    public ResponseEntity<Map<String, Long>> getDetectorStats() {
+        return ResponseEntity.ok(engineService.getDetectorStats());
+    }
+
+    /**
+     * GET /api/traffic/telemetry
+     * Frame, byte and connection counters of the binary telemetry listener; 404 when it is disabled.
+     */
+    @GetMapping("/telemetry")
+    public ResponseEntity<Map<String, Long>> getTelemetryStats() {
+        if (telemetry == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(telemetry.getStats());
+    }
+
+    /**
+     * GET /api/traffic/cluster
+     * This node's role, lease term and leader, and replication counters; 404 when clustering is disabled.
+     */
+    @GetMapping("/cluster")
+    public ResponseEntity<Map<String, Object>> getClusterStatus() {
+        if (cluster == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(cluster.getStatus());
+    }
+
+    /**
+     * POST /api/traffic/clock/advance?seconds=86400
+     * Virtual-time mode only: runs the engine through the given span as fast as possible.
+     */
+    @PostMapping("/clock/advance")
+    public ResponseEntity<ClockAdvance> advanceClock(@RequestParam long seconds) {
+        return ResponseEntity.ok(engineService.advanceTime(seconds));
+    }
+
+    /**
+     * POST /api/traffic/corridors/green-wave?apply=false
+     * Plans cycle offsets for an ordered corridor of junctions to maximise the green band both ways,
+     * and with apply=true aligns each junction's cycle to its offset. Runs on the planner's own pool.
+     */
+    @PostMapping("/corridors/green-wave")
+    public CompletableFuture<ResponseEntity<GreenWavePlan>> planGreenWave(@RequestBody CorridorRequest corridor,
+                                                                          @RequestParam(defaultValue = "false") boolean apply) {
+        return greenWave.plan(corridor, apply).thenApply(ResponseEntity::ok);
+    }
+
+    /**
+     * GET /api/traffic/intersections
+     * Lists every intersection driven by this node.
+     */
+    @GetMapping("/intersections")
+    public ResponseEntity<Set<String>> getIntersections() {
+        return ResponseEntity.ok(engineService.getIntersectionIds());
+    }
+
+    /**
+     * GET /api/traffic/{intersectionId}/state
+     */
+    @GetMapping("/{intersectionId}/state")
+    public ResponseEntity<byte[]> getCurrentState(@PathVariable String intersectionId, WebRequest request) {
+        if (!engineService.hasIntersection(intersectionId)) {
+            return ResponseEntity.notFound().build();
+        }
+        return stateResponse(engineService.getSnapshot(intersectionId), request);
+    }
+
+    /**
+     * POST /api/traffic/{intersectionId}/sequence
+     * Starts (and registers, on first use) the intersection with the given phase list.
+     */
+    @PostMapping("/{intersectionId}/sequence")
+    public ResponseEntity<String> updateSequence(@PathVariable String intersectionId,
+                                                 @RequestBody List<Integer> newSequence) {
+        engineService.startCycle(intersectionId, newSequence);
+        return ResponseEntity.ok("New sequence started successfully.");
+    }
+
+    /**
+     * POST /api/traffic/{intersectionId}/pause
+     */
+    @PostMapping("/{intersectionId}/pause")
+    public ResponseEntity<String> pause(@PathVariable String intersectionId) {
+        if (!engineService.hasIntersection(intersectionId)) {
+            return ResponseEntity.notFound().build();
+        }
+        engineService.pauseSystem(intersectionId);
+        return ResponseEntity.ok("System paused at RED.");
+    }
+
+    /**
+     * POST /api/traffic/{intersectionId}/resume
+     */
+    @PostMapping("/{intersectionId}/resume")
+    public ResponseEntity<String> resume(@PathVariable String intersectionId) {
+        if (!engineService.hasIntersection(intersectionId)) {
+            return ResponseEntity.notFound().build();
+        }
+        engineService.resumeSystem(intersectionId);
+        return ResponseEntity.ok("System resumed.");
+    }
+
+    /** Malformed requests, such as an over-long intersection id, get 400 with the reason. */
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<Map<String, String>> handleBadRequest(IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(Map.of("status", "error", "message", e.getMessage()));
+    }
+
+    /**
+     * Sequences with unknown or conflicting phases are rejected before they start,
+     * with the per-phase report as the body.
+     */
+    @ExceptionHandler(UnsafePlanException.class)
+    public ResponseEntity<PhasePlanReport> handleUnsafePlan(UnsafePlanException e) {
+        return ResponseEntity.unprocessableEntity().body(e.getReport());
+    }
+
+    @ExceptionHandler(UnsafeRulesException.class)
+    public ResponseEntity<RuleValidationReport> handleUnsafeRules(UnsafeRulesException e) {
+        return ResponseEntity.unprocessableEntity().body(e.getReport());
+    }
+
+    @ExceptionHandler(StandbyException.class)
+    public ResponseEntity<Map<String, String>> handleStandby(StandbyException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(Map.of("status", "error", "message", e.getMessage()));
     }
 }
\ No newline at end of file
@@ -0,0 +1,242 @@
+package com.natwest.tc.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Immutable, symmetric bitset adjacency matrix compiled from the {@code direction_conflicts} table.
+ * <p>
+ * Every known direction is given a bit; row {@code i} holds the bits of all directions that conflict
+ * with direction {@code i}. Each phase is compiled to a mask of its allowed directions, so checking
+ * whether a phase may turn green is a few word-wide ANDs and never allocates. Rows are
+ * {@code ceil(directions / 64)} words long, so junctions with hundreds of movements cost the same
+ * handful of operations per green direction.
+ */
+public final class ConflictMatrix {
+
+    public static final ConflictMatrix EMPTY = builder().build();
+
+    private static final long[] NO_DIRECTIONS = new long[0];
+
+    private final int[] directionIds;
+    private final int words;
+    private final long[][] rows;
+    private final int[] phaseIds;
+    private final int[] phaseIndex;
+    private final long[][] phaseMasks;
+    private final int conflictCount;
+
+    private ConflictMatrix(int[] directionIds, long[][] rows, int[] phaseIds, long[][] phaseMasks, int conflictCount) {
+        this.directionIds = directionIds;
+        this.words = wordsFor(directionIds.length);
+        this.rows = rows;
+        this.phaseIds = phaseIds;
+        this.phaseIndex = RuleSet.indexTable(phaseIds);
+        this.phaseMasks = phaseMasks;
+        this.conflictCount = conflictCount;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int directionCount() {
+        return directionIds.length;
+    }
+
+    public int conflictCount() {
+        return conflictCount;
+    }
+
+    public int words() {
+        return words;
+    }
+
+    /** Returns the bit assigned to a direction id, or -1 if the direction is unknown. */
+    public int bitOf(int directionId) {
+        int bit = Arrays.binarySearch(directionIds, directionId);
+        return bit >= 0 ? bit : -1;
+    }
+
+    public int directionIdOf(int bit) {
+        return directionIds[bit];
+    }
+
+    /** Builds a mask for the given directions, ignoring ids the matrix does not know. */
+    public long[] maskOf(int... ids) {
+        long[] mask = new long[words];
+        for (int id : ids) {
+            int bit = bitOf(id);
+            if (bit >= 0) {
+                mask[bit >>> 6] |= 1L << bit;
+            }
+        }
+        return mask;
+    }
+
+    /** Returns the compiled direction mask for a phase; unknown phases have no directions. */
+    public long[] phaseMask(int phaseId) {
+        int index = RuleSet.indexOf(phaseIds, phaseIndex, phaseId);
+        return index >= 0 ? phaseMasks[index] : NO_DIRECTIONS;
+    }
+
+    public boolean conflicts(int directionId, int otherDirectionId) {
+        int a = bitOf(directionId);
+        int b = bitOf(otherDirectionId);
+        return a >= 0 && b >= 0 && (rows[a][b >>> 6] & (1L << b)) != 0;
+    }
+
+    public boolean isPhaseConflictFree(int phaseId) {
+        return isConflictFree(phaseMask(phaseId));
+    }
+
+    /** True when no two directions in the mask conflict with each other. */
+    public boolean isConflictFree(long[] mask) {
+        return !intersects(mask, mask);
+    }
+
+    /** True when any direction in {@code from} conflicts with any direction in {@code to}. */
+    public boolean intersects(long[] from, long[] to) {
+        int n = Math.min(from.length, words);
+        int m = Math.min(to.length, words);
+        for (int w = 0; w < n; w++) {
+            long bits = from[w];
+            while (bits != 0) {
+                long[] row = rows[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                for (int k = 0; k < m; k++) {
+                    if ((row[k] & to[k]) != 0) {
+                        return true;
+                    }
+                }
+                bits &= bits - 1;
+            }
+        }
+        return false;
+    }
+
+    /** Mask of every direction that conflicts with at least one direction in {@code mask}. */
+    public long[] conflictsOf(long[] mask) {
+        long[] conflicting = new long[words];
+        int n = Math.min(mask.length, words);
+        for (int w = 0; w < n; w++) {
+            for (long bits = mask[w]; bits != 0; bits &= bits - 1) {
+                long[] row = rows[(w << 6) + Long.numberOfTrailingZeros(bits)];
+                for (int k = 0; k < words; k++) {
+                    conflicting[k] |= row[k];
+                }
+            }
+        }
+        return conflicting;
+    }
+
+    /** Lists every conflicting pair of direction ids inside the mask, lower id first. For reporting only. */
+    public List<int[]> conflictingPairs(long[] mask) {
+        List<int[]> pairs = new ArrayList<>();
+        int n = Math.min(mask.length, words);
+        for (int w = 0; w < n; w++) {
+            long bits = mask[w];
+            while (bits != 0) {
+                int a = (w << 6) + Long.numberOfTrailingZeros(bits);
+                for (int k = w; k < n; k++) {
+                    long hits = rows[a][k] & mask[k];
+                    if (k == w) {
+                        // Only pairs with a higher bit, so each pair is listed once
+                        hits &= -(Long.lowestOneBit(bits) << 1);
+                    }
+                    while (hits != 0) {
+                        int b = (k << 6) + Long.numberOfTrailingZeros(hits);
+                        pairs.add(new int[]{directionIds[a], directionIds[b]});
+                        hits &= hits - 1;
+                    }
+                }
+                bits &= bits - 1;
+            }
+        }
+        return pairs;
+    }
+
+    /** Approximate retained heap size of the rows, phase masks and id table. */
+    public long footprintBytes() {
+        long bytes = 48 + RuleSet.align(16L + 4L * directionIds.length);
+        bytes += RuleSet.align(16L + 4L * rows.length) + rows.length * (16L + 8L * words);
+        bytes += RuleSet.align(16L + 4L * phaseIds.length)
+                + (phaseIndex != null ? RuleSet.align(16L + 4L * phaseIndex.length) : 0);
+        bytes += RuleSet.align(16L + 4L * phaseMasks.length) + phaseMasks.length * (16L + 8L * words);
+        return bytes;
+    }
+
+    private static int wordsFor(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    /**
+     * Collects directions, conflicts and phase mappings, then assigns bits in ascending id order.
+     * Directions referenced only by conflicts or phases are registered automatically. Phases are
+     * kept in ascending id order too, one mask each, however large their ids.
+     */
+    public static final class Builder {
+
+        private final TreeSet<Integer> directions = new TreeSet<>();
+        private final Map<Integer, TreeSet<Integer>> conflicts = new HashMap<>();
+        private final Map<Integer, TreeSet<Integer>> phases = new HashMap<>();
+
+        private Builder() {
+        }
+
+        public Builder direction(int directionId) {
+            directions.add(directionId);
+            return this;
+        }
+
+        public Builder conflict(int directionId, int conflictsWithDirectionId) {
+            directions.add(directionId);
+            directions.add(conflictsWithDirectionId);
+            conflicts.computeIfAbsent(directionId, k -> new TreeSet<>()).add(conflictsWithDirectionId);
+            return this;
+        }
+
+        public Builder phase(int phaseId, int... directionIds) {
+            if (phaseId < 0) {
+                throw new IllegalArgumentException("Phase ids must not be negative: " + phaseId);
+            }
+            TreeSet<Integer> allowed = phases.computeIfAbsent(phaseId, k -> new TreeSet<>());
+            for (int directionId : directionIds) {
+                directions.add(directionId);
+                allowed.add(directionId);
+            }
+            return this;
+        }
+
+        public ConflictMatrix build() {
+            int[] ids = directions.stream().mapToInt(Integer::intValue).toArray();
+            int words = wordsFor(ids.length);
+
+            long[][] rows = new long[ids.length][words];
+            int conflictCount = 0;
+            for (Map.Entry<Integer, TreeSet<Integer>> entry : conflicts.entrySet()) {
+                int a = Arrays.binarySearch(ids, entry.getKey());
+                for (int other : entry.getValue()) {
+                    int b = Arrays.binarySearch(ids, other);
+                    // Conflicts are stored one way in the table but hold both ways
+                    rows[a][b >>> 6] |= 1L << b;
+                    rows[b][a >>> 6] |= 1L << a;
+                    conflictCount++;
+                }
+            }
+
+            int[] phaseIds = phases.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+            long[][] phaseMasks = new long[phaseIds.length][words];
+            for (int p = 0; p < phaseIds.length; p++) {
+                for (int directionId : phases.get(phaseIds[p])) {
+                    int bit = Arrays.binarySearch(ids, directionId);
+                    phaseMasks[p][bit >>> 6] |= 1L << bit;
+                }
+            }
+            return new ConflictMatrix(ids, rows, phaseIds, phaseMasks, conflictCount);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.natwest.tc.engine;
+
+import java.util.Arrays;
+
+/**
+ * Hashed timing wheel holding at most one pending deadline per intersection slot.
+ * <p>
+ * Time is cut into ticks (one millisecond by default) and each tick hashes to a bucket; a bucket
+ * is an intrusive doubly linked list threaded through per-slot {@code next}/{@code prev} arrays,
+ * so scheduling, rescheduling and cancelling are O(1) and allocate nothing. Deadlines further away
+ * than one turn of the wheel simply stay in their bucket until the turn they belong to.
+ * <p>
+ * A deadline fires in the first tick that starts at or after it, so never early and at most one
+ * tick late on top of however late {@link #advance} is called. Advancing over a stall visits every
+ * missed tick in order, so overdue deadlines fire oldest first and a deadline scheduled by a
+ * handler that is already due fires in the same call. Whole turns without a deadline are skipped.
+ * <p>
+ * Not thread-safe: the owner serialises every call.
+ */
+public final class DeadlineWheel {
+
+    public static final long NO_DEADLINE = Long.MIN_VALUE;
+
+    /** Receives each deadline as it fires, with the time it was scheduled for. */
+    @FunctionalInterface
+    public interface Handler {
+        void onDue(int slot, long deadlineNanos);
+    }
+
+    private static final int NONE = -1;
+
+    private final long tickNanos;
+    private final int mask;
+    private final int[] heads;
+    private final int[] next;
+    private final int[] prev;
+    private final long[] deadlines;
+    private final long[] fireTicks;
+    // Scratch list of the slots due in the tick being fired
+    private final int[] dueSlots;
+    private int size;
+    // The next tick to visit; every earlier tick has been fired
+    private long currentTick;
+
+    /**
+     * @param capacity  number of slots
+     * @param buckets   ticks per turn of the wheel, rounded up to a power of two
+     * @param tickNanos resolution
+     * @param nowNanos  the current time on the caller's timeline
+     */
+    public DeadlineWheel(int capacity, int buckets, long tickNanos, long nowNanos) {
+        int size = Integer.highestOneBit(Math.max(2, buckets) - 1) << 1;
+        this.tickNanos = tickNanos;
+        this.mask = size - 1;
+        this.heads = new int[size];
+        Arrays.fill(heads, NONE);
+        this.next = new int[capacity];
+        this.prev = new int[capacity];
+        this.deadlines = new long[capacity];
+        Arrays.fill(deadlines, NO_DEADLINE);
+        this.fireTicks = new long[capacity];
+        this.dueSlots = new int[capacity];
+        this.currentTick = Math.floorDiv(nowNanos, tickNanos) + 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long tickNanos() {
+        return tickNanos;
+    }
+
+    /** The slot's pending deadline, or {@link #NO_DEADLINE}. */
+    public long deadline(int slot) {
+        return deadlines[slot];
+    }
+
+    /** Sets, or replaces, the slot's deadline. A deadline already past fires on the next advance. */
+    public void schedule(int slot, long deadlineNanos) {
+        cancel(slot);
+        // Rounded up, so it never fires before its deadline
+        long tick = Math.max(-Math.floorDiv(-deadlineNanos, tickNanos), currentTick);
+        deadlines[slot] = deadlineNanos;
+        fireTicks[slot] = tick;
+        int bucket = (int) (tick & mask);
+        int head = heads[bucket];
+        next[slot] = head;
+        prev[slot] = NONE;
+        if (head != NONE) {
+            prev[head] = slot;
+        }
+        heads[bucket] = slot;
+        size++;
+    }
+
+    public void cancel(int slot) {
+        if (deadlines[slot] == NO_DEADLINE) {
+            return;
+        }
+        int bucket = (int) (fireTicks[slot] & mask);
+        if (prev[slot] != NONE) {
+            next[prev[slot]] = next[slot];
+        } else {
+            heads[bucket] = next[slot];
+        }
+        if (next[slot] != NONE) {
+            prev[next[slot]] = prev[slot];
+        }
+        deadlines[slot] = NO_DEADLINE;
+        size--;
+    }
+
+    /**
+     * Fires, in tick order, every deadline at or before {@code nowNanos}.
+     *
+     * @return the number of deadlines fired
+     */
+    public int advance(long nowNanos, Handler handler) {
+        long target = Math.floorDiv(nowNanos, tickNanos);
+        int fired = 0;
+        long idle = 0;
+        while (currentTick <= target) {
+            if (size == 0) {
+                currentTick = target + 1;
+                break;
+            }
+            int firedInTick = fireTick(currentTick, handler);
+            fired += firedInTick;
+            idle = firedInTick > 0 ? 0 : idle + 1;
+            if (idle > mask) {
+                // A whole turn fired nothing, so every deadline is in a later turn: jump to the earliest
+                currentTick = Math.min(earliestTick(), target + 1);
+                idle = 0;
+            } else {
+                currentTick++;
+            }
+        }
+        return fired;
+    }
+
+    private int fireTick(long tick, Handler handler) {
+        int bucket = (int) (tick & mask);
+        int fired = 0;
+        // Handlers may reschedule into this same tick, so repeat until a pass finds nothing due
+        for (; ; ) {
+            int due = 0;
+            for (int slot = heads[bucket]; slot != NONE; slot = next[slot]) {
+                if (fireTicks[slot] <= tick) {
+                    dueSlots[due++] = slot;
+                }
+            }
+            if (due == 0) {
+                return fired;
+            }
+            for (int i = 0; i < due; i++) {
+                int slot = dueSlots[i];
+                // An earlier handler in this pass may have rescheduled or cancelled it
+                if (deadlines[slot] != NO_DEADLINE && fireTicks[slot] <= tick) {
+                    long deadline = deadlines[slot];
+                    cancel(slot);
+                    handler.onDue(slot, deadline);
+                    fired++;
+                }
+            }
+        }
+    }
+
+    private long earliestTick() {
+        long earliest = Long.MAX_VALUE;
+        for (int head : heads) {
+            for (int slot = head; slot != NONE; slot = next[slot]) {
+                earliest = Math.min(earliest, fireTicks[slot]);
+            }
+        }
+        return earliest;
+    }
+}
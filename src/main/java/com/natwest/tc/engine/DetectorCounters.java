@@ -0,0 +1,200 @@
+package com.natwest.tc.engine;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Vehicle counts per intersection slot and direction id, fed by detector ingestion and read by the
+ * engine when it decides whether to extend an actuated green.
+ * <p>
+ * Each slot's counters are striped: a recording thread adds to the stripe its thread id hashes to,
+ * with one atomic add and no lock, so ingestion threads rarely touch the same cache line and never
+ * wait for the engine. Every slot has two windows. {@link #roll} flips which window recording threads
+ * add to and drains the other one in place, so rolling copies nothing and allocates nothing. An add
+ * that raced with the flip lands in the drained window and is counted at the roll after next rather
+ * than lost.
+ * <p>
+ * A slot only counts the directions {@link #define} gave it, those of its plan's actuated phases,
+ * packed densely in id order: a block holds {@code 2 * stripes} longs per such direction, 1 KB for
+ * eight directions and eight stripes, however large the id range. Detections on its other
+ * directions are accepted and dropped, as a roll would discard them anyway.
+ * <p>
+ * Each window also keeps a bitmap of the directions it has counts for, set after the add, so a
+ * roll visits only those instead of every direction and stripe. Blocks are allocated per slot on
+ * its first detection, so intersections without detectors cost one null reference. {@link #roll}
+ * must be called by one thread at a time per slot.
+ */
+public final class DetectorCounters {
+
+    /** Returned by {@link #roll} for a slot that has never received a detection. */
+    public static final long NO_DETECTORS = -1;
+
+    private static final int[] NONE = new int[0];
+
+    private final int directions;
+    private final int stripes;
+    private final AtomicReferenceArray<int[]> layouts;
+    private final AtomicReferenceArray<Block> blocks;
+
+    /**
+     * The two windows of one slot: counters laid out as {@code [window][stripe][dense index]} and
+     * touched bitmaps over dense indexes as {@code [window][word]}, where a direction's dense index
+     * is its position in {@code directionIds}.
+     */
+    private static final class Block {
+        final int[] directionIds;
+        final int words;
+        final AtomicLongArray cells;
+        final AtomicLongArray touched;
+        volatile int active;
+        // The blocks this one replaced, most recent first, with counts the next roll still drains
+        volatile Block previous;
+
+        Block(int[] directionIds, int stripes) {
+            this.directionIds = directionIds;
+            this.words = (directionIds.length + Long.SIZE - 1) / Long.SIZE;
+            this.cells = new AtomicLongArray(2 * stripes * directionIds.length);
+            this.touched = new AtomicLongArray(2 * words);
+        }
+    }
+
+    /**
+     * @param capacity   number of slots
+     * @param directions direction ids accepted are 0 to {@code directions - 1}
+     * @param stripes    counters per direction and window, rounded up to a power of two
+     */
+    public DetectorCounters(int capacity, int directions, int stripes) {
+        this.directions = directions;
+        this.stripes = Integer.highestOneBit(Math.max(1, stripes) * 2 - 1);
+        this.layouts = new AtomicReferenceArray<>(capacity);
+        this.blocks = new AtomicReferenceArray<>(capacity);
+    }
+
+    public int directions() {
+        return directions;
+    }
+
+    public int stripes() {
+        return stripes;
+    }
+
+    /**
+     * Sets the directions the slot counts, in any order; ids out of range are ignored. Called when
+     * the slot's plan changes. If the set is new, recording moves to a block for it at once, and the
+     * next roll drains the old block along with the new one.
+     */
+    public void define(int slot, int[] directionIds) {
+        int[] ids = Arrays.stream(directionIds).filter(id -> id >= 0 && id < directions).sorted().distinct().toArray();
+        if (Arrays.equals(layout(slot), ids)) {
+            return;
+        }
+        layouts.set(slot, ids);
+        Block current = blocks.get(slot);
+        if (current != null) {
+            Block next = new Block(ids, stripes);
+            next.previous = current;
+            blocks.set(slot, next);
+        }
+    }
+
+    /**
+     * Adds {@code count} vehicles to the slot's current window.
+     *
+     * @return false if the direction id is out of range
+     */
+    public boolean record(int slot, int directionId, long count) {
+        if (directionId < 0 || directionId >= directions) {
+            return false;
+        }
+        Block block = blocks.get(slot);
+        if (block == null) {
+            block = newBlock(slot);
+            if (!blocks.compareAndSet(slot, null, block)) {
+                block = blocks.get(slot);
+            }
+        }
+        int index = Arrays.binarySearch(block.directionIds, directionId);
+        if (index < 0) {
+            return true;
+        }
+        int window = block.active;
+        block.cells.getAndAdd(cell(window, stripe(), index, block), count);
+        // After the add: a roll that clears this bit first is guaranteed to drain the count
+        int word = window * block.words + (index >>> 6);
+        long bit = 1L << index;
+        if ((block.touched.get(word) & bit) == 0) {
+            block.touched.getAndAccumulate(word, bit, (bits, set) -> bits | set);
+        }
+        return true;
+    }
+
+    /**
+     * Starts a new window for the slot and drains the one that just closed.
+     *
+     * @return vehicles counted on the given directions in the closed window, or {@link #NO_DETECTORS}
+     */
+    public long roll(int slot, int[] directionIds) {
+        Block block = blocks.get(slot);
+        if (block == null) {
+            return NO_DETECTORS;
+        }
+        int closed = block.active;
+        block.active = closed ^ 1;
+        long vehicles = drain(block, closed, directionIds);
+        Block previous = block.previous;
+        if (previous != null) {
+            block.previous = null;
+            for (Block old = previous; old != null; old = old.previous) {
+                vehicles += drain(old, 0, directionIds) + drain(old, 1, directionIds);
+            }
+        }
+        return vehicles;
+    }
+
+    private long drain(Block block, int window, int[] directionIds) {
+        long vehicles = 0;
+        for (int w = 0; w < block.words; w++) {
+            // Counts on other directions belong to phases that are not green and are discarded
+            for (long bits = block.touched.getAndSet(window * block.words + w, 0); bits != 0; bits &= bits - 1) {
+                int index = w * Long.SIZE + Long.numberOfTrailingZeros(bits);
+                long drained = 0;
+                for (int stripe = 0; stripe < stripes; stripe++) {
+                    drained += block.cells.getAndSet(cell(window, stripe, index, block), 0);
+                }
+                if (contains(directionIds, block.directionIds[index])) {
+                    vehicles += drained;
+                }
+            }
+        }
+        return vehicles;
+    }
+
+    private static boolean contains(int[] ids, int id) {
+        for (int candidate : ids) {
+            if (candidate == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int[] layout(int slot) {
+        int[] ids = layouts.get(slot);
+        return ids == null ? NONE : ids;
+    }
+
+    private Block newBlock(int slot) {
+        return new Block(layout(slot), stripes);
+    }
+
+    private int cell(int window, int stripe, int index, Block block) {
+        return (window * stripes + stripe) * block.directionIds.length + index;
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        // Fibonacci hashing, so consecutive thread ids spread over the stripes
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & (stripes - 1);
+    }
+}
@@ -0,0 +1,46 @@
+package com.natwest.tc.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed set of direct buffers, all allocated up front and handed out and returned through a
+ * lock-free ring. Direct buffers let socket reads land outside the Java heap without a copy, and
+ * reusing them avoids their costly allocation and release on every connection.
+ */
+public final class DirectBufferPool {
+
+    private final EventRing<ByteBuffer> free;
+    private final int buffers;
+    private final int bufferBytes;
+
+    public DirectBufferPool(int buffers, int bufferBytes) {
+        this.buffers = buffers;
+        this.bufferBytes = bufferBytes;
+        this.free = new EventRing<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            free.offer(ByteBuffer.allocateDirect(bufferBytes));
+        }
+    }
+
+    /** A cleared buffer, or null when every buffer is in use. */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        return buffer != null ? buffer.clear() : null;
+    }
+
+    public void release(ByteBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    public int buffers() {
+        return buffers;
+    }
+
+    public int bufferBytes() {
+        return bufferBytes;
+    }
+
+    public int available() {
+        return free.size();
+    }
+}
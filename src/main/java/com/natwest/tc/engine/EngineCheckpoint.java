@@ -0,0 +1,219 @@
+package com.natwest.tc.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The engine's running state, one fixed-size record per intersection slot in a memory-mapped file,
+ * rewritten in place on every transition so a restarted engine can carry on mid-cycle.
+ * <p>
+ * A write is a handful of stores into the page cache, with no system call and no allocation; the
+ * sequence and intersection id are only rewritten when they change. The kernel writes the pages
+ * back on its own, so a crashed process loses nothing and a power cut loses at most the last few
+ * seconds. Each record is guarded by a version that is odd while it is being rewritten, so a
+ * record torn by a crash reads as absent. The file is locked while open, so two engines never
+ * write one checkpoint.
+ * <pre>
+ *  offset   0  long   version: 0 never written, odd while being rewritten
+ *  offset   8  long   written at, epoch microseconds
+ *  offset  16  long   packed state (see {@link IntersectionTable})
+ *  offset  24  long   when the state ends, epoch microseconds ({@link #NO_DEADLINE} = none)
+ *  offset  32  long   when the current green started, epoch microseconds
+ *  offset  40  long   rule generation the sequence was last checked against
+ *  offset  48  short  phase count (0 = no sequence, or one longer than {@link #MAX_PHASES})
+ *  offset  50  byte   intersection id length
+ *  offset  64  64     intersection id, UTF-8
+ *  offset 128  int[]  phase ids
+ * </pre>
+ * Record 0 is the file header; slot {@code n} is record {@code n + 1}.
+ */
+public final class EngineCheckpoint implements Closeable {
+
+    public static final int RECORD_BYTES = 256;
+    public static final int MAX_PHASES = 32;
+    public static final int MAX_INTERSECTION_ID_BYTES = 64;
+    public static final long NO_DEADLINE = Long.MIN_VALUE;
+
+    private static final long MAGIC = 0x5443_4348_4B50_5431L;
+
+    private static final int VERSION = 0;
+    private static final int WRITTEN_AT = 8;
+    private static final int STATE = 16;
+    private static final int DEADLINE = 24;
+    private static final int GREEN_START = 32;
+    private static final int GENERATION = 40;
+    private static final int PHASE_COUNT = 48;
+    private static final int INTERSECTION_LENGTH = 50;
+    private static final int INTERSECTION = 64;
+    private static final int PHASES = 128;
+
+    private final Path file;
+    private final int capacity;
+    private final RandomAccessFile raf;
+    private final FileLock lock;
+    private final MappedByteBuffer buffer;
+    // What each record holds, so unchanged sequences and ids are not rewritten on every transition
+    private final PhasePlan[] writtenPlans;
+    private final String[] writtenIds;
+
+    /**
+     * Opens or creates the checkpoint. A file written with a different layout is cleared.
+     *
+     * @throws IOException if the file cannot be mapped or is in use by another engine
+     */
+    public EngineCheckpoint(Path file, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        this.writtenPlans = new PhasePlan[capacity];
+        this.writtenIds = new String[capacity];
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        long bytes = (long) (capacity + 1) * RECORD_BYTES;
+        this.raf = new RandomAccessFile(file.toFile(), "rw");
+        try {
+            FileLock acquired;
+            try {
+                acquired = raf.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                acquired = null;
+            }
+            if (acquired == null) {
+                throw new IOException("Checkpoint " + file + " is in use by another engine");
+            }
+            this.lock = acquired;
+            boolean compatible = raf.length() >= 16;
+            if (compatible) {
+                raf.seek(0);
+                compatible = raf.readLong() == MAGIC && raf.readInt() == RECORD_BYTES;
+            }
+            if (!compatible) {
+                raf.setLength(0);
+            }
+            if (raf.length() < bytes) {
+                // Sparse: only the pages of slots in use ever take up space
+                raf.setLength(bytes);
+            }
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+        buffer.putLong(0, MAGIC);
+        buffer.putInt(8, RECORD_BYTES);
+        buffer.putInt(12, capacity);
+    }
+
+    public Path file() {
+        return file;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Rewrites a slot's record. Sequences longer than {@link #MAX_PHASES} are recorded as none, so
+     * the intersection starts cold rather than with half its sequence.
+     */
+    public void write(int slot, String intersectionId, PhasePlan plan, long generation, long state,
+                      long writtenAtMicros, long deadlineMicros, long greenStartMicros) {
+        if (slot >= capacity) {
+            return;
+        }
+        // Checked before the record is marked as being written, so a bad id cannot leave it torn
+        byte[] id = writtenIds[slot] != intersectionId ? intersectionId.getBytes(StandardCharsets.UTF_8) : null;
+        if (id != null && id.length > MAX_INTERSECTION_ID_BYTES) {
+            throw new IllegalArgumentException("Intersection id longer than " + MAX_INTERSECTION_ID_BYTES + " bytes");
+        }
+        int base = (slot + 1) * RECORD_BYTES;
+        long writing = buffer.getLong(base + VERSION) | 1;
+        buffer.putLong(base + VERSION, writing);
+        VarHandle.storeStoreFence();
+        buffer.putLong(base + WRITTEN_AT, writtenAtMicros);
+        buffer.putLong(base + STATE, state);
+        buffer.putLong(base + DEADLINE, deadlineMicros);
+        buffer.putLong(base + GREEN_START, greenStartMicros);
+        buffer.putLong(base + GENERATION, generation);
+        if (id != null) {
+            buffer.put(base + INTERSECTION_LENGTH, (byte) id.length);
+            buffer.put(base + INTERSECTION, id);
+            writtenIds[slot] = intersectionId;
+        }
+        if (writtenPlans[slot] != plan) {
+            int count = plan.size() <= MAX_PHASES ? plan.size() : 0;
+            buffer.putShort(base + PHASE_COUNT, (short) count);
+            for (int i = 0; i < count; i++) {
+                buffer.putInt(base + PHASES + 4 * i, plan.phaseId(i));
+            }
+            writtenPlans[slot] = plan;
+        }
+        VarHandle.storeStoreFence();
+        buffer.putLong(base + VERSION, writing + 1);
+    }
+
+    /** Marks a slot's record as never written. */
+    public void clear(int slot) {
+        int base = (slot + 1) * RECORD_BYTES;
+        // Only records in use are touched, so clearing never fills in the sparse file
+        if (slot < capacity && buffer.getLong(base + VERSION) != 0) {
+            buffer.putLong(base + VERSION, 0);
+            writtenPlans[slot] = null;
+            writtenIds[slot] = null;
+        }
+    }
+
+    /** Reads a slot's record, or returns null if it was never written or was torn mid-write. */
+    public Entry read(int slot) {
+        if (slot >= capacity) {
+            return null;
+        }
+        int base = (slot + 1) * RECORD_BYTES;
+        long version = buffer.getLong(base + VERSION);
+        int idLength = buffer.get(base + INTERSECTION_LENGTH) & 0xFF;
+        int count = buffer.getShort(base + PHASE_COUNT);
+        if (version == 0 || (version & 1) != 0 || idLength == 0 || idLength > MAX_INTERSECTION_ID_BYTES
+                || count < 0 || count > MAX_PHASES) {
+            return null;
+        }
+        byte[] id = new byte[idLength];
+        buffer.get(base + INTERSECTION, id);
+        int[] phaseIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            phaseIds[i] = buffer.getInt(base + PHASES + 4 * i);
+        }
+        return new Entry(new String(id, StandardCharsets.UTF_8), phaseIds, buffer.getLong(base + GENERATION),
+                buffer.getLong(base + STATE), buffer.getLong(base + WRITTEN_AT), buffer.getLong(base + DEADLINE),
+                buffer.getLong(base + GREEN_START));
+    }
+
+    /** Writes the mapped pages to disk now rather than when the kernel gets to them. */
+    public void force() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        lock.release();
+        raf.close();
+    }
+
+    /**
+     * One slot's record.
+     *
+     * @param phaseIds empty when the intersection had no sequence to resume
+     */
+    public record Entry(String intersectionId, int[] phaseIds, long generation, long state, long writtenAtMicros,
+                        long deadlineMicros, long greenStartMicros) {
+    }
+}
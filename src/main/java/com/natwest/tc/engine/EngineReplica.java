@@ -0,0 +1,165 @@
+package com.natwest.tc.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A standby's copy of the active engine's intersections, kept up to date from the leader's
+ * {@link ReplicationFrame}s. It drives nothing: on takeover its entries are resumed exactly as a
+ * checkpoint would be, each sequence recompiled and safety-checked against the standby's own rules.
+ * <p>
+ * Slots are the leader's. Frames are applied by the replication reader and entries read by the
+ * takeover, so every method is synchronized; neither runs on the tick.
+ * <p>
+ * The two nodes' wall clocks need not agree. A deadline or green start is kept as its distance from
+ * the leader's send time, read on the leader's clock, and is counted from when the frame arrived
+ * here on {@link System#nanoTime}; only {@link #entries} turns it back into this node's epoch time.
+ */
+public final class EngineReplica {
+
+    /** Far more intersections than any one node drives; a larger slot marks a corrupt frame. */
+    private static final int MAX_SLOTS = 1 << 20;
+
+    private String[] ids = new String[0];
+    private int[][] phaseIds = new int[0][];
+    private long[] generations = new long[0];
+    private long[] states = new long[0];
+    // Microseconds from the send time of the frame that carried each slot's state
+    private long[] deadlines = new long[0];
+    private long[] greenStarts = new long[0];
+    // When that frame arrived, System.nanoTime
+    private long[] receivedAt = new long[0];
+    private boolean[] updated = new boolean[0];
+    private long term = -1;
+    private long lastFrameMicros;
+    private long lastReceivedNanos;
+    private long frames;
+
+    /**
+     * Applies the frame at {@code offset}, which must be complete in the buffer and arrived at
+     * {@code receivedNanos}, a {@link System#nanoTime} reading.
+     *
+     * @return false if the frame is malformed or from an earlier term than one already applied;
+     *         the stream it came from can no longer be trusted
+     */
+    public synchronized boolean apply(ByteBuffer buffer, int offset, long receivedNanos) {
+        if (!ReplicationFrame.isValid(buffer, offset)) {
+            return false;
+        }
+        long frameTerm = ReplicationFrame.term(buffer, offset);
+        if (frameTerm < term) {
+            return false;
+        }
+        if (frameTerm > term || (ReplicationFrame.flags(buffer, offset) & ReplicationFrame.RESET) != 0) {
+            clear();
+            term = frameTerm;
+        }
+        long sentAt = ReplicationFrame.sentAtMicros(buffer, offset);
+        int end = offset + 4 + ReplicationFrame.length(buffer, offset);
+        int p = offset + ReplicationFrame.HEADER_BYTES;
+        try {
+            for (int i = 0, records = ReplicationFrame.records(buffer, offset); i < records; i++) {
+                int type = buffer.get(p);
+                int slot = buffer.getInt(p + 1);
+                if (slot < 0 || slot >= MAX_SLOTS || p >= end) {
+                    return false;
+                }
+                ensureCapacity(slot + 1);
+                if (type == ReplicationFrame.DEFINE) {
+                    generations[slot] = buffer.getLong(p + 5);
+                    int idLength = Byte.toUnsignedInt(buffer.get(p + 13));
+                    byte[] id = new byte[idLength];
+                    buffer.get(p + 14, id);
+                    p += 14 + idLength;
+                    int count = Short.toUnsignedInt(buffer.getShort(p));
+                    int[] phases = new int[count];
+                    for (int k = 0; k < count; k++) {
+                        phases[k] = buffer.getInt(p + 2 + 4 * k);
+                    }
+                    p += 2 + 4 * count;
+                    ids[slot] = new String(id, StandardCharsets.UTF_8);
+                    phaseIds[slot] = phases;
+                } else if (type == ReplicationFrame.STATE) {
+                    states[slot] = buffer.getLong(p + 5);
+                    long deadline = buffer.getLong(p + 13);
+                    deadlines[slot] = deadline == EngineCheckpoint.NO_DEADLINE ? deadline : deadline - sentAt;
+                    greenStarts[slot] = buffer.getLong(p + 21) - sentAt;
+                    receivedAt[slot] = receivedNanos;
+                    updated[slot] = true;
+                    p += ReplicationFrame.STATE_BYTES;
+                } else {
+                    return false;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            return false;
+        }
+        if (p > end) {
+            return false;
+        }
+        lastFrameMicros = sentAt;
+        lastReceivedNanos = receivedNanos;
+        frames++;
+        return true;
+    }
+
+    /**
+     * Every intersection with a sequence and a state, as checkpoint entries written when the last frame
+     * arrived: every change up to then had been sent, so an intersection that has not changed for a
+     * while is still current. Times are in this node's epoch microseconds, given {@code nowNanos}
+     * ({@link System#nanoTime}) and {@code nowMicros} read at the same moment, so a yellow resumes with
+     * the time it had left however far apart the two nodes' clocks are.
+     */
+    public synchronized List<EngineCheckpoint.Entry> entries(long nowNanos, long nowMicros) {
+        List<EngineCheckpoint.Entry> entries = new ArrayList<>();
+        for (int slot = 0; slot < ids.length; slot++) {
+            if (ids[slot] != null && updated[slot] && phaseIds[slot].length > 0) {
+                long receivedMicros = nowMicros - TimeUnit.NANOSECONDS.toMicros(nowNanos - receivedAt[slot]);
+                entries.add(new EngineCheckpoint.Entry(ids[slot], phaseIds[slot], generations[slot], states[slot],
+                        nowMicros - TimeUnit.NANOSECONDS.toMicros(nowNanos - lastReceivedNanos),
+                        deadlines[slot] == EngineCheckpoint.NO_DEADLINE
+                                ? EngineCheckpoint.NO_DEADLINE : receivedMicros + deadlines[slot],
+                        receivedMicros + greenStarts[slot]));
+            }
+        }
+        return entries;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(ids, null);
+        Arrays.fill(updated, false);
+    }
+
+    /** Lease term of the last frame applied, or -1 before the first. */
+    public synchronized long term() {
+        return term;
+    }
+
+    /** When the leader sent the last frame applied, epoch microseconds. */
+    public synchronized long lastFrameMicros() {
+        return lastFrameMicros;
+    }
+
+    public synchronized long frames() {
+        return frames;
+    }
+
+    private void ensureCapacity(int slots) {
+        if (slots <= ids.length) {
+            return;
+        }
+        int length = Math.max(slots, Math.max(16, 2 * ids.length));
+        ids = Arrays.copyOf(ids, length);
+        phaseIds = Arrays.copyOf(phaseIds, length);
+        generations = Arrays.copyOf(generations, length);
+        states = Arrays.copyOf(states, length);
+        deadlines = Arrays.copyOf(deadlines, length);
+        greenStarts = Arrays.copyOf(greenStarts, length);
+        receivedAt = Arrays.copyOf(receivedAt, length);
+        updated = Arrays.copyOf(updated, length);
+    }
+}
@@ -0,0 +1,371 @@
+package com.natwest.tc.engine;
+
+import com.natwest.tc.entity.HistoryEvent;
+import com.natwest.tc.model.LightColor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Append-only history journal stored as fixed-size binary records in memory-mapped segment files.
+ * <p>
+ * Records are numbered from 1 and written one after another; a segment is rolled once full, and the
+ * oldest segments beyond {@code maxSegments} are deleted. Because every record has the same size,
+ * record {@code n} is found by arithmetic and history is served by walking backwards from the tail.
+ * A record's id is written last, so a record interrupted by a crash is simply not there on reopen.
+ * Appends are serialised; reads take no locks. The directory belongs to one journal at a time: a
+ * lock on its {@code journal.lock} file is held from opening until {@link #close}.
+ * <pre>
+ *  offset   0  long   id (0 = unwritten)
+ *  offset   8  long   timestamp, nanoseconds since 1970-01-01T00:00 in local time
+ *  offset  16  int    phase id ({@link Integer#MIN_VALUE} = none)
+ *  offset  20  byte   event type code (see {@link #EVENT_TYPES})
+ *  offset  21  byte   colour ordinal + 1 (0 = none)
+ *  offset  22  byte   intersection id length
+ *  offset  24  short  details length
+ *  offset  32  64     intersection id, UTF-8
+ *  offset  96  160    details, UTF-8, truncated
+ * </pre>
+ */
+public final class EventJournal implements Closeable {
+
+    public static final int RECORD_BYTES = 256;
+    public static final int MAX_INTERSECTION_ID_BYTES = 64;
+    public static final int MAX_DETAILS_BYTES = 160;
+
+    /** Code 0 is kept for types written by a newer version; they read back as {@code EVENT}. */
+    static final String[] EVENT_TYPES = {"EVENT", "STATE_CHANGE", "ERROR", "COMMAND"};
+
+    private static final int ID = 0;
+    private static final int TIMESTAMP = 8;
+    private static final int PHASE_ID = 16;
+    private static final int TYPE = 20;
+    private static final int COLOR = 21;
+    private static final int INTERSECTION_LENGTH = 22;
+    private static final int DETAILS_LENGTH = 24;
+    private static final int INTERSECTION = 32;
+    private static final int DETAILS = INTERSECTION + MAX_INTERSECTION_ID_BYTES;
+    private static final int NO_PHASE = Integer.MIN_VALUE;
+    private static final String SUFFIX = ".journal";
+    private static final String LOCK_FILE = "journal.lock";
+    private static final LightColor[] COLORS = LightColor.values();
+
+    private final Path directory;
+    private final int recordsPerSegment;
+    private final int maxSegments;
+    private final ConcurrentHashMap<String, byte[]> encodedIds = new ConcurrentHashMap<>();
+    private final FileChannel lockChannel;
+
+    // Readers take a snapshot of the array; the writer replaces it when segments roll
+    private volatile Segment[] segments;
+    private volatile long lastId;
+    private long nextId;
+
+    private record Segment(long firstId, Path file, MappedByteBuffer buffer, int capacity) {
+    }
+
+    /**
+     * Opens or creates the journal in {@code directory}.
+     *
+     * @throws IOException if the segments cannot be mapped or the directory is in use by another journal
+     */
+    public EventJournal(Path directory, long segmentBytes, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.recordsPerSegment = (int) Math.max(1, Math.min(segmentBytes / RECORD_BYTES, Integer.MAX_VALUE / RECORD_BYTES));
+        this.maxSegments = Math.max(1, maxSegments);
+        Files.createDirectories(directory);
+        this.lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("History journal " + directory + " is in use by another process");
+        }
+        this.segments = openSegments();
+        if (segments.length == 0) {
+            segments = new Segment[]{createSegment(1)};
+        }
+        Segment tail = segments[segments.length - 1];
+        this.lastId = tail.firstId() + committedRecords(tail) - 1;
+        this.nextId = lastId + 1;
+    }
+
+    /** Id of the newest record, or {@code firstId() - 1} when the journal is empty. */
+    public long lastId() {
+        return lastId;
+    }
+
+    /** Id of the oldest record still retained. */
+    public long firstId() {
+        return segments[0].firstId();
+    }
+
+    public int segmentCount() {
+        return segments.length;
+    }
+
+    /** Appends a record and returns its id. Longer intersection ids are rejected, longer details truncated. */
+    public synchronized long append(LocalDateTime timestamp, String intersectionId, String eventType,
+                                    Integer phaseId, LightColor color, String details) {
+        byte[] idBytes = encodeId(intersectionId);
+        long id = nextId;
+        Segment segment = segments[segments.length - 1];
+        int index = (int) (id - segment.firstId());
+        if (index >= segment.capacity()) {
+            segment = roll(id);
+            index = 0;
+        }
+        MappedByteBuffer buffer = segment.buffer();
+        int base = index * RECORD_BYTES;
+        buffer.putLong(base + TIMESTAMP, toNanos(timestamp));
+        buffer.putInt(base + PHASE_ID, phaseId != null ? phaseId : NO_PHASE);
+        buffer.put(base + TYPE, (byte) typeCode(eventType));
+        buffer.put(base + COLOR, (byte) (color != null ? color.ordinal() + 1 : 0));
+        buffer.put(base + INTERSECTION_LENGTH, (byte) idBytes.length);
+        buffer.put(base + INTERSECTION, idBytes);
+        buffer.putShort(base + DETAILS_LENGTH, (short) putDetails(buffer, base + DETAILS, details));
+        // Written last: a record without its id was never completed
+        buffer.putLong(base + ID, id);
+        nextId = id + 1;
+        lastId = id;
+        return id;
+    }
+
+    /**
+     * Walks backwards from the record before {@code beforeId} and returns up to {@code limit} matches,
+     * newest first. Null filters match everything. Records are in append order, but their timestamps
+     * go back whenever the clock does (daylight saving, an NTP step), so a record older than
+     * {@code from} is skipped rather than taken as the end of the range.
+     */
+    public List<HistoryEvent> scan(String intersectionId, String eventType, LocalDateTime from, LocalDateTime to,
+                                   long beforeId, int limit) {
+        List<HistoryEvent> matches = new ArrayList<>(Math.min(limit, 1024));
+        int type = -1;
+        if (eventType != null) {
+            type = typeCode(eventType);
+            if (type == 0 && !EVENT_TYPES[0].equals(eventType)) {
+                return matches;
+            }
+        }
+        byte[] idFilter = intersectionId != null ? encodeId(intersectionId) : null;
+        long fromNanos = from != null ? toNanos(from) : Long.MIN_VALUE;
+        long toNanos = to != null ? toNanos(to) : Long.MAX_VALUE;
+
+        Segment[] snapshot = segments;
+        long id = Math.min(beforeId - 1, lastId);
+        for (int s = snapshot.length - 1; s >= 0 && matches.size() < limit; s--) {
+            Segment segment = snapshot[s];
+            MappedByteBuffer buffer = segment.buffer();
+            for (; id >= segment.firstId() && matches.size() < limit; id--) {
+                int base = (int) (id - segment.firstId()) * RECORD_BYTES;
+                long timestamp = buffer.getLong(base + TIMESTAMP);
+                if (timestamp < fromNanos || timestamp >= toNanos
+                        || (type >= 0 && buffer.get(base + TYPE) != type)
+                        || (idFilter != null && !idEquals(buffer, base, idFilter))) {
+                    continue;
+                }
+                matches.add(read(buffer, base, id, timestamp));
+            }
+        }
+        return matches;
+    }
+
+    /** Flushes the tail segment to disk. Rolled segments are flushed when they fill up. */
+    public synchronized void force() {
+        segments[segments.length - 1].buffer().force();
+    }
+
+    @Override
+    public synchronized void close() {
+        force();
+        try {
+            // Closing the channel releases the directory lock
+            lockChannel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to unlock history journal " + directory, e);
+        }
+    }
+
+    // --- Segments ---
+
+    private Segment roll(long firstId) {
+        Segment[] current = segments;
+        current[current.length - 1].buffer().force();
+        Segment created;
+        try {
+            created = createSegment(firstId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to roll history journal at record " + firstId, e);
+        }
+        int keep = Math.min(current.length, maxSegments - 1);
+        Segment[] next = Arrays.copyOfRange(current, current.length - keep, current.length + 1);
+        next[keep] = created;
+        segments = next;
+        for (int i = 0; i < current.length - keep; i++) {
+            // Readers still holding the old snapshot keep the mapping alive until they finish
+            try {
+                Files.deleteIfExists(current[i].file());
+            } catch (IOException ignored) {
+                // Retried implicitly: the file is no longer referenced and is skipped on reopen
+            }
+        }
+        return created;
+    }
+
+    private Segment createSegment(long firstId) throws IOException {
+        Path file = directory.resolve(String.format("%020d%s", firstId, SUFFIX));
+        return map(firstId, file);
+    }
+
+    private Segment map(long firstId, Path file) throws IOException {
+        long bytes = (long) recordsPerSegment * RECORD_BYTES;
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            if (raf.length() < bytes) {
+                raf.setLength(bytes);
+            }
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            return new Segment(firstId, file, buffer, recordsPerSegment);
+        }
+    }
+
+    private Segment[] openSegments() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).sorted().toList();
+        }
+        // Only the newest segments are kept, as they would have been had the process not stopped
+        files = files.subList(Math.max(0, files.size() - maxSegments), files.size());
+        List<Segment> opened = new ArrayList<>(files.size());
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            opened.add(map(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), file));
+        }
+        return opened.toArray(new Segment[0]);
+    }
+
+    /** Binary search for the first unwritten record of a segment. */
+    private static int committedRecords(Segment segment) {
+        int low = 0;
+        int high = segment.capacity();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (segment.buffer().getLong(mid * RECORD_BYTES + ID) == segment.firstId() + mid) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // --- Encoding ---
+
+    private HistoryEvent read(MappedByteBuffer buffer, int base, long id, long timestamp) {
+        int phaseId = buffer.getInt(base + PHASE_ID);
+        int color = buffer.get(base + COLOR);
+        int type = buffer.get(base + TYPE);
+        HistoryEvent event = new HistoryEvent(fromNanos(timestamp),
+                readString(buffer, base + INTERSECTION, buffer.get(base + INTERSECTION_LENGTH)),
+                EVENT_TYPES[type >= 0 && type < EVENT_TYPES.length ? type : 0],
+                phaseId != NO_PHASE ? phaseId : null,
+                color > 0 ? COLORS[color - 1] : null,
+                readString(buffer, base + DETAILS, buffer.getShort(base + DETAILS_LENGTH)));
+        event.setId(id);
+        return event;
+    }
+
+    private byte[] encodeId(String intersectionId) {
+        if (intersectionId == null) {
+            return new byte[0];
+        }
+        // Intersection ids repeat endlessly, so each is encoded once
+        return encodedIds.computeIfAbsent(intersectionId, key -> {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_INTERSECTION_ID_BYTES) {
+                throw new IllegalArgumentException("Intersection id longer than " + MAX_INTERSECTION_ID_BYTES + " bytes");
+            }
+            return bytes;
+        });
+    }
+
+    private static boolean idEquals(MappedByteBuffer buffer, int base, byte[] id) {
+        if (buffer.get(base + INTERSECTION_LENGTH) != id.length) {
+            return false;
+        }
+        for (int i = 0; i < id.length; i++) {
+            if (buffer.get(base + INTERSECTION + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Writes ASCII directly and falls back to a UTF-8 encode otherwise; returns the bytes written. */
+    private static int putDetails(MappedByteBuffer buffer, int offset, String details) {
+        if (details == null) {
+            return 0;
+        }
+        int length = Math.min(details.length(), MAX_DETAILS_BYTES);
+        for (int i = 0; i < length; i++) {
+            char c = details.charAt(i);
+            if (c >= 0x80) {
+                byte[] bytes = details.getBytes(StandardCharsets.UTF_8);
+                int n = Math.min(bytes.length, MAX_DETAILS_BYTES);
+                // Never cut a multi-byte character in half
+                while (n < bytes.length && n > 0 && (bytes[n] & 0xC0) == 0x80) {
+                    n--;
+                }
+                buffer.put(offset, bytes, 0, n);
+                return n;
+            }
+            buffer.put(offset + i, (byte) c);
+        }
+        return length;
+    }
+
+    private static String readString(MappedByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static int typeCode(String eventType) {
+        for (int i = 1; i < EVENT_TYPES.length; i++) {
+            if (EVENT_TYPES[i].equals(eventType)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static long toNanos(LocalDateTime timestamp) {
+        return timestamp.toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L + timestamp.getNano();
+    }
+
+    private static LocalDateTime fromNanos(long nanos) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L),
+                (int) Math.floorMod(nanos, 1_000_000_000L), ZoneOffset.UTC);
+    }
+}
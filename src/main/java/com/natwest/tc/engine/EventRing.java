@@ -0,0 +1,102 @@
+package com.natwest.tc.engine;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free multi-producer/multi-consumer ring buffer.
+ * <p>
+ * Each cell carries a sequence number that tells producers and consumers whether it is free or
+ * filled for their lap of the ring, so {@link #offer} and {@link #poll} are a single CAS on the
+ * fast path and never block. Consumers other than the main drainer are allowed so that a producer
+ * can evict the oldest element when the ring is full.
+ */
+public final class EventRing<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> cells;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /** @param capacity rounded up to the next power of two */
+    public EventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.cells = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /** Returns false, without waiting, when the ring is full. */
+    public boolean offer(E element) {
+        long pos = tail.get();
+        for (; ; ) {
+            int index = (int) (pos & mask);
+            long gap = sequences.get(index) - pos;
+            if (gap == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    cells.lazySet(index, element);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (gap < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /** Returns null, without waiting, when the ring is empty. */
+    public E poll() {
+        long pos = head.get();
+        for (; ; ) {
+            int index = (int) (pos & mask);
+            long gap = sequences.get(index) - (pos + 1);
+            if (gap == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E element = cells.get(index);
+                    cells.lazySet(index, null);
+                    sequences.set(index, pos + mask + 1);
+                    return element;
+                }
+                pos = head.get();
+            } else if (gap < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    /** Moves up to {@code max} elements into the sink and returns how many were moved. */
+    public int drainTo(Collection<? super E> sink, int max) {
+        int moved = 0;
+        E element;
+        while (moved < max && (element = poll()) != null) {
+            sink.add(element);
+            moved++;
+        }
+        return moved;
+    }
+
+    /** Approximate number of queued elements. */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
@@ -0,0 +1,321 @@
+package com.natwest.tc.engine;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Searches the cycle offsets of a corridor of signals sharing one cycle length so that a platoon can
+ * pass every junction on green, in either direction.
+ * <p>
+ * Time is counted in whole seconds around the cycle. Junction {@code j} starts its cycle at its
+ * offset {@code o[j]} and shows the coordinated green from {@code o[j] + greenStart[j]} for
+ * {@code green[j]} seconds. A vehicle leaving the first junction at {@code t} reaches junction
+ * {@code j} at {@code t + outboundArrival[j]}; one leaving the last junction reaches it at
+ * {@code t + inboundArrival[j]}. Each green is therefore a circular bitset of departure times that
+ * get through it, and the outbound band is the longest run of the AND of all of them: the widest
+ * window of departures that meets green all the way along. Each bitset is {@code ceil(cycle / 64)}
+ * words, so scoring one candidate offset is a few ANDs per junction.
+ * <p>
+ * The search maximises {@code outbound + inboundWeight * inbound}. The first junction is held at
+ * offset 0, since only differences matter. Several starting points, the ideal outbound wave, the
+ * ideal inbound wave and random blends of the two, are improved in parallel by coordinate descent, coarse to
+ * fine: each junction's offset is first tried right round the cycle in coarse steps, then around the
+ * best with the step halved each round down to one second. The best result wins; ties go to the
+ * earliest start, so the search is deterministic for a given seed.
+ */
+public final class GreenWaveOptimizer {
+
+    /** Sweeps over the junctions at one step size before moving to a finer one. */
+    private static final int MAX_SWEEPS = 8;
+    /** Offsets tried either side of the current one at each finer step. */
+    private static final int FINE_REACH = 2;
+    private static final double EPSILON = 1e-9;
+
+    private final int cycle;
+    private final int words;
+    private final int[] greenStart;
+    private final int[] green;
+    private final int[] outboundArrival;
+    private final int[] inboundArrival;
+    private final double inboundWeight;
+    private final int coarseStep;
+
+    /**
+     * @param cycle           the shared cycle in seconds
+     * @param greenStart      second of each junction's cycle at which its coordinated green starts
+     * @param green           length of each junction's coordinated green in seconds
+     * @param outboundArrival travel time in seconds from the first junction to each junction
+     * @param inboundArrival  travel time in seconds from the last junction to each junction
+     * @param inboundWeight   weight of the inbound band against the outbound band; 0 for a one-way wave
+     */
+    public GreenWaveOptimizer(int cycle, int[] greenStart, int[] green, int[] outboundArrival, int[] inboundArrival,
+                              double inboundWeight) {
+        if (cycle <= 0) {
+            throw new IllegalArgumentException("Cycle must be positive");
+        }
+        int n = greenStart.length;
+        if (n == 0 || green.length != n || outboundArrival.length != n || inboundArrival.length != n) {
+            throw new IllegalArgumentException("Every junction needs a green start, green and both arrival times");
+        }
+        this.cycle = cycle;
+        this.words = (cycle + 63) >>> 6;
+        this.greenStart = greenStart.clone();
+        this.green = green.clone();
+        this.outboundArrival = outboundArrival.clone();
+        this.inboundArrival = inboundArrival.clone();
+        this.inboundWeight = Math.max(0, inboundWeight);
+        this.coarseStep = Math.max(1, Integer.highestOneBit(cycle / 16));
+    }
+
+    public int junctions() {
+        return greenStart.length;
+    }
+
+    public int cycle() {
+        return cycle;
+    }
+
+    /**
+     * Runs {@code starts} descents on the pool and returns the best.
+     *
+     * @param seed seeds the random starting points
+     */
+    public Result optimize(ForkJoinPool pool, int starts, long seed) {
+        long started = System.nanoTime();
+        int count = Math.max(2, starts);
+        Result best = pool.submit(() -> IntStream.range(0, count).parallel()
+                        .mapToObj(k -> descend(start(k, seed)))
+                        .reduce((a, b) -> b.score() > a.score() + EPSILON ? b : a)
+                        .orElseThrow())
+                .join();
+        return new Result(best.offsets(), best.outboundBand(), best.inboundBand(), best.score(), count,
+                System.nanoTime() - started);
+    }
+
+    /** Seconds of departures from the first junction that meet green at every junction. */
+    public int outboundBand(int[] offsets) {
+        return band(offsets, outboundArrival);
+    }
+
+    /** Seconds of departures from the last junction that meet green at every junction. */
+    public int inboundBand(int[] offsets) {
+        return band(offsets, inboundArrival);
+    }
+
+    private int band(int[] offsets, int[] arrival) {
+        long[] through = full();
+        long[] mask = new long[words];
+        for (int j = 0; j < offsets.length; j++) {
+            window(j, offsets[j], arrival, mask);
+            and(through, mask);
+        }
+        return longestRun(through, cycle);
+    }
+
+    /**
+     * Start 0 lines the outbound greens up and start 1 the inbound ones. The rest lie part of the way
+     * from one to the other, with some jitter: a band of zero scores the same wherever a junction
+     * moves, so purely random offsets would rarely improve at all.
+     */
+    private int[] start(int k, long seed) {
+        int n = junctions();
+        int[] offsets = new int[n];
+        SplittableRandom random = new SplittableRandom(seed + k);
+        double blend = k < 2 ? k : random.nextDouble();
+        int jitter = k < 2 ? 0 : coarseStep;
+        for (int j = 1; j < n; j++) {
+            int outbound = ideal(j, outboundArrival);
+            int towardsInbound = Math.floorMod(ideal(j, inboundArrival) - outbound, cycle);
+            int shake = jitter > 0 ? random.nextInt(2 * jitter + 1) - jitter : 0;
+            offsets[j] = Math.floorMod(outbound + (int) Math.round(blend * towardsInbound) + shake, cycle);
+        }
+        return offsets;
+    }
+
+    /** The offset that opens junction {@code j}'s green as vehicles that met the first opening arrive. */
+    private int ideal(int j, int[] arrival) {
+        return Math.floorMod(greenStart[0] - arrival[0] - greenStart[j] + arrival[j], cycle);
+    }
+
+    private Result descend(int[] offsets) {
+        int n = junctions();
+        long[][] out = new long[n][words];
+        long[][] in = new long[n][words];
+        for (int j = 0; j < n; j++) {
+            window(j, offsets[j], outboundArrival, out[j]);
+            window(j, offsets[j], inboundArrival, in[j]);
+        }
+        long[] othersOut = new long[words];
+        long[] othersIn = new long[words];
+        long[] candidateOut = new long[words];
+        long[] candidateIn = new long[words];
+        long[] scratch = new long[words];
+
+        for (int step = coarseStep; step >= 1; step >>= 1) {
+            boolean coarse = step == coarseStep;
+            boolean improved = true;
+            for (int sweep = 0; improved && sweep < MAX_SWEEPS; sweep++) {
+                improved = false;
+                for (int j = 1; j < n; j++) {
+                    fill(othersOut, othersIn);
+                    for (int k = 0; k < n; k++) {
+                        if (k != j) {
+                            and(othersOut, out[k]);
+                            and(othersIn, in[k]);
+                        }
+                    }
+                    int current = offsets[j];
+                    double best = score(othersOut, out[j], othersIn, in[j], scratch);
+                    int bestOffset = current;
+                    int from = coarse ? 0 : -FINE_REACH;
+                    int to = coarse ? (cycle - 1) / step : FINE_REACH;
+                    for (int d = from; d <= to; d++) {
+                        int offset = coarse ? d * step : Math.floorMod(current + d * step, cycle);
+                        if (offset == current) {
+                            continue;
+                        }
+                        window(j, offset, outboundArrival, candidateOut);
+                        window(j, offset, inboundArrival, candidateIn);
+                        double score = score(othersOut, candidateOut, othersIn, candidateIn, scratch);
+                        if (score > best + EPSILON) {
+                            best = score;
+                            bestOffset = offset;
+                        }
+                    }
+                    if (bestOffset != current) {
+                        offsets[j] = bestOffset;
+                        window(j, bestOffset, outboundArrival, out[j]);
+                        window(j, bestOffset, inboundArrival, in[j]);
+                        improved = true;
+                    }
+                }
+            }
+        }
+        int outbound = outboundBand(offsets);
+        int inbound = inboundBand(offsets);
+        return new Result(offsets, outbound, inbound, outbound + inboundWeight * inbound, 1, 0);
+    }
+
+    private double score(long[] othersOut, long[] out, long[] othersIn, long[] in, long[] scratch) {
+        for (int w = 0; w < words; w++) {
+            scratch[w] = othersOut[w] & out[w];
+        }
+        double score = longestRun(scratch, cycle);
+        if (inboundWeight > 0) {
+            for (int w = 0; w < words; w++) {
+                scratch[w] = othersIn[w] & in[w];
+            }
+            score += inboundWeight * longestRun(scratch, cycle);
+        }
+        return score;
+    }
+
+    /** Departure times, relative to the cycle, that reach junction {@code j} during its coordinated green. */
+    private void window(int j, int offset, int[] arrival, long[] mask) {
+        Arrays.fill(mask, 0);
+        int length = Math.min(green[j], cycle);
+        int start = Math.floorMod(offset + greenStart[j] - arrival[j], cycle);
+        int end = start + length;
+        if (end <= cycle) {
+            setRange(mask, start, end);
+        } else {
+            setRange(mask, start, cycle);
+            setRange(mask, 0, end - cycle);
+        }
+    }
+
+    private long[] full() {
+        long[] mask = new long[words];
+        setRange(mask, 0, cycle);
+        return mask;
+    }
+
+    private void fill(long[] a, long[] b) {
+        Arrays.fill(a, -1L);
+        Arrays.fill(b, -1L);
+        // Bits past the end of the cycle stay clear so they never extend a run
+        int spare = (words << 6) - cycle;
+        if (spare > 0) {
+            a[words - 1] >>>= spare;
+            b[words - 1] >>>= spare;
+        }
+    }
+
+    private static void and(long[] into, long[] mask) {
+        for (int w = 0; w < into.length; w++) {
+            into[w] &= mask[w];
+        }
+    }
+
+    private static void setRange(long[] mask, int from, int to) {
+        for (int bit = from; bit < to; ) {
+            int w = bit >>> 6;
+            int upTo = Math.min(to, (w + 1) << 6);
+            int span = upTo - bit;
+            long bits = span == 64 ? -1L : ((1L << span) - 1) << (bit & 63);
+            mask[w] |= bits;
+            bit = upTo;
+        }
+    }
+
+    /** Longest run of set bits in the first {@code bits} bits, wrapping from the last bit to the first. */
+    static int longestRun(long[] mask, int bits) {
+        int longest = 0;
+        int first = 0;
+        int last = 0;
+        int position = 0;
+        while (position < bits) {
+            int start = nextSet(mask, position, bits);
+            if (start >= bits) {
+                break;
+            }
+            int end = nextClear(mask, start, bits);
+            if (start == 0 && end == bits) {
+                return bits;
+            }
+            if (start == 0) {
+                first = end;
+            }
+            if (end == bits) {
+                last = end - start;
+            }
+            longest = Math.max(longest, end - start);
+            position = end;
+        }
+        return Math.max(longest, first + last);
+    }
+
+    private static int nextSet(long[] mask, int from, int bits) {
+        int w = from >>> 6;
+        long word = mask[w] & (-1L << (from & 63));
+        while (word == 0) {
+            if (++w == mask.length) {
+                return bits;
+            }
+            word = mask[w];
+        }
+        return Math.min(bits, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    private static int nextClear(long[] mask, int from, int bits) {
+        int w = from >>> 6;
+        long word = ~mask[w] & (-1L << (from & 63));
+        while (word == 0) {
+            if (++w == mask.length) {
+                return bits;
+            }
+            word = ~mask[w];
+        }
+        return Math.min(bits, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    /**
+     * @param offsets each junction's cycle start after the shared epoch, in seconds; the first is 0
+     * @param score   {@code outboundBand + inboundWeight * inboundBand}
+     * @param starts  descents run
+     */
+    public record Result(int[] offsets, int outboundBand, int inboundBand, double score, int starts, long elapsedNanos) {
+    }
+}
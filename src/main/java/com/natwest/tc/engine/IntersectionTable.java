@@ -0,0 +1,199 @@
+package com.natwest.tc.engine;
+
+import com.natwest.tc.model.IntersectionState;
+import com.natwest.tc.model.LightColor;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity table holding the runtime state of every intersection driven by the engine.
+ * <p>
+ * Each intersection owns a slot. Its phase index, colour, paused flag and catch-up debt are
+ * packed into a single {@code long} so a transition is one read and one compare-and-set, readers
+ * never see a half-applied transition, and transitions allocate nothing. When the current state
+ * ends is not stored here but as a deadline in the engine's {@link DeadlineWheel}.
+ * <pre>
+ *  bits  0..31  catch-up debt: microseconds the cycle is behind its schedule (unsigned)
+ *  bits 32..47  index into the intersection's {@link PhasePlan}
+ *  bits 48..49  {@link LightColor} ordinal
+ *  bit  50      paused flag
+ * </pre>
+ */
+public final class IntersectionTable {
+
+    public static final int MAX_SEQUENCE_LENGTH = 0xFFFF;
+
+    private static final LightColor[] COLORS = LightColor.values();
+
+    private static final int INDEX_SHIFT = 32;
+    private static final int COLOR_SHIFT = 48;
+    private static final long DEBT_MASK = 0xFFFF_FFFFL;
+    private static final long INDEX_MASK = 0xFFFFL;
+    private static final long COLOR_MASK = 0x3L;
+    private static final long PAUSED_BIT = 1L << 50;
+
+    private final AtomicLongArray states;
+    private final AtomicReferenceArray<PhasePlan> plans;
+    private final AtomicReferenceArray<StateSnapshot> snapshots;
+    private final String[] ids;
+    private final ConcurrentHashMap<String, Integer> slots = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    public IntersectionTable(int capacity) {
+        this.states = new AtomicLongArray(capacity);
+        this.plans = new AtomicReferenceArray<>(capacity);
+        this.snapshots = new AtomicReferenceArray<>(capacity);
+        this.ids = new String[capacity];
+    }
+
+    /**
+     * Returns the slot for the intersection, allocating one on first use.
+     * New intersections start paused at RED with an empty plan, their phase started now on {@code clock}.
+     *
+     * @throws IllegalArgumentException if the id takes more than
+     *                                  {@link EngineCheckpoint#MAX_INTERSECTION_ID_BYTES} bytes of UTF-8,
+     *                                  more than the checkpoint, journal and replication records hold
+     */
+    public int register(String intersectionId, Clock clock) {
+        Integer existing = slots.get(intersectionId);
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (this) {
+            existing = slots.get(intersectionId);
+            if (existing != null) {
+                return existing;
+            }
+            if (intersectionId.getBytes(StandardCharsets.UTF_8).length > EngineCheckpoint.MAX_INTERSECTION_ID_BYTES) {
+                throw new IllegalArgumentException("Intersection id longer than "
+                        + EngineCheckpoint.MAX_INTERSECTION_ID_BYTES + " bytes");
+            }
+            int slot = size.get();
+            if (slot >= ids.length) {
+                throw new IllegalStateException("Intersection capacity of " + ids.length + " exhausted");
+            }
+            ids[slot] = intersectionId;
+            plans.set(slot, PhasePlan.EMPTY);
+            states.set(slot, pack(0, LightColor.RED, true));
+            snapshots.set(slot, initialSnapshot(intersectionId, clock));
+            // Publishing the size last makes the slot visible to tick workers only once initialised
+            size.set(slot + 1);
+            slots.put(intersectionId, slot);
+            return slot;
+        }
+    }
+
+    /** Returns the slot for the intersection, or -1 if it has never been registered. */
+    public int slotOf(String intersectionId) {
+        Integer slot = slots.get(intersectionId);
+        return slot == null ? -1 : slot;
+    }
+
+    public String idAt(int slot) {
+        return ids[slot];
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public int capacity() {
+        return ids.length;
+    }
+
+    public long state(int slot) {
+        return states.get(slot);
+    }
+
+    public void setState(int slot, long state) {
+        states.set(slot, state);
+    }
+
+    public boolean compareAndSetState(int slot, long expected, long state) {
+        return states.compareAndSet(slot, expected, state);
+    }
+
+    public PhasePlan plan(int slot) {
+        return plans.get(slot);
+    }
+
+    public void setPlan(int slot, PhasePlan plan) {
+        plans.set(slot, plan);
+    }
+
+    public boolean compareAndSetPlan(int slot, PhasePlan expected, PhasePlan plan) {
+        return plans.compareAndSet(slot, expected, plan);
+    }
+
+    /** The last published snapshot; one volatile read, never torn. */
+    public StateSnapshot snapshot(int slot) {
+        return snapshots.get(slot);
+    }
+
+    public boolean compareAndSetSnapshot(int slot, StateSnapshot expected, StateSnapshot snapshot) {
+        return snapshots.compareAndSet(slot, expected, snapshot);
+    }
+
+    /** Restarts the phase of every intersection that has never published a state now on {@code clock}. */
+    public void restampInitialSnapshots(Clock clock) {
+        for (int slot = 0, n = size.get(); slot < n; slot++) {
+            StateSnapshot snapshot = snapshots.get(slot);
+            if (snapshot.version() == 0) {
+                snapshots.compareAndSet(slot, snapshot, initialSnapshot(ids[slot], clock));
+            }
+        }
+    }
+
+    private static StateSnapshot initialSnapshot(String intersectionId, Clock clock) {
+        IntersectionState state = new IntersectionState();
+        state.setIntersectionId(intersectionId);
+        state.setPaused(true);
+        state.setCurrentPhaseId(0);
+        state.setPhaseStartTime(LocalDateTime.now(clock));
+        return new StateSnapshot(0, state);
+    }
+
+    // --- Packing helpers ---
+
+    public static long pack(int index, LightColor color, boolean paused) {
+        return ((index & INDEX_MASK) << INDEX_SHIFT)
+                | ((long) color.ordinal() << COLOR_SHIFT)
+                | (paused ? PAUSED_BIT : 0L);
+    }
+
+    public static long debtMicros(long state) {
+        return state & DEBT_MASK;
+    }
+
+    public static int index(long state) {
+        return (int) ((state >>> INDEX_SHIFT) & INDEX_MASK);
+    }
+
+    public static LightColor color(long state) {
+        return COLORS[(int) ((state >>> COLOR_SHIFT) & COLOR_MASK)];
+    }
+
+    public static boolean isPaused(long state) {
+        return (state & PAUSED_BIT) != 0;
+    }
+
+    /** Sets the catch-up debt, saturating at about 71 minutes. */
+    public static long withDebtMicros(long state, long debtMicros) {
+        return (state & ~DEBT_MASK) | Math.min(Math.max(debtMicros, 0), DEBT_MASK);
+    }
+
+    /** Switches colour and clears the catch-up debt. */
+    public static long withColor(long state, LightColor color) {
+        return (state & ~(COLOR_MASK << COLOR_SHIFT) & ~DEBT_MASK) | ((long) color.ordinal() << COLOR_SHIFT);
+    }
+
+    public static long withPaused(long state, boolean paused) {
+        return paused ? state | PAUSED_BIT : state & ~PAUSED_BIT;
+    }
+}
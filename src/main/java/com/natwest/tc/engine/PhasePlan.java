@@ -0,0 +1,195 @@
+package com.natwest.tc.engine;
+
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Immutable, array-backed form of an intersection's phase sequence, compiled once when a cycle
+ * starts (and again only when the rules it was compiled against are reloaded).
+ * <p>
+ * Green durations, actuation bounds, direction masks and the conflict check of every phase are
+ * resolved up front, so the tick loop only indexes into arrays: no map lookups and no conflict
+ * scans mid-cycle.
+ */
+public final class PhasePlan {
+
+    /** Returned by a duration lookup for a phase id that is not in the rule set. */
+    public static final int UNKNOWN_PHASE = -1;
+
+    public static final PhasePlan EMPTY = new PhasePlan(new int[0], new int[0], new int[0], new int[0],
+            new long[0][], new int[0][], new boolean[0], new boolean[0], ConflictMatrix.EMPTY);
+
+    private static final IntUnaryOperator FIXED_TIME = phaseId -> 0;
+
+    private final int[] phaseIds;
+    private final int[] greenSeconds;
+    private final int[] minGreenSeconds;
+    private final int[] maxGreenSeconds;
+    private final long[][] masks;
+    private final int[][] directionIds;
+    private final int[] actuatedDirectionIds;
+    private final boolean[] known;
+    private final boolean[] phaseSafe;
+    private final ConflictMatrix rules;
+
+    private PhasePlan(int[] phaseIds, int[] greenSeconds, int[] minGreenSeconds, int[] maxGreenSeconds,
+                      long[][] masks, int[][] directionIds, boolean[] known, boolean[] phaseSafe, ConflictMatrix rules) {
+        this.phaseIds = phaseIds;
+        this.greenSeconds = greenSeconds;
+        this.minGreenSeconds = minGreenSeconds;
+        this.maxGreenSeconds = maxGreenSeconds;
+        this.masks = masks;
+        this.directionIds = directionIds;
+        this.actuatedDirectionIds = IntStream.range(0, phaseIds.length)
+                .filter(i -> minGreenSeconds[i] > 0)
+                .flatMap(i -> Arrays.stream(directionIds[i]))
+                .sorted().distinct().toArray();
+        this.known = known;
+        this.phaseSafe = phaseSafe;
+        this.rules = rules;
+    }
+
+    /**
+     * Compiles a fixed-time sequence against the given rules.
+     *
+     * @param phaseIds  the phase ids in cycle order
+     * @param durations green seconds for a phase id, or {@link #UNKNOWN_PHASE}
+     * @param rules     the conflict matrix the safety of each phase is checked against
+     */
+    public static PhasePlan compile(int[] phaseIds, IntUnaryOperator durations, ConflictMatrix rules) {
+        return compile(phaseIds, durations, FIXED_TIME, FIXED_TIME, rules);
+    }
+
+    /**
+     * Compiles a sequence whose phases may be vehicle-actuated: a phase is actuated when its
+     * minimum green is positive and its maximum is at least that, and runs fixed time otherwise.
+     *
+     * @param minGreens shortest actuated green for a phase id, or zero or less for fixed time
+     * @param maxGreens longest actuated green for a phase id
+     */
+    public static PhasePlan compile(int[] phaseIds, IntUnaryOperator durations, IntUnaryOperator minGreens,
+                                    IntUnaryOperator maxGreens, ConflictMatrix rules) {
+        int n = phaseIds.length;
+        int[] ids = phaseIds.clone();
+        int[] greenSeconds = new int[n];
+        int[] minGreenSeconds = new int[n];
+        int[] maxGreenSeconds = new int[n];
+        long[][] masks = new long[n][];
+        int[][] directionIds = new int[n][];
+        boolean[] known = new boolean[n];
+        boolean[] phaseSafe = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            int duration = durations.applyAsInt(ids[i]);
+            known[i] = duration != UNKNOWN_PHASE;
+            greenSeconds[i] = Math.max(duration, 0);
+            int minGreen = minGreens.applyAsInt(ids[i]);
+            int maxGreen = maxGreens.applyAsInt(ids[i]);
+            if (known[i] && minGreen > 0 && maxGreen >= minGreen) {
+                minGreenSeconds[i] = minGreen;
+                maxGreenSeconds[i] = maxGreen;
+            }
+            masks[i] = rules.phaseMask(ids[i]);
+            directionIds[i] = directionIds(masks[i], rules);
+            phaseSafe[i] = known[i] && rules.isConflictFree(masks[i]);
+        }
+        return new PhasePlan(ids, greenSeconds, minGreenSeconds, maxGreenSeconds, masks, directionIds, known,
+                phaseSafe, rules);
+    }
+
+    private static int[] directionIds(long[] mask, ConflictMatrix rules) {
+        int count = 0;
+        for (long word : mask) {
+            count += Long.bitCount(word);
+        }
+        int[] ids = new int[count];
+        int k = 0;
+        for (int w = 0; w < mask.length; w++) {
+            for (long word = mask[w]; word != 0; word &= word - 1) {
+                ids[k++] = rules.directionIdOf(w * Long.SIZE + Long.numberOfTrailingZeros(word));
+            }
+        }
+        return ids;
+    }
+
+    public int size() {
+        return phaseIds.length;
+    }
+
+    public boolean isEmpty() {
+        return phaseIds.length == 0;
+    }
+
+    /** The rule set this plan was validated against; a different instance means the plan is stale. */
+    public ConflictMatrix rules() {
+        return rules;
+    }
+
+    public int[] phaseIds() {
+        return phaseIds.clone();
+    }
+
+    public int phaseId(int index) {
+        return phaseIds[index];
+    }
+
+    public int greenSeconds(int index) {
+        return greenSeconds[index];
+    }
+
+    /** True when the phase's green is vehicle-actuated rather than fixed time. */
+    public boolean isActuated(int index) {
+        return minGreenSeconds[index] > 0;
+    }
+
+    /** Shortest green of an actuated phase; zero for fixed time. */
+    public int minGreenSeconds(int index) {
+        return minGreenSeconds[index];
+    }
+
+    /** Longest green of an actuated phase; zero for fixed time. */
+    public int maxGreenSeconds(int index) {
+        return maxGreenSeconds[index];
+    }
+
+    public long[] mask(int index) {
+        return masks[index];
+    }
+
+    /** Ids of the directions the phase turns green, whose detectors extend an actuated green. */
+    public int[] directionIds(int index) {
+        return directionIds[index];
+    }
+
+    /** Ids of every direction an actuated phase turns green, sorted: the detectors the plan reads. */
+    public int[] actuatedDirectionIds() {
+        return actuatedDirectionIds;
+    }
+
+    public boolean isKnown(int index) {
+        return known[index];
+    }
+
+    public boolean isPhaseSafe(int index) {
+        return phaseSafe[index];
+    }
+
+    public int next(int index) {
+        return index + 1 < phaseIds.length ? index + 1 : 0;
+    }
+
+    /** True when the phase that follows {@code index} may turn green once this one has cleared. */
+    public boolean isTransitionSafe(int index) {
+        return phaseSafe[next(index)];
+    }
+
+    /** True when every phase exists and none of them contains conflicting movements. */
+    public boolean isSafe() {
+        for (boolean safe : phaseSafe) {
+            if (!safe) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,648 @@
+package com.natwest.tc.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Offline search for the smallest sets of conflict-free phases that give every movement a green,
+ * working on the bitset rows of a {@link ConflictMatrix}.
+ * <p>
+ * Two movements may share a phase unless the matrix says they conflict, so the candidate phases are
+ * the maximal independent sets of the conflict graph: sets no further movement can join. They are
+ * enumerated with Bron–Kerbosch and Tomita pivoting over word-wide masks, the top levels of the
+ * recursion forked as separate fork-join tasks. A branch-and-bound set cover over those sets then
+ * finds the fewest phases covering every movement. It always branches on the uncovered movement with
+ * the fewest candidate phases. A branch is cut when its depth plus a lower bound reaches the best
+ * cover found: the bound is a greedy clique of mutually conflicting uncovered movements, each of
+ * which needs a phase of its own. The branches near the root run in parallel and share the bound.
+ * <p>
+ * Both stages stop at a deadline (the enumeration at half of it, the cover at all of it) and at a cap
+ * on the number of sets, so very sparse conflict tables still answer in bounded time; the result
+ * then says it is not proven optimal. A greedy cover is always available as the starting bound, and
+ * when the enumeration was cut short a cover built movement by movement is added to the candidates.
+ */
+public final class PhasePlanner {
+
+    /** Branches this close to the root of either search run as separate fork-join tasks. */
+    private static final int FORK_DEPTH = 2;
+    /** A Bron–Kerbosch branch is forked only while this many candidates remain. */
+    private static final int FORK_CANDIDATES = 12;
+    /** Orderings are searched exhaustively up to this many phases, greedily beyond. */
+    private static final int EXHAUSTIVE_ORDER = 8;
+
+    private final ConflictMatrix matrix;
+    private final int movements;
+    private final int words;
+    private final long[] universe;
+    private final long[][] compatible;
+    private final long[][] conflicting;
+
+    public PhasePlanner(ConflictMatrix matrix) {
+        this.matrix = matrix;
+        this.movements = matrix.directionCount();
+        this.words = matrix.words();
+        this.universe = new long[words];
+        for (int bit = 0; bit < movements; bit++) {
+            universe[bit >>> 6] |= 1L << bit;
+        }
+        this.compatible = new long[movements][];
+        this.conflicting = new long[movements][];
+        for (int bit = 0; bit < movements; bit++) {
+            long[] self = new long[words];
+            self[bit >>> 6] = 1L << bit;
+            conflicting[bit] = matrix.conflictsOf(self);
+            compatible[bit] = new long[words];
+            for (int w = 0; w < words; w++) {
+                compatible[bit][w] = universe[w] & ~conflicting[bit][w] & ~self[w];
+            }
+        }
+    }
+
+    public int movements() {
+        return movements;
+    }
+
+    /** Mask of every movement the matrix knows. */
+    public long[] allMovements() {
+        return universe.clone();
+    }
+
+    /** Movements not in the phase that conflict with none of its movements. */
+    public long[] addable(long[] phaseMask) {
+        long[] addable = new long[words];
+        long[] blocked = matrix.conflictsOf(phaseMask);
+        for (int w = 0; w < words; w++) {
+            long own = w < phaseMask.length ? phaseMask[w] : 0;
+            addable[w] = universe[w] & ~blocked[w] & ~own;
+        }
+        return addable;
+    }
+
+    /**
+     * Runs both stages on {@code pool}.
+     *
+     * @param proposals   most covers of the smallest size to return
+     * @param maxSets     most maximal sets to enumerate
+     * @param budgetNanos time allowed for the whole search
+     */
+    public Result plan(ForkJoinPool pool, int proposals, int maxSets, long budgetNanos) {
+        long started = System.nanoTime();
+        Enumeration enumeration = new Enumeration(maxSets, started + budgetNanos / 2);
+        if (movements > 0) {
+            pool.invoke(enumeration.new Expand(new long[words], universe.clone(), new long[words], 0));
+        }
+        List<long[]> found = new ArrayList<>(enumeration.sets);
+        int[] seed = new int[0];
+        if (enumeration.truncated) {
+            // The sets found so far come from one corner of the search; add a cover built for coverage
+            for (long[] set : constructiveCover()) {
+                seed = Arrays.copyOf(seed, seed.length + 1);
+                seed[seed.length - 1] = found.size();
+                found.add(set);
+            }
+        }
+        long[][] sets = found.toArray(new long[0][]);
+
+        Cover cover = new Cover(sets, seed, Math.max(1, proposals), started + budgetNanos);
+        if (movements > 0) {
+            pool.invoke(cover.new Branch(universe.clone(), new int[0]));
+        }
+        List<long[][]> covers = new ArrayList<>();
+        for (int[] chosen : cover.covers) {
+            long[][] phases = new long[chosen.length][];
+            for (int i = 0; i < chosen.length; i++) {
+                phases[i] = sets[chosen[i]];
+            }
+            covers.add(order(phases));
+        }
+        boolean complete = !enumeration.truncated;
+        int lowerBound = lowerBound(universe);
+        // A cover as small as the clique bound is optimal however the search ended
+        boolean optimal = cover.best == lowerBound || complete && !cover.timedOut;
+        return new Result(sets.length, complete, optimal, lowerBound, covers, System.nanoTime() - started);
+    }
+
+    /**
+     * Orders a cover's phases so that movements served by several phases get those greens spread
+     * around the cycle, minimising the sum over movements of their longest run of phases without
+     * green.
+     */
+    public long[][] order(long[][] phases) {
+        int k = phases.length;
+        int[] best = new int[k];
+        for (int i = 0; i < k; i++) {
+            best[i] = i;
+        }
+        if (k <= 2) {
+            return arrange(phases, best);
+        }
+        if (k <= EXHAUSTIVE_ORDER) {
+            // The cycle repeats, so the first phase is fixed and the rest permuted
+            int[] candidate = best.clone();
+            long[] bestCost = {longestWaits(phases, best)};
+            permute(phases, candidate, 1, best, bestCost);
+        } else {
+            // Nearest neighbour: each next phase shares as few movements as possible with the last
+            boolean[] used = new boolean[k];
+            used[0] = true;
+            for (int position = 1; position < k; position++) {
+                int next = -1;
+                int leastShared = Integer.MAX_VALUE;
+                for (int i = 0; i < k; i++) {
+                    int shared = used[i] ? Integer.MAX_VALUE : count(and(phases[i], phases[best[position - 1]]));
+                    if (shared < leastShared) {
+                        leastShared = shared;
+                        next = i;
+                    }
+                }
+                used[next] = true;
+                best[position] = next;
+            }
+        }
+        return arrange(phases, best);
+    }
+
+    /**
+     * For each movement, the longest run of consecutive phases (cyclically) that do not serve it, or
+     * the number of phases if none does.
+     */
+    public int[] longestRedRuns(long[][] ordered) {
+        int k = ordered.length;
+        int[] runs = new int[movements];
+        for (int bit = 0; bit < movements; bit++) {
+            runs[bit] = longestRun(ordered, bit, k);
+        }
+        return runs;
+    }
+
+    private static int longestRun(long[][] ordered, int bit, int k) {
+        int word = bit >>> 6;
+        long mask = 1L << bit;
+        int longest = 0;
+        int run = 0;
+        int seen = 0;
+        // Two laps, so a gap that wraps around the end of the cycle is measured whole
+        for (int i = 0; i < 2 * k; i++) {
+            if ((ordered[i % k][word] & mask) != 0) {
+                run = 0;
+                seen++;
+            } else if (++run > longest) {
+                longest = run;
+            }
+        }
+        return seen == 0 ? k : Math.min(longest, k - 1);
+    }
+
+    private void permute(long[][] phases, int[] order, int position, int[] best, long[] bestCost) {
+        if (position == order.length) {
+            long cost = longestWaits(phases, order);
+            if (cost < bestCost[0]) {
+                bestCost[0] = cost;
+                System.arraycopy(order, 0, best, 0, order.length);
+            }
+            return;
+        }
+        for (int i = position; i < order.length; i++) {
+            swap(order, position, i);
+            permute(phases, order, position + 1, best, bestCost);
+            swap(order, position, i);
+        }
+    }
+
+    private long longestWaits(long[][] phases, int[] order) {
+        long[][] ordered = arrange(phases, order);
+        long total = 0;
+        for (int bit = 0; bit < movements; bit++) {
+            total += longestRun(ordered, bit, ordered.length);
+        }
+        return total;
+    }
+
+    private static long[][] arrange(long[][] phases, int[] order) {
+        long[][] ordered = new long[order.length][];
+        for (int i = 0; i < order.length; i++) {
+            ordered[i] = phases[order[i]];
+        }
+        return ordered;
+    }
+
+    private static void swap(int[] values, int i, int j) {
+        int value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    /**
+     * Builds a cover phase by phase: each phase is a greedy maximum independent set of the movements
+     * still uncovered, always taking the one that conflicts with the fewest remaining candidates, then
+     * topped up with any compatible movement to make it maximal.
+     */
+    private List<long[]> constructiveCover() {
+        List<long[]> phases = new ArrayList<>();
+        long[] uncovered = universe.clone();
+        while (!isEmpty(uncovered)) {
+            long[] set = new long[words];
+            long[] candidates = uncovered.clone();
+            while (!isEmpty(candidates)) {
+                int pick = -1;
+                int fewest = Integer.MAX_VALUE;
+                for (int bit = first(candidates); bit >= 0; bit = next(candidates, bit)) {
+                    int conflicts = countAnd(conflicting[bit], candidates);
+                    if (conflicts < fewest) {
+                        fewest = conflicts;
+                        pick = bit;
+                    }
+                }
+                set[pick >>> 6] |= 1L << pick;
+                andInto(candidates, compatible[pick]);
+            }
+            long[] extra = addable(set);
+            for (int bit = first(extra); bit >= 0; bit = first(extra)) {
+                set[bit >>> 6] |= 1L << bit;
+                andInto(extra, compatible[bit]);
+            }
+            andNotInto(uncovered, set);
+            phases.add(set);
+        }
+        return phases;
+    }
+
+    /** Size of a greedy clique of mutually conflicting movements within {@code uncovered}. */
+    private int lowerBound(long[] uncovered) {
+        long[] candidates = uncovered.clone();
+        int clique = 0;
+        for (int bit = first(candidates); bit >= 0; bit = first(candidates)) {
+            clique++;
+            andInto(candidates, conflicting[bit]);
+        }
+        return clique;
+    }
+
+    /** Maximal independent sets of the conflict graph, collected from every task. */
+    private final class Enumeration {
+        final ConcurrentLinkedQueue<long[]> sets = new ConcurrentLinkedQueue<>();
+        final AtomicInteger count = new AtomicInteger();
+        final int maxSets;
+        final long deadline;
+        volatile boolean truncated;
+
+        Enumeration(int maxSets, long deadline) {
+            this.maxSets = maxSets;
+            this.deadline = deadline;
+        }
+
+        /** One Bron–Kerbosch call: grow {@code r} from candidates {@code p}, excluding {@code x}. */
+        final class Expand extends RecursiveAction {
+            private final long[] r;
+            private final long[] p;
+            private final long[] x;
+            private final int depth;
+
+            Expand(long[] r, long[] p, long[] x, int depth) {
+                this.r = r;
+                this.p = p;
+                this.x = x;
+                this.depth = depth;
+            }
+
+            @Override
+            protected void compute() {
+                expand(r, p, x, depth);
+            }
+        }
+
+        void expand(long[] r, long[] p, long[] x, int depth) {
+            if (truncated) {
+                return;
+            }
+            if (isEmpty(p)) {
+                if (isEmpty(x)) {
+                    if (count.incrementAndGet() > maxSets) {
+                        truncated = true;
+                    } else {
+                        sets.add(r);
+                    }
+                }
+                return;
+            }
+            if (System.nanoTime() > deadline) {
+                truncated = true;
+                return;
+            }
+            long[] branches = andNot(p, compatible[pivot(p, x)]);
+            List<Expand> forks = depth < FORK_DEPTH && count(p) >= FORK_CANDIDATES ? new ArrayList<>() : null;
+            for (int v = first(branches); v >= 0; v = next(branches, v)) {
+                long[] r2 = r.clone();
+                r2[v >>> 6] |= 1L << v;
+                long[] p2 = and(p, compatible[v]);
+                long[] x2 = and(x, compatible[v]);
+                if (forks != null) {
+                    forks.add(new Expand(r2, p2, x2, depth + 1));
+                } else {
+                    expand(r2, p2, x2, depth + 1);
+                }
+                p[v >>> 6] &= ~(1L << v);
+                x[v >>> 6] |= 1L << v;
+            }
+            if (forks != null) {
+                RecursiveAction.invokeAll(forks);
+            }
+        }
+
+        /** The movement in {@code p} or {@code x} compatible with the most candidates, so the fewest branches remain. */
+        private int pivot(long[] p, long[] x) {
+            int pivot = -1;
+            int most = -1;
+            for (int w = 0; w < words; w++) {
+                for (long bits = p[w] | x[w]; bits != 0; bits &= bits - 1) {
+                    int u = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    int shared = countAnd(p, compatible[u]);
+                    if (shared > most) {
+                        most = shared;
+                        pivot = u;
+                    }
+                }
+            }
+            return pivot;
+        }
+    }
+
+    /** Branch-and-bound minimum set cover over the enumerated sets. */
+    private final class Cover {
+        final long[][] sets;
+        final int[][] containing;
+        final int largestSet;
+        final int proposals;
+        final long deadline;
+        final List<int[]> covers = new ArrayList<>();
+        final Set<String> seen = new HashSet<>();
+        int best;
+        /** Deepest a branch may go and still be worth exploring; read without the lock. */
+        volatile int limit;
+        volatile boolean timedOut;
+
+        Cover(long[][] sets, int[] seed, int proposals, long deadline) {
+            this.sets = sets;
+            this.proposals = proposals;
+            this.deadline = deadline;
+            int[] counts = new int[movements];
+            int largest = 1;
+            for (long[] set : sets) {
+                largest = Math.max(largest, count(set));
+                for (int bit = first(set); bit >= 0; bit = next(set, bit)) {
+                    counts[bit]++;
+                }
+            }
+            this.largestSet = largest;
+            this.containing = new int[movements][];
+            for (int bit = 0; bit < movements; bit++) {
+                containing[bit] = new int[counts[bit]];
+            }
+            int[] filled = new int[movements];
+            for (int s = 0; s < sets.length; s++) {
+                for (int bit = first(sets[s]); bit >= 0; bit = next(sets[s], bit)) {
+                    containing[bit][filled[bit]++] = s;
+                }
+            }
+            best = movements + 1;
+            offer(greedy());
+            if (seed.length > 0) {
+                offer(seed);
+            }
+        }
+
+        /** Repeatedly takes the set covering the most uncovered movements. */
+        private int[] greedy() {
+            long[] uncovered = universe.clone();
+            int[] chosen = new int[0];
+            while (!isEmpty(uncovered)) {
+                int bestSet = -1;
+                int gain = 0;
+                for (int s = 0; s < sets.length; s++) {
+                    int g = countAnd(sets[s], uncovered);
+                    if (g > gain) {
+                        gain = g;
+                        bestSet = s;
+                    }
+                }
+                chosen = Arrays.copyOf(chosen, chosen.length + 1);
+                chosen[chosen.length - 1] = bestSet;
+                andNotInto(uncovered, sets[bestSet]);
+            }
+            return chosen;
+        }
+
+        synchronized void offer(int[] chosen) {
+            if (chosen.length > best) {
+                return;
+            }
+            if (chosen.length < best) {
+                best = chosen.length;
+                covers.clear();
+                seen.clear();
+            }
+            int[] key = chosen.clone();
+            Arrays.sort(key);
+            if (covers.size() < proposals && seen.add(Arrays.toString(key))) {
+                covers.add(chosen);
+            }
+            // Once enough covers of this size are held, only a smaller one is still of interest
+            limit = covers.size() < proposals ? best : best - 1;
+        }
+
+        final class Branch extends RecursiveAction {
+            private final long[] uncovered;
+            private final int[] chosen;
+
+            Branch(long[] uncovered, int[] chosen) {
+                this.uncovered = uncovered;
+                this.chosen = chosen;
+            }
+
+            @Override
+            protected void compute() {
+                search(uncovered, chosen);
+            }
+        }
+
+        void search(long[] uncovered, int[] chosen) {
+            if (isEmpty(uncovered)) {
+                offer(chosen);
+                return;
+            }
+            int remaining = count(uncovered);
+            int bound = Math.max(lowerBound(uncovered), (remaining + largestSet - 1) / largestSet);
+            if (chosen.length + bound > limit) {
+                return;
+            }
+            if (System.nanoTime() > deadline) {
+                timedOut = true;
+                return;
+            }
+            // The movement with the fewest sets to choose from keeps the tree narrow
+            int pick = -1;
+            for (int bit = first(uncovered); bit >= 0; bit = next(uncovered, bit)) {
+                if (pick < 0 || containing[bit].length < containing[pick].length) {
+                    pick = bit;
+                }
+            }
+            int[] candidates = containing[pick];
+            long[] order = new long[candidates.length];
+            for (int i = 0; i < candidates.length; i++) {
+                // Largest gain first, so good covers are found early and tighten the bound
+                order[i] = ((long) (movements - countAnd(sets[candidates[i]], uncovered)) << 32) | i;
+            }
+            Arrays.sort(order);
+            List<Branch> forks = chosen.length < FORK_DEPTH ? new ArrayList<>() : null;
+            for (long entry : order) {
+                int s = candidates[(int) entry];
+                int[] next = Arrays.copyOf(chosen, chosen.length + 1);
+                next[chosen.length] = s;
+                long[] rest = uncovered.clone();
+                andNotInto(rest, sets[s]);
+                if (forks != null) {
+                    forks.add(new Branch(rest, next));
+                } else {
+                    search(rest, next);
+                }
+            }
+            if (forks != null) {
+                RecursiveAction.invokeAll(forks);
+            }
+        }
+    }
+
+    /** What {@link #plan} found: proposals are ordered masks over the matrix's direction bits. */
+    public static final class Result {
+        private final int maximalSets;
+        private final boolean enumerationComplete;
+        private final boolean optimal;
+        private final int lowerBound;
+        private final List<long[][]> covers;
+        private final long elapsedNanos;
+
+        Result(int maximalSets, boolean enumerationComplete, boolean optimal, int lowerBound,
+               List<long[][]> covers, long elapsedNanos) {
+            this.maximalSets = maximalSets;
+            this.enumerationComplete = enumerationComplete;
+            this.optimal = optimal;
+            this.lowerBound = lowerBound;
+            this.covers = covers;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int maximalSets() {
+            return maximalSets;
+        }
+
+        /** False when the set cap or the deadline cut the enumeration short. */
+        public boolean enumerationComplete() {
+            return enumerationComplete;
+        }
+
+        /** True when no cover with fewer phases exists: the search finished, or hit the lower bound. */
+        public boolean optimal() {
+            return optimal;
+        }
+
+        /** Phases any cover needs, from one clique of mutually conflicting movements. */
+        public int lowerBound() {
+            return lowerBound;
+        }
+
+        public List<long[][]> covers() {
+            return covers;
+        }
+
+        public long elapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+
+    private static boolean isEmpty(long[] mask) {
+        for (long word : mask) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int count(long[] mask) {
+        int count = 0;
+        for (long word : mask) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    private static int countAnd(long[] a, long[] b) {
+        int count = 0;
+        for (int w = 0; w < a.length; w++) {
+            count += Long.bitCount(a[w] & b[w]);
+        }
+        return count;
+    }
+
+    private static long[] and(long[] a, long[] b) {
+        long[] result = new long[a.length];
+        for (int w = 0; w < a.length; w++) {
+            result[w] = a[w] & b[w];
+        }
+        return result;
+    }
+
+    private static long[] andNot(long[] a, long[] b) {
+        long[] result = new long[a.length];
+        for (int w = 0; w < a.length; w++) {
+            result[w] = a[w] & ~b[w];
+        }
+        return result;
+    }
+
+    private static void andInto(long[] target, long[] mask) {
+        for (int w = 0; w < target.length; w++) {
+            target[w] &= mask[w];
+        }
+    }
+
+    private static void andNotInto(long[] target, long[] mask) {
+        for (int w = 0; w < target.length; w++) {
+            target[w] &= ~mask[w];
+        }
+    }
+
+    private static void or(long[] target, long[] mask) {
+        for (int w = 0; w < target.length; w++) {
+            target[w] |= mask[w];
+        }
+    }
+
+    private static int first(long[] mask) {
+        return next(mask, -1);
+    }
+
+    /** The lowest set bit above {@code bit}, or -1. */
+    private static int next(long[] mask, int bit) {
+        int from = bit + 1;
+        int w = from >>> 6;
+        if (w >= mask.length) {
+            return -1;
+        }
+        long word = mask[w] & (-1L << (from & 63));
+        while (word == 0) {
+            if (++w == mask.length) {
+                return -1;
+            }
+            word = mask[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+}
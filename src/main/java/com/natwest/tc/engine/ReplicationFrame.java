@@ -0,0 +1,129 @@
+package com.natwest.tc.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary frame an active engine streams to its standbys over TCP, big-endian. A frame is a
+ * batch: every intersection that changed since the last frame, once, with its latest state.
+ * <pre>
+ *  0  length   i32  bytes after this field
+ *  4  magic    u16  0x5452 ("TR")
+ *  6  version  u8   {@link #VERSION}
+ *  7  flags    u8   {@link #RESET}: the records that follow are a full copy, forget earlier ones
+ *  8  term     i64  lease term of the sender, so a deposed leader's frames can be told apart
+ * 16  sent at  i64  epoch microseconds
+ * 24  records  i32
+ * 28  records...
+ * </pre>
+ * Two record types follow. A {@link #STATE} record is 29 bytes: type, slot (i32), packed state
+ * (i64, see {@link IntersectionTable}), and when the state ends and when the current green started
+ * (i64 epoch microseconds each; the end is {@link EngineCheckpoint#NO_DEADLINE} when there is none).
+ * A {@link #DEFINE} record, sent before a slot's first state and whenever its sequence changes, is
+ * the type, slot (i32), rule generation (i64), intersection id (u8 length and UTF-8 bytes) and
+ * phase ids (u16 count and i32 each). A sequence longer than {@link EngineCheckpoint#MAX_PHASES} is
+ * sent as none, exactly as the checkpoint records it.
+ */
+public final class ReplicationFrame {
+
+    public static final int MAGIC = 0x5452;
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 28;
+
+    public static final int RESET = 1;
+
+    public static final int DEFINE = 1;
+    public static final int STATE = 2;
+
+    public static final int STATE_BYTES = 29;
+    /** The most a slot can add to a frame: its definition and its state. */
+    public static final int MAX_SLOT_BYTES = 1 + 4 + 8 + 1 + EngineCheckpoint.MAX_INTERSECTION_ID_BYTES
+            + 2 + 4 * EngineCheckpoint.MAX_PHASES + STATE_BYTES;
+
+    private static final int LENGTH_AT = 0;
+    private static final int MAGIC_AT = 4;
+    private static final int VERSION_AT = 6;
+    private static final int FLAGS_AT = 7;
+    private static final int TERM_AT = 8;
+    private static final int SENT_AT = 16;
+    private static final int COUNT_AT = 24;
+
+    private ReplicationFrame() {
+    }
+
+    /** Starts a frame at the buffer's position; returns that position for {@link #finish}. */
+    public static int begin(ByteBuffer buffer, int flags, long term, long sentAtMicros) {
+        int start = buffer.position();
+        buffer.putInt(0)
+                .putShort((short) MAGIC)
+                .put((byte) VERSION)
+                .put((byte) flags)
+                .putLong(term)
+                .putLong(sentAtMicros)
+                .putInt(0);
+        return start;
+    }
+
+    /** Fills in the length and record count of the frame started at {@code start}. */
+    public static void finish(ByteBuffer buffer, int start, int records) {
+        buffer.putInt(start + LENGTH_AT, buffer.position() - start - 4);
+        buffer.putInt(start + COUNT_AT, records);
+    }
+
+    public static void putDefine(ByteBuffer buffer, int slot, String intersectionId, PhasePlan plan, long generation) {
+        byte[] id = intersectionId.getBytes(StandardCharsets.UTF_8);
+        if (id.length > EngineCheckpoint.MAX_INTERSECTION_ID_BYTES) {
+            throw new IllegalArgumentException("Intersection id longer than " + EngineCheckpoint.MAX_INTERSECTION_ID_BYTES + " bytes");
+        }
+        int count = plan.size() <= EngineCheckpoint.MAX_PHASES ? plan.size() : 0;
+        buffer.put((byte) DEFINE)
+                .putInt(slot)
+                .putLong(generation)
+                .put((byte) id.length)
+                .put(id)
+                .putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(plan.phaseId(i));
+        }
+    }
+
+    public static void putState(ByteBuffer buffer, int slot, long state, long deadlineMicros, long greenStartMicros) {
+        buffer.put((byte) STATE)
+                .putInt(slot)
+                .putLong(state)
+                .putLong(deadlineMicros)
+                .putLong(greenStartMicros);
+    }
+
+    /** Sets {@code flags} on the frame at {@code offset}, such as {@link #RESET} on a copy for a new follower. */
+    public static void addFlags(ByteBuffer buffer, int offset, int flags) {
+        buffer.put(offset + FLAGS_AT, (byte) (flags(buffer, offset) | flags));
+    }
+
+    /** Bytes of the frame at {@code offset} after its length field. */
+    public static int length(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + LENGTH_AT);
+    }
+
+    /** True when the frame at {@code offset} has the magic number and a version this build reads. */
+    public static boolean isValid(ByteBuffer buffer, int offset) {
+        return Short.toUnsignedInt(buffer.getShort(offset + MAGIC_AT)) == MAGIC
+                && Byte.toUnsignedInt(buffer.get(offset + VERSION_AT)) == VERSION;
+    }
+
+    public static int flags(ByteBuffer buffer, int offset) {
+        return Byte.toUnsignedInt(buffer.get(offset + FLAGS_AT));
+    }
+
+    public static long term(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset + TERM_AT);
+    }
+
+    public static long sentAtMicros(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset + SENT_AT);
+    }
+
+    public static int records(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + COUNT_AT);
+    }
+}
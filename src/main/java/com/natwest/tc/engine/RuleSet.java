@@ -0,0 +1,393 @@
+package com.natwest.tc.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Immutable, primitive-only form of the rule tables.
+ * <p>
+ * Phase and direction ids are remapped to dense array indexes. Durations live in an {@code int[]},
+ * the directions of each phase and the conflicts of each direction in compressed rows (one offsets
+ * array plus one flat array of direction indexes), and names are interned and kept only for display.
+ * Nothing here is boxed or managed by JPA, so a rule costs a few bytes rather than an entity graph,
+ * and lookups are array reads. The compiled {@link ConflictMatrix} is built once alongside.
+ */
+public final class RuleSet {
+
+    /** Duration of a phase whose {@code duration_seconds} (or min/max green) is null. */
+    public static final int NO_DURATION = -1;
+
+    public static final RuleSet EMPTY = builder().build();
+
+    private static final int[] NO_IDS = new int[0];
+    // Above this ratio of largest id to id count, lookups binary-search instead of using a table
+    private static final int MAX_SPARSENESS = 4;
+
+    private final int[] phaseIds;
+    private final int[] phaseIndex;
+    private final int[] greenSeconds;
+    private final int[] minGreenSeconds;
+    private final int[] maxGreenSeconds;
+    private final String[] phaseNames;
+    private final int[] directionIds;
+    private final int[] directionIndex;
+    private final String[] directionNames;
+    private final int[] phaseDirectionStart;
+    private final int[] phaseDirections;
+    private final int[] conflictStart;
+    private final int[] conflicts;
+    private final ConflictMatrix matrix;
+
+    private RuleSet(int[] phaseIds, int[] greenSeconds, int[] minGreenSeconds, int[] maxGreenSeconds,
+                    String[] phaseNames, int[] directionIds, String[] directionNames, int[] phaseDirectionStart,
+                    int[] phaseDirections, int[] conflictStart, int[] conflicts) {
+        this.phaseIds = phaseIds;
+        this.phaseIndex = indexTable(phaseIds);
+        this.greenSeconds = greenSeconds;
+        this.minGreenSeconds = minGreenSeconds;
+        this.maxGreenSeconds = maxGreenSeconds;
+        this.phaseNames = phaseNames;
+        this.directionIds = directionIds;
+        this.directionIndex = indexTable(directionIds);
+        this.directionNames = directionNames;
+        this.phaseDirectionStart = phaseDirectionStart;
+        this.phaseDirections = phaseDirections;
+        this.conflictStart = conflictStart;
+        this.conflicts = conflicts;
+        this.matrix = compileMatrix();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public ConflictMatrix matrix() {
+        return matrix;
+    }
+
+    public int phaseCount() {
+        return phaseIds.length;
+    }
+
+    public int directionCount() {
+        return directionIds.length;
+    }
+
+    public int allowanceCount() {
+        return phaseDirections.length;
+    }
+
+    public int conflictCount() {
+        return conflicts.length;
+    }
+
+    /** Phases, directions, phase-direction allowances and conflicts. */
+    public int ruleCount() {
+        return phaseIds.length + directionIds.length + phaseDirections.length + conflicts.length;
+    }
+
+    // --- Phases ---
+
+    /** Returns the index of a phase id, or -1 if the phase is unknown. */
+    public int phaseIndexOf(int phaseId) {
+        return indexOf(phaseIds, phaseIndex, phaseId);
+    }
+
+    public boolean hasPhase(int phaseId) {
+        return phaseIndexOf(phaseId) >= 0;
+    }
+
+    public int phaseIdAt(int index) {
+        return phaseIds[index];
+    }
+
+    /** Green seconds of a phase, or {@link #NO_DURATION}; the phase must exist. */
+    public int greenSeconds(int phaseId) {
+        return greenSeconds[phaseIndexOf(phaseId)];
+    }
+
+    /** Shortest actuated green of a phase, or {@link #NO_DURATION}; the phase must exist. */
+    public int minGreenSeconds(int phaseId) {
+        return minGreenSeconds[phaseIndexOf(phaseId)];
+    }
+
+    /** Longest actuated green of a phase, or {@link #NO_DURATION}; the phase must exist. */
+    public int maxGreenSeconds(int phaseId) {
+        return maxGreenSeconds[phaseIndexOf(phaseId)];
+    }
+
+    public String phaseName(int phaseId) {
+        int index = phaseIndexOf(phaseId);
+        return index >= 0 ? phaseNames[index] : null;
+    }
+
+    /** Ids of the directions a phase turns green; empty for unknown phases. */
+    public int[] allowedDirectionIds(int phaseId) {
+        int index = phaseIndexOf(phaseId);
+        return index >= 0 ? toIds(phaseDirections, phaseDirectionStart[index], phaseDirectionStart[index + 1]) : NO_IDS;
+    }
+
+    // --- Directions ---
+
+    /** Returns the index of a direction id, or -1 if the direction is unknown. */
+    public int directionIndexOf(int directionId) {
+        return indexOf(directionIds, directionIndex, directionId);
+    }
+
+    public int directionIdAt(int index) {
+        return directionIds[index];
+    }
+
+    public String directionName(int directionId) {
+        int index = directionIndexOf(directionId);
+        return index >= 0 ? directionNames[index] : null;
+    }
+
+    /** Ids of the directions a direction conflicts with, as stored (one way). */
+    public int[] conflictIds(int directionId) {
+        int index = directionIndexOf(directionId);
+        return index >= 0 ? toIds(conflicts, conflictStart[index], conflictStart[index + 1]) : NO_IDS;
+    }
+
+    // --- Footprint ---
+
+    /**
+     * Approximate retained heap size: array headers and contents, the display names and the
+     * compiled matrix, assuming compressed references and compact strings.
+     */
+    public long footprintBytes() {
+        long bytes = 16L * 12; // this object and its fields, rounded
+        bytes += intArray(phaseIds) + intArray(phaseIndex) + intArray(greenSeconds)
+                + intArray(minGreenSeconds) + intArray(maxGreenSeconds)
+                + intArray(directionIds) + intArray(directionIndex)
+                + intArray(phaseDirectionStart) + intArray(phaseDirections)
+                + intArray(conflictStart) + intArray(conflicts)
+                + strings(phaseNames) + strings(directionNames);
+        return bytes + matrix.footprintBytes();
+    }
+
+    public double bytesPerRule() {
+        int rules = ruleCount();
+        return rules == 0 ? 0 : (double) footprintBytes() / rules;
+    }
+
+    private static long intArray(int[] array) {
+        return array == null ? 0 : align(16L + 4L * array.length);
+    }
+
+    private static long strings(String[] names) {
+        // Interned names are shared, but are counted once per slot as an upper bound
+        long bytes = align(16L + 4L * names.length);
+        for (String name : names) {
+            if (name != null) {
+                bytes += 24 + align(16L + name.length());
+            }
+        }
+        return bytes;
+    }
+
+    static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    // --- Helpers ---
+
+    private ConflictMatrix compileMatrix() {
+        ConflictMatrix.Builder builder = ConflictMatrix.builder();
+        for (int id : directionIds) {
+            builder.direction(id);
+        }
+        for (int d = 0; d < directionIds.length; d++) {
+            for (int k = conflictStart[d]; k < conflictStart[d + 1]; k++) {
+                builder.conflict(directionIds[d], directionIds[conflicts[k]]);
+            }
+        }
+        for (int p = 0; p < phaseIds.length; p++) {
+            builder.phase(phaseIds[p], toIds(phaseDirections, phaseDirectionStart[p], phaseDirectionStart[p + 1]));
+        }
+        return builder.build();
+    }
+
+    private int[] toIds(int[] indexes, int from, int to) {
+        int[] ids = new int[to - from];
+        for (int i = from; i < to; i++) {
+            ids[i - from] = directionIds[indexes[i]];
+        }
+        return ids;
+    }
+
+    /** A direct id-to-index table when ids are dense enough, otherwise null (binary search). */
+    static int[] indexTable(int[] sortedIds) {
+        if (sortedIds.length == 0 || sortedIds[0] < 0) {
+            return null;
+        }
+        long max = sortedIds[sortedIds.length - 1];
+        if (max >= (long) MAX_SPARSENESS * sortedIds.length + 64) {
+            return null;
+        }
+        int[] table = new int[(int) max + 1];
+        Arrays.fill(table, -1);
+        for (int i = 0; i < sortedIds.length; i++) {
+            table[sortedIds[i]] = i;
+        }
+        return table;
+    }
+
+    static int indexOf(int[] sortedIds, int[] table, int id) {
+        if (table != null) {
+            return id >= 0 && id < table.length ? table[id] : -1;
+        }
+        int index = Arrays.binarySearch(sortedIds, id);
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * Collects rules in any order. Allowances and conflicts that name unknown phases or directions
+     * are dropped, as a foreign key would have prevented them.
+     */
+    public static final class Builder {
+
+        private final IntList phaseIds = new IntList();
+        private final IntList durations = new IntList();
+        private final IntList minDurations = new IntList();
+        private final IntList maxDurations = new IntList();
+        private final List<String> phaseNames = new ArrayList<>();
+        private final IntList directionIds = new IntList();
+        private final List<String> directionNames = new ArrayList<>();
+        private final IntList allowPhases = new IntList();
+        private final IntList allowDirections = new IntList();
+        private final IntList conflictFrom = new IntList();
+        private final IntList conflictTo = new IntList();
+
+        private Builder() {
+        }
+
+        public Builder phase(int phaseId, String name, int greenSeconds) {
+            return phase(phaseId, name, greenSeconds, NO_DURATION, NO_DURATION);
+        }
+
+        public Builder phase(int phaseId, String name, int greenSeconds, int minGreenSeconds, int maxGreenSeconds) {
+            phaseIds.add(phaseId);
+            durations.add(greenSeconds);
+            minDurations.add(minGreenSeconds);
+            maxDurations.add(maxGreenSeconds);
+            phaseNames.add(name != null ? name.intern() : null);
+            return this;
+        }
+
+        public Builder direction(int directionId, String name) {
+            directionIds.add(directionId);
+            directionNames.add(name != null ? name.intern() : null);
+            return this;
+        }
+
+        public Builder allow(int phaseId, int directionId) {
+            allowPhases.add(phaseId);
+            allowDirections.add(directionId);
+            return this;
+        }
+
+        public Builder conflict(int directionId, int conflictsWithDirectionId) {
+            conflictFrom.add(directionId);
+            conflictTo.add(conflictsWithDirectionId);
+            return this;
+        }
+
+        public RuleSet build() {
+            int[] phaseOrder = sortedOrder(phaseIds);
+            int[] sortedPhaseIds = permute(phaseIds, phaseOrder);
+            int[] sortedDurations = permute(durations, phaseOrder);
+            int[] sortedMinDurations = permute(minDurations, phaseOrder);
+            int[] sortedMaxDurations = permute(maxDurations, phaseOrder);
+            String[] sortedPhaseNames = new String[phaseOrder.length];
+            for (int i = 0; i < phaseOrder.length; i++) {
+                sortedPhaseNames[i] = phaseNames.get(phaseOrder[i]);
+            }
+
+            int[] directionOrder = sortedOrder(directionIds);
+            int[] sortedDirectionIds = permute(directionIds, directionOrder);
+            String[] sortedDirectionNames = new String[directionOrder.length];
+            for (int i = 0; i < directionOrder.length; i++) {
+                sortedDirectionNames[i] = directionNames.get(directionOrder[i]);
+            }
+
+            int[][] allowances = compress(allowPhases, allowDirections, sortedPhaseIds, sortedDirectionIds);
+            int[][] conflictRows = compress(conflictFrom, conflictTo, sortedDirectionIds, sortedDirectionIds);
+            return new RuleSet(sortedPhaseIds, sortedDurations, sortedMinDurations, sortedMaxDurations,
+                    sortedPhaseNames, sortedDirectionIds, sortedDirectionNames, allowances[0], allowances[1],
+                    conflictRows[0], conflictRows[1]);
+        }
+
+        /** Groups {@code (owner, direction)} pairs into offsets by owner index and sorted direction indexes. */
+        private static int[][] compress(IntList owners, IntList targets, int[] ownerIds, int[] targetIds) {
+            int n = owners.size();
+            long[] pairs = new long[n];
+            int kept = 0;
+            for (int i = 0; i < n; i++) {
+                int owner = Arrays.binarySearch(ownerIds, owners.get(i));
+                int target = Arrays.binarySearch(targetIds, targets.get(i));
+                if (owner >= 0 && target >= 0) {
+                    pairs[kept++] = ((long) owner << 32) | target;
+                }
+            }
+            pairs = Arrays.copyOf(pairs, kept);
+            Arrays.sort(pairs);
+            int[] start = new int[ownerIds.length + 1];
+            int[] flat = new int[kept];
+            int size = 0;
+            long previous = -1;
+            for (long pair : pairs) {
+                if (pair == previous) {
+                    continue; // duplicate rows collapse
+                }
+                previous = pair;
+                start[(int) (pair >>> 32) + 1]++;
+                flat[size++] = (int) pair;
+            }
+            for (int i = 0; i < ownerIds.length; i++) {
+                start[i + 1] += start[i];
+            }
+            return new int[][]{start, size == kept ? flat : Arrays.copyOf(flat, size)};
+        }
+
+        private static int[] sortedOrder(IntList ids) {
+            return IntStream.range(0, ids.size()).boxed()
+                    .sorted(Comparator.comparingInt(ids::get))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+        }
+
+        private static int[] permute(IntList values, int[] order) {
+            int[] permuted = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                permuted[i] = values.get(order[i]);
+            }
+            return permuted;
+        }
+    }
+
+    /** Growable int array, so building a rule set boxes nothing per rule. */
+    private static final class IntList {
+
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.natwest.tc.engine;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.natwest.tc.model.IntersectionState;
+
+/**
+ * Immutable view of one intersection, published once per transition and read by {@code /state}
+ * without allocating. The JSON form is serialised on first request and then reused by every
+ * reader of this version; the version also backs the ETag.
+ */
+public final class StateSnapshot {
+
+    // Versions restart with the process, so the ETag carries the boot time to stay unique
+    private static final String BOOT = Long.toString(System.currentTimeMillis(), 36);
+
+    private final long version;
+    private final IntersectionState state;
+    private final String etag;
+    private volatile byte[] json;
+
+    /** @param state must not be modified once handed over */
+    public StateSnapshot(long version, IntersectionState state) {
+        this.version = version;
+        this.state = state;
+        this.etag = "\"" + BOOT + "-" + version + "\"";
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public IntersectionState state() {
+        return state;
+    }
+
+    /** Quoted strong entity tag for this version. */
+    public String etag() {
+        return etag;
+    }
+
+    /** The state as JSON. Racing first readers may each serialise it; the results are identical. */
+    public byte[] json(ObjectMapper objectMapper) {
+        byte[] bytes = json;
+        if (bytes == null) {
+            try {
+                bytes = objectMapper.writeValueAsBytes(state);
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException("Cannot serialise intersection state", e);
+            }
+            json = bytes;
+        }
+        return bytes;
+    }
+}
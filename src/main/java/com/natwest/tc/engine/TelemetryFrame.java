@@ -0,0 +1,77 @@
+package com.natwest.tc.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The fixed 16-byte binary frame roadside detectors and cabinet controllers send, big-endian:
+ * <pre>
+ *  0  magic        u16  0x5443 ("TC")
+ *  2  type         u8   {@link #DETECTOR} or {@link #HEARTBEAT}
+ *  3  version      u8   {@link #VERSION}
+ *  4  intersection u16  code, mapped to an intersection id by traffic.telemetry.intersections
+ *  6  direction    u16  direction id (detector frames)
+ *  8  value        u16  vehicles counted (detector) or status flags (heartbeat)
+ * 10  reserved     u16
+ * 12  sequence     u32  per-sender counter, for spotting gaps in a capture
+ * </pre>
+ * Fields are read with absolute gets straight from the receive buffer, so decoding creates no
+ * objects.
+ */
+public final class TelemetryFrame {
+
+    public static final int SIZE = 16;
+    public static final int MAGIC = 0x5443;
+    public static final int VERSION = 1;
+
+    public static final int DETECTOR = 1;
+    public static final int HEARTBEAT = 2;
+
+    private static final int MAGIC_AT = 0;
+    private static final int TYPE_AT = 2;
+    private static final int VERSION_AT = 3;
+    private static final int INTERSECTION_AT = 4;
+    private static final int DIRECTION_AT = 6;
+    private static final int VALUE_AT = 8;
+    private static final int SEQUENCE_AT = 12;
+
+    private TelemetryFrame() {
+    }
+
+    /** True when the frame at {@code offset} has the magic number and a version this build reads. */
+    public static boolean isValid(ByteBuffer buffer, int offset) {
+        return Short.toUnsignedInt(buffer.getShort(offset + MAGIC_AT)) == MAGIC
+                && Byte.toUnsignedInt(buffer.get(offset + VERSION_AT)) == VERSION;
+    }
+
+    public static int type(ByteBuffer buffer, int offset) {
+        return Byte.toUnsignedInt(buffer.get(offset + TYPE_AT));
+    }
+
+    public static int intersection(ByteBuffer buffer, int offset) {
+        return Short.toUnsignedInt(buffer.getShort(offset + INTERSECTION_AT));
+    }
+
+    public static int direction(ByteBuffer buffer, int offset) {
+        return Short.toUnsignedInt(buffer.getShort(offset + DIRECTION_AT));
+    }
+
+    public static int value(ByteBuffer buffer, int offset) {
+        return Short.toUnsignedInt(buffer.getShort(offset + VALUE_AT));
+    }
+
+    public static long sequence(ByteBuffer buffer, int offset) {
+        return Integer.toUnsignedLong(buffer.getInt(offset + SEQUENCE_AT));
+    }
+
+    /** Appends one frame at the buffer's position; used by senders and tests. */
+    public static void put(ByteBuffer buffer, int type, int intersection, int direction, int value, long sequence) {
+        buffer.putShort((short) MAGIC)
+                .put((byte) type)
+                .put((byte) VERSION)
+                .putShort((short) intersection)
+                .putShort((short) direction)
+                .putShort((short) value)
+                .putShort((short) 0)
+                .putInt((int) sequence);
+    }
+}
@@ -0,0 +1,15 @@
+package com.natwest.tc.engine;
+
+/**
+ * Told about every real-time scheduler turn that fired transitions: how late the most overdue of
+ * them fired against its deadline and how long firing them took, both in nanoseconds. Called on
+ * the scheduler thread right after the turn, so implementations must be cheap and must not block.
+ */
+@FunctionalInterface
+public interface TickListener {
+
+    TickListener NONE = (latenessNanos, durationNanos) -> {
+    };
+
+    void onTick(long latenessNanos, long durationNanos);
+}
@@ -0,0 +1,56 @@
+package com.natwest.tc.engine;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A clock that only moves when told to. The engine reads it exactly like the system clock, so the
+ * same tick code runs in production and in simulation; a simulation simply advances it a second at
+ * a time and ticks after each step, as fast as the CPU allows. Starting from the same instant, the
+ * same commands give the same timestamps and the same history.
+ */
+public final class VirtualClock extends Clock {
+
+    private final AtomicLong millis;
+    private final ZoneId zone;
+
+    public VirtualClock(Instant start, ZoneId zone) {
+        this(new AtomicLong(start.toEpochMilli()), zone);
+    }
+
+    private VirtualClock(AtomicLong millis, ZoneId zone) {
+        this.millis = millis;
+        this.zone = zone;
+    }
+
+    /** Moves the clock forward and returns the new time in epoch milliseconds. */
+    public long advance(long deltaMillis) {
+        if (deltaMillis < 0) {
+            throw new IllegalArgumentException("A virtual clock cannot move backwards");
+        }
+        return millis.addAndGet(deltaMillis);
+    }
+
+    @Override
+    public long millis() {
+        return millis.get();
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(millis.get());
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    /** A view in another zone that shares, and advances with, this clock's time. */
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return zone.equals(this.zone) ? this : new VirtualClock(millis, zone);
+    }
+}
@@ -1,6 +1,7 @@
 package com.natwest.tc.entity;
 
 
+import com.natwest.tc.model.LightColor;
 import jakarta.persistence.*;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -19,8 +20,20 @@ public class HistoryEvent {
     private Long id;
 
     private LocalDateTime timestamp;
+
+    @Column(name = "intersection_id", length = 64)
+    private String intersectionId;
+
     private String eventType; // e.g., STATE_CHANGE, ERROR, COMMAND
 
+    // Set on colour changes and safety lockouts so rollups never have to parse details
+    @Column(name = "phase_id")
+    private Integer phaseId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(length = 8)
+    private LightColor color;
+
     @Column(length = 500)
     private String details;
 
@@ -30,4 +43,18 @@ public class HistoryEvent {
         this.eventType = eventType;
         this.details = details;
     }
+
+    public HistoryEvent(LocalDateTime timestamp, String intersectionId, String eventType, String details) {
+        this.timestamp = timestamp;
+        this.intersectionId = intersectionId;
+        this.eventType = eventType;
+        this.details = details;
+    }
+
+    public HistoryEvent(LocalDateTime timestamp, String intersectionId, String eventType,
+                        Integer phaseId, LightColor color, String details) {
+        this(timestamp, intersectionId, eventType, details);
+        this.phaseId = phaseId;
+        this.color = color;
+    }
 }
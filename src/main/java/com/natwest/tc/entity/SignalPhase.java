@@ -16,6 +16,11 @@ public class SignalPhase {
     private String description;
     @Column(name = "duration_seconds")
     private Integer durationSeconds;
+    // Both set: the green is vehicle-actuated, running at least min and extended by detections up to max
+    @Column(name = "min_green_seconds")
+    private Integer minGreenSeconds;
+    @Column(name = "max_green_seconds")
+    private Integer maxGreenSeconds;
     @Column(name = "is_active")
     private Boolean isActive;
 }
\ No newline at end of file
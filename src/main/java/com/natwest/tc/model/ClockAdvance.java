@@ -0,0 +1,14 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+@Data
+@AllArgsConstructor
+public class ClockAdvance {
+    private long simulatedSeconds;
+    private long wallMillis;
+    private LocalDateTime now; // virtual time after the run
+}
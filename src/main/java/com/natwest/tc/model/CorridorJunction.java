@@ -0,0 +1,15 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CorridorJunction {
+    private String intersectionId;
+    private int coordinatedPhaseId; // the phase serving the corridor's through movement
+    private Integer travelSecondsToNext; // to the next junction along the corridor; unused on the last
+    private Integer travelSecondsFromNext; // back from the next junction; null for the same as travelSecondsToNext
+}
@@ -0,0 +1,15 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CorridorRequest {
+    private List<CorridorJunction> junctions; // in order along the corridor
+    private Double inboundWeight; // inbound band against outbound; null for the configured default, 0 for one-way
+}
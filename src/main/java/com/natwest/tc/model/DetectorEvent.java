@@ -0,0 +1,14 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DetectorEvent {
+    private String intersectionId; // null for the default intersection
+    private int directionId;
+    private int count = 1; // vehicles detected since the detector's last report
+}
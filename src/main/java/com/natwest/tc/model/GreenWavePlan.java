@@ -0,0 +1,22 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.Instant;
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class GreenWavePlan {
+    private int cycleSeconds;
+    private Instant epoch; // every offset counts from here
+    private int outboundBandSeconds; // departures from the first junction that meet green throughout
+    private int inboundBandSeconds; // departures from the last junction that meet green throughout
+    private double outboundEfficiency; // band as a share of the cycle
+    private double inboundEfficiency;
+    private int starts;
+    private long searchMillis;
+    private boolean applied;
+    private List<JunctionOffset> junctions;
+}
@@ -0,0 +1,13 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class HistoryPage {
+    private List<TrafficHistory> items;
+    private String nextCursor; // null on the last page
+}
@@ -0,0 +1,22 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Filters and position for one page of history, newest first. Null fields are not filtered on.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HistoryQuery {
+    private String intersectionId;
+    private String eventType;
+    private LocalDateTime from;    // inclusive
+    private LocalDateTime to;      // exclusive
+    private String cursor;         // opaque, from the previous page's nextCursor
+    private Integer limit;
+}
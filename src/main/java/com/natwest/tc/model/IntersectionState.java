@@ -4,7 +4,6 @@ import lombok.Data;
 
 import java.time.LocalDateTime;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 @Data
 public class IntersectionState {
@@ -12,6 +11,6 @@ public class IntersectionState {
     private boolean isPaused ;
     private Integer currentPhaseId;
     private LightColor currentPhaseColor = LightColor.RED;
-    private LocalDateTime phaseStartTime = LocalDateTime.now();
-    private Map<Integer, LightColor> activeGreenDirections = new ConcurrentHashMap<>();
+    private LocalDateTime phaseStartTime; // when the current colour (or pause) took effect
+    private Map<Integer, LightColor> activeGreenDirections = Map.of();
 }
\ No newline at end of file
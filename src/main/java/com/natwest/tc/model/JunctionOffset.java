@@ -0,0 +1,16 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class JunctionOffset {
+    private String intersectionId;
+    private int cycleSeconds;
+    private boolean coordinated; // false when the junction's cycle differs from the corridor's
+    private int offsetSeconds; // cycle start after the epoch, modulo the cycle
+    private int greenStartSeconds; // coordinated green's start within the cycle
+    private int greenSeconds;
+    private Long correctionMillis; // when applied: positive brings the cycle forward, negative holds a green
+}
@@ -0,0 +1,19 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class PhaseCheck {
+    private int position;
+    private Integer phaseId;
+    private String phaseName;
+    private boolean known;
+    private int durationSeconds;
+    private boolean conflictFree;
+    private List<String> conflicts; // e.g. "1 vs 5", by direction id
+    private boolean transitionSafe; // the next phase in the cycle may take over from this one
+}
@@ -0,0 +1,16 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class PhaseHeadroom {
+    private int phaseId;
+    private String phaseName;
+    private List<Integer> directionIds;
+    private boolean conflictFree;
+    private List<Integer> addableDirectionIds; // movements the phase could also serve without a conflict
+}
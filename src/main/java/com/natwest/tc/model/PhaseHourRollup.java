@@ -0,0 +1,19 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PhaseHourRollup {
+    private String intersectionId;
+    private int phaseId;
+    private LocalDateTime hourStart;
+    private long greenSeconds; // time spent GREEN by phases that turned green during the hour
+    private int cycles;        // number of times the phase turned GREEN
+    private int lockouts;      // safety lockouts raised for the phase
+}
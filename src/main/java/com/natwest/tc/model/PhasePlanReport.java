@@ -0,0 +1,13 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class PhasePlanReport {
+    private boolean accepted;
+    private List<PhaseCheck> phases;
+}
@@ -0,0 +1,19 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class PhaseSetProposal {
+    private int rank;
+    private List<List<Integer>> phases; // direction ids of each phase, in cycle order
+    private int movementsCovered;
+    private double coverage; // share of all movements given a green at least once per cycle
+    private double servicesPerMovement; // greens per movement per cycle, on average
+    private int cycleSeconds; // every phase at the planned green plus its yellow
+    private int maxRedSeconds; // longest any movement waits for its next green
+    private double averageGreenShare; // share of the cycle the average movement is green
+}
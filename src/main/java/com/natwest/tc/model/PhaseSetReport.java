@@ -0,0 +1,23 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class PhaseSetReport {
+    private long generation;
+    private int movements;
+    private int conflicts;
+    private int maximalSets; // maximal conflict-free movement sets considered
+    private boolean enumerationComplete;
+    private boolean optimal; // no proposal with fewer phases exists
+    private int lowerBound; // phases any cover needs
+    private int greenSeconds;
+    private long planningMillis;
+    private List<Integer> uncoveredByExisting; // movements no configured phase serves
+    private List<PhaseHeadroom> existingPhases;
+    private List<PhaseSetProposal> proposals;
+}
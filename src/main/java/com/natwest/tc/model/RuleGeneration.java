@@ -0,0 +1,19 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+@Data
+@AllArgsConstructor
+public class RuleGeneration {
+    private long generation;
+    private String source; // "reload", "promote" or "rollback"
+    private LocalDateTime loadedAt;
+    private int phases;
+    private int directions;
+    private int allowances;
+    private int conflicts;
+    private boolean active;
+}
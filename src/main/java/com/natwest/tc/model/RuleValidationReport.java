@@ -0,0 +1,17 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+import java.util.Map;
+
+@Data
+@AllArgsConstructor
+public class RuleValidationReport {
+    private long generation;
+    private boolean valid;
+    private int phasesChecked;
+    private Map<Integer, List<String>> conflicts; // phase id -> e.g. "1 vs 5", only for unsafe phases
+    private long validationMicros;
+}
@@ -0,0 +1,22 @@
+package com.natwest.tc.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Pushed to stream subscribers on every transition or command. It carries the full light state,
+ * not just what changed, so a subscriber that only receives the latest delta is still correct.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StateDelta {
+    private String intersectionId;
+    private long version; // matches the /state ETag version of this intersection
+    private String event; // TRANSITION, PAUSED, RESUMED, CYCLE_STARTED, or SNAPSHOT when a stream opens
+    private int phaseId;
+    private LightColor color;
+    private boolean paused;
+    private long timestamp; // epoch millis
+}
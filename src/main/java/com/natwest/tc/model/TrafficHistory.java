@@ -9,6 +9,7 @@ import java.time.LocalDateTime;
 @AllArgsConstructor
 public class TrafficHistory {
     private LocalDateTime timestamp;
+    private String intersectionId;
     private String eventType;
     private String details;
 }
\ No newline at end of file
@@ -0,0 +1,16 @@
+package com.natwest.tc.repository;
+
+import com.natwest.tc.entity.HistoryEvent;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+public interface HistoryRepositoryCustom {
+
+    /**
+     * Keyset page of history ordered by {@code (timestamp, id)} descending. Rows strictly before
+     * {@code afterTimestamp/afterId} are returned when those are set; null filters are ignored.
+     */
+    List<HistoryEvent> findPage(String intersectionId, String eventType, LocalDateTime from, LocalDateTime to,
+                                LocalDateTime afterTimestamp, Long afterId, int limit);
+}
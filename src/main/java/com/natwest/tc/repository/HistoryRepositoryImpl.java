@@ -0,0 +1,60 @@
+package com.natwest.tc.repository;
+
+import com.natwest.tc.entity.HistoryEvent;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plain JDBC keyset queries. Only the filters that are set make it into the SQL, so each page is a
+ * bounded range scan of the matching {@code traffic_history} index rather than a scan with
+ * {@code (? IS NULL OR ...)} predicates.
+ */
+@RequiredArgsConstructor
+public class HistoryRepositoryImpl implements HistoryRepositoryCustom {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Override
+    public List<HistoryEvent> findPage(String intersectionId, String eventType, LocalDateTime from, LocalDateTime to,
+                                       LocalDateTime afterTimestamp, Long afterId, int limit) {
+        StringBuilder sql = new StringBuilder(
+                "SELECT id, timestamp, intersection_id, event_type, details FROM traffic_history WHERE 1 = 1");
+        List<Object> args = new ArrayList<>();
+        if (intersectionId != null) {
+            sql.append(" AND intersection_id = ?");
+            args.add(intersectionId);
+        }
+        if (eventType != null) {
+            sql.append(" AND event_type = ?");
+            args.add(eventType);
+        }
+        if (from != null) {
+            sql.append(" AND timestamp >= ?");
+            args.add(from);
+        }
+        if (to != null) {
+            sql.append(" AND timestamp < ?");
+            args.add(to);
+        }
+        if (afterTimestamp != null && afterId != null) {
+            // Equivalent to (timestamp, id) < (?, ?), written so the leading column bounds the index range
+            sql.append(" AND timestamp <= ? AND (timestamp < ? OR id < ?)");
+            args.add(afterTimestamp);
+            args.add(afterTimestamp);
+            args.add(afterId);
+        }
+        sql.append(" ORDER BY timestamp DESC, id DESC LIMIT ?");
+        args.add(limit);
+
+        return jdbcTemplate.query(sql.toString(), (rs, rowNum) -> {
+            HistoryEvent event = new HistoryEvent(rs.getObject("timestamp", LocalDateTime.class),
+                    rs.getString("intersection_id"), rs.getString("event_type"), rs.getString("details"));
+            event.setId(rs.getLong("id"));
+            return event;
+        }, args.toArray());
+    }
+}
@@ -0,0 +1,55 @@
+package com.natwest.tc.repository;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+/**
+ * The controller_lease rows the cluster nodes elect their active controller with. Every write is a
+ * single conditional UPDATE, so two nodes racing for a lease cannot both win it: acquiring is
+ * conditioned on the renewal count the node last saw, renewing and releasing on holding the term.
+ * <p>
+ * The rows hold no timestamps. Whether a lease has lapsed is for the node watching it to time, on
+ * its own monotonic clock, so the nodes' wall clocks need not agree.
+ */
+@Repository
+@RequiredArgsConstructor
+public class LeaseRepository {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /** A lease as read; {@code holder} is null when nobody holds it. */
+    public record Lease(String holder, String replicationAddress, long term, long renewals) {
+    }
+
+    public Optional<Lease> find(String leaseName) {
+        return jdbcTemplate.query("SELECT holder, replication_address, term, renewals FROM controller_lease "
+                        + "WHERE lease_name = ?",
+                (rs, rowNum) -> new Lease(rs.getString("holder"), rs.getString("replication_address"),
+                        rs.getLong("term"), rs.getLong("renewals")), leaseName).stream().findFirst();
+    }
+
+    /**
+     * Takes the lease for {@code holder} in the next term, provided nobody has written it since it was
+     * read with {@code renewals}.
+     */
+    public boolean acquire(String leaseName, String holder, String replicationAddress, long renewals) {
+        return jdbcTemplate.update("UPDATE controller_lease SET holder = ?, replication_address = ?, "
+                + "term = term + 1, renewals = renewals + 1 WHERE lease_name = ? AND renewals = ?",
+                holder, replicationAddress, leaseName, renewals) == 1;
+    }
+
+    /** Renews the lease; false if {@code holder} no longer holds it in {@code term}. */
+    public boolean renew(String leaseName, String holder, long term) {
+        return jdbcTemplate.update("UPDATE controller_lease SET renewals = renewals + 1 "
+                + "WHERE lease_name = ? AND holder = ? AND term = ?", leaseName, holder, term) == 1;
+    }
+
+    /** Gives the lease up, so a standby can take it at once rather than wait for it to lapse. */
+    public boolean release(String leaseName, String holder, long term) {
+        return jdbcTemplate.update("UPDATE controller_lease SET holder = NULL, replication_address = NULL, "
+                + "renewals = renewals + 1 WHERE lease_name = ? AND holder = ? AND term = ?", leaseName, holder, term) == 1;
+    }
+}
@@ -0,0 +1,138 @@
+package com.natwest.tc.repository;
+
+import com.natwest.tc.entity.Direction;
+import com.natwest.tc.entity.SignalPhase;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Flat, read-only queries for loading the rule tables into the cache. Rows are mapped straight to
+ * ids (or to detached entities for the two small tables), never to managed entities with lazy
+ * associations, and each table can be summarised as checksums so unchanged rules are not re-read.
+ * <p>
+ * A checksum combines the row count with the sum of a hash per row, computed by the database; it
+ * changes whenever a row is added, removed or edited.
+ */
+@Repository
+@RequiredArgsConstructor
+public class RuleProjectionRepository {
+
+    // Above this many changed groups one full scan is cheaper than an IN list
+    private static final int MAX_IN_LIST = 500;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public long phaseChecksum() {
+        return checksum("SELECT COUNT(*), SUM(ORA_HASH(CONCAT_WS('|', phase_id, phase_name, " + nullable("description")
+                + ", " + nullable("duration_seconds") + ", " + nullable("is_active") + ", "
+                + nullable("min_green_seconds") + ", " + nullable("max_green_seconds") + "))) FROM signal_phases");
+    }
+
+    public long directionChecksum() {
+        return checksum("SELECT COUNT(*), SUM(ORA_HASH(CONCAT_WS('|', direction_id, direction_name, "
+                + nullable("description") + "))) FROM directions");
+    }
+
+    /** One checksum per phase over its allowed directions. */
+    public Map<Integer, Long> phaseDirectionChecksums() {
+        return groupChecksums("SELECT phase_id, COUNT(*), SUM(ORA_HASH(direction_id)) "
+                + "FROM phase_allowed_directions GROUP BY phase_id");
+    }
+
+    /** One checksum per direction over the directions it conflicts with. */
+    public Map<Integer, Long> conflictChecksums() {
+        return groupChecksums("SELECT direction_id, COUNT(*), SUM(ORA_HASH(conflicts_with_direction_id)) "
+                + "FROM direction_conflicts GROUP BY direction_id");
+    }
+
+    public List<SignalPhase> findPhases() {
+        return jdbcTemplate.query("SELECT phase_id, phase_name, description, duration_seconds, is_active, "
+                + "min_green_seconds, max_green_seconds FROM signal_phases", (rs, rowNum) -> {
+            SignalPhase phase = new SignalPhase();
+            phase.setPhaseId(rs.getInt("phase_id"));
+            phase.setPhaseName(rs.getString("phase_name"));
+            phase.setDescription(rs.getString("description"));
+            phase.setDurationSeconds(rs.getObject("duration_seconds", Integer.class));
+            phase.setIsActive(rs.getObject("is_active", Boolean.class));
+            phase.setMinGreenSeconds(rs.getObject("min_green_seconds", Integer.class));
+            phase.setMaxGreenSeconds(rs.getObject("max_green_seconds", Integer.class));
+            return phase;
+        });
+    }
+
+    public List<Direction> findDirections() {
+        return jdbcTemplate.query("SELECT direction_id, direction_name, description FROM directions", (rs, rowNum) -> {
+            Direction direction = new Direction();
+            direction.setDirectionId(rs.getInt("direction_id"));
+            direction.setDirectionName(rs.getString("direction_name"));
+            direction.setDescription(rs.getString("description"));
+            return direction;
+        });
+    }
+
+    /** Allowed direction ids of the given phases, keyed by phase id. */
+    public Map<Integer, int[]> findPhaseDirectionIds(Set<Integer> phaseIds) {
+        return findIdGroups("SELECT phase_id, direction_id FROM phase_allowed_directions", "phase_id", phaseIds);
+    }
+
+    /** Conflicting direction ids of the given directions, keyed by direction id. */
+    public Map<Integer, int[]> findConflictIds(Set<Integer> directionIds) {
+        return findIdGroups("SELECT direction_id, conflicts_with_direction_id FROM direction_conflicts",
+                "direction_id", directionIds);
+    }
+
+    /**
+     * CONCAT_WS skips NULLs, so without a marker a value moving to the neighbouring nullable column
+     * would hash the same.
+     */
+    private static String nullable(String column) {
+        return "COALESCE(CAST(" + column + " AS VARCHAR), CHAR(0))";
+    }
+
+    private long checksum(String sql) {
+        return jdbcTemplate.queryForObject(sql, (rs, rowNum) -> combine(rs.getLong(1), rs.getLong(2)));
+    }
+
+    private Map<Integer, Long> groupChecksums(String sql) {
+        Map<Integer, Long> checksums = new HashMap<>();
+        jdbcTemplate.query(sql, rs -> {
+            checksums.put(rs.getInt(1), combine(rs.getLong(2), rs.getLong(3)));
+        });
+        return checksums;
+    }
+
+    private static long combine(long count, long hashSum) {
+        return count * 0x9E3779B97F4A7C15L + hashSum;
+    }
+
+    /** Groups {@code (key, value)} rows of the requested keys into one id array per key. */
+    private Map<Integer, int[]> findIdGroups(String select, String keyColumn, Set<Integer> keys) {
+        Map<Integer, List<Integer>> grouped = new HashMap<>();
+        if (keys.isEmpty()) {
+            return Map.of();
+        }
+        String sql = select;
+        Object[] args = new Object[0];
+        if (keys.size() <= MAX_IN_LIST) {
+            sql += " WHERE " + keyColumn + " IN (" + keys.stream().map(k -> "?").collect(Collectors.joining(", ")) + ")";
+            args = keys.toArray();
+        }
+        jdbcTemplate.query(sql, rs -> {
+            int key = rs.getInt(1);
+            if (keys.contains(key)) {
+                grouped.computeIfAbsent(key, k -> new ArrayList<>()).add(rs.getInt(2));
+            }
+        }, args);
+        Map<Integer, int[]> ids = new HashMap<>(grouped.size() * 2);
+        grouped.forEach((key, values) -> ids.put(key, values.stream().mapToInt(Integer::intValue).toArray()));
+        return ids;
+    }
+}
@@ -0,0 +1,125 @@
+package com.natwest.tc.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs request work that blocks on the database (history queries, rule reloads) off the servlet
+ * container's threads, so a burst of slow queries cannot hold every request thread while cheap
+ * in-memory requests like /state wait for one.
+ * <p>
+ * {@code traffic.execution.mode} picks the threads: {@code platform} is a fixed pool of
+ * {@code blocking-threads}; {@code virtual} starts one virtual thread per call and allows
+ * {@code blocking-threads} of them into the database at once, the rest parking until a permit
+ * frees up. Virtual threads need a Java 21 runtime; on an older one the mode falls back to
+ * platform with a warning. The engine never runs here: its scheduler stays on its own
+ * platform thread in both modes.
+ */
+@Slf4j
+@Service
+public class BlockingCallExecutor {
+
+    public enum Mode { PLATFORM, VIRTUAL }
+
+    private final Mode mode;
+    private final ExecutorService pool;
+    private final ThreadFactory virtualThreads;
+    private final Semaphore permits;
+
+    public BlockingCallExecutor(@Value("${traffic.execution.mode:PLATFORM}") Mode requested,
+                                @Value("${traffic.execution.blocking-threads:16}") int blockingThreads) {
+        int threads = Math.max(1, blockingThreads);
+        ThreadFactory factory = requested == Mode.VIRTUAL ? virtualThreadFactory("traffic-io-") : null;
+        if (requested == Mode.VIRTUAL && factory == null) {
+            log.warn("Virtual threads need Java 21 or later (running {}); using platform threads",
+                    Runtime.version().feature());
+        }
+        this.virtualThreads = factory;
+        this.mode = factory != null ? Mode.VIRTUAL : Mode.PLATFORM;
+        if (mode == Mode.VIRTUAL) {
+            this.pool = null;
+            this.permits = new Semaphore(threads);
+        } else {
+            AtomicInteger threadIndex = new AtomicInteger();
+            this.pool = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "traffic-io-" + threadIndex.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.permits = null;
+        }
+        log.info("Blocking calls run on {} threads, at most {} at a time", mode.name().toLowerCase(), threads);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (pool != null) {
+            pool.shutdown();
+            pool.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /** Runs {@code call} on a blocking-call thread; the future fails with whatever it throws. */
+    public <T> CompletableFuture<T> submit(Supplier<T> call) {
+        if (pool != null) {
+            return CompletableFuture.supplyAsync(call, pool);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+            try {
+                return call.get();
+            } finally {
+                permits.release();
+            }
+        }, runnable -> virtualThreads.newThread(runnable).start());
+    }
+
+    /**
+     * One new virtual thread per task, for the servlet container in virtual mode, or null when
+     * running on platform threads.
+     */
+    public Executor requestExecutor() {
+        if (mode != Mode.VIRTUAL) {
+            return null;
+        }
+        ThreadFactory factory = virtualThreadFactory("http-vt-");
+        return runnable -> factory.newThread(runnable).start();
+    }
+
+    /**
+     * {@code Thread.ofVirtual().name(prefix, 0).factory()}, looked up reflectively because the
+     * build targets Java 17; null when the runtime has no virtual threads.
+     */
+    static ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
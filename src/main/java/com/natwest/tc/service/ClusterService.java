@@ -0,0 +1,464 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.engine.EngineCheckpoint;
+import com.natwest.tc.engine.EngineReplica;
+import com.natwest.tc.engine.ReplicationFrame;
+import com.natwest.tc.repository.LeaseRepository;
+import com.natwest.tc.repository.LeaseRepository.Lease;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Active/standby clustering: of the nodes sharing the database, the one holding the controller_lease
+ * row drives the signals and the rest stand by, each with a live copy of its state, ready to take
+ * over mid-cycle.
+ * <p>
+ * The leader renews the lease every {@code renew-ms}. A standby times the lease on its own clock and
+ * takes it once it has gone {@code lease-ms} without a renewal, or at once when it is released on a
+ * clean shutdown; the conditional UPDATE lets only one standby win. The new leader resumes every
+ * intersection from its copy (same sequence, phase, colour and time left, each sequence safety-checked
+ * against its own rules) and, when it has no copy, brings the signals up as a booting node would. A
+ * leader fences itself: transitions stop firing once {@code lease-ms} has passed since its last
+ * successful renewal, before any standby can have taken over, and it stands by when it finds the
+ * lease gone.
+ * <p>
+ * The leader streams state to its standbys over TCP as {@link ReplicationFrame}s. Every
+ * {@code batch-ms} one sender thread drains the intersections changed since the last batch from the
+ * engine, each once with its latest state, and queues the frame on every follower's connection, with
+ * an empty frame every {@code heartbeat-ms} when nothing changed. Writes never block: a follower that
+ * falls {@code follower-buffer-bytes} behind is dropped and reconnects for a full copy, so neither
+ * the tick nor the other followers ever wait for a slow one.
+ * <p>
+ * Enabled by {@code traffic.cluster.enabled=true}; every node needs the same database.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "traffic.cluster.enabled", havingValue = "true")
+public class ClusterService {
+
+    static final String LEASE = "traffic-engine";
+
+    private final TrafficEngineService engine;
+    private final LeaseRepository leases;
+    private final EngineReplica replica = new EngineReplica();
+    private final String nodeId;
+    private final int replicationPort;
+    private final String advertiseHost;
+    private final long leaseNanos;
+    private final long renewNanos;
+    private final long pollNanos;
+    private final long batchNanos;
+    private final long heartbeatNanos;
+    private final int frameBytes;
+    private final int followerBufferBytes;
+
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder followersDropped = new LongAdder();
+    private final LongAdder takeovers = new LongAdder();
+
+    private ServerSocketChannel server;
+    private String replicationAddress;
+    private Runnable coldStart = () -> { };
+    private volatile boolean running;
+    private volatile boolean leader;
+    private volatile long term;
+    private volatile String leaderNode;
+    private volatile String leaderAddress;
+    private volatile int followerCount;
+    // The lease's renewal count as last seen by this standby, and when it was first seen (System.nanoTime)
+    private long observedRenewals = -1;
+    private long observedAt;
+    private final List<Thread> threads = new ArrayList<>();
+
+    public ClusterService(TrafficEngineService engine, LeaseRepository leases,
+                          @Value("${traffic.cluster.node-id:}") String nodeId,
+                          @Value("${traffic.cluster.replication-port:7710}") int replicationPort,
+                          @Value("${traffic.cluster.advertise-host:localhost}") String advertiseHost,
+                          @Value("${traffic.cluster.lease-ms:800}") long leaseMillis,
+                          @Value("${traffic.cluster.renew-ms:200}") long renewMillis,
+                          @Value("${traffic.cluster.poll-ms:100}") long pollMillis,
+                          @Value("${traffic.cluster.batch-ms:20}") long batchMillis,
+                          @Value("${traffic.cluster.heartbeat-ms:100}") long heartbeatMillis,
+                          @Value("${traffic.cluster.frame-bytes:65536}") int frameBytes,
+                          @Value("${traffic.cluster.follower-buffer-bytes:4194304}") int followerBufferBytes) {
+        if (renewMillis >= leaseMillis || pollMillis >= leaseMillis) {
+            throw new IllegalArgumentException("traffic.cluster.renew-ms and poll-ms must be shorter than lease-ms");
+        }
+        this.engine = engine;
+        this.leases = leases;
+        this.nodeId = nodeId.isBlank() ? ManagementFactory.getRuntimeMXBean().getName() : nodeId;
+        this.replicationPort = replicationPort;
+        this.advertiseHost = advertiseHost;
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        this.renewNanos = TimeUnit.MILLISECONDS.toNanos(renewMillis);
+        this.pollNanos = TimeUnit.MILLISECONDS.toNanos(pollMillis);
+        this.batchNanos = TimeUnit.MILLISECONDS.toNanos(batchMillis);
+        this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+        // Room for at least one intersection per frame, and for several frames per follower
+        this.frameBytes = Math.max(frameBytes, ReplicationFrame.HEADER_BYTES + ReplicationFrame.MAX_SLOT_BYTES);
+        this.followerBufferBytes = Math.max(followerBufferBytes, 4 * this.frameBytes);
+    }
+
+    @PostConstruct
+    public void bind() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(replicationPort));
+        server.configureBlocking(false);
+        replicationAddress = advertiseHost + ":" + getReplicationPort();
+    }
+
+    /**
+     * Joins the cluster: stands the engine by, then leads straight away if the lease is free (running
+     * {@code coldStart} to bring the signals up) or follows whoever holds it.
+     */
+    public void join(Runnable coldStart) {
+        this.coldStart = coldStart;
+        engine.standBy();
+        running = true;
+        try {
+            checkLease();
+        } catch (RuntimeException e) {
+            log.warn("Lease check failed: {}", e.getMessage());
+        }
+        start(this::leaseLoop, "cluster-lease");
+        start(this::sendLoop, "cluster-replication");
+        start(this::followLoop, "cluster-follower");
+        log.info("Joined the cluster as {} ({}), replication on {}", nodeId, leader ? "leader" : "standby", replicationAddress);
+    }
+
+    private void start(Runnable loop, String name) {
+        Thread thread = new Thread(loop, name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        running = false;
+        for (Thread thread : threads) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (leader) {
+            // Stop first, so the lights never have two drivers, then hand over without waiting for the lease to lapse
+            engine.standBy();
+            leader = false;
+            try {
+                leases.release(LEASE, nodeId, term);
+                log.info("Released the lease (term {})", term);
+            } catch (RuntimeException e) {
+                log.warn("Failed to release the lease: {}", e.getMessage());
+            }
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    /** The bound replication port (useful when configured as 0). */
+    public int getReplicationPort() {
+        return server != null ? server.socket().getLocalPort() : -1;
+    }
+
+    public boolean isLeader() {
+        return leader;
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("node", nodeId);
+        status.put("role", leader ? "LEADER" : "STANDBY");
+        status.put("term", term);
+        status.put("leader", leaderNode);
+        status.put("leaderAddress", leaderAddress);
+        status.put("followers", followerCount);
+        status.put("framesSent", framesSent.sum());
+        status.put("bytesSent", bytesSent.sum());
+        status.put("followersDropped", followersDropped.sum());
+        status.put("framesReceived", replica.frames());
+        status.put("replicatedIntersections", replicaEntries().size());
+        status.put("takeovers", takeovers.sum());
+        return status;
+    }
+
+    // --- Lease ---
+
+    private void leaseLoop() {
+        while (running) {
+            try {
+                checkLease();
+            } catch (RuntimeException e) {
+                // The database is unreachable: a leader carries on until its fence, a standby keeps watching
+                log.warn("Lease check failed: {}", e.getMessage());
+            }
+            LockSupport.parkNanos(leader ? renewNanos : pollNanos);
+        }
+    }
+
+    private void checkLease() {
+        long now = System.nanoTime();
+        if (leader) {
+            if (leases.renew(LEASE, nodeId, term)) {
+                // Timed from before the renewal, which no standby can have seen any earlier
+                engine.holdLeaseUntil(now + leaseNanos);
+            } else {
+                standBy("the lease was taken over");
+            }
+            return;
+        }
+        Lease lease = leases.find(LEASE)
+                .orElseThrow(() -> new IllegalStateException("No '" + LEASE + "' row in controller_lease"));
+        if (lease.renewals() != observedRenewals) {
+            observedRenewals = lease.renewals();
+            observedAt = now;
+        }
+        term = lease.term();
+        leaderNode = lease.holder();
+        leaderAddress = lease.replicationAddress();
+        // Held under this node's own id only by an earlier run of it, which is gone
+        boolean lapsed = lease.holder() == null || lease.holder().equals(nodeId) || now - observedAt >= leaseNanos;
+        if (lapsed && leases.acquire(LEASE, nodeId, replicationAddress, lease.renewals())) {
+            takeOver(lease, now);
+        }
+    }
+
+    /** The replica's entries on this node's clocks, which the engine's takeover reads. */
+    private List<EngineCheckpoint.Entry> replicaEntries() {
+        return replica.entries(System.nanoTime(), TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()));
+    }
+
+    private void takeOver(Lease previous, long acquiredAt) {
+        term = previous.term() + 1;
+        int resumed = engine.takeOver(replicaEntries(), acquiredAt + leaseNanos);
+        if (resumed == 0) {
+            coldStart.run();
+        }
+        engine.replicateAll();
+        leader = true;
+        leaderNode = nodeId;
+        leaderAddress = replicationAddress;
+        takeovers.increment();
+        log.info("Took the lease in term {} from {}: {} intersections resumed from the replica in {} ms", term,
+                previous.holder() != null ? previous.holder() : "nobody", resumed,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - acquiredAt));
+    }
+
+    private void standBy(String reason) {
+        engine.standBy();
+        leader = false;
+        observedRenewals = -1;
+        log.warn("Standing by in term {}: {}", term, reason);
+    }
+
+    // --- Replication, leader side ---
+
+    /** A standby's connection and the frames queued for it. */
+    private static final class Follower {
+        final SocketChannel channel;
+        final ByteBuffer pending;
+        boolean reset = true;
+
+        Follower(SocketChannel channel, int bufferBytes) {
+            this.channel = channel;
+            this.pending = ByteBuffer.allocate(bufferBytes);
+        }
+    }
+
+    private void sendLoop() {
+        List<Follower> followers = new ArrayList<>();
+        ByteBuffer frame = ByteBuffer.allocate(frameBytes);
+        long lastSent = System.nanoTime();
+        while (running) {
+            try {
+                if (!leader) {
+                    closeAll(followers);
+                    refuse();
+                } else {
+                    accept(followers);
+                    followerCount = followers.size();
+                    long now = System.nanoTime();
+                    if (!followers.isEmpty()) {
+                        boolean sent = false;
+                        int records;
+                        do {
+                            frame.clear();
+                            int start = ReplicationFrame.begin(frame, 0, term,
+                                    TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()));
+                            records = engine.drainReplication(frame);
+                            if (records == 0 && (sent || now - lastSent < heartbeatNanos)) {
+                                break;
+                            }
+                            ReplicationFrame.finish(frame, start, records);
+                            frame.flip();
+                            enqueue(followers, frame);
+                            framesSent.increment();
+                            sent = true;
+                        } while (records > 0);
+                        if (sent) {
+                            lastSent = now;
+                        }
+                        flush(followers);
+                        followerCount = followers.size();
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.error("Replication turn failed: {}", e.getMessage(), e);
+            }
+            LockSupport.parkNanos(batchNanos);
+        }
+        closeAll(followers);
+    }
+
+    private void accept(List<Follower> followers) {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                followers.add(new Follower(channel, followerBufferBytes));
+                // The new follower needs everything, not just what changes from now on
+                engine.replicateAll();
+                log.info("Standby {} connected for replication", channel.getRemoteAddress());
+            }
+        } catch (IOException e) {
+            log.warn("Replication accept failed: {}", e.getMessage());
+        }
+    }
+
+    /** A standby has no state to send; whoever connects has a stale address and is told so by the close. */
+    private void refuse() {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            log.debug("Replication refuse failed: {}", e.getMessage());
+        }
+    }
+
+    private void enqueue(List<Follower> followers, ByteBuffer frame) {
+        for (Iterator<Follower> it = followers.iterator(); it.hasNext(); ) {
+            Follower follower = it.next();
+            if (follower.pending.remaining() < frame.remaining()) {
+                log.warn("Dropping standby {}: {} bytes behind", remoteAddress(follower), follower.pending.position());
+                followersDropped.increment();
+                close(follower);
+                it.remove();
+                continue;
+            }
+            int start = follower.pending.position();
+            follower.pending.put(frame.duplicate());
+            if (follower.reset) {
+                // Its first frame: whatever it holds from an earlier connection is replaced by this copy
+                ReplicationFrame.addFlags(follower.pending, start, ReplicationFrame.RESET);
+                follower.reset = false;
+            }
+        }
+    }
+
+    private void flush(List<Follower> followers) {
+        for (Iterator<Follower> it = followers.iterator(); it.hasNext(); ) {
+            Follower follower = it.next();
+            try {
+                follower.pending.flip();
+                bytesSent.add(follower.channel.write(follower.pending));
+                follower.pending.compact();
+            } catch (IOException e) {
+                log.info("Standby {} disconnected: {}", remoteAddress(follower), e.getMessage());
+                close(follower);
+                it.remove();
+            }
+        }
+    }
+
+    private void closeAll(List<Follower> followers) {
+        followers.forEach(this::close);
+        followers.clear();
+        followerCount = 0;
+    }
+
+    private void close(Follower follower) {
+        try {
+            follower.channel.close();
+        } catch (IOException e) {
+            log.debug("Close failed: {}", e.getMessage());
+        }
+    }
+
+    private static String remoteAddress(Follower follower) {
+        return String.valueOf(follower.channel.socket().getRemoteSocketAddress());
+    }
+
+    // --- Replication, standby side ---
+
+    private void followLoop() {
+        ByteBuffer frame = ByteBuffer.allocate(frameBytes);
+        while (running) {
+            String address = leaderAddress;
+            if (leader || address == null || address.equals(replicationAddress)) {
+                LockSupport.parkNanos(pollNanos);
+                continue;
+            }
+            try {
+                follow(address, frame);
+            } catch (IOException | RuntimeException e) {
+                log.debug("Replication from {} stopped: {}", address, e.getMessage());
+            }
+            LockSupport.parkNanos(pollNanos);
+        }
+    }
+
+    /** Applies the leader's frames until it goes, the lease moves on or this node takes over. */
+    private void follow(String address, ByteBuffer frame) throws IOException {
+        int colon = address.lastIndexOf(':');
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))),
+                    (int) TimeUnit.NANOSECONDS.toMillis(leaseNanos));
+            socket.setTcpNoDelay(true);
+            // Heartbeats arrive every heartbeat-ms; a silent leader is given three
+            socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(3 * heartbeatNanos)));
+            log.info("Following {} for replication", address);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), frameBytes));
+            while (running && !leader && address.equals(leaderAddress)) {
+                int length = in.readInt();
+                if (length < ReplicationFrame.HEADER_BYTES - 4 || length > frame.capacity() - 4) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                frame.putInt(0, length);
+                in.readFully(frame.array(), 4, length);
+                if (!replica.apply(frame, 0, System.nanoTime())) {
+                    throw new IOException("Malformed or stale frame");
+                }
+            }
+        }
+    }
+}
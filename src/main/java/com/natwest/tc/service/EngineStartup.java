@@ -0,0 +1,98 @@
+package com.natwest.tc.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Service;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Brings the signals up on boot: resumes from the engine checkpoint when there is a recent one, and
+ * otherwise starts the default cycle cold. In a cluster only the node that wins the lease does so;
+ * the rest stand by until they take over.
+ * <p>
+ * It runs in the first lifecycle phase, straight after the beans are built and before the web server
+ * opens its port, so the first GREEN never waits for Tomcat, the actuator endpoints or anything else
+ * that starts with the context.
+ */
+@Slf4j
+@Service
+public class EngineStartup implements SmartLifecycle {
+
+    /** Printed with the JVM uptime once the first GREEN is shown; the boot-time measurement waits for it. */
+    public static final String FIRST_GREEN = "First GREEN ";
+
+    private final TrafficEngineService trafficService;
+    private final int warmUpIterations;
+    private ClusterService cluster;
+    private volatile boolean running;
+
+    public EngineStartup(TrafficEngineService trafficService,
+                         @Value("${traffic.startup.warm-up-iterations:0}") int warmUpIterations) {
+        this.trafficService = trafficService;
+        this.warmUpIterations = warmUpIterations;
+    }
+
+    @Autowired(required = false)
+    public void setCluster(ClusterService cluster) {
+        this.cluster = cluster;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        log.info("Starting Traffic Signal Engine...");
+        if (warmUpIterations > 0) {
+            trafficService.warmUpSafetyCheck(warmUpIterations);
+        }
+        if (cluster != null) {
+            // Brings the signals up only if this node leads and there is no replicated state to resume
+            cluster.join(this::startSignals);
+        } else {
+            startSignals();
+        }
+    }
+
+    private void startSignals() {
+        // Carry on mid-cycle from the engine checkpoint when there is a recent one
+        if (trafficService.restoreCheckpoint() > 0
+                && !trafficService.getPlan(TrafficEngineService.DEFAULT_INTERSECTION).isEmpty()) {
+            log.info("Resumed from checkpoint.");
+            reportFirstGreen();
+            return;
+        }
+        // Start the default cycle (Phases 1, 2, 3, 4)
+        try {
+            trafficService.startCycle(Arrays.asList(1, 2, 3, 4));
+            reportFirstGreen();
+        } catch (UnsafePlanException e) {
+            // Stay dark (paused at RED) rather than fail the boot
+            log.error("Default sequence rejected: {}", e.getReport());
+        }
+    }
+
+    private static void reportFirstGreen() {
+        // Plain stdout rather than the log: BootTimer parses this line from the first token, whatever
+        // the logging pattern, and it is the only line this class prints
+        System.out.println(FIRST_GREEN + ManagementFactory.getRuntimeMXBean().getUptime() + " ms after JVM start");
+    }
+
+    @Override
+    public void stop() {
+        // The engine stops its own scheduler when the context closes
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return Integer.MIN_VALUE;
+    }
+}
@@ -0,0 +1,216 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.engine.GreenWaveOptimizer;
+import com.natwest.tc.engine.PhasePlan;
+import com.natwest.tc.model.CorridorJunction;
+import com.natwest.tc.model.CorridorRequest;
+import com.natwest.tc.model.GreenWavePlan;
+import com.natwest.tc.model.JunctionOffset;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordinates a corridor of intersections into a green wave: finds the cycle offsets that give the
+ * widest band of green in both directions, and optionally has the engine align each junction to its
+ * offset from a shared epoch.
+ * <p>
+ * Each junction is read from the sequence it is running: its cycle is the sum of its greens and
+ * yellows, and the coordinated phase's place in it gives the green window. Only junctions running the
+ * corridor's most common cycle can be coordinated; the rest are reported and left alone. The search
+ * runs on its own fork-join pool, never on request threads or the engine's scheduler.
+ */
+@Slf4j
+@Service
+public class GreenWaveService {
+
+    private static final int MAX_JUNCTIONS = 500;
+
+    private final TrafficEngineService engine;
+    private final ForkJoinPool pool;
+    private final Instant epoch;
+    private final int starts;
+    private final double defaultInboundWeight;
+
+    public GreenWaveService(TrafficEngineService engine,
+                            @Value("${traffic.corridor.parallelism:0}") int parallelism,
+                            @Value("${traffic.corridor.epoch:2024-01-01T00:00:00Z}") String epoch,
+                            @Value("${traffic.corridor.starts:0}") int starts,
+                            @Value("${traffic.corridor.inbound-weight:1.0}") double inboundWeight) {
+        this.engine = engine;
+        this.pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        this.epoch = Instant.parse(epoch);
+        this.starts = starts > 0 ? starts : 4 * pool.getParallelism();
+        this.defaultInboundWeight = inboundWeight;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Plans offsets for the corridor, and applies them if {@code apply} is set.
+     *
+     * @throws IllegalArgumentException if the corridor is empty, a travel time is missing or negative,
+     *                                  or a junction is not running a sequence with its coordinated phase
+     */
+    public CompletableFuture<GreenWavePlan> plan(CorridorRequest request, boolean apply) {
+        List<Junction> junctions = resolve(request);
+        double weight = request.getInboundWeight() != null ? request.getInboundWeight() : defaultInboundWeight;
+        if (weight < 0) {
+            throw new IllegalArgumentException("Inbound weight must not be negative");
+        }
+        return CompletableFuture.supplyAsync(() -> plan(junctions, weight, apply), pool);
+    }
+
+    private GreenWavePlan plan(List<Junction> junctions, double weight, boolean apply) {
+        int cycle = corridorCycle(junctions);
+        List<Junction> coordinated = junctions.stream().filter(j -> j.cycle == cycle).toList();
+        int n = coordinated.size();
+        int[] greenStart = new int[n];
+        int[] green = new int[n];
+        int[] outbound = new int[n];
+        int[] inbound = new int[n];
+        for (int j = 0; j < n; j++) {
+            Junction junction = coordinated.get(j);
+            greenStart[j] = junction.greenStart;
+            green[j] = junction.green;
+            outbound[j] = junction.outboundArrival;
+            inbound[j] = junction.inboundArrival;
+        }
+        GreenWaveOptimizer optimizer = new GreenWaveOptimizer(cycle, greenStart, green, outbound, inbound, weight);
+        GreenWaveOptimizer.Result result = optimizer.optimize(pool, starts, 0);
+
+        Map<String, Integer> offsets = new HashMap<>();
+        for (int j = 0; j < n; j++) {
+            offsets.put(coordinated.get(j).id, result.offsets()[j]);
+        }
+        List<JunctionOffset> report = new ArrayList<>();
+        for (Junction junction : junctions) {
+            Integer offset = offsets.get(junction.id);
+            Long correction = null;
+            if (apply && offset != null) {
+                try {
+                    correction = engine.alignCycle(junction.id, epoch, TimeUnit.SECONDS.toMillis(offset));
+                } catch (IllegalArgumentException e) {
+                    // Paused or restarted since it was read; it keeps its own timing
+                    log.warn("[{}] Not aligned to the corridor: {}", junction.id, e.getMessage());
+                }
+            }
+            report.add(new JunctionOffset(junction.id, junction.cycle, offset != null, offset != null ? offset : 0,
+                    junction.greenStart, junction.green, correction));
+        }
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(result.elapsedNanos());
+        log.info("Planned a green wave over {} of {} junctions: {} s cycle, bands {} s out and {} s in, {} starts in {} ms{}",
+                n, junctions.size(), cycle, result.outboundBand(), result.inboundBand(), result.starts(), millis,
+                apply ? ", applied" : "");
+        return new GreenWavePlan(cycle, epoch, result.outboundBand(), result.inboundBand(),
+                round((double) result.outboundBand() / cycle), round((double) result.inboundBand() / cycle),
+                result.starts(), millis, apply, report);
+    }
+
+    /** Reads every junction's running sequence and works out its green window and arrival times. */
+    private List<Junction> resolve(CorridorRequest request) {
+        List<CorridorJunction> corridor = request == null ? null : request.getJunctions();
+        if (corridor == null || corridor.isEmpty()) {
+            throw new IllegalArgumentException("A corridor needs at least one junction");
+        }
+        if (corridor.size() > MAX_JUNCTIONS) {
+            throw new IllegalArgumentException("Corridor longer than " + MAX_JUNCTIONS + " junctions");
+        }
+        int n = corridor.size();
+        Set<String> seen = new HashSet<>();
+        List<Junction> junctions = new ArrayList<>();
+        for (CorridorJunction entry : corridor) {
+            String id = entry.getIntersectionId() != null ? entry.getIntersectionId() : TrafficEngineService.DEFAULT_INTERSECTION;
+            if (!seen.add(id)) {
+                throw new IllegalArgumentException(id + " appears twice in the corridor");
+            }
+            PhasePlan plan = engine.getPlan(id);
+            if (plan.isEmpty()) {
+                throw new IllegalArgumentException(id + " is not running a sequence");
+            }
+            int cycle = 0;
+            int greenStart = -1;
+            int green = 0;
+            for (int i = 0; i < plan.size(); i++) {
+                if (greenStart < 0 && plan.phaseId(i) == entry.getCoordinatedPhaseId()) {
+                    greenStart = cycle;
+                    green = plan.greenSeconds(i);
+                }
+                cycle += plan.greenSeconds(i) + TrafficEngineService.YELLOW_SECONDS;
+            }
+            if (greenStart < 0) {
+                throw new IllegalArgumentException(id + " does not run phase " + entry.getCoordinatedPhaseId());
+            }
+            junctions.add(new Junction(id, cycle, greenStart, green));
+        }
+        for (int j = 1; j < n; j++) {
+            junctions.get(j).outboundArrival = junctions.get(j - 1).outboundArrival + travel(corridor.get(j - 1), true);
+        }
+        for (int j = n - 2; j >= 0; j--) {
+            junctions.get(j).inboundArrival = junctions.get(j + 1).inboundArrival + travel(corridor.get(j), false);
+        }
+        return junctions;
+    }
+
+    private static int travel(CorridorJunction junction, boolean outbound) {
+        Integer seconds = outbound || junction.getTravelSecondsFromNext() == null
+                ? junction.getTravelSecondsToNext() : junction.getTravelSecondsFromNext();
+        if (seconds == null || seconds < 0) {
+            throw new IllegalArgumentException(junction.getIntersectionId() + " needs a travel time to the next junction");
+        }
+        return seconds;
+    }
+
+    /** The cycle most junctions run; ties go to the longer cycle. */
+    private static int corridorCycle(List<Junction> junctions) {
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (Junction junction : junctions) {
+            counts.merge(junction.cycle, 1, Integer::sum);
+        }
+        int cycle = 0;
+        int count = 0;
+        for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > count || (entry.getValue() == count && entry.getKey() > cycle)) {
+                cycle = entry.getKey();
+                count = entry.getValue();
+            }
+        }
+        return cycle;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    private static final class Junction {
+        final String id;
+        final int cycle;
+        final int greenStart;
+        final int green;
+        int outboundArrival;
+        int inboundArrival;
+
+        Junction(String id, int cycle, int greenStart, int green) {
+            this.id = id;
+            this.cycle = cycle;
+            this.greenStart = greenStart;
+            this.green = green;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.model.PhaseHourRollup;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps {@code traffic_history} bounded.
+ * <p>
+ * Closed hours are rolled up into {@code traffic_history_hourly} (green seconds, cycles and lockouts
+ * per intersection and phase) and a watermark records how far the rollup has got, by time and by row
+ * id. Rows that arrive late for an hour already rolled up (a replayed spill, a writer that fell
+ * behind) are found by id and their hours rolled up again, as long as their raw rows are all still
+ * there. Raw rows older than {@code raw-hours} are then deleted, whole hours at a time and never past
+ * either watermark, in small batches so each delete holds its locks only briefly. Runs on the
+ * scheduler pool, never on the tick.
+ */
+@Slf4j
+@Service
+public class HistoryRetentionService {
+
+    static final String WATERMARK = "traffic_history_hourly";
+    static final int MAX_ROLLUP_ROWS = 10_000;
+
+    // Hours are rolled up only once the writer has had time to flush their last events
+    private static final Duration ROLLUP_LAG = Duration.ofMinutes(1);
+
+    // Green time is measured to the intersection's next colour change and split at hour boundaries, so
+    // rows from the hour either side are read too. A pause is a colour change: it is logged with RED
+    // and no phase, so the change is found among all the intersection's rows before they are narrowed
+    // to the phase rows being rolled up.
+    private static final String ROLLUP_SQL = """
+            MERGE INTO traffic_history_hourly (intersection_id, phase_id, hour_start, green_seconds, cycles, lockouts)
+            KEY (intersection_id, phase_id, hour_start)
+            SELECT t.intersection_id, t.phase_id, p.hour_start,
+                   SUM(CASE WHEN t.color = 'GREEN' AND t.next_ts > p.hour_start
+                            THEN DATEDIFF('SECOND', GREATEST(t.timestamp, p.hour_start), LEAST(t.next_ts, p.hour_end))
+                            ELSE 0 END),
+                   SUM(CASE WHEN t.event_type = 'STATE_CHANGE' AND t.color = 'GREEN' AND t.timestamp >= p.hour_start
+                            THEN 1 ELSE 0 END),
+                   SUM(CASE WHEN t.event_type = 'ERROR' AND t.timestamp >= p.hour_start THEN 1 ELSE 0 END)
+            FROM (SELECT intersection_id, phase_id, event_type, color, timestamp,
+                         LEAD(timestamp) OVER (PARTITION BY intersection_id ORDER BY timestamp, id) AS next_ts
+                  FROM traffic_history
+                  WHERE timestamp >= ? AND timestamp < ? AND color IS NOT NULL AND intersection_id IS NOT NULL) t
+            CROSS JOIN (SELECT CAST(? AS TIMESTAMP) AS hour_start, CAST(? AS TIMESTAMP) AS hour_end) p
+            WHERE t.phase_id IS NOT NULL AND t.timestamp < p.hour_end
+              AND (t.timestamp >= p.hour_start OR (t.color = 'GREEN' AND t.next_ts > p.hour_start))
+            GROUP BY t.intersection_id, t.phase_id, p.hour_start
+            """;
+
+    // Hours of the rows that arrived since the last run but belong before its watermark
+    private static final String LATE_HOURS_SQL =
+            "SELECT DISTINCT DATE_TRUNC('HOUR', timestamp) FROM traffic_history WHERE id > ? AND timestamp < ?";
+
+    private static final String DELETE_RAW_SQL =
+            "DELETE FROM traffic_history WHERE id IN (SELECT id FROM traffic_history WHERE timestamp < ? AND id <= ? "
+                    + "ORDER BY timestamp LIMIT ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final int rawHours;
+    private final int rollupDays;
+    private final int deleteBatchSize;
+    private final int maxBatchesPerRun;
+    private final int maxHoursPerRun;
+
+    private final LongAdder hoursRolledUp = new LongAdder();
+    private final LongAdder rowsCompacted = new LongAdder();
+    private final LongAdder lateHoursRolledUp = new LongAdder();
+    private final LongAdder lateRowsLost = new LongAdder();
+    private volatile long lastRunMillis;
+
+    // Ages are measured on the engine's clock, so virtual-time history is not compacted as ancient
+    private Clock clock = Clock.systemDefaultZone();
+
+    public HistoryRetentionService(JdbcTemplate jdbcTemplate,
+                                   @Value("${traffic.history.retention.raw-hours:24}") int rawHours,
+                                   @Value("${traffic.history.retention.rollup-days:365}") int rollupDays,
+                                   @Value("${traffic.history.retention.delete-batch-size:5000}") int deleteBatchSize,
+                                   @Value("${traffic.history.retention.max-batches-per-run:20}") int maxBatchesPerRun,
+                                   @Value("${traffic.history.retention.max-hours-per-run:24}") int maxHoursPerRun) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.rawHours = rawHours;
+        this.rollupDays = rollupDays;
+        this.deleteBatchSize = Math.max(1, deleteBatchSize);
+        this.maxBatchesPerRun = Math.max(1, maxBatchesPerRun);
+        this.maxHoursPerRun = Math.max(1, maxHoursPerRun);
+    }
+
+    @Autowired(required = false)
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    @Scheduled(initialDelayString = "${traffic.history.retention.interval-ms:60000}",
+            fixedDelayString = "${traffic.history.retention.interval-ms:60000}")
+    public void runMaintenance() {
+        long started = System.nanoTime();
+        try {
+            LocalDateTime now = LocalDateTime.now(clock);
+            int hours = rollUp(now);
+            int rows = compact(now);
+            if (hours > 0 || rows > 0) {
+                log.info("History maintenance rolled up {} hours and compacted {} rows", hours, rows);
+            }
+        } catch (Exception e) {
+            log.error("History maintenance failed: {}", e.getMessage());
+        } finally {
+            lastRunMillis = Duration.ofNanos(System.nanoTime() - started).toMillis();
+        }
+    }
+
+    /**
+     * Rolls up again every hour that has had rows since the last run, then every closed hour after the
+     * watermark, oldest first. Returns how many new hours were rolled.
+     */
+    int rollUp(LocalDateTime now) {
+        LocalDateTime closedUntil = now.minus(ROLLUP_LAG).truncatedTo(ChronoUnit.HOURS);
+        // Rows are numbered as they are written, so anything above this id is for the next run
+        long newestId = jdbcTemplate.queryForObject("SELECT COALESCE(MAX(id), 0) FROM traffic_history", Long.class);
+        LocalDateTime hour = getRolledUntil();
+        if (hour == null) {
+            LocalDateTime oldest = jdbcTemplate.queryForObject(
+                    "SELECT MIN(timestamp) FROM traffic_history", LocalDateTime.class);
+            if (oldest == null) {
+                return 0;
+            }
+            hour = oldest.truncatedTo(ChronoUnit.HOURS);
+        } else {
+            rollUpLate(hour, newestId);
+        }
+        int rolled = 0;
+        while (hour.isBefore(closedUntil) && rolled < maxHoursPerRun) {
+            LocalDateTime next = hour.plusHours(1);
+            rollUpHour(hour);
+            // MERGE makes a re-run of the same hour idempotent, so the watermark can move after the fact
+            saveWatermark(next, newestId);
+            hour = next;
+            rolled++;
+        }
+        saveWatermark(hour, newestId);
+        hoursRolledUp.add(rolled);
+        return rolled;
+    }
+
+    /**
+     * Rolls up again the hours before {@code rolledUntil} that rows above the id watermark belong to,
+     * with the hour either side, whose green time they can change. Hours that compaction has reached
+     * have lost the rest of their rows, so their late rows are counted as lost instead.
+     */
+    private void rollUpLate(LocalDateTime rolledUntil, long newestId) {
+        long rolledId = getRolledId();
+        if (newestId <= rolledId) {
+            return;
+        }
+        LocalDateTime compactedUntil = getCompactedUntil();
+        TreeSet<LocalDateTime> hours = new TreeSet<>();
+        for (LocalDateTime late : jdbcTemplate.queryForList(LATE_HOURS_SQL, LocalDateTime.class, rolledId, rolledUntil)) {
+            for (LocalDateTime hour = late.minusHours(1); !hour.isAfter(late.plusHours(1)); hour = hour.plusHours(1)) {
+                if ((compactedUntil == null || !hour.isBefore(compactedUntil)) && hour.isBefore(rolledUntil)) {
+                    hours.add(hour);
+                }
+            }
+        }
+        if (compactedUntil != null) {
+            long lost = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM traffic_history WHERE id > ? AND timestamp < ?",
+                    Long.class, rolledId, compactedUntil.isBefore(rolledUntil) ? compactedUntil : rolledUntil);
+            if (lost > 0) {
+                lateRowsLost.add(lost);
+                log.warn("{} history rows arrived after their hours were compacted and are not in the rollups", lost);
+            }
+        }
+        hours.forEach(this::rollUpHour);
+        lateHoursRolledUp.add(hours.size());
+    }
+
+    private void rollUpHour(LocalDateTime hour) {
+        LocalDateTime next = hour.plusHours(1);
+        jdbcTemplate.update(ROLLUP_SQL, hour.minusHours(1), next.plusHours(1), hour, next);
+    }
+
+    private void saveWatermark(LocalDateTime rolledUntil, long rolledId) {
+        jdbcTemplate.update("MERGE INTO traffic_rollup_watermark (name, rolled_until, rolled_id) KEY (name) VALUES (?, ?, ?)",
+                WATERMARK, rolledUntil, rolledId);
+    }
+
+    /** Where compaction stops: retention rounded down to a whole hour, so no hour is left half deleted. */
+    private LocalDateTime compactionCutoff(LocalDateTime now) {
+        return now.minusHours(rawHours).truncatedTo(ChronoUnit.HOURS);
+    }
+
+    /** Deletes raw rows that are both past retention and already rolled up, in bounded batches. */
+    int compact(LocalDateTime now) {
+        LocalDateTime rolledUntil = getRolledUntil();
+        if (rolledUntil == null) {
+            return 0;
+        }
+        LocalDateTime retention = compactionCutoff(now);
+        LocalDateTime cutoff = retention.isBefore(rolledUntil) ? retention : rolledUntil;
+        long rolledId = getRolledId();
+        // Recorded first: once deleting starts, hours before the cutoff can no longer be rolled up again
+        jdbcTemplate.update("UPDATE traffic_rollup_watermark SET compacted_until = ? WHERE name = ?", cutoff, WATERMARK);
+        int deleted = 0;
+        for (int batch = 0; batch < maxBatchesPerRun; batch++) {
+            int rows = jdbcTemplate.update(DELETE_RAW_SQL, cutoff, rolledId, deleteBatchSize);
+            deleted += rows;
+            if (rows < deleteBatchSize) {
+                break;
+            }
+        }
+        jdbcTemplate.update("DELETE FROM traffic_history_hourly WHERE hour_start < ?",
+                now.minusDays(rollupDays).truncatedTo(ChronoUnit.HOURS));
+        rowsCompacted.add(deleted);
+        return deleted;
+    }
+
+    private LocalDateTime getCompactedUntil() {
+        List<LocalDateTime> rows = jdbcTemplate.queryForList(
+                "SELECT compacted_until FROM traffic_rollup_watermark WHERE name = ?", LocalDateTime.class, WATERMARK);
+        return rows.isEmpty() ? null : rows.get(0);
+    }
+
+    private long getRolledId() {
+        List<Long> rows = jdbcTemplate.queryForList(
+                "SELECT rolled_id FROM traffic_rollup_watermark WHERE name = ?", Long.class, WATERMARK);
+        return rows.isEmpty() ? 0 : rows.get(0);
+    }
+
+    /** End of the last rolled-up hour, or null before the first rollup. */
+    public LocalDateTime getRolledUntil() {
+        List<LocalDateTime> rows = jdbcTemplate.queryForList(
+                "SELECT rolled_until FROM traffic_rollup_watermark WHERE name = ?", LocalDateTime.class, WATERMARK);
+        return rows.isEmpty() ? null : rows.get(0);
+    }
+
+    /** Hourly rollups, newest first, optionally filtered and capped at {@code limit} rows (at most {@value #MAX_ROLLUP_ROWS}). */
+    public List<PhaseHourRollup> getRollups(String intersectionId, Integer phaseId,
+                                            LocalDateTime from, LocalDateTime to, int limit) {
+        StringBuilder sql = new StringBuilder("SELECT intersection_id, phase_id, hour_start, green_seconds, cycles, lockouts "
+                + "FROM traffic_history_hourly WHERE 1 = 1");
+        List<Object> args = new ArrayList<>();
+        if (intersectionId != null) {
+            sql.append(" AND intersection_id = ?");
+            args.add(intersectionId);
+        }
+        if (phaseId != null) {
+            sql.append(" AND phase_id = ?");
+            args.add(phaseId);
+        }
+        if (from != null) {
+            sql.append(" AND hour_start >= ?");
+            args.add(from);
+        }
+        if (to != null) {
+            sql.append(" AND hour_start < ?");
+            args.add(to);
+        }
+        sql.append(" ORDER BY hour_start DESC, intersection_id, phase_id LIMIT ?");
+        args.add(Math.max(1, Math.min(limit, MAX_ROLLUP_ROWS)));
+
+        return jdbcTemplate.query(sql.toString(), (rs, rowNum) -> new PhaseHourRollup(
+                rs.getString("intersection_id"), rs.getInt("phase_id"),
+                rs.getObject("hour_start", LocalDateTime.class), rs.getLong("green_seconds"),
+                rs.getInt("cycles"), rs.getInt("lockouts")), args.toArray());
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("rolledUntil", getRolledUntil());
+        stats.put("rawHours", rawHours);
+        stats.put("hoursRolledUp", hoursRolledUp.sum());
+        stats.put("rowsCompacted", rowsCompacted.sum());
+        stats.put("lateHoursRolledUp", lateHoursRolledUp.sum());
+        stats.put("lateRowsLost", lateRowsLost.sum());
+        stats.put("lastRunMillis", lastRunMillis);
+        return stats;
+    }
+}
@@ -0,0 +1,23 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.entity.HistoryEvent;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Where engine history goes. Selected with {@code traffic.history.store}: {@code jdbc} (default)
+ * batches events into {@code traffic_history}, {@code journal} appends them to memory-mapped files.
+ */
+public interface HistoryStore {
+
+    /** Records an event. Called from the tick, so it must never block on I/O. */
+    void append(HistoryEvent event);
+
+    /**
+     * Page of history, newest first, starting strictly before {@code afterTimestamp/afterId} when
+     * those are set. Null filters are ignored.
+     */
+    List<HistoryEvent> findPage(String intersectionId, String eventType, LocalDateTime from, LocalDateTime to,
+                                LocalDateTime afterTimestamp, Long afterId, int limit);
+}
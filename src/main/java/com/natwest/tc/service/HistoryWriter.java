@@ -0,0 +1,391 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.engine.EventRing;
+import com.natwest.tc.entity.HistoryEvent;
+import com.natwest.tc.model.LightColor;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Persists history events off the engine thread.
+ * <p>
+ * {@link #append} is one enqueue onto a bounded lock-free ring. A single background thread drains
+ * the ring and writes JDBC batch inserts once a batch is full or its oldest event has waited
+ * {@code max-linger-ms}. When the ring is full the configured {@link OverflowPolicy} decides
+ * whether the caller waits, the oldest queued event is dropped, or the event is spilled to a local
+ * file that is replayed into the database once the ring has drained. Only a SPILL writer touches the
+ * spill file, and it holds a lock on it for as long as it runs, so no two processes share one.
+ */
+@Slf4j
+@Service
+public class HistoryWriter {
+
+    public enum OverflowPolicy { BLOCK, DROP_OLDEST, SPILL }
+
+    static final String INSERT_SQL =
+            "INSERT INTO traffic_history (timestamp, intersection_id, event_type, phase_id, color, details) VALUES (?, ?, ?, ?, ?, ?)";
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    // A database that rejected the last replay is retried at most this often
+    private static final long SPILL_REPLAY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final EventRing<HistoryEvent> ring;
+    private final int batchSize;
+    private final long maxLingerNanos;
+    private final OverflowPolicy overflowPolicy;
+    private final Path spillFile;
+    private final Path replayFile;
+    private final Object spillLock = new Object();
+    private final FileChannel spillLockChannel;
+    // Open from the first spill until the next replay, so spilling an event is a buffered write
+    private DataOutputStream spillOut;
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    private TrafficMetrics metrics = TrafficMetrics.NOOP;
+
+    private volatile boolean running;
+    private Thread writerThread;
+
+    public HistoryWriter(JdbcTemplate jdbcTemplate,
+                         @Value("${traffic.history.writer.capacity:65536}") int capacity,
+                         @Value("${traffic.history.writer.batch-size:500}") int batchSize,
+                         @Value("${traffic.history.writer.max-linger-ms:200}") long maxLingerMs,
+                         @Value("${traffic.history.writer.overflow:DROP_OLDEST}") OverflowPolicy overflowPolicy,
+                         @Value("${traffic.history.writer.spill-file:data/traffic-history.spill}") String spillFile) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.ring = new EventRing<>(capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMs);
+        this.overflowPolicy = overflowPolicy;
+        this.spillFile = Path.of(spillFile);
+        this.replayFile = this.spillFile.resolveSibling(this.spillFile.getFileName() + ".replay");
+        this.spillLockChannel = overflowPolicy == OverflowPolicy.SPILL ? lockSpill(this.spillFile) : null;
+    }
+
+    /** Locks the spill file for this process, through a sibling file that is never moved. */
+    private static FileChannel lockSpill(Path spillFile) {
+        Path lockFile = spillFile.resolveSibling(spillFile.getFileName() + ".lock");
+        try {
+            if (lockFile.getParent() != null) {
+                Files.createDirectories(lockFile.getParent());
+            }
+            FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                channel.close();
+                throw new IllegalStateException("History spill file " + spillFile + " is in use by another writer");
+            }
+            return channel;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot lock history spill file " + spillFile, e);
+        }
+    }
+
+    @Autowired(required = false)
+    public void setMetrics(TrafficMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        writerThread = new Thread(this::drainLoop, "history-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        log.info("History writer started. Capacity: {}, Batch: {}, Linger: {} ms, Overflow: {}",
+                ring.capacity(), batchSize, TimeUnit.NANOSECONDS.toMillis(maxLingerNanos), overflowPolicy);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        if (writerThread != null) {
+            LockSupport.unpark(writerThread);
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        synchronized (spillLock) {
+            closeSpill();
+            if (spillLockChannel != null && spillLockChannel.isOpen()) {
+                try {
+                    // Closing the channel releases the lock
+                    spillLockChannel.close();
+                } catch (IOException e) {
+                    log.error("Failed to unlock the history spill file: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /** Queues an event for persistence. Never touches the database. */
+    public void append(HistoryEvent event) {
+        if (ring.offer(event)) {
+            enqueued.increment();
+            return;
+        }
+        switch (overflowPolicy) {
+            case BLOCK -> {
+                while (!ring.offer(event)) {
+                    if (!running) {
+                        dropped.increment();
+                        return;
+                    }
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                }
+                enqueued.increment();
+            }
+            case DROP_OLDEST -> {
+                do {
+                    if (ring.poll() != null) {
+                        dropped.increment();
+                    }
+                } while (!ring.offer(event));
+                enqueued.increment();
+            }
+            case SPILL -> spill(List.of(event));
+        }
+    }
+
+    private void drainLoop() {
+        List<HistoryEvent> batch = new ArrayList<>(batchSize);
+        long batchStarted = 0;
+        long lastReplay = System.nanoTime() - SPILL_REPLAY_INTERVAL_NANOS;
+        while (running) {
+            boolean wasEmpty = batch.isEmpty();
+            int drained = ring.drainTo(batch, batchSize - batch.size());
+            if (wasEmpty && drained > 0) {
+                batchStarted = System.nanoTime();
+            }
+            if (batch.size() >= batchSize || (!batch.isEmpty() && System.nanoTime() - batchStarted >= maxLingerNanos)) {
+                writeBatch(batch);
+                batch.clear();
+            } else if (drained == 0) {
+                if (overflowPolicy == OverflowPolicy.SPILL && batch.isEmpty()
+                        && System.nanoTime() - lastReplay >= SPILL_REPLAY_INTERVAL_NANOS) {
+                    replaySpill();
+                    lastReplay = System.nanoTime();
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        // Shutting down: write whatever is still queued
+        writeBatch(batch);
+        flush();
+    }
+
+    /** Synchronously writes everything queued so far. Used on shutdown and by tests. */
+    void flush() {
+        List<HistoryEvent> batch = new ArrayList<>(batchSize);
+        while (ring.drainTo(batch, batchSize) > 0) {
+            writeBatch(batch);
+            batch.clear();
+        }
+        if (overflowPolicy == OverflowPolicy.SPILL) {
+            replaySpill();
+        }
+    }
+
+    private void writeBatch(List<HistoryEvent> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long started = System.nanoTime();
+        try {
+            jdbcTemplate.batchUpdate(INSERT_SQL, batch, batch.size(), (ps, event) -> {
+                ps.setObject(1, event.getTimestamp());
+                ps.setString(2, event.getIntersectionId());
+                ps.setString(3, event.getEventType());
+                ps.setObject(4, event.getPhaseId());
+                ps.setString(5, event.getColor() != null ? event.getColor().name() : null);
+                ps.setString(6, event.getDetails());
+            });
+            written.add(batch.size());
+            metrics.recordHistoryWrite(System.nanoTime() - started);
+        } catch (Exception e) {
+            log.error("Failed to persist {} history events: {}", batch.size(), e.getMessage());
+            metrics.recordHistoryWriteFailure(batch.size());
+            if (overflowPolicy == OverflowPolicy.SPILL) {
+                spill(batch);
+            } else {
+                failed.add(batch.size());
+            }
+        }
+    }
+
+    // --- Spill file ---
+
+    /**
+     * Appends events to the spill file through the stream kept open for it. Nothing reaches the file
+     * until the buffer fills or the next replay flushes it, which keeps the caller, usually the engine
+     * thread, off the disk.
+     */
+    private void spill(List<HistoryEvent> events) {
+        synchronized (spillLock) {
+            try {
+                if (spillOut == null) {
+                    spillOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(FileChannel.open(
+                            spillFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND))));
+                }
+                for (HistoryEvent event : events) {
+                    spillOut.writeUTF(event.getTimestamp().toString());
+                    writeNullable(spillOut, event.getIntersectionId());
+                    writeNullable(spillOut, event.getEventType());
+                    spillOut.writeInt(event.getPhaseId() != null ? event.getPhaseId() : Integer.MIN_VALUE);
+                    writeNullable(spillOut, event.getColor() != null ? event.getColor().name() : null);
+                    writeNullable(spillOut, event.getDetails());
+                }
+                spilled.add(events.size());
+            } catch (IOException e) {
+                log.error("Failed to spill {} history events: {}", events.size(), e.getMessage());
+                dropped.add(events.size());
+            }
+        }
+    }
+
+    /**
+     * Moves the spill file aside and writes its events to the database. A replay file left by an
+     * earlier attempt is finished first and never overwritten; events that fail to write again are
+     * spilled again, so a replay file is deleted as soon as it has been read. The lock is held only
+     * to move the file, so spilling carries on while the replay reads.
+     */
+    private void replaySpill() {
+        // At most a leftover replay file, then the current spill file
+        for (int round = 0; round < 2; round++) {
+            boolean leftover;
+            synchronized (spillLock) {
+                closeSpill();
+                leftover = Files.exists(replayFile);
+                try {
+                    if (!leftover) {
+                        if (!Files.exists(spillFile)) {
+                            return;
+                        }
+                        Files.move(spillFile, replayFile);
+                    }
+                } catch (IOException e) {
+                    log.error("Failed to replay spilled history events: {}", e.getMessage());
+                    return;
+                }
+            }
+            replay(replayFile);
+            if (!leftover) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the events in {@code file} to the database {@code batchSize} at a time, then deletes it.
+     * A record cut short or damaged, as a crash in the middle of a write leaves one, ends the file:
+     * it and anything after it are dropped.
+     */
+    private void replay(Path file) {
+        List<HistoryEvent> batch = new ArrayList<>(batchSize);
+        long replayed = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (in.available() > 0) {
+                batch.add(readEvent(in));
+                if (batch.size() == batchSize) {
+                    writeBatch(batch);
+                    replayed += batch.size();
+                    batch.clear();
+                }
+            }
+        } catch (IOException | DateTimeException | IllegalArgumentException e) {
+            log.warn("Discarding a damaged tail of {} after {} events: {}", file, replayed + batch.size(), e.getMessage());
+        }
+        writeBatch(batch);
+        replayed += batch.size();
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.error("Failed to delete replayed history events in {}: {}", file, e.getMessage());
+        }
+        log.info("Replayed {} spilled history events", replayed);
+    }
+
+    private void closeSpill() {
+        if (spillOut != null) {
+            DataOutputStream out = spillOut;
+            spillOut = null;
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.error("Failed to close the history spill file: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static HistoryEvent readEvent(DataInputStream in) throws IOException {
+        LocalDateTime timestamp = LocalDateTime.parse(in.readUTF());
+        String intersectionId = readNullable(in);
+        String eventType = readNullable(in);
+        int phaseId = in.readInt();
+        String color = readNullable(in);
+        return new HistoryEvent(timestamp, intersectionId, eventType, phaseId != Integer.MIN_VALUE ? phaseId : null,
+                color != null ? LightColor.valueOf(color) : null, readNullable(in));
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    // --- Counters ---
+
+    public int getQueueDepth() {
+        return ring.size();
+    }
+
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("queueDepth", (long) ring.size());
+        stats.put("capacity", (long) ring.capacity());
+        stats.put("enqueued", enqueued.sum());
+        stats.put("written", written.sum());
+        stats.put("dropped", dropped.sum());
+        stats.put("spilled", spilled.sum());
+        stats.put("failed", failed.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,31 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.entity.HistoryEvent;
+import com.natwest.tc.repository.HistoryRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/** Default store: writes go through the batching {@link HistoryWriter}, reads are keyset queries. */
+@Service
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "traffic.history.store", havingValue = "jdbc", matchIfMissing = true)
+public class JdbcHistoryStore implements HistoryStore {
+
+    private final HistoryWriter historyWriter;
+    private final HistoryRepository historyRepository;
+
+    @Override
+    public void append(HistoryEvent event) {
+        historyWriter.append(event);
+    }
+
+    @Override
+    public List<HistoryEvent> findPage(String intersectionId, String eventType, LocalDateTime from, LocalDateTime to,
+                                       LocalDateTime afterTimestamp, Long afterId, int limit) {
+        return historyRepository.findPage(intersectionId, eventType, from, to, afterTimestamp, afterId, limit);
+    }
+}
@@ -0,0 +1,58 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.engine.EventJournal;
+import com.natwest.tc.entity.HistoryEvent;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Keeps history in an {@link EventJournal} instead of the database, for deployments whose event
+ * rate Hibernate and JDBC cannot keep up with. Records survive restarts; retention is by segment
+ * count rather than by the rollup job, which only covers {@code traffic_history}.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "traffic.history.store", havingValue = "journal")
+public class JournalHistoryStore implements HistoryStore {
+
+    private final EventJournal journal;
+
+    public JournalHistoryStore(@Value("${traffic.history.journal.dir:data/traffic-journal}") String directory,
+                               @Value("${traffic.history.journal.segment-bytes:67108864}") long segmentBytes,
+                               @Value("${traffic.history.journal.max-segments:32}") int maxSegments) throws IOException {
+        this.journal = new EventJournal(Path.of(directory), segmentBytes, maxSegments);
+        log.info("History journal opened at {} with {} segments, last record {}",
+                directory, journal.segmentCount(), journal.lastId());
+    }
+
+    @Override
+    public void append(HistoryEvent event) {
+        try {
+            journal.append(event.getTimestamp(), event.getIntersectionId(), event.getEventType(),
+                    event.getPhaseId(), event.getColor(), event.getDetails());
+        } catch (RuntimeException e) {
+            // Losing an event must never stop the tick
+            log.error("Failed to journal history event: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public List<HistoryEvent> findPage(String intersectionId, String eventType, LocalDateTime from, LocalDateTime to,
+                                       LocalDateTime afterTimestamp, Long afterId, int limit) {
+        // Journal order is append order, so the id alone positions the cursor
+        return journal.scan(intersectionId, eventType, from, to, afterId != null ? afterId : Long.MAX_VALUE, limit);
+    }
+
+    @PreDestroy
+    public void close() {
+        journal.close();
+    }
+}
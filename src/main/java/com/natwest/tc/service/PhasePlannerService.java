@@ -0,0 +1,146 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.engine.ConflictMatrix;
+import com.natwest.tc.engine.PhasePlanner;
+import com.natwest.tc.engine.RuleSet;
+import com.natwest.tc.model.PhaseHeadroom;
+import com.natwest.tc.model.PhaseSetProposal;
+import com.natwest.tc.model.PhaseSetReport;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Offline phase design: proposes the fewest conflict-free phases that serve every movement of the
+ * active rule generation, and shows which configured phases could serve more movements than they do.
+ * <p>
+ * Planning runs on its own fork-join pool, never on request threads or the engine's scheduler, and
+ * is bounded by {@code traffic.planner.time-budget-ms}. Nothing it proposes is applied; phases are
+ * still defined in {@code signal_phases} and {@code phase_allowed_directions}.
+ */
+@Slf4j
+@Service
+public class PhasePlannerService {
+
+    private final TrafficCacheService cacheService;
+    private final ForkJoinPool pool;
+    private final int maxSets;
+    private final long budgetNanos;
+    private final int defaultGreenSeconds;
+    private final int defaultProposals;
+
+    public PhasePlannerService(TrafficCacheService cacheService,
+                               @Value("${traffic.planner.parallelism:0}") int parallelism,
+                               @Value("${traffic.planner.max-sets:200000}") int maxSets,
+                               @Value("${traffic.planner.time-budget-ms:5000}") long budgetMillis,
+                               @Value("${traffic.planner.green-seconds:30}") int greenSeconds,
+                               @Value("${traffic.planner.proposals:3}") int proposals) {
+        this.cacheService = cacheService;
+        this.pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        this.maxSets = maxSets;
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        this.defaultGreenSeconds = greenSeconds;
+        this.defaultProposals = proposals;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Plans against the active rule generation.
+     *
+     * @param greenSeconds green time of every proposed phase, for the cycle figures; null for the default
+     * @param proposals    most proposals to return; null for the default
+     */
+    public CompletableFuture<PhaseSetReport> plan(Integer greenSeconds, Integer proposals) {
+        int green = greenSeconds != null && greenSeconds > 0 ? greenSeconds : defaultGreenSeconds;
+        int wanted = proposals != null && proposals > 0 ? proposals : defaultProposals;
+        long generation = cacheService.getGeneration();
+        RuleSet rules = cacheService.getRuleSet();
+        return CompletableFuture.supplyAsync(() -> plan(generation, rules, green, wanted), pool);
+    }
+
+    private PhaseSetReport plan(long generation, RuleSet rules, int greenSeconds, int proposals) {
+        ConflictMatrix matrix = rules.matrix();
+        PhasePlanner planner = new PhasePlanner(matrix);
+        PhasePlanner.Result result = planner.plan(pool, proposals, maxSets, budgetNanos);
+
+        List<PhaseSetProposal> proposed = new ArrayList<>();
+        for (long[][] phases : result.covers()) {
+            proposed.add(proposal(proposed.size() + 1, planner, matrix, phases, greenSeconds));
+        }
+
+        long[] served = new long[matrix.words()];
+        List<PhaseHeadroom> existing = new ArrayList<>();
+        for (int i = 0; i < rules.phaseCount(); i++) {
+            int phaseId = rules.phaseIdAt(i);
+            long[] mask = matrix.phaseMask(phaseId);
+            for (int w = 0; w < mask.length; w++) {
+                served[w] |= mask[w];
+            }
+            boolean conflictFree = matrix.isConflictFree(mask);
+            existing.add(new PhaseHeadroom(phaseId, rules.phaseName(phaseId), ids(matrix, mask), conflictFree,
+                    conflictFree ? ids(matrix, planner.addable(mask)) : List.of()));
+        }
+        long[] unserved = planner.allMovements();
+        for (int w = 0; w < unserved.length; w++) {
+            unserved[w] &= ~served[w];
+        }
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(result.elapsedNanos());
+        log.info("Planned phases for rule generation {}: {} movements, {} maximal sets, {} phases (bound {}, optimal {}) in {} ms",
+                generation, planner.movements(), result.maximalSets(),
+                result.covers().isEmpty() ? 0 : result.covers().get(0).length, result.lowerBound(), result.optimal(), millis);
+        return new PhaseSetReport(generation, planner.movements(), matrix.conflictCount(), result.maximalSets(),
+                result.enumerationComplete(), result.optimal(), result.lowerBound(), greenSeconds, millis,
+                ids(matrix, unserved), existing, proposed);
+    }
+
+    /** Cycle figures of one ordered cover, each phase green for {@code greenSeconds} then yellow. */
+    private static PhaseSetProposal proposal(int rank, PhasePlanner planner, ConflictMatrix matrix,
+                                             long[][] phases, int greenSeconds) {
+        int slot = greenSeconds + TrafficEngineService.YELLOW_SECONDS;
+        int cycle = phases.length * slot;
+        List<List<Integer>> phaseIds = new ArrayList<>();
+        long[] covered = new long[matrix.words()];
+        long services = 0;
+        for (long[] phase : phases) {
+            phaseIds.add(ids(matrix, phase));
+            for (int w = 0; w < phase.length; w++) {
+                covered[w] |= phase[w];
+                services += Long.bitCount(phase[w]);
+            }
+        }
+        int movements = Math.max(1, planner.movements());
+        int coveredCount = Arrays.stream(covered).mapToInt(Long::bitCount).sum();
+        int longestRun = Arrays.stream(planner.longestRedRuns(phases)).max().orElse(0);
+        double servicesPerMovement = (double) services / movements;
+        return new PhaseSetProposal(rank, phaseIds, coveredCount, round((double) coveredCount / movements),
+                round(servicesPerMovement), cycle, longestRun * slot + TrafficEngineService.YELLOW_SECONDS,
+                cycle > 0 ? round(servicesPerMovement * greenSeconds / cycle) : 0);
+    }
+
+    private static List<Integer> ids(ConflictMatrix matrix, long[] mask) {
+        List<Integer> ids = new ArrayList<>();
+        for (int w = 0; w < mask.length; w++) {
+            for (long bits = mask[w]; bits != 0; bits &= bits - 1) {
+                ids.add(matrix.directionIdOf((w << 6) + Long.numberOfTrailingZeros(bits)));
+            }
+        }
+        return ids;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+}
@@ -0,0 +1,12 @@
+package com.natwest.tc.service;
+
+/**
+ * Thrown when a command reaches a standby node: only the node holding the cluster lease drives the
+ * signals.
+ */
+public class StandbyException extends RuntimeException {
+
+    public StandbyException() {
+        super("This node is a standby; send commands to the active controller");
+    }
+}
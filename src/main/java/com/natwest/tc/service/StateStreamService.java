@@ -0,0 +1,402 @@
+package com.natwest.tc.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.natwest.tc.engine.EventRing;
+import com.natwest.tc.model.StateDelta;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pushes {@link StateDelta}s to Server-Sent Events subscribers.
+ * <p>
+ * The engine only enqueues onto a lock-free ring. One dispatcher thread serialises each delta once
+ * and hands it to the subscribers watching that intersection; a small sender pool writes to the
+ * connections, so no thread is tied to a subscriber. Each subscriber buffers at most
+ * {@code buffer-size} intersections and keeps only the latest delta per intersection, so a slow
+ * consumer skips intermediate states instead of growing memory or holding up the others.
+ * <p>
+ * A client that stops reading without closing its connection eventually blocks a write. The
+ * dispatcher disconnects any subscriber whose write has run, or whose buffer has stayed full, for
+ * longer than {@code write-timeout-ms}, and lends the pool a thread for as long as that write stays
+ * stuck, so the other subscribers always have {@code sender-threads} threads writing to them.
+ */
+@Slf4j
+@Service
+public class StateStreamService {
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long STALL_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ObjectMapper objectMapper;
+    private final EventRing<StateDelta> inbox;
+    private final int bufferSize;
+    private final int maxSubscribers;
+    private final int senderThreads;
+    private final long timeoutMs;
+    private final long heartbeatNanos;
+    private final long writeTimeoutNanos;
+
+    private final Set<Subscriber> all = ConcurrentHashMap.newKeySet();
+    private final Map<String, Set<Subscriber>> byIntersection = new ConcurrentHashMap<>();
+    private final Set<Subscriber> everything = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder stalled = new LongAdder();
+
+    private volatile boolean running;
+    private Thread dispatcher;
+    private ThreadPoolExecutor senders;
+    // Sender threads stuck in a write to a subscriber that has already been disconnected
+    private int stuckSenders;
+
+    public StateStreamService(ObjectMapper objectMapper,
+                              @Value("${traffic.stream.inbox-capacity:65536}") int inboxCapacity,
+                              @Value("${traffic.stream.buffer-size:256}") int bufferSize,
+                              @Value("${traffic.stream.max-subscribers:10000}") int maxSubscribers,
+                              @Value("${traffic.stream.sender-threads:4}") int senderThreads,
+                              @Value("${traffic.stream.timeout-ms:1800000}") long timeoutMs,
+                              @Value("${traffic.stream.heartbeat-ms:15000}") long heartbeatMs,
+                              @Value("${traffic.stream.write-timeout-ms:5000}") long writeTimeoutMs) {
+        this.objectMapper = objectMapper;
+        this.inbox = new EventRing<>(inboxCapacity);
+        this.bufferSize = Math.max(1, bufferSize);
+        this.maxSubscribers = maxSubscribers;
+        this.senderThreads = Math.max(1, senderThreads);
+        this.timeoutMs = timeoutMs;
+        this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMs);
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMs);
+    }
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        senders = new ThreadPoolExecutor(senderThreads, senderThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "state-stream-sender-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        dispatcher = new Thread(this::dispatchLoop, "state-stream");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        if (dispatcher != null) {
+            LockSupport.unpark(dispatcher);
+            dispatcher.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        if (senders != null) {
+            senders.shutdownNow();
+        }
+        all.forEach(subscriber -> subscriber.emitter.complete());
+    }
+
+    /** Called by the engine on every transition. Free when nobody is listening; never blocks. */
+    public void publish(StateDelta delta) {
+        if (all.isEmpty()) {
+            return;
+        }
+        if (inbox.offer(delta)) {
+            published.increment();
+        } else {
+            dropped.increment();
+        }
+    }
+
+    public boolean hasCapacity() {
+        return all.size() < maxSubscribers;
+    }
+
+    /**
+     * Opens a stream of deltas for one intersection, or for all of them when the id is null.
+     * {@code initial}, if given, is sent first so the subscriber starts from the current state.
+     */
+    public SseEmitter subscribe(String intersectionId, StateDelta initial) {
+        return subscribe(intersectionId, initial, new SseEmitter(timeoutMs));
+    }
+
+    SseEmitter subscribe(String intersectionId, StateDelta initial, SseEmitter emitter) {
+        Subscriber subscriber = new Subscriber(intersectionId, emitter);
+        emitter.onCompletion(() -> remove(subscriber));
+        emitter.onTimeout(() -> remove(subscriber));
+        emitter.onError(e -> remove(subscriber));
+        all.add(subscriber);
+        if (intersectionId == null) {
+            everything.add(subscriber);
+        } else {
+            byIntersection.computeIfAbsent(intersectionId, k -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        }
+        if (initial != null) {
+            subscriber.offer(initial.getIntersectionId(), toJson(initial));
+            schedule(subscriber);
+        }
+        return emitter;
+    }
+
+    private void remove(Subscriber subscriber) {
+        all.remove(subscriber);
+        if (subscriber.intersectionId == null) {
+            everything.remove(subscriber);
+        } else {
+            Set<Subscriber> watching = byIntersection.get(subscriber.intersectionId);
+            if (watching != null) {
+                watching.remove(subscriber);
+            }
+        }
+    }
+
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("subscribers", (long) all.size());
+        stats.put("published", published.sum());
+        stats.put("delivered", delivered.sum());
+        stats.put("coalesced", coalesced.sum());
+        stats.put("dropped", dropped.sum());
+        stats.put("stalled", stalled.sum());
+        return stats;
+    }
+
+    // --- Dispatch ---
+
+    private void dispatchLoop() {
+        List<StateDelta> batch = new ArrayList<>(1024);
+        Set<Subscriber> touched = new HashSet<>();
+        long lastHeartbeat = System.nanoTime();
+        long lastStallCheck = lastHeartbeat;
+        while (running) {
+            if (System.nanoTime() - lastStallCheck >= STALL_CHECK_NANOS) {
+                disconnectStalled(System.nanoTime());
+                lastStallCheck = System.nanoTime();
+            }
+            if (inbox.drainTo(batch, 1024) == 0) {
+                if (System.nanoTime() - lastHeartbeat >= heartbeatNanos) {
+                    all.forEach(subscriber -> {
+                        subscriber.heartbeat = true;
+                        schedule(subscriber);
+                    });
+                    lastHeartbeat = System.nanoTime();
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            dispatch(batch, touched);
+            batch.clear();
+            touched.clear();
+        }
+    }
+
+    /** Serialises each delta once and buffers it for every interested subscriber. */
+    void dispatch(List<StateDelta> batch, Set<Subscriber> touched) {
+        for (StateDelta delta : batch) {
+            String json = toJson(delta);
+            Set<Subscriber> watching = byIntersection.get(delta.getIntersectionId());
+            if (watching != null) {
+                for (Subscriber subscriber : watching) {
+                    subscriber.offer(delta.getIntersectionId(), json);
+                    touched.add(subscriber);
+                }
+            }
+            for (Subscriber subscriber : everything) {
+                subscriber.offer(delta.getIntersectionId(), json);
+                touched.add(subscriber);
+            }
+        }
+        touched.forEach(this::schedule);
+    }
+
+    private void schedule(Subscriber subscriber) {
+        if (subscriber.scheduled.compareAndSet(false, true)) {
+            senders.execute(() -> send(subscriber));
+        }
+    }
+
+    private void send(Subscriber subscriber) {
+        if (!subscriber.startSending()) {
+            return;
+        }
+        try {
+            List<String> frames = subscriber.take();
+            if (subscriber.heartbeat) {
+                subscriber.heartbeat = false;
+                subscriber.emitter.send(SseEmitter.event().comment("heartbeat"));
+            }
+            for (String json : frames) {
+                subscriber.emitter.send(SseEmitter.event().name("state").data(json, MediaType.APPLICATION_JSON));
+            }
+            delivered.add(frames.size());
+        } catch (IOException | IllegalStateException e) {
+            // The client went away; the emitter callbacks may not fire for a broken pipe
+            remove(subscriber);
+            subscriber.emitter.completeWithError(e);
+            return;
+        } finally {
+            if (subscriber.stopSending()) {
+                resizeSenders(-1);
+            }
+            subscriber.scheduled.set(false);
+        }
+        // Deltas that arrived while this send was running
+        if (subscriber.hasPending()) {
+            schedule(subscriber);
+        }
+    }
+
+    /**
+     * Disconnects every subscriber whose write has been running, or whose buffer has been full, for
+     * longer than the write timeout. A sender thread still stuck in the write is replaced until it
+     * returns.
+     */
+    void disconnectStalled(long now) {
+        for (Subscriber subscriber : all) {
+            long since = subscriber.stalledSince();
+            if (since != 0 && now - since > writeTimeoutNanos) {
+                Thread stuck = subscriber.evict();
+                remove(subscriber);
+                stalled.increment();
+                log.warn("Disconnected a state stream subscriber that stopped reading");
+                if (stuck != null) {
+                    resizeSenders(1);
+                    stuck.interrupt();
+                }
+                subscriber.emitter.completeWithError(new IOException("Write stalled"));
+            }
+        }
+    }
+
+    private synchronized void resizeSenders(int change) {
+        stuckSenders += change;
+        int size = senderThreads + stuckSenders;
+        // The maximum may never fall below the core size
+        if (change > 0) {
+            senders.setMaximumPoolSize(size);
+            senders.setCorePoolSize(size);
+        } else {
+            senders.setCorePoolSize(size);
+            senders.setMaximumPoolSize(size);
+        }
+    }
+
+    private String toJson(StateDelta delta) {
+        try {
+            return objectMapper.writeValueAsString(delta);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot serialise state delta", e);
+        }
+    }
+
+    /** One connection and its bounded, coalescing buffer: latest JSON per intersection, oldest first. */
+    final class Subscriber {
+
+        private final String intersectionId;
+        private final SseEmitter emitter;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final LinkedHashMap<String, String> pending = new LinkedHashMap<>();
+        private volatile boolean heartbeat;
+        // Guarded by this: when the running write began, or the buffer first overflowed, and by whom
+        private Thread sender;
+        private long sendStarted;
+        private long fullSince;
+        private boolean evicted;
+        private boolean replaced;
+
+        Subscriber(String intersectionId, SseEmitter emitter) {
+            this.intersectionId = intersectionId;
+            this.emitter = emitter;
+        }
+
+        synchronized void offer(String intersection, String json) {
+            if (pending.replace(intersection, json) != null) {
+                coalesced.increment();
+                return;
+            }
+            if (pending.size() >= bufferSize) {
+                Iterator<String> eldest = pending.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+                dropped.increment();
+                if (fullSince == 0) {
+                    fullSince = System.nanoTime();
+                }
+            }
+            pending.put(intersection, json);
+        }
+
+        synchronized List<String> take() {
+            List<String> frames = new ArrayList<>(pending.values());
+            pending.clear();
+            fullSince = 0;
+            return frames;
+        }
+
+        /** Marks a write as running on the calling thread; false once the subscriber is evicted. */
+        synchronized boolean startSending() {
+            if (evicted) {
+                return false;
+            }
+            sender = Thread.currentThread();
+            sendStarted = System.nanoTime();
+            return true;
+        }
+
+        /** Ends the running write; true if its thread had been replaced while it was stuck. */
+        synchronized boolean stopSending() {
+            sender = null;
+            boolean wasReplaced = replaced;
+            replaced = false;
+            return wasReplaced;
+        }
+
+        /** When this subscriber started falling behind, or 0 if it is keeping up. */
+        synchronized long stalledSince() {
+            if (evicted) {
+                return 0;
+            }
+            if (sender != null && (fullSince == 0 || sendStarted - fullSince < 0)) {
+                return sendStarted;
+            }
+            return fullSince;
+        }
+
+        /** Stops all further writes; returns the thread stuck in a write, which the caller replaces. */
+        synchronized Thread evict() {
+            evicted = true;
+            pending.clear();
+            replaced = sender != null;
+            return sender;
+        }
+
+        synchronized boolean hasPending() {
+            return !pending.isEmpty();
+        }
+    }
+}
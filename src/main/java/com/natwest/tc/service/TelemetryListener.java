@@ -0,0 +1,338 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.engine.DirectBufferPool;
+import com.natwest.tc.engine.TelemetryFrame;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Receives binary detector and cabinet frames ({@link TelemetryFrame}) over TCP and UDP and feeds
+ * them to the engine, bypassing HTTP and JSON.
+ * <p>
+ * One selector thread serves the listening socket, every TCP connection and the UDP socket. Each
+ * connection reads into a direct buffer leased from a fixed pool for as long as it is open; a
+ * connection that arrives when the pool is empty is refused. Frames are decoded in place with
+ * absolute reads and handed to {@link TrafficEngineService#recordDetection}, so a frame costs no
+ * object allocation from socket to detector counter. A TCP frame split across reads waits in the
+ * buffer for its remainder; a frame with the wrong magic or version closes the connection, since
+ * the stream can no longer be framed. A datagram may carry any number of whole frames.
+ * <p>
+ * Enabled by {@code traffic.telemetry.enabled=true}.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "traffic.telemetry.enabled", havingValue = "true")
+public class TelemetryListener {
+
+    private static final long SELECT_TIMEOUT_MS = 100;
+    private static final int UNRESOLVED = -1;
+
+    private final TrafficEngineService engine;
+    private final int tcpPort;
+    private final int udpPort;
+    private final DirectBufferPool pool;
+    // Intersection id of each code frames carry, and the engine slot it resolved to
+    private final String[] intersections;
+    private final int[] slots;
+    private final int[] cabinetStatus;
+
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder heartbeats = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+
+    private TrafficMetrics metrics = TrafficMetrics.NOOP;
+    private volatile LongConsumer decodeListener = nanos -> { };
+
+    private final Consumer<SelectionKey> onReady = this::onReady;
+    private Selector selector;
+    private ServerSocketChannel server;
+    private DatagramChannel datagrams;
+    private ByteBuffer datagramBuffer;
+    private volatile boolean running;
+    private Thread listenerThread;
+
+    public TelemetryListener(TrafficEngineService engine,
+                             @Value("${traffic.telemetry.tcp-port:7700}") int tcpPort,
+                             @Value("${traffic.telemetry.udp-port:7701}") int udpPort,
+                             @Value("${traffic.telemetry.buffers:256}") int buffers,
+                             @Value("${traffic.telemetry.buffer-bytes:65536}") int bufferBytes,
+                             @Value("${traffic.telemetry.intersections:" + TrafficEngineService.DEFAULT_INTERSECTION + "}") String[] intersections) {
+        this.engine = engine;
+        this.tcpPort = tcpPort;
+        this.udpPort = udpPort;
+        // Whole frames only, so a full buffer always has room to make progress
+        int frameAligned = Math.max(TelemetryFrame.SIZE, bufferBytes / TelemetryFrame.SIZE * TelemetryFrame.SIZE);
+        this.pool = new DirectBufferPool(Math.max(1, buffers), frameAligned);
+        this.intersections = intersections.clone();
+        this.slots = new int[intersections.length];
+        Arrays.fill(slots, UNRESOLVED);
+        this.cabinetStatus = new int[intersections.length];
+    }
+
+    @Autowired(required = false)
+    public void setMetrics(TrafficMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Receives the decode time of every socket read that carried frames; one listener at a time. */
+    public void setDecodeListener(LongConsumer decodeListener) {
+        this.decodeListener = decodeListener != null ? decodeListener : nanos -> { };
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        selector = Selector.open();
+        if (tcpPort >= 0) {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(tcpPort));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        if (udpPort >= 0) {
+            datagramBuffer = pool.acquire();
+            datagrams = DatagramChannel.open();
+            datagrams.setOption(StandardSocketOptions.SO_RCVBUF, 4 * pool.bufferBytes());
+            datagrams.bind(new InetSocketAddress(udpPort));
+            datagrams.configureBlocking(false);
+            datagrams.register(selector, SelectionKey.OP_READ);
+        }
+        running = true;
+        listenerThread = new Thread(this::selectLoop, "telemetry-listener");
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+        log.info("Telemetry listener started. TCP: {}, UDP: {}, Buffers: {} x {} bytes, Intersections: {}",
+                getTcpPort(), getUdpPort(), pool.buffers(), pool.bufferBytes(), intersections.length);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (listenerThread != null) {
+            listenerThread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    /** The bound TCP port (useful when configured as 0), or -1 if TCP is disabled. */
+    public int getTcpPort() {
+        return server != null ? server.socket().getLocalPort() : -1;
+    }
+
+    /** The bound UDP port, or -1 if UDP is disabled. */
+    public int getUdpPort() {
+        return datagrams != null ? datagrams.socket().getLocalPort() : -1;
+    }
+
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("frames", frames.sum());
+        stats.put("heartbeats", heartbeats.sum());
+        stats.put("malformed", malformed.sum());
+        stats.put("bytes", bytes.sum());
+        stats.put("connections", connections.sum());
+        stats.put("refused", refused.sum());
+        stats.put("freeBuffers", (long) pool.available());
+        return stats;
+    }
+
+    private void selectLoop() {
+        try (Selector ignored = selector) {
+            while (running) {
+                selector.select(onReady, SELECT_TIMEOUT_MS);
+            }
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Telemetry listener stopped: {}", e.getMessage(), e);
+        }
+    }
+
+    private void onReady(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept();
+        } else if (key.channel() == datagrams) {
+            receive();
+        } else if (key.isReadable()) {
+            read(key);
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            channel = server.accept();
+        } catch (IOException e) {
+            log.warn("Telemetry accept failed: {}", e.getMessage());
+            return;
+        }
+        if (channel == null) {
+            return;
+        }
+        ByteBuffer buffer = pool.acquire();
+        if (buffer == null) {
+            refused.increment();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Nothing was received on it
+            }
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.register(selector, SelectionKey.OP_READ, buffer);
+            connections.increment();
+        } catch (IOException e) {
+            pool.release(buffer);
+            log.warn("Telemetry connection setup failed: {}", e.getMessage());
+        }
+    }
+
+    private void read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer buffer = (ByteBuffer) key.attachment();
+        int read;
+        try {
+            read = channel.read(buffer);
+        } catch (IOException e) {
+            closeQuietly(key);
+            return;
+        }
+        if (read < 0) {
+            closeQuietly(key);
+            return;
+        }
+        if (read == 0) {
+            return;
+        }
+        bytes.add(read);
+        long started = System.nanoTime();
+        buffer.flip();
+        boolean framed = decode(buffer);
+        // Keeps a trailing partial frame for the next read
+        buffer.compact();
+        recordDecode(started);
+        if (!framed) {
+            closeQuietly(key);
+        }
+    }
+
+    private void receive() {
+        try {
+            while (datagrams.receive(datagramBuffer.clear()) != null) {
+                bytes.add(datagramBuffer.position());
+                long started = System.nanoTime();
+                datagramBuffer.flip();
+                // decode counts a frame with a bad magic or version itself; the rest of the datagram goes with it
+                if (decode(datagramBuffer) && datagramBuffer.hasRemaining()) {
+                    // A datagram is whatever one packet held; a cut-off frame is dropped, not carried over
+                    malformed.increment();
+                }
+                recordDecode(started);
+            }
+        } catch (IOException e) {
+            log.warn("Telemetry receive failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Hands every whole frame between the buffer's position and limit to the engine, leaving the
+     * position after the last one.
+     *
+     * @return false at the first frame with the wrong magic or version
+     */
+    private boolean decode(ByteBuffer buffer) {
+        int offset = buffer.position();
+        int end = buffer.limit() - TelemetryFrame.SIZE;
+        for (; offset <= end; offset += TelemetryFrame.SIZE) {
+            if (!TelemetryFrame.isValid(buffer, offset)) {
+                buffer.position(offset);
+                malformed.increment();
+                return false;
+            }
+            frames.increment();
+            int code = TelemetryFrame.intersection(buffer, offset);
+            switch (TelemetryFrame.type(buffer, offset)) {
+                case TelemetryFrame.DETECTOR -> engine.recordDetection(slotOf(code),
+                        TelemetryFrame.direction(buffer, offset), TelemetryFrame.value(buffer, offset));
+                case TelemetryFrame.HEARTBEAT -> heartbeat(code, TelemetryFrame.value(buffer, offset));
+                default -> malformed.increment();
+            }
+        }
+        buffer.position(offset);
+        return true;
+    }
+
+    private int slotOf(int code) {
+        if (code >= slots.length) {
+            return UNRESOLVED;
+        }
+        int slot = slots[code];
+        if (slot == UNRESOLVED) {
+            // The intersection may only be registered later, so misses are looked up again next time
+            slot = engine.slotOf(intersections[code]);
+            slots[code] = slot;
+        }
+        return slot;
+    }
+
+    private void heartbeat(int code, int status) {
+        heartbeats.increment();
+        if (code < cabinetStatus.length && cabinetStatus[code] != status) {
+            log.info("Cabinet of {} reports status flags {} (were {})", intersections[code],
+                    Integer.toBinaryString(status), Integer.toBinaryString(cabinetStatus[code]));
+            cabinetStatus[code] = status;
+        }
+    }
+
+    private void recordDecode(long started) {
+        long nanos = System.nanoTime() - started;
+        metrics.recordTelemetryDecode(nanos);
+        decodeListener.accept(nanos);
+    }
+
+    private void closeQuietly(SelectionKey key) {
+        key.cancel();
+        if (key.attachment() instanceof ByteBuffer buffer) {
+            key.attach(null);
+            pool.release(buffer);
+        }
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // Already gone
+        }
+    }
+}
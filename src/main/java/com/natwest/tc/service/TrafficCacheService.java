@@ -1,87 +1,428 @@
 package com.natwest.tc.service;
 
+import com.natwest.tc.engine.ConflictMatrix;
+import com.natwest.tc.engine.RuleSet;
 import com.natwest.tc.entity.Direction;
-import com.natwest.tc.entity.DirectionConflict;
 import com.natwest.tc.entity.SignalPhase;
-import com.natwest.tc.repository.DirectionConflictRepository;
-import com.natwest.tc.repository.DirectionRepository;
-import com.natwest.tc.repository.PhaseAllowedDirectionRepository;
-import com.natwest.tc.repository.SignalPhaseRepository;
+import com.natwest.tc.model.RuleGeneration;
+import com.natwest.tc.model.RuleValidationReport;
+import com.natwest.tc.repository.RuleProjectionRepository;
 import jakarta.annotation.PostConstruct;
-import lombok.RequiredArgsConstructor;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.util.List;
-import java.util.Map;
-import java.util.Objects;
-import java.util.function.Function;
-
-import static java.util.stream.Collectors.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
+/**
+ * In-memory copy of the rule tables, held as one primitive {@link RuleSet}.
+ * <p>
+ * Rules are read through flat projections. A reload first asks the database for a checksum per
+ * table (and per phase / per direction for the two link tables), then re-reads only the groups
+ * whose checksum moved; unchanged groups are copied out of the current rule set. When nothing
+ * changed the rule set, and with it the compiled {@link ConflictMatrix}, is kept as is, so running
+ * plans are not recompiled either.
+ * <p>
+ * Every published rule set is a numbered generation, built completely before it is swapped in
+ * through one volatile reference, so readers never lock and never see phases from one generation
+ * with conflicts from another. A candidate can also be {@linkplain #stage() staged}: loaded and
+ * checked phase by phase in parallel, then {@linkplain #promote promoted}. The last
+ * {@code traffic.rules.history-size} generations are kept for {@linkplain #rollback() rollback}.
+ */
 @Slf4j
 @Service
-@RequiredArgsConstructor
 public class TrafficCacheService {
 
-    private final SignalPhaseRepository phaseRepository;
-    private final DirectionRepository directionRepository;
-    private final DirectionConflictRepository conflictRepository;
-    private final PhaseAllowedDirectionRepository phaseDirectionRepository;
+    private static final int[] NO_IDS = new int[0];
+    private static final int STAGE_ATTEMPTS = 3;
+
+    private final RuleProjectionRepository ruleRepository;
+    private final int historySize;
+    // Reads the rule tables side by side for stage(): a pool of its own, so the blocking-call threads a
+    // staging request already occupies never wait on each other
+    private final AtomicInteger loaderIndex = new AtomicInteger();
+    private final ExecutorService loader = Executors.newFixedThreadPool(4, runnable -> {
+        Thread thread = new Thread(runnable, "rules-loader-" + loaderIndex.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // The published generation; the only field the engine reads
+    private volatile Generation active = new Generation(0, RuleSet.EMPTY, null, LocalDateTime.now(), "empty");
+
+    // Guarded by this
+    private final Deque<Generation> previous = new ArrayDeque<>();
+    private Generation staged;
+    private RuleValidationReport stagedReport;
+    private long lastGeneration;
 
-    // Immutable Caches
-    private Map<Integer, SignalPhase> phaseCache = Map.of();
-    private Map<Integer, Direction> directionCache = Map.of();
-    private Map<Integer, List<Direction>> phaseDirectionCache = Map.of();
-    private Map<Integer, List<DirectionConflict>> conflictCache = Map.of();
+    private TrafficMetrics metrics = TrafficMetrics.NOOP;
+
+    public TrafficCacheService(RuleProjectionRepository ruleRepository,
+                               @Value("${traffic.rules.history-size:5}") int historySize) {
+        this.ruleRepository = ruleRepository;
+        this.historySize = Math.max(1, historySize);
+    }
+
+    /** Database checksums a generation was loaded at; a reload diffs against them. */
+    private record Checksums(long phases, long directions, Map<Integer, Long> phaseGroups,
+                             Map<Integer, Long> conflictGroups) {
+    }
+
+    private record Generation(long id, RuleSet rules, Checksums checksums, LocalDateTime loadedAt, String source) {
+    }
+
+    @Autowired(required = false)
+    public void setMetrics(TrafficMetrics metrics) {
+        this.metrics = metrics;
+    }
 
     @PostConstruct
     public void init() {
         reloadCache();
     }
 
-    public void reloadCache() {
+    @PreDestroy
+    public void shutdown() {
+        loader.shutdown();
+    }
+
+    public synchronized void reloadCache() {
         log.info("Starting traffic rules cache reload...");
+        long started = System.nanoTime();
+        Generation current = active;
+        RuleSet rules = current.rules();
+        Checksums cached = current.checksums();
+        boolean loaded = cached != null;
+
+        long phases = ruleRepository.phaseChecksum();
+        boolean phasesChanged = !loaded || phases != cached.phases();
+        List<SignalPhase> phaseRows = phasesChanged ? ruleRepository.findPhases() : null;
+
+        long directions = ruleRepository.directionChecksum();
+        boolean directionsChanged = !loaded || directions != cached.directions();
+        List<Direction> directionRows = directionsChanged ? ruleRepository.findDirections() : null;
+
+        Map<Integer, Long> phaseGroups = ruleRepository.phaseDirectionChecksums();
+        Set<Integer> changedPhases = changedKeys(loaded ? cached.phaseGroups() : Map.of(), phaseGroups);
+        Map<Integer, int[]> reloadedPhases = changedPhases.isEmpty()
+                ? Map.of() : ruleRepository.findPhaseDirectionIds(changedPhases);
+
+        Map<Integer, Long> conflictGroups = ruleRepository.conflictChecksums();
+        Set<Integer> changedDirections = changedKeys(loaded ? cached.conflictGroups() : Map.of(), conflictGroups);
+        Map<Integer, int[]> reloadedConflicts = changedDirections.isEmpty()
+                ? Map.of() : ruleRepository.findConflictIds(changedDirections);
+
+        // A new rule set (and matrix) instance is what tells the engine to recompile its plans
+        boolean changed = phasesChanged || directionsChanged || !changedPhases.isEmpty() || !changedDirections.isEmpty();
+        if (changed) {
+            RuleSet.Builder builder = RuleSet.builder();
+            if (phasesChanged) {
+                addPhases(builder, phaseRows);
+            } else {
+                for (int i = 0; i < rules.phaseCount(); i++) {
+                    int phaseId = rules.phaseIdAt(i);
+                    builder.phase(phaseId, rules.phaseName(phaseId), rules.greenSeconds(phaseId),
+                            rules.minGreenSeconds(phaseId), rules.maxGreenSeconds(phaseId));
+                }
+            }
+            if (directionsChanged) {
+                addDirections(builder, directionRows);
+            } else {
+                for (int i = 0; i < rules.directionCount(); i++) {
+                    int directionId = rules.directionIdAt(i);
+                    builder.direction(directionId, rules.directionName(directionId));
+                }
+            }
+            phaseGroups.keySet().forEach(phaseId -> {
+                int[] ids = changedPhases.contains(phaseId)
+                        ? reloadedPhases.getOrDefault(phaseId, NO_IDS) : rules.allowedDirectionIds(phaseId);
+                for (int directionId : ids) {
+                    builder.allow(phaseId, directionId);
+                }
+            });
+            conflictGroups.keySet().forEach(directionId -> {
+                int[] ids = changedDirections.contains(directionId)
+                        ? reloadedConflicts.getOrDefault(directionId, NO_IDS) : rules.conflictIds(directionId);
+                for (int other : ids) {
+                    builder.conflict(directionId, other);
+                }
+            });
+            publish(new Generation(++lastGeneration, builder.build(),
+                    new Checksums(phases, directions, phaseGroups, conflictGroups), LocalDateTime.now(), "reload"));
+        }
+
+        long elapsed = System.nanoTime() - started;
+        metrics.recordReload(changed, elapsed);
+        Generation published = active;
+        RuleSet loadedRules = published.rules();
+        log.info("Cache reload complete in {} ms. Generation {}. Changed groups: {} phases, {} directions. "
+                        + "Phases: {}, Conflicts: {}, Matrix: {} directions x {} words, {} bytes ({} per rule)",
+                TimeUnit.NANOSECONDS.toMillis(elapsed), published.id(), changedPhases.size(),
+                changedDirections.size(), loadedRules.phaseCount(), loadedRules.conflictCount(),
+                loadedRules.matrix().directionCount(), loadedRules.matrix().words(), loadedRules.footprintBytes(),
+                String.format("%.1f", loadedRules.bytesPerRule()));
+    }
+
+    // --- Staging, promotion and rollback ---
+
+    /**
+     * Loads a complete candidate from the database and checks every phase for conflicting movements
+     * in parallel. The candidate replaces any earlier staged one and is not used until
+     * {@link #promote} is called.
+     * <p>
+     * The four checksums are read first, then the four tables side by side on the loader threads,
+     * then the checksums again. Only when nothing moved in between is the candidate staged: its rows
+     * then all come from the same state of the database, and the checksums it carries are never newer
+     * than its rows, so a change committed during the read is still picked up by the next reload.
+     *
+     * @throws IllegalStateException if the rules kept changing through every attempt
+     */
+    public RuleValidationReport stage() {
+        Checksums checksums = readChecksums();
+        RuleSet candidate = null;
+        for (int attempt = 1; candidate == null; attempt++) {
+            RuleSet rules = readRules(checksums);
+            Checksums after = readChecksums();
+            if (after.equals(checksums)) {
+                candidate = rules;
+            } else if (attempt == STAGE_ATTEMPTS) {
+                throw new IllegalStateException("Rules changed during each of " + STAGE_ATTEMPTS + " attempts to stage them");
+            } else {
+                log.info("Rules changed while staging; reading them again");
+                checksums = after;
+            }
+        }
+
+        synchronized (this) {
+            long id = ++lastGeneration;
+            RuleValidationReport report = validate(id, candidate);
+            staged = new Generation(id, candidate, checksums, LocalDateTime.now(), "promote");
+            stagedReport = report;
+            log.info("Staged rule generation {}: {} phases checked in {} us, {} unsafe", id,
+                    report.getPhasesChecked(), report.getValidationMicros(), report.getConflicts().size());
+            return report;
+        }
+    }
+
+    private Checksums readChecksums() {
+        CompletableFuture<Long> phases = CompletableFuture.supplyAsync(ruleRepository::phaseChecksum, loader);
+        CompletableFuture<Long> directions = CompletableFuture.supplyAsync(ruleRepository::directionChecksum, loader);
+        CompletableFuture<Map<Integer, Long>> phaseGroups =
+                CompletableFuture.supplyAsync(ruleRepository::phaseDirectionChecksums, loader);
+        CompletableFuture<Map<Integer, Long>> conflictGroups =
+                CompletableFuture.supplyAsync(ruleRepository::conflictChecksums, loader);
+        return new Checksums(phases.join(), directions.join(), phaseGroups.join(), conflictGroups.join());
+    }
+
+    /** Every row of the four tables; the link tables for the groups {@code checksums} lists. */
+    private RuleSet readRules(Checksums checksums) {
+        CompletableFuture<List<SignalPhase>> phaseRows = CompletableFuture.supplyAsync(ruleRepository::findPhases, loader);
+        CompletableFuture<List<Direction>> directionRows =
+                CompletableFuture.supplyAsync(ruleRepository::findDirections, loader);
+        CompletableFuture<Map<Integer, int[]>> allowances = CompletableFuture.supplyAsync(
+                () -> ruleRepository.findPhaseDirectionIds(checksums.phaseGroups().keySet()), loader);
+        CompletableFuture<Map<Integer, int[]>> conflicts = CompletableFuture.supplyAsync(
+                () -> ruleRepository.findConflictIds(checksums.conflictGroups().keySet()), loader);
+
+        RuleSet.Builder builder = RuleSet.builder();
+        addPhases(builder, phaseRows.join());
+        addDirections(builder, directionRows.join());
+        allowances.join().forEach((phaseId, ids) -> {
+            for (int directionId : ids) {
+                builder.allow(phaseId, directionId);
+            }
+        });
+        conflicts.join().forEach((directionId, ids) -> {
+            for (int other : ids) {
+                builder.conflict(directionId, other);
+            }
+        });
+        return builder.build();
+    }
+
+    /** Checks every phase for conflicting movements, one phase per task. */
+    private static RuleValidationReport validate(long generation, RuleSet rules) {
+        long started = System.nanoTime();
+        ConflictMatrix matrix = rules.matrix();
+        Map<Integer, List<String>> unsafe = new TreeMap<>();
+        IntStream.range(0, rules.phaseCount()).parallel()
+                .map(rules::phaseIdAt)
+                .filter(phaseId -> !matrix.isPhaseConflictFree(phaseId))
+                .mapToObj(phaseId -> Map.entry(phaseId, matrix.conflictingPairs(matrix.phaseMask(phaseId)).stream()
+                        .map(pair -> pair[0] + " vs " + pair[1])
+                        .toList()))
+                .toList()
+                .forEach(entry -> unsafe.put(entry.getKey(), entry.getValue()));
+        return new RuleValidationReport(generation, unsafe.isEmpty(), rules.phaseCount(), unsafe,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+    }
 
-        this.phaseCache = phaseRepository.findAll().stream()
-                .collect(collectingAndThen(
-                        toMap(SignalPhase::getPhaseId, Function.identity()),
-                        Map::copyOf
-                ));
+    public synchronized RuleValidationReport getStagedReport() {
+        return stagedReport;
+    }
 
-        this.directionCache = directionRepository.findAll().stream()
-                .collect(collectingAndThen(
-                        toMap(Direction::getDirectionId, Function.identity()),
-                        Map::copyOf
-                ));
+    /**
+     * Publishes the staged candidate. {@code generation} must name it, so a candidate staged by
+     * someone else in the meantime is never promoted by mistake. A candidate that failed validation
+     * is rejected unless {@code force} is set.
+     */
+    public synchronized RuleGeneration promote(long generation, boolean force) {
+        if (staged == null || staged.id() != generation) {
+            throw new IllegalArgumentException("Rule generation " + generation + " is not staged");
+        }
+        if (!stagedReport.isValid() && !force) {
+            throw new UnsafeRulesException(stagedReport);
+        }
+        publish(staged);
+        staged = null;
+        stagedReport = null;
+        log.info("Promoted rule generation {}", generation);
+        return describe(active, true);
+    }
 
-        this.phaseDirectionCache = phaseDirectionRepository.findAll().stream()
-                .collect(groupingBy(
-                        pd -> pd.getPhase().getPhaseId(),
-                        collectingAndThen(
-                                mapping(pd -> directionCache.get(pd.getDirection().getDirectionId()), toList()),
-                                list -> List.copyOf(list.stream().filter(Objects::nonNull).toList())
-                        )
-                ));
+    /**
+     * Swaps the previous generation back in. The rolled-back generation is discarded; the next
+     * {@link #reloadCache()} diffs the database against the restored generation's checksums.
+     */
+    public synchronized RuleGeneration rollback() {
+        Generation restored = previous.pollFirst();
+        if (restored == null) {
+            throw new IllegalArgumentException("No earlier rule generation to roll back to");
+        }
+        long from = active.id();
+        active = new Generation(restored.id(), restored.rules(), restored.checksums(), restored.loadedAt(), "rollback");
+        log.warn("Rolled rules back from generation {} to {}", from, restored.id());
+        return describe(active, true);
+    }
 
-        this.conflictCache = conflictRepository.findAll().stream()
-                .collect(groupingBy(
-                        c -> c.getDirection().getDirectionId(),
-                        collectingAndThen(toList(), List::copyOf)
-                ));
+    /** The active generation first, then the retained ones, newest first. */
+    public synchronized List<RuleGeneration> getGenerations() {
+        List<RuleGeneration> generations = new ArrayList<>(previous.size() + 1);
+        generations.add(describe(active, true));
+        previous.forEach(generation -> generations.add(describe(generation, false)));
+        return generations;
+    }
 
-        log.info("Cache reload complete. Phases: {}, Conflicts: {}", phaseCache.size(), conflictCache.size());
+    private void publish(Generation next) {
+        Generation current = active;
+        if (current.checksums() != null) {
+            previous.addFirst(current);
+            while (previous.size() > historySize) {
+                previous.removeLast();
+            }
+        }
+        active = next;
     }
 
+    private static RuleGeneration describe(Generation generation, boolean isActive) {
+        RuleSet rules = generation.rules();
+        return new RuleGeneration(generation.id(), generation.source(), generation.loadedAt(), rules.phaseCount(),
+                rules.directionCount(), rules.allowanceCount(), rules.conflictCount(), isActive);
+    }
+
+    // --- Helpers ---
+
+    private static void addPhases(RuleSet.Builder builder, List<SignalPhase> phases) {
+        phases.forEach(phase -> builder.phase(phase.getPhaseId(), phase.getPhaseName(),
+                orNoDuration(phase.getDurationSeconds()), orNoDuration(phase.getMinGreenSeconds()),
+                orNoDuration(phase.getMaxGreenSeconds())));
+    }
+
+    private static int orNoDuration(Integer seconds) {
+        return seconds != null ? seconds : RuleSet.NO_DURATION;
+    }
+
+    private static void addDirections(RuleSet.Builder builder, List<Direction> directions) {
+        directions.forEach(direction -> builder.direction(direction.getDirectionId(), direction.getDirectionName()));
+    }
+
+    /** Keys that were added, removed or whose checksum differs. */
+    private static Set<Integer> changedKeys(Map<Integer, Long> cached, Map<Integer, Long> current) {
+        Set<Integer> changed = new HashSet<>();
+        current.forEach((key, checksum) -> {
+            if (!checksum.equals(cached.get(key))) {
+                changed.add(key);
+            }
+        });
+        cached.keySet().stream().filter(key -> !current.containsKey(key)).forEach(changed::add);
+        return changed;
+    }
+
+    // --- Lock-free reads of the active generation ---
+
+    public RuleSet getRuleSet() {
+        return active.rules();
+    }
+
+    public long getGeneration() {
+        return active.id();
+    }
+
+    public Map<String, Object> getStats() {
+        Generation generation = active;
+        RuleSet rules = generation.rules();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("generation", generation.id());
+        stats.put("phases", rules.phaseCount());
+        stats.put("directions", rules.directionCount());
+        stats.put("allowances", rules.allowanceCount());
+        stats.put("conflicts", rules.conflictCount());
+        stats.put("footprintBytes", rules.footprintBytes());
+        stats.put("bytesPerRule", Math.round(rules.bytesPerRule() * 10) / 10.0);
+        return stats;
+    }
+
+    /** Detached view of a cached phase (id, name and durations), or null if the phase is unknown. */
     public SignalPhase getPhase(Integer phaseId) {
-        return phaseCache.get(phaseId);
+        RuleSet rules = active.rules();
+        if (phaseId == null || !rules.hasPhase(phaseId)) {
+            return null;
+        }
+        SignalPhase phase = new SignalPhase();
+        phase.setPhaseId(phaseId);
+        phase.setPhaseName(rules.phaseName(phaseId));
+        int greenSeconds = rules.greenSeconds(phaseId);
+        phase.setDurationSeconds(greenSeconds != RuleSet.NO_DURATION ? greenSeconds : null);
+        int minGreenSeconds = rules.minGreenSeconds(phaseId);
+        phase.setMinGreenSeconds(minGreenSeconds != RuleSet.NO_DURATION ? minGreenSeconds : null);
+        int maxGreenSeconds = rules.maxGreenSeconds(phaseId);
+        phase.setMaxGreenSeconds(maxGreenSeconds != RuleSet.NO_DURATION ? maxGreenSeconds : null);
+        return phase;
+    }
+
+    /** Ids of the directions a phase turns green; the allocation-light form used by the engine. */
+    public int[] getAllowedDirectionIds(int phaseId) {
+        return active.rules().allowedDirectionIds(phaseId);
     }
 
     public List<Direction> getAllowedDirectionsForPhase(Integer phaseId) {
-        return phaseDirectionCache.getOrDefault(phaseId, List.of());
+        RuleSet rules = active.rules();
+        return Arrays.stream(rules.allowedDirectionIds(phaseId))
+                .mapToObj(directionId -> {
+                    Direction direction = new Direction();
+                    direction.setDirectionId(directionId);
+                    direction.setDirectionName(rules.directionName(directionId));
+                    return direction;
+                })
+                .toList();
+    }
+
+    public ConflictMatrix getConflictMatrix() {
+        return active.rules().matrix();
     }
 
-    public List<DirectionConflict> getConflictsForDirection(Integer directionId) {
-        return conflictCache.getOrDefault(directionId, List.of());
+    /** Ids of the directions the given direction conflicts with, as stored (one way). */
+    public List<Integer> getConflictsForDirection(Integer directionId) {
+        return Arrays.stream(active.rules().conflictIds(directionId)).boxed().toList();
     }
-}
\ No newline at end of file
+}
@@ -1,24 +1,50 @@
 package com.natwest.tc.service;
 
-import com.natwest.tc.entity.Direction;
-import com.natwest.tc.entity.DirectionConflict;
+import com.natwest.tc.engine.ConflictMatrix;
+import com.natwest.tc.engine.DeadlineWheel;
+import com.natwest.tc.engine.DetectorCounters;
+import com.natwest.tc.engine.EngineCheckpoint;
+import com.natwest.tc.engine.IntersectionTable;
+import com.natwest.tc.engine.PhasePlan;
+import com.natwest.tc.engine.ReplicationFrame;
+import com.natwest.tc.engine.RuleSet;
+import com.natwest.tc.engine.StateSnapshot;
+import com.natwest.tc.engine.TickListener;
+import com.natwest.tc.engine.VirtualClock;
 import com.natwest.tc.entity.HistoryEvent;
 import com.natwest.tc.entity.SignalPhase;
+import com.natwest.tc.model.ClockAdvance;
+import com.natwest.tc.model.DetectorEvent;
+import com.natwest.tc.model.HistoryPage;
+import com.natwest.tc.model.HistoryQuery;
 import com.natwest.tc.model.IntersectionState;
 import com.natwest.tc.model.LightColor;
+import com.natwest.tc.model.PhaseCheck;
+import com.natwest.tc.model.PhasePlanReport;
+import com.natwest.tc.model.StateDelta;
 import com.natwest.tc.model.TrafficHistory;
-import com.natwest.tc.repository.HistoryRepository;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
 
+import static com.natwest.tc.engine.IntersectionTable.*;
 import static java.util.stream.Collectors.toList;
 
 @Slf4j
@@ -26,173 +52,1184 @@ import static java.util.stream.Collectors.toList;
 @RequiredArgsConstructor
 public class TrafficEngineService {
 
+    public static final String DEFAULT_INTERSECTION = "MAIN_JUNCTION_01";
+
+    private static final int DEFAULT_CAPACITY = 16_384;
+    static final int YELLOW_SECONDS = 3;
+    private static final int DEFAULT_GREEN_SECONDS = 60;
+    // A green shortened to win back lost time never drops below this, or its own length if shorter
+    private static final long MIN_GREEN_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // While the lights are unsafe to turn green, a RED intersection checks again this often
+    private static final long RED_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Deadline resolution; the scheduler thread wakes once per tick of the wheel
+    private static final long WHEEL_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int WHEEL_BUCKETS = 4096;
+
     private final TrafficCacheService cacheService;
-    private final HistoryRepository historyRepository;
+    private final HistoryStore historyStore;
+    private final StateStreamService stateStream;
+
+    @Value("${traffic.engine.capacity:16384}")
+    private int capacity = DEFAULT_CAPACITY;
+
+    @Value("${traffic.detectors.directions:256}")
+    private int detectorDirections = 256;
+
+    @Value("${traffic.detectors.stripes:8}")
+    private int detectorStripes = 8;
+
+    // An actuated green is extended by this much while its detectors keep counting vehicles
+    @Value("${traffic.detectors.passage-ms:3000}")
+    private long passageMillis = 3000;
+
+    // Engine state mapped to a file on every transition, so a restart resumes mid-cycle
+    @Value("${traffic.checkpoint.enabled:false}")
+    private boolean checkpointEnabled;
+
+    @Value("${traffic.checkpoint.file:data/traffic-engine.checkpoint}")
+    private String checkpointFile;
+
+    // An older checkpoint describes a cycle position that no longer means anything, so boot starts cold
+    @Value("${traffic.checkpoint.max-age-seconds:300}")
+    private long checkpointMaxAgeSeconds = 300;
+
+    @Value("${traffic.history.default-page-size:100}")
+    private int defaultPageSize = 100;
+
+    @Value("${traffic.history.max-page-size:1000}")
+    private int maxPageSize = 1000;
+
+    // Longest single virtual-time run, so one request cannot occupy the engine indefinitely
+    private static final long MAX_ADVANCE_SECONDS = 31L * 24 * 3600;
+
+    // Source of every timestamp the engine produces; a VirtualClock also drives the deadlines
+    private Clock clock = Clock.systemDefaultZone();
+    // Virtual time only: the clock reading that is zero on the engine's timeline
+    private long virtualOriginMillis;
+
+    private TrafficMetrics metrics = TrafficMetrics.NOOP;
+    private volatile TickListener tickListener = TickListener.NONE;
+
+    // Replaced in init() if a different capacity is configured; slots are registered after that
+    private IntersectionTable table = newTable(DEFAULT_CAPACITY);
+
+    // Written by ingestion threads without any lock; rolled by the engine under scheduleLock
+    private DetectorCounters detectors = newDetectors(DEFAULT_CAPACITY);
+    private final LongAdder detectionsAccepted = new LongAdder();
+    private final LongAdder detectionsRejected = new LongAdder();
+    private final LongAdder greenExtensions = new LongAdder();
+    private final LongAdder gapOuts = new LongAdder();
+    private final LongAdder maxOuts = new LongAdder();
 
-    private final AtomicBoolean isPaused = new AtomicBoolean(false);
-    private final AtomicInteger currentSequenceIndex = new AtomicInteger(0);
+    // Every transition and every command runs holding this lock, so the wheel sees one caller at a time
+    private final Object scheduleLock = new Object();
+    private DeadlineWheel wheel = newWheel(DEFAULT_CAPACITY);
+    // Guarded by scheduleLock: when each slot's current green was due to start, bounding its extensions
+    private long[] greenStarts = new long[DEFAULT_CAPACITY];
+    private final DeadlineWheel.Handler onDeadline = this::onDeadline;
+    // Guarded by scheduleLock: the rules every plan was last checked against, and the turn being fired
+    private ConflictMatrix checkedRules;
+    private long turnNanos;
+    private long turnLatenessNanos;
 
-    // Using a volatile list reference for thread-safe visibility when sequence is replaced
-    private volatile List<Integer> sequence = new ArrayList<>(Arrays.asList(1, 2, 3, 4));
+    private volatile boolean running;
+    private Thread scheduler;
+    // Written holding scheduleLock
+    private EngineCheckpoint checkpoint;
 
-    private volatile LightColor currentColor = LightColor.RED;
-    private volatile int secondsInCurrentState = 0;
+    // Clustering: a standby fires nothing and refuses commands; a leader fires nothing once its lease
+    // may have lapsed (a System.nanoTime reading, or Long.MAX_VALUE when not clustered)
+    private volatile boolean standby;
+    private volatile long leaseUntilNanos = Long.MAX_VALUE;
+    // Slots changed since the last replication drain, and the plan each was last sent with; null unless leading
+    private long[] replicationDirty;
+    private PhasePlan[] replicatedPlans;
 
     @PostConstruct
     public void init() {
-        log.info("TrafficEngineService initialized. Sequence: {}, Initial State: {}", sequence, currentColor);
+        synchronized (scheduleLock) {
+            if (capacity != table.capacity()) {
+                table = newTable(capacity);
+                greenStarts = new long[table.capacity()];
+            }
+            detectors = newDetectors(table.capacity());
+            wheel = newWheel(table.capacity());
+        }
+        if (checkpointEnabled) {
+            try {
+                openCheckpoint(Path.of(checkpointFile));
+            } catch (IOException e) {
+                // Running without one only costs the warm restart
+                log.warn("Engine checkpoint disabled: {}", e.getMessage());
+            }
+        }
+        if (!isVirtualTime()) {
+            running = true;
+            // Always a platform thread, whatever traffic.execution.mode puts the request handling on
+            scheduler = new Thread(this::runScheduler, "traffic-scheduler");
+            scheduler.setDaemon(true);
+            scheduler.setPriority(Thread.MAX_PRIORITY);
+            scheduler.start();
+        }
+        log.info("TrafficEngineService initialized. Capacity: {} intersections, Time: {}", table.capacity(),
+                isVirtualTime() ? "virtual" : "system, " + TimeUnit.NANOSECONDS.toMicros(WHEEL_TICK_NANOS) + " us deadline resolution");
     }
 
-    @Scheduled(fixedRate = 1000)
-    public void trafficTick() {
-        // Use .get() for AtomicBoolean
-        if (isPaused.get() || sequence.isEmpty()) {
-            return;
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (scheduler != null) {
+            LockSupport.unpark(scheduler);
+            try {
+                scheduler.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
+        synchronized (scheduleLock) {
+            if (checkpoint != null) {
+                try {
+                    checkpoint.close();
+                } catch (IOException e) {
+                    log.warn("Failed to close engine checkpoint: {}", e.getMessage());
+                }
+                checkpoint = null;
+            }
+        }
+    }
 
-        secondsInCurrentState++;
+    /** Starts checkpointing every transition to {@code file}; {@link #restoreCheckpoint()} reads it back. */
+    void openCheckpoint(Path file) throws IOException {
+        synchronized (scheduleLock) {
+            checkpoint = new EngineCheckpoint(file, table.capacity());
+        }
+        log.info("Engine checkpoint mapped at {}", file);
+    }
 
-        // Thread-safe index safety check using .get() and .set()
-        if (currentSequenceIndex.get() >= sequence.size()) {
-            currentSequenceIndex.set(0);
+    /** Uses the application's clock, if one is defined, instead of the system clock. */
+    @Autowired(required = false)
+    public void setClock(Clock clock) {
+        synchronized (scheduleLock) {
+            this.clock = clock;
+            this.virtualOriginMillis = clock.millis();
+            // Deadlines are on the clock's timeline, so a new clock starts an empty wheel
+            this.wheel = newWheel(table.capacity());
+            table.restampInitialSnapshots(clock);
         }
+    }
+
+    @Autowired(required = false)
+    public void setMetrics(TrafficMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Receives the timing of every real-time scheduler turn that fired transitions; one listener at a time. */
+    public void setTickListener(TickListener tickListener) {
+        this.tickListener = tickListener != null ? tickListener : TickListener.NONE;
+    }
+
+    public boolean isVirtualTime() {
+        return clock instanceof VirtualClock;
+    }
+
+    private IntersectionTable newTable(int capacity) {
+        IntersectionTable table = new IntersectionTable(capacity);
+        table.register(DEFAULT_INTERSECTION, clock);
+        return table;
+    }
+
+    private DetectorCounters newDetectors(int capacity) {
+        return new DetectorCounters(capacity, detectorDirections, detectorStripes);
+    }
 
-        int index = currentSequenceIndex.get();
-        Integer currentPhaseId = sequence.get(index);
-        SignalPhase currentPhase = cacheService.getPhase(currentPhaseId);
+    private DeadlineWheel newWheel(int capacity) {
+        return new DeadlineWheel(capacity, WHEEL_BUCKETS, WHEEL_TICK_NANOS, engineNanos());
+    }
 
-        int greenDuration = (currentPhase != null) ? currentPhase.getDurationSeconds() : 60;
+    /**
+     * Now on the timeline deadlines are kept on: {@link System#nanoTime}, which no wall-clock
+     * adjustment can move, or with a virtual clock the nanoseconds it has advanced.
+     */
+    private long engineNanos() {
+        return clock instanceof VirtualClock
+                ? TimeUnit.MILLISECONDS.toNanos(clock.millis() - virtualOriginMillis)
+                : System.nanoTime();
+    }
 
-        // Logic to jumpstart from RED to GREEN (for initial start or after resume)
-        if (currentColor == LightColor.RED) {
-            List<Direction> directions = cacheService.getAllowedDirectionsForPhase(currentPhaseId);
-            if (isSafeToTurnGreen(directions)) {
-                changeColor(LightColor.GREEN);
+    /** The real-time scheduler: fires whatever is due, once per wheel tick. Not started in virtual-time mode. */
+    private void runScheduler() {
+        while (running) {
+            try {
+                fireDue(System.nanoTime());
+            } catch (RuntimeException e) {
+                log.error("Scheduler turn failed: {}", e.getMessage(), e);
             }
+            LockSupport.parkNanos(WHEEL_TICK_NANOS);
+        }
+    }
+
+    /**
+     * Fires every transition due at or before {@code nowNanos}, oldest first. After a stall the
+     * missed transitions all fire here, each timed from its own deadline.
+     */
+    void fireDue(long nowNanos) {
+        long started = System.nanoTime();
+        if (standby || started >= leaseUntilNanos) {
             return;
         }
+        int fired;
+        long lateness;
+        synchronized (scheduleLock) {
+            recheckPlans();
+            turnNanos = nowNanos;
+            turnLatenessNanos = 0;
+            fired = wheel.advance(nowNanos, onDeadline);
+            lateness = turnLatenessNanos;
+        }
+        if (fired > 0) {
+            long duration = System.nanoTime() - started;
+            metrics.onTick(lateness, duration);
+            tickListener.onTick(lateness, duration);
+        }
+    }
 
-        // Manage state transitions
-        if (currentColor == LightColor.GREEN && secondsInCurrentState >= greenDuration) {
-            changeColor(LightColor.YELLOW);
-        } else if (currentColor == LightColor.YELLOW && secondsInCurrentState >= 3) {
-            changeColor(LightColor.RED);
-            moveToNextPhase();
+    /**
+     * Virtual-time mode only: moves the clock forward, firing every transition that falls due on
+     * the way with the clock set to that transition's deadline, so a simulated day of cycling takes
+     * well under a second and every timestamp is exactly what real time would have produced.
+     *
+     * @throws IllegalArgumentException if the engine runs on the system clock or the span is too long
+     */
+    public ClockAdvance advanceTime(long seconds) {
+        if (!(clock instanceof VirtualClock virtualClock)) {
+            throw new IllegalArgumentException("The engine runs on the system clock; set traffic.clock.mode=virtual");
+        }
+        if (seconds < 0 || seconds > MAX_ADVANCE_SECONDS) {
+            throw new IllegalArgumentException("Seconds must be between 0 and " + MAX_ADVANCE_SECONDS);
         }
+        long started = System.nanoTime();
+        synchronized (scheduleLock) {
+            long target = engineNanos() + TimeUnit.SECONDS.toNanos(seconds);
+            recheckPlans();
+            wheel.advance(target, onDeadline);
+            moveVirtualClock(virtualClock, target);
+        }
+        return new ClockAdvance(seconds, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started),
+                LocalDateTime.now(clock));
     }
 
-    private void changeColor(LightColor newColor) {
-        this.currentColor = newColor;
-        this.secondsInCurrentState = 0;
+    private void moveVirtualClock(VirtualClock virtualClock, long engineNanos) {
+        long millis = virtualOriginMillis + TimeUnit.NANOSECONDS.toMillis(engineNanos);
+        if (millis > virtualClock.millis()) {
+            virtualClock.advance(millis - virtualClock.millis());
+        }
+    }
 
-        String phaseStr = sequence.isEmpty() ? "NONE" : String.valueOf(sequence.get(currentSequenceIndex.get()));
-        logEvent("STATE_CHANGE", "Phase " + phaseStr + " turned " + newColor);
+    /**
+     * After a rules reload, recompiles every running plan so snapshots show the new directions
+     * straight away rather than at each intersection's next transition. One identity check otherwise.
+     */
+    private void recheckPlans() {
+        ConflictMatrix rules = cacheService.getConflictMatrix();
+        if (rules == checkedRules) {
+            return;
+        }
+        checkedRules = rules;
+        for (int slot = 0, size = table.size(); slot < size; slot++) {
+            PhasePlan plan = table.plan(slot);
+            if (!plan.isEmpty()) {
+                currentPlan(slot, plan);
+            }
+        }
     }
 
-    private void moveToNextPhase() {
-        if (sequence.isEmpty()) return;
+    private void onDeadline(int slot, long deadline) {
+        long start;
+        if (clock instanceof VirtualClock virtualClock) {
+            moveVirtualClock(virtualClock, deadline);
+            start = deadline;
+        } else {
+            long lateness = Math.max(0, turnNanos - deadline);
+            turnLatenessNanos = Math.max(turnLatenessNanos, lateness);
+            metrics.recordTransitionLateness(lateness);
+            start = deadline + lateness;
+        }
+        transition(slot, deadline, start);
+        checkpoint(slot);
+    }
+
+    /**
+     * Ends the slot's current state, which was due to end at {@code deadline}; {@code start} is when
+     * that is actually happening.
+     */
+    private void transition(int slot, long deadline, long start) {
+        long state = table.state(slot);
+        PhasePlan plan = table.plan(slot);
+        if (isPaused(state) || plan.isEmpty()) {
+            return;
+        }
+        plan = currentPlan(slot, plan);
+        int index = index(state) < plan.size() ? index(state) : 0;
+        long debt = debtNanos(state);
 
-        // Atomic calculation of next index
-        int nextIndex = (currentSequenceIndex.get() + 1) % sequence.size();
-        Integer nextPhaseId = sequence.get(nextIndex);
+        switch (color(state)) {
+            // Jumpstart from RED to GREEN (initial start or after resume)
+            case RED -> {
+                if (plan.isPhaseSafe(index)) {
+                    startGreen(slot, state, plan, index, deadline, start, debt);
+                } else {
+                    wheel.schedule(slot, deadline + RED_RETRY_NANOS);
+                }
+            }
+            case GREEN -> {
+                if (!plan.isActuated(index) || !extendGreen(slot, plan, index, deadline)) {
+                    long yellow = TimeUnit.SECONDS.toNanos(YELLOW_SECONDS);
+                    startTimed(slot, state, pack(index, LightColor.YELLOW, false), plan.phaseId(index),
+                            deadline, start, yellow, yellow, debt);
+                }
+            }
+            case YELLOW -> {
+                long red = withDebtMicros(pack(index, LightColor.RED, false), debtMicros(state));
+                if (changeColor(slot, state, red, plan.phaseId(index))) {
+                    moveToNextPhase(slot, red, plan, deadline, start);
+                }
+            }
+        }
+    }
 
-        List<Direction> upcomingDirections = cacheService.getAllowedDirectionsForPhase(nextPhaseId);
+    /**
+     * Turns the phase at {@code index} green. An actuated phase is first scheduled for its minimum
+     * green, always shown in full, and its detector window is restarted so vehicles that queued
+     * during red do not count as arrivals on green.
+     */
+    private void startGreen(int slot, long expected, PhasePlan plan, int index, long deadline, long start, long debt) {
+        long duration = greenNanos(plan, index);
+        long minimum = plan.isActuated(index) ? duration : Math.min(duration, MIN_GREEN_NANOS);
+        if (plan.isActuated(index)) {
+            detectors.roll(slot, plan.directionIds(index));
+        }
+        greenStarts[slot] = deadline;
+        startTimed(slot, expected, pack(index, LightColor.GREEN, false), plan.phaseId(index),
+                deadline, start, duration, minimum, debt);
+    }
 
-        if (isSafeToTurnGreen(upcomingDirections)) {
-            this.currentSequenceIndex.set(nextIndex); // Use .set()
-            changeColor(LightColor.GREEN);
+    /**
+     * At the end of an actuated green's minimum or of an extension, keeps the green for another
+     * passage interval if its detectors counted vehicles since the last check, up to its maximum.
+     * An intersection whose detectors have never reported runs the phase's fixed duration, held
+     * within the same bounds.
+     *
+     * @return false when the green should end now (gap out or max out)
+     */
+    private boolean extendGreen(int slot, PhasePlan plan, int index, long deadline) {
+        long maxEnd = greenStarts[slot] + TimeUnit.SECONDS.toNanos(plan.maxGreenSeconds(index));
+        if (deadline >= maxEnd) {
+            maxOuts.increment();
+            return false;
+        }
+        long vehicles = detectors.roll(slot, plan.directionIds(index));
+        long end;
+        if (vehicles == DetectorCounters.NO_DETECTORS) {
+            end = greenStarts[slot] + TimeUnit.SECONDS.toNanos(plan.greenSeconds(index));
+        } else if (vehicles > 0) {
+            end = deadline + TimeUnit.MILLISECONDS.toNanos(passageMillis);
         } else {
-            pauseSystem();
-            logEvent("ERROR", "Safety violation detected for Phase " + nextPhaseId + ". System locked to RED.");
+            gapOuts.increment();
+            return false;
+        }
+        end = Math.min(end, maxEnd);
+        if (end <= deadline) {
+            return false;
         }
+        greenExtensions.increment();
+        wheel.schedule(slot, end);
+        return true;
     }
 
-    private boolean isSafeToTurnGreen(List<Direction> directions) {
-        if (directions == null || directions.isEmpty()) return true;
-
-        Set<Integer> upcomingIds = new HashSet<>();
-        for (Direction d : directions) {
-            upcomingIds.add(d.getDirectionId());
+    /**
+     * Switches to a state lasting {@code duration} and schedules its end from the previous
+     * deadline, so lateness never accumulates into drift. A state that starts late is shortened to
+     * catch up with the schedule, but never below {@code minimum}: a yellow is always shown in full,
+     * a fixed-time green for at least {@link #MIN_GREEN_NANOS} and an actuated green for its minimum.
+     * Time that could not be won back is carried as debt and repaid from later greens.
+     */
+    private void startTimed(int slot, long expected, long next, int phaseId, long deadline, long start,
+                            long duration, long minimum, long debt) {
+        long repay = Math.min(debt, duration - minimum);
+        long planned = deadline + duration - repay;
+        long end = Math.max(planned, start + minimum);
+        long remainingDebt = debt - repay + (end - planned);
+        // Rounded up, so a few nanoseconds of debt are never lost
+        if (changeColor(slot, expected, withDebtMicros(next, -Math.floorDiv(-remainingDebt, 1000)), phaseId)) {
+            wheel.schedule(slot, end);
         }
+    }
 
-        for (Direction d : directions) {
-            List<DirectionConflict> conflicts = cacheService.getConflictsForDirection(d.getDirectionId());
-            if (conflicts == null) continue;
+    /** How long a green is first scheduled for: its fixed duration, or an actuated phase's minimum. */
+    private static long greenNanos(PhasePlan plan, int index) {
+        return TimeUnit.SECONDS.toNanos(plan.isActuated(index) ? plan.minGreenSeconds(index) : plan.greenSeconds(index));
+    }
 
-            for (DirectionConflict conflict : conflicts) {
-                if (upcomingIds.contains(conflict.getConflictingDirection().getDirectionId())) {
-                    return false;
-                }
+    private static long debtNanos(long state) {
+        return TimeUnit.MICROSECONDS.toNanos(debtMicros(state));
+    }
+
+    /**
+     * Returns the slot's plan, recompiling it first if the rules were reloaded since it was built.
+     * A running green whose duration changed ends that much earlier or later. Phases that became
+     * unsafe are not rejected here; they lock the intersection when reached.
+     */
+    private PhasePlan currentPlan(int slot, PhasePlan plan) {
+        ConflictMatrix rules = cacheService.getConflictMatrix();
+        if (plan.rules() == rules) {
+            return plan;
+        }
+        PhasePlan recompiled = compilePlan(plan.phaseIds(), rules);
+        if (table.compareAndSetPlan(slot, plan, recompiled)) {
+            detectors.define(slot, recompiled.actuatedDirectionIds());
+            long state = table.state(slot);
+            long deadline = wheel.deadline(slot);
+            int index = index(state);
+            if (color(state) == LightColor.GREEN && deadline != DeadlineWheel.NO_DEADLINE && index < plan.size()
+                    && greenNanos(recompiled, index) != greenNanos(plan, index)) {
+                wheel.schedule(slot, deadline + greenNanos(recompiled, index) - greenNanos(plan, index));
             }
+            // Reloaded rules may map the current phase to different directions
+            refreshSnapshot(slot);
+            checkpoint(slot);
+        }
+        if (!recompiled.isSafe()) {
+            log.warn("[{}] Reloaded rules make the running sequence unsafe; it will lock to RED at the unsafe phase",
+                    table.idAt(slot));
+        }
+        return table.plan(slot);
+    }
+
+    private boolean changeColor(int slot, long expected, long next, int phaseId) {
+        if (!table.compareAndSetState(slot, expected, next)) {
+            return false;
         }
+        logEvent(slot, "STATE_CHANGE", phaseId, color(next), "Phase " + phaseId + " turned " + color(next));
+        publishState(slot, "TRANSITION");
         return true;
     }
 
+    private void moveToNextPhase(int slot, long red, PhasePlan plan, long deadline, long start) {
+        int index = index(red);
+        int nextIndex = plan.next(index);
+
+        if (plan.isTransitionSafe(index)) {
+            startGreen(slot, red, plan, nextIndex, deadline, start, debtNanos(red));
+        } else {
+            pauseSlot(slot);
+            metrics.recordLockout();
+            logEvent(slot, "ERROR", plan.phaseId(nextIndex), LightColor.RED,
+                    "Safety violation detected for Phase " + plan.phaseId(nextIndex) + ". System locked to RED.");
+        }
+    }
+
+    /** Every conflict check of a sequence runs here; ticks only read the precomputed results. */
+    private PhasePlan compilePlan(int[] phaseIds, ConflictMatrix rules) {
+        long started = System.nanoTime();
+        PhasePlan plan = compile(phaseIds, rules);
+        metrics.recordSafetyCheck(System.nanoTime() - started);
+        return plan;
+    }
+
+    private PhasePlan compile(int[] phaseIds, ConflictMatrix rules) {
+        Map<Integer, SignalPhase> phases = new HashMap<>();
+        for (int phaseId : phaseIds) {
+            phases.computeIfAbsent(phaseId, cacheService::getPhase);
+        }
+        return PhasePlan.compile(phaseIds, phaseId -> {
+            SignalPhase phase = phases.get(phaseId);
+            if (phase == null) {
+                return PhasePlan.UNKNOWN_PHASE;
+            }
+            return phase.getDurationSeconds() != null ? phase.getDurationSeconds() : DEFAULT_GREEN_SECONDS;
+        }, phaseId -> seconds(phases.get(phaseId), SignalPhase::getMinGreenSeconds),
+                phaseId -> seconds(phases.get(phaseId), SignalPhase::getMaxGreenSeconds), rules);
+    }
+
+    /**
+     * Runs the safety check over every loaded phase, as one sequence, {@code iterations} times so that
+     * the first sequence started is checked by compiled code. Nothing is started, logged or timed.
+     *
+     * @return how long the warm-up took, in nanoseconds
+     */
+    public long warmUpSafetyCheck(int iterations) {
+        long started = System.nanoTime();
+        RuleSet rules = cacheService.getRuleSet();
+        int[] phaseIds = new int[rules.phaseCount()];
+        for (int i = 0; i < phaseIds.length; i++) {
+            phaseIds[i] = rules.phaseIdAt(i);
+        }
+        for (int i = 0; i < iterations; i++) {
+            compile(phaseIds, cacheService.getConflictMatrix());
+        }
+        long elapsed = System.nanoTime() - started;
+        log.info("Warmed up the safety check: {} passes over {} phases in {} ms", iterations, phaseIds.length,
+                TimeUnit.NANOSECONDS.toMillis(elapsed));
+        return elapsed;
+    }
+
+    private static int seconds(SignalPhase phase, Function<SignalPhase, Integer> field) {
+        Integer seconds = phase != null ? field.apply(phase) : null;
+        return seconds != null ? seconds : 0;
+    }
+
+    private PhasePlanReport report(PhasePlan plan) {
+        ConflictMatrix rules = plan.rules();
+        List<PhaseCheck> checks = new ArrayList<>(plan.size());
+        for (int i = 0; i < plan.size(); i++) {
+            SignalPhase phase = cacheService.getPhase(plan.phaseId(i));
+            List<String> conflicts = rules.conflictingPairs(plan.mask(i)).stream()
+                    .map(pair -> pair[0] + " vs " + pair[1])
+                    .collect(toList());
+            checks.add(new PhaseCheck(i, plan.phaseId(i), phase != null ? phase.getPhaseName() : null,
+                    plan.isKnown(i), plan.greenSeconds(i), conflicts.isEmpty(), conflicts,
+                    plan.isTransitionSafe(i)));
+        }
+        return new PhasePlanReport(plan.isSafe(), checks);
+    }
+
+    // --- Commands (default intersection) ---
+
     public void pauseSystem() {
-        this.isPaused.set(true); // Use .set()
-        this.currentColor = LightColor.RED;
-        logEvent("COMMAND", "System Paused. All lights forced to RED.");
+        pauseSystem(DEFAULT_INTERSECTION);
     }
 
     public void resumeSystem() {
-        if (sequence.isEmpty()) {
-            logEvent("ERROR", "Cannot resume: sequence is empty.");
+        resumeSystem(DEFAULT_INTERSECTION);
+    }
+
+    public void startCycle(List<Integer> newSequence) {
+        startCycle(DEFAULT_INTERSECTION, newSequence);
+    }
+
+    /** Compiles a sequence against the current rules without starting it. */
+    public PhasePlanReport validateSequence(List<Integer> sequence) {
+        return report(compilePlan(toPhaseIds(sequence), cacheService.getConflictMatrix()));
+    }
+
+    public IntersectionState getCurrentState() {
+        return getCurrentState(DEFAULT_INTERSECTION);
+    }
+
+    // --- Commands (any intersection) ---
+
+    public boolean hasIntersection(String intersectionId) {
+        return table.slotOf(intersectionId) >= 0;
+    }
+
+    public Set<String> getIntersectionIds() {
+        Set<String> ids = new LinkedHashSet<>();
+        for (int slot = 0, size = table.size(); slot < size; slot++) {
+            ids.add(table.idAt(slot));
+        }
+        return ids;
+    }
+
+    public void pauseSystem(String intersectionId) {
+        requireActive();
+        pauseSlot(table.register(intersectionId, clock));
+    }
+
+    private void requireActive() {
+        if (standby) {
+            throw new StandbyException();
+        }
+    }
+
+    private void pauseSlot(int slot) {
+        synchronized (scheduleLock) {
+            long state;
+            do {
+                state = table.state(slot);
+            } while (!table.compareAndSetState(slot, state, withPaused(withColor(state, LightColor.RED), true)));
+            wheel.cancel(slot);
+            checkpoint(slot);
+        }
+        logEvent(slot, "COMMAND", null, LightColor.RED, "System Paused. All lights forced to RED.");
+        publishState(slot, "PAUSED");
+    }
+
+    public void resumeSystem(String intersectionId) {
+        requireActive();
+        int slot = table.register(intersectionId, clock);
+        if (table.plan(slot).isEmpty()) {
+            logEvent(slot, "ERROR", "Cannot resume: sequence is empty.");
             return;
         }
-        this.isPaused.set(false); // Use .set()
-        logEvent("COMMAND", "System Resumed.");
+        synchronized (scheduleLock) {
+            long state;
+            do {
+                state = table.state(slot);
+            } while (!table.compareAndSetState(slot, state, withPaused(state, false)));
+            // Paused intersections rest at RED, which turns green on the scheduler's next turn
+            if (wheel.deadline(slot) == DeadlineWheel.NO_DEADLINE) {
+                wheel.schedule(slot, engineNanos());
+            }
+            checkpoint(slot);
+        }
+        logEvent(slot, "COMMAND", "System Resumed.");
+        publishState(slot, "RESUMED");
     }
 
-    public void startCycle(List<Integer> newSequence) {
+    /**
+     * Compiles the sequence and starts it from its first phase.
+     *
+     * @throws UnsafePlanException if any phase is unknown or contains conflicting movements;
+     *                             the running cycle is left untouched
+     * @throws StandbyException    on a standby node
+     */
+    public void startCycle(String intersectionId, List<Integer> newSequence) {
+        requireActive();
+        int slot = table.register(intersectionId, clock);
         if (newSequence == null || newSequence.isEmpty()) {
-            this.sequence = new ArrayList<>();
-            pauseSystem();
-            logEvent("ERROR", "Empty sequence provided. System halted.");
+            table.setPlan(slot, PhasePlan.EMPTY);
+            detectors.define(slot, PhasePlan.EMPTY.actuatedDirectionIds());
+            pauseSlot(slot);
+            logEvent(slot, "ERROR", "Empty sequence provided. System halted.");
             return;
         }
 
-        this.sequence = new ArrayList<>(newSequence);
-        this.currentSequenceIndex.set(0); // Use .set()
-        this.isPaused.set(false);
-        changeColor(LightColor.GREEN);
-        logEvent("COMMAND", "New sequence started: " + newSequence);
+        PhasePlan plan = compilePlan(toPhaseIds(newSequence), cacheService.getConflictMatrix());
+        if (!plan.isSafe()) {
+            logEvent(slot, "ERROR", "Rejected unsafe sequence: " + newSequence);
+            throw new UnsafePlanException(report(plan));
+        }
+
+        synchronized (scheduleLock) {
+            long now = engineNanos();
+            table.setPlan(slot, plan);
+            detectors.define(slot, plan.actuatedDirectionIds());
+            table.setState(slot, pack(0, LightColor.GREEN, false));
+            if (plan.isActuated(0)) {
+                detectors.roll(slot, plan.directionIds(0));
+            }
+            greenStarts[slot] = now;
+            wheel.schedule(slot, now + greenNanos(plan, 0));
+            checkpoint(slot);
+        }
+        logEvent(slot, "STATE_CHANGE", plan.phaseId(0), LightColor.GREEN, "Phase " + plan.phaseId(0) + " turned " + LightColor.GREEN);
+        logEvent(slot, "COMMAND", "New sequence started: " + newSequence);
+        publishState(slot, "CYCLE_STARTED");
+    }
+
+    /** The plan an intersection is running, or an empty plan if it is unknown or has none. */
+    public PhasePlan getPlan(String intersectionId) {
+        int slot = table.slotOf(intersectionId);
+        return slot < 0 ? PhasePlan.EMPTY : table.plan(slot);
+    }
+
+    /**
+     * Brings an intersection's cycle into line with a corridor's: its first phase should turn green
+     * {@code offsetMillis} after {@code epoch} and every cycle after that. Nothing is skipped and no
+     * green is cut below its minimum. If holding the running green is the shorter way round it is
+     * held; otherwise the difference is set as catch-up debt and won back from the following greens,
+     * exactly as after a late start. Actuated phases are placed by their fixed duration.
+     *
+     * @return the correction in milliseconds: positive when the cycle is brought forward, negative
+     *         when the running green is held
+     * @throws IllegalArgumentException if the intersection is unknown, paused or not running a sequence
+     * @throws StandbyException         on a standby node
+     */
+    public long alignCycle(String intersectionId, Instant epoch, long offsetMillis) {
+        requireActive();
+        int slot = table.slotOf(intersectionId);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Unknown intersection: " + intersectionId);
+        }
+        long correction;
+        synchronized (scheduleLock) {
+            PhasePlan plan = table.plan(slot);
+            long state = table.state(slot);
+            long deadline = wheel.deadline(slot);
+            if (plan.isEmpty() || isPaused(state) || deadline == DeadlineWheel.NO_DEADLINE) {
+                throw new IllegalArgumentException(intersectionId + " is not running a sequence");
+            }
+            int index = index(state) < plan.size() ? index(state) : 0;
+            long cycle = 0;
+            long end = 0;
+            for (int i = 0; i < plan.size(); i++) {
+                cycle += TimeUnit.SECONDS.toMillis(plan.greenSeconds(i) + YELLOW_SECONDS);
+                if (i < index) {
+                    end = cycle;
+                }
+            }
+            // Where in its cycle the intersection will be when the current state ends on time
+            switch (color(state)) {
+                case GREEN -> end += TimeUnit.SECONDS.toMillis(plan.greenSeconds(index));
+                case YELLOW -> end += TimeUnit.SECONDS.toMillis(plan.greenSeconds(index) + YELLOW_SECONDS);
+                case RED -> { }
+            }
+            long remaining = TimeUnit.NANOSECONDS.toMillis(Math.max(0, deadline - engineNanos()));
+            long position = end - remaining;
+            long target = Math.floorMod(clock.millis() - epoch.toEpochMilli() - offsetMillis, cycle);
+            long behind = Math.floorMod(target - position, cycle);
+            long ahead = cycle - behind;
+            if (behind == 0) {
+                correction = 0;
+                table.compareAndSetState(slot, state, withDebtMicros(state, 0));
+            } else if (color(state) == LightColor.GREEN && ahead <= behind) {
+                correction = -ahead;
+                table.compareAndSetState(slot, state, withDebtMicros(state, 0));
+                wheel.schedule(slot, deadline + TimeUnit.MILLISECONDS.toNanos(ahead));
+            } else {
+                correction = behind;
+                table.compareAndSetState(slot, state, withDebtMicros(state, TimeUnit.MILLISECONDS.toMicros(behind)));
+            }
+            checkpoint(slot);
+        }
+        logEvent(slot, "COMMAND", "Cycle aligned to offset " + offsetMillis + " ms: " + (correction < 0
+                ? "green held " + -correction + " ms" : correction + " ms to win back"));
+        return correction;
+    }
+
+    // --- Checkpoint ---
+
+    /**
+     * Resumes every intersection in the checkpoint where it left off: the same sequence, phase,
+     * colour, catch-up debt and time left in the current state. Each sequence is recompiled and
+     * safety-checked against the rules loaded now; one that is no longer safe is not resumed and its
+     * intersection stays at RED. A checkpoint older than {@code traffic.checkpoint.max-age-seconds},
+     * or written after the current time, is ignored. Time the engine was down is not won back: a
+     * state that should already have ended ends straight away.
+     *
+     * @return the number of intersections resumed
+     */
+    public int restoreCheckpoint() {
+        long started = System.nanoTime();
+        int resumed = 0;
+        int records = 0;
+        synchronized (scheduleLock) {
+            if (checkpoint == null) {
+                return 0;
+            }
+            long nowNanos = engineNanos();
+            long nowMicros = TimeUnit.MILLISECONDS.toMicros(clock.millis());
+            long maxAgeMicros = TimeUnit.SECONDS.toMicros(checkpointMaxAgeSeconds);
+            ConflictMatrix rules = cacheService.getConflictMatrix();
+            for (int record = 0; record < checkpoint.capacity(); record++) {
+                EngineCheckpoint.Entry entry = checkpoint.read(record);
+                if (entry == null || entry.phaseIds().length == 0) {
+                    continue;
+                }
+                records++;
+                long age = nowMicros - entry.writtenAtMicros();
+                if (age >= 0 && age <= maxAgeMicros && resume(entry, rules, nowNanos, nowMicros, "checkpoint")) {
+                    resumed++;
+                }
+            }
+            // Slots are numbered in registration order, so rewrite the records to match this run's
+            for (int slot = 0; slot < checkpoint.capacity(); slot++) {
+                if (slot < table.size()) {
+                    checkpoint(slot);
+                } else {
+                    checkpoint.clear(slot);
+                }
+            }
+        }
+        log.info("Resumed {} of {} checkpointed intersections in {} us (rule generation {})", resumed, records,
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started), cacheService.getGeneration());
+        return resumed;
+    }
+
+    /** Resumes one intersection from a checkpoint or replica entry; {@code source} names which in the history. */
+    private boolean resume(EngineCheckpoint.Entry entry, ConflictMatrix rules, long nowNanos, long nowMicros, String source) {
+        int slot = table.register(entry.intersectionId(), clock);
+        PhasePlan plan = compilePlan(entry.phaseIds(), rules);
+        String sequence = Arrays.toString(entry.phaseIds());
+        if (!plan.isSafe()) {
+            logEvent(slot, "ERROR", "Sequence " + sequence + " from the " + source + " is unsafe under the loaded rules. Staying at RED.");
+            return false;
+        }
+        long state = entry.state();
+        if (index(state) >= plan.size()) {
+            state = pack(0, LightColor.RED, isPaused(state));
+        }
+        table.setPlan(slot, plan);
+        detectors.define(slot, plan.actuatedDirectionIds());
+        table.setState(slot, state);
+        wheel.cancel(slot);
+        greenStarts[slot] = nowNanos - TimeUnit.MICROSECONDS.toNanos(nowMicros - entry.greenStartMicros());
+        if (!isPaused(state)) {
+            long remaining = entry.deadlineMicros() == EngineCheckpoint.NO_DEADLINE
+                    ? 0 : Math.max(0, entry.deadlineMicros() - nowMicros);
+            wheel.schedule(slot, nowNanos + TimeUnit.MICROSECONDS.toNanos(remaining));
+            if (color(state) == LightColor.GREEN && plan.isActuated(index(state))) {
+                // Counts from before the restart are gone; the detector window starts again
+                detectors.roll(slot, plan.directionIds(index(state)));
+            }
+        }
+        logEvent(slot, "COMMAND", "Resumed from " + source + ": sequence " + sequence + ", phase "
+                + plan.phaseId(index(state)) + " " + color(state) + (isPaused(state) ? ", paused" : ""));
+        publishState(slot, "RESUMED");
+        return true;
     }
 
-    private void logEvent(String type, String details) {
+    /** Records the slot in the checkpoint, if there is one, and for replication. Called holding scheduleLock. */
+    private void checkpoint(int slot) {
+        if (replicationDirty != null) {
+            replicationDirty[slot >>> 6] |= 1L << slot;
+        }
+        if (checkpoint == null) {
+            return;
+        }
         try {
-            HistoryEvent event = new HistoryEvent(LocalDateTime.now(), type, details);
-            historyRepository.save(event);
-        } catch (Exception e) {
-            log.error("Failed to persist history event: {}", e.getMessage());
+            long nowNanos = engineNanos();
+            long nowMicros = TimeUnit.MILLISECONDS.toMicros(clock.millis());
+            long deadline = wheel.deadline(slot);
+            checkpoint.write(slot, table.idAt(slot), table.plan(slot), cacheService.getGeneration(), table.state(slot),
+                    nowMicros,
+                    deadline == DeadlineWheel.NO_DEADLINE
+                            ? EngineCheckpoint.NO_DEADLINE : epochMicros(deadline, nowNanos, nowMicros),
+                    epochMicros(greenStarts[slot], nowNanos, nowMicros));
+        } catch (RuntimeException e) {
+            // A lost checkpoint only costs the warm restart; it must never stop the tick
+            log.error("[{}] Failed to checkpoint: {}", table.idAt(slot), e.getMessage());
         }
-        log.info("[{}] {}", type, details);
     }
 
-    public IntersectionState getCurrentState() {
+    /** An engine time as epoch microseconds, given the two clocks read at the same moment. */
+    private static long epochMicros(long engineNanos, long nowNanos, long nowMicros) {
+        return nowMicros + TimeUnit.NANOSECONDS.toMicros(engineNanos - nowNanos);
+    }
+
+    // --- Replication ---
+
+    /**
+     * Stands this node by for another that holds the cluster lease: nothing fires and commands are
+     * refused with {@link StandbyException} until {@link #takeOver}. Every pending deadline is dropped,
+     * so a deposed leader stops changing its lights at once, and replication stops.
+     */
+    public void standBy() {
+        synchronized (scheduleLock) {
+            standby = true;
+            for (int slot = 0, size = table.size(); slot < size; slot++) {
+                wheel.cancel(slot);
+            }
+            replicationDirty = null;
+            replicatedPlans = null;
+        }
+        log.info("Standing by: this node no longer drives the signals");
+    }
+
+    public boolean isStandby() {
+        return standby;
+    }
+
+    /**
+     * Fences the leader: transitions stop firing at {@code nanoTime}, a {@link System#nanoTime()}
+     * reading, unless the lease is renewed first, since by then a standby may have taken over.
+     */
+    public void holdLeaseUntil(long nanoTime) {
+        leaseUntilNanos = nanoTime;
+    }
+
+    /**
+     * Takes over from a leader that has gone: resumes every replicated intersection where the leader
+     * left it, exactly as {@link #restoreCheckpoint()} resumes a checkpoint, then fires transitions
+     * until {@code leaseUntilNanoTime} (see {@link #holdLeaseUntil}) and accepts commands again. An
+     * entry older than {@code traffic.checkpoint.max-age-seconds} is ignored. The entries' times
+     * must be on this node's clock, as {@link com.natwest.tc.engine.EngineReplica#entries} gives them.
+     *
+     * @return the number of intersections resumed
+     */
+    public int takeOver(List<EngineCheckpoint.Entry> entries, long leaseUntilNanoTime) {
+        long started = System.nanoTime();
+        int resumed = 0;
+        synchronized (scheduleLock) {
+            long nowNanos = engineNanos();
+            long nowMicros = TimeUnit.MILLISECONDS.toMicros(clock.millis());
+            long maxAgeMicros = TimeUnit.SECONDS.toMicros(checkpointMaxAgeSeconds);
+            ConflictMatrix rules = cacheService.getConflictMatrix();
+            for (EngineCheckpoint.Entry entry : entries) {
+                if (nowMicros - entry.writtenAtMicros() <= maxAgeMicros && resume(entry, rules, nowNanos, nowMicros, "leader")) {
+                    resumed++;
+                }
+            }
+            for (int slot = 0, size = table.size(); slot < size; slot++) {
+                checkpoint(slot);
+            }
+            leaseUntilNanos = leaseUntilNanoTime;
+            standby = false;
+        }
+        log.info("Took over {} of {} replicated intersections in {} us (rule generation {})", resumed, entries.size(),
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started), cacheService.getGeneration());
+        return resumed;
+    }
+
+    /**
+     * Starts replication, or starts it over for a new follower: every intersection is marked changed
+     * and its sequence is sent again.
+     */
+    public void replicateAll() {
+        synchronized (scheduleLock) {
+            replicationDirty = new long[(table.capacity() + 63) >>> 6];
+            replicatedPlans = new PhasePlan[table.capacity()];
+            for (int slot = 0, size = table.size(); slot < size; slot++) {
+                replicationDirty[slot >>> 6] |= 1L << slot;
+            }
+        }
+    }
+
+    /**
+     * Writes the {@link ReplicationFrame} records of every intersection changed since the last drain
+     * at the buffer's position: its latest state, preceded by its sequence if that changed. Stops when
+     * the buffer has no room for another intersection; the rest wait for the next call. Each call
+     * holds the schedule lock only while copying, a few microseconds per intersection.
+     *
+     * @return the number of records written; 0 when nothing changed or replication has not started
+     */
+    public int drainReplication(ByteBuffer out) {
+        synchronized (scheduleLock) {
+            if (replicationDirty == null) {
+                return 0;
+            }
+            long nowNanos = engineNanos();
+            long nowMicros = TimeUnit.MILLISECONDS.toMicros(clock.millis());
+            long generation = cacheService.getGeneration();
+            int records = 0;
+            for (int word = 0; word < replicationDirty.length; word++) {
+                while (replicationDirty[word] != 0) {
+                    if (out.remaining() < ReplicationFrame.MAX_SLOT_BYTES) {
+                        return records;
+                    }
+                    int slot = (word << 6) + Long.numberOfTrailingZeros(replicationDirty[word]);
+                    replicationDirty[word] &= replicationDirty[word] - 1;
+                    PhasePlan plan = table.plan(slot);
+                    if (plan != replicatedPlans[slot]) {
+                        try {
+                            ReplicationFrame.putDefine(out, slot, table.idAt(slot), plan, generation);
+                        } catch (IllegalArgumentException e) {
+                            // Nothing was written; a standby cannot resume this one, as a checkpoint cannot
+                            log.warn("[{}] Not replicated: {}", table.idAt(slot), e.getMessage());
+                            continue;
+                        }
+                        replicatedPlans[slot] = plan;
+                        records++;
+                    }
+                    long deadline = wheel.deadline(slot);
+                    ReplicationFrame.putState(out, slot, table.state(slot),
+                            deadline == DeadlineWheel.NO_DEADLINE
+                                    ? EngineCheckpoint.NO_DEADLINE : epochMicros(deadline, nowNanos, nowMicros),
+                            epochMicros(greenStarts[slot], nowNanos, nowMicros));
+                    records++;
+                }
+            }
+            return records;
+        }
+    }
+
+    // --- Detectors ---
+
+    /**
+     * Adds a batch of detector counts to the counters the engine reads when extending actuated
+     * greens. Takes no lock and never waits for the engine. Events for intersections this node
+     * does not drive, with a direction id out of range or with a count below one are rejected.
+     *
+     * @return the number of events accepted
+     */
+    public int recordDetections(List<DetectorEvent> events) {
+        int accepted = 0;
+        String lastId = null;
+        int slot = -1;
+        for (DetectorEvent event : events) {
+            String intersectionId = event.getIntersectionId() != null ? event.getIntersectionId() : DEFAULT_INTERSECTION;
+            // Batches usually come from one intersection's detectors, so the slot lookup is rarely repeated
+            if (!intersectionId.equals(lastId)) {
+                slot = slotOf(intersectionId);
+                lastId = intersectionId;
+            }
+            if (recordDetection(slot, event.getDirectionId(), event.getCount())) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Adds one detector count for the intersection in {@code slot} (see {@link #slotOf}). The
+     * allocation-free form of {@link #recordDetections}, for binary telemetry.
+     *
+     * @return false, and counted as rejected, for an unknown slot, a direction out of range or a count below one
+     */
+    public boolean recordDetection(int slot, int directionId, int count) {
+        if (slot >= 0 && slot < table.size() && count > 0 && detectors.record(slot, directionId, count)) {
+            detectionsAccepted.increment();
+            return true;
+        }
+        detectionsRejected.increment();
+        return false;
+    }
+
+    /** The engine's slot for an intersection, or -1 if this node does not drive it. */
+    public int slotOf(String intersectionId) {
+        return table.slotOf(intersectionId);
+    }
+
+    /** Accepted and rejected detector events, and how actuated greens were extended or ended. */
+    public Map<String, Long> getDetectorStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("accepted", detectionsAccepted.sum());
+        stats.put("rejected", detectionsRejected.sum());
+        stats.put("extensions", greenExtensions.sum());
+        stats.put("gapOuts", gapOuts.sum());
+        stats.put("maxOuts", maxOuts.sum());
+        return stats;
+    }
+
+    private static int[] toPhaseIds(List<Integer> sequence) {
+        if (sequence.size() > MAX_SEQUENCE_LENGTH) {
+            throw new IllegalArgumentException("Sequence longer than " + MAX_SEQUENCE_LENGTH + " phases");
+        }
+        return sequence.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /** The last published state of an intersection; allocates nothing. */
+    public IntersectionState getCurrentState(String intersectionId) {
+        return getSnapshot(intersectionId).state();
+    }
+
+    public StateSnapshot getSnapshot() {
+        return getSnapshot(DEFAULT_INTERSECTION);
+    }
+
+    /**
+     * The immutable snapshot published at the intersection's last transition or command.
+     *
+     * @throws NoSuchElementException if the intersection is unknown
+     */
+    public StateSnapshot getSnapshot(String intersectionId) {
+        int slot = table.slotOf(intersectionId);
+        if (slot < 0) {
+            throw new NoSuchElementException("Unknown intersection: " + intersectionId);
+        }
+        return table.snapshot(slot);
+    }
+
+    /** Current state of an intersection as a stream delta, e.g. to open a subscription with. */
+    public StateDelta getStateDelta(String intersectionId) {
+        return toDelta(getSnapshot(intersectionId), "SNAPSHOT");
+    }
+
+    /** Publishes a new snapshot version built from the slot's current state, then streams it. */
+    private void publishState(int slot, String event) {
+        stateStream.publish(toDelta(refreshSnapshot(slot), event));
+    }
+
+    private StateSnapshot refreshSnapshot(int slot) {
+        StateSnapshot published;
+        StateSnapshot next;
+        do {
+            published = table.snapshot(slot);
+            // Rebuilt on every attempt so a racing publisher can never leave an older state in place
+            next = buildSnapshot(slot, published.version() + 1);
+        } while (!table.compareAndSetSnapshot(slot, published, next));
+        return next;
+    }
+
+    private StateSnapshot buildSnapshot(int slot, long version) {
+        long packed = table.state(slot);
+        PhasePlan plan = table.plan(slot);
+        LightColor color = color(packed);
+
         IntersectionState state = new IntersectionState();
-        state.setIntersectionId("MAIN_JUNCTION_01");
-        state.setPaused(isPaused.get()); // Use .get()
+        state.setIntersectionId(table.idAt(slot));
+        state.setPaused(isPaused(packed));
+        state.setPhaseStartTime(LocalDateTime.now(clock));
 
-        int index = currentSequenceIndex.get();
-        Integer currentPhaseId = sequence.isEmpty() ? 0 : sequence.get(index);
+        Integer currentPhaseId = phaseIdAt(plan, packed);
         state.setCurrentPhaseId(currentPhaseId);
-        state.setCurrentPhaseColor(currentColor);
+        state.setCurrentPhaseColor(color);
 
         Map<Integer, LightColor> activeDirs = new HashMap<>();
-        if (currentColor != LightColor.RED && !sequence.isEmpty()) {
-            List<Direction> allowed = cacheService.getAllowedDirectionsForPhase(currentPhaseId);
-            for (Direction d : allowed) {
-                activeDirs.put(d.getDirectionId(), currentColor);
+        if (color != LightColor.RED && !plan.isEmpty()) {
+            for (int directionId : cacheService.getAllowedDirectionIds(currentPhaseId)) {
+                activeDirs.put(directionId, color);
             }
         }
         state.setActiveGreenDirections(Collections.unmodifiableMap(activeDirs));
 
-        return state;
+        return new StateSnapshot(version, state);
+    }
+
+    private StateDelta toDelta(StateSnapshot snapshot, String event) {
+        IntersectionState state = snapshot.state();
+        return new StateDelta(state.getIntersectionId(), snapshot.version(), event, state.getCurrentPhaseId(),
+                state.getCurrentPhaseColor(), state.isPaused(), clock.millis());
+    }
+
+    private static int phaseIdAt(PhasePlan plan, long state) {
+        return plan.isEmpty() ? 0 : plan.phaseId(Math.min(index(state), plan.size() - 1));
+    }
+
+    private void logEvent(int slot, String type, String details) {
+        logEvent(slot, type, null, null, details);
+    }
+
+    private void logEvent(int slot, String type, Integer phaseId, LightColor color, String details) {
+        String intersectionId = table.idAt(slot);
+        // The store never blocks: the JDBC store only enqueues, the journal only writes to mapped memory
+        long started = System.nanoTime();
+        historyStore.append(new HistoryEvent(LocalDateTime.now(clock), intersectionId, type, phaseId, color, details));
+        metrics.recordHistoryAppend(System.nanoTime() - started);
+        log.info("[{}] [{}] {}", intersectionId, type, details);
     }
 
+    /** The newest page of history across all intersections. */
     public List<TrafficHistory> getHistory() {
-        return historyRepository.findByOrderByTimestampDesc().stream().map(
-                history -> new TrafficHistory(history.getTimestamp(), history.getEventType(), history.getDetails())
+        return getHistory(new HistoryQuery()).getItems();
+    }
+
+    /**
+     * One keyset page of history, newest first. The page size is capped at
+     * {@code traffic.history.max-page-size}; pass the returned cursor back to continue.
+     *
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public HistoryPage getHistory(HistoryQuery query) {
+        int limit = query.getLimit() == null ? defaultPageSize : Math.max(1, Math.min(query.getLimit(), maxPageSize));
+        LocalDateTime afterTimestamp = null;
+        Long afterId = null;
+        if (query.getCursor() != null) {
+            String[] position = decodeCursor(query.getCursor());
+            afterTimestamp = LocalDateTime.parse(position[0]);
+            afterId = Long.parseLong(position[1]);
+        }
+
+        // One extra row tells us whether another page exists without a count query
+        List<HistoryEvent> rows = historyStore.findPage(query.getIntersectionId(), query.getEventType(),
+                query.getFrom(), query.getTo(), afterTimestamp, afterId, limit + 1);
+        boolean more = rows.size() > limit;
+        if (more) {
+            rows = rows.subList(0, limit);
+        }
+        List<TrafficHistory> items = rows.stream().map(
+                history -> new TrafficHistory(history.getTimestamp(), history.getIntersectionId(),
+                        history.getEventType(), history.getDetails())
         ).collect(toList());
+        return new HistoryPage(items, more ? encodeCursor(rows.get(rows.size() - 1)) : null);
+    }
+
+    private static String encodeCursor(HistoryEvent last) {
+        String position = last.getTimestamp() + "|" + last.getId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String[] decodeCursor(String cursor) {
+        try {
+            String[] position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|");
+            if (position.length != 2) {
+                throw new IllegalArgumentException("Malformed history cursor");
+            }
+            LocalDateTime.parse(position[0]);
+            Long.parseLong(position[1]);
+            return position;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Malformed history cursor", e);
+        }
     }
-}
\ No newline at end of file
+}
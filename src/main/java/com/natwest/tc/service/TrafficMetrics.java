@@ -0,0 +1,120 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.engine.TickListener;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The application's timers and counters, registered once at startup.
+ * <p>
+ * Callers hold a reference to this and record through its fields, so a sample is one
+ * {@code record} or {@code increment} on an already-built meter: no registry lookup, no tag
+ * building and no string formatting on the tick path. Gauges over state other services already
+ * count (rule set size, writer queue, stream subscribers) are bound separately, read only when
+ * the registry is scraped.
+ */
+@Component
+public class TrafficMetrics implements TickListener {
+
+    /** Records nothing; used until Spring injects the real instance and by plain unit tests. */
+    public static final TrafficMetrics NOOP = new TrafficMetrics(new CompositeMeterRegistry());
+
+    private final Timer tickDuration;
+    private final Timer transitionLateness;
+    private final Timer safetyCheck;
+    private final Counter lockouts;
+    private final Timer reloadChanged;
+    private final Timer reloadUnchanged;
+    private final Timer historyAppend;
+    private final Timer historyWrite;
+    private final Counter historyWriteFailures;
+    private final Counter stateRequests;
+    private final Timer telemetryDecode;
+
+    public TrafficMetrics(MeterRegistry registry) {
+        tickDuration = latencyTimer("traffic.tick.duration", "Time a scheduler turn spends firing the transitions due", registry);
+        transitionLateness = latencyTimer("traffic.transition.lateness",
+                "How late a signal transition fired against its deadline", registry);
+        safetyCheck = latencyTimer("traffic.safety.check",
+                "Time to check a sequence's phases and transitions against the conflict matrix", registry);
+        lockouts = Counter.builder("traffic.safety.lockouts")
+                .description("Intersections locked to RED because the next phase was unsafe")
+                .register(registry);
+        reloadChanged = reloadTimer("true", registry);
+        reloadUnchanged = reloadTimer("false", registry);
+        historyAppend = latencyTimer("traffic.history.append", "Time the engine spends handing an event to the history store", registry);
+        historyWrite = latencyTimer("traffic.history.write", "Time to write one batch of history events to the database", registry);
+        historyWriteFailures = Counter.builder("traffic.history.write.failures")
+                .description("History events in batch inserts that failed (spilled or lost, depending on the overflow policy)")
+                .register(registry);
+        stateRequests = Counter.builder("traffic.state.requests")
+                .description("Requests for the current state of an intersection")
+                .register(registry);
+        telemetryDecode = latencyTimer("traffic.telemetry.decode",
+                "Time to decode the binary telemetry frames of one socket read and hand them to the engine", registry);
+    }
+
+    private static Timer latencyTimer(String name, String description, MeterRegistry registry) {
+        return Timer.builder(name)
+                .description(description)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofNanos(1000))
+                .maximumExpectedValue(Duration.ofSeconds(10))
+                .register(registry);
+    }
+
+    private static Timer reloadTimer(String changed, MeterRegistry registry) {
+        return Timer.builder("traffic.rules.reload")
+                .description("Rule cache reloads; changed=true when a new generation was published")
+                .tag("changed", changed)
+                .register(registry);
+    }
+
+    /** A scheduler turn fired transitions; their lateness is recorded one by one. */
+    @Override
+    public void onTick(long latenessNanos, long durationNanos) {
+        tickDuration.record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordTransitionLateness(long nanos) {
+        transitionLateness.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordSafetyCheck(long nanos) {
+        safetyCheck.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordLockout() {
+        lockouts.increment();
+    }
+
+    public void recordReload(boolean changed, long nanos) {
+        (changed ? reloadChanged : reloadUnchanged).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordHistoryAppend(long nanos) {
+        historyAppend.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordHistoryWrite(long nanos) {
+        historyWrite.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordHistoryWriteFailure(int events) {
+        historyWriteFailures.increment(events);
+    }
+
+    public void recordStateRequest() {
+        stateRequests.increment();
+    }
+
+    public void recordTelemetryDecode(long nanos) {
+        telemetryDecode.record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
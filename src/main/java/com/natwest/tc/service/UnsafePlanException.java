@@ -0,0 +1,19 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.model.PhasePlanReport;
+import lombok.Getter;
+
+/**
+ * Thrown when a requested sequence fails compilation: it references unknown phases or
+ * a phase whose movements conflict. The report lists the outcome for every position.
+ */
+@Getter
+public class UnsafePlanException extends RuntimeException {
+
+    private final PhasePlanReport report;
+
+    public UnsafePlanException(PhasePlanReport report) {
+        super("Sequence rejected: unsafe or unknown phases");
+        this.report = report;
+    }
+}
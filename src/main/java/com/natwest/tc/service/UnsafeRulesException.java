@@ -0,0 +1,19 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.model.RuleValidationReport;
+import lombok.Getter;
+
+/**
+ * Thrown when a staged rule set that failed validation is promoted without forcing it.
+ * The report lists every phase whose movements conflict.
+ */
+@Getter
+public class UnsafeRulesException extends RuntimeException {
+
+    private final RuleValidationReport report;
+
+    public UnsafeRulesException(RuleValidationReport report) {
+        super("Rule generation " + report.getGeneration() + " rejected: conflicting phases");
+        this.report = report;
+    }
+}
@@ -9,7 +9,10 @@ CREATE TABLE signal_phases (
     phase_name VARCHAR(100) NOT NULL,
     description VARCHAR(200),
     duration_seconds INT DEFAULT 60,
-    is_active BOOLEAN DEFAULT TRUE
+    is_active BOOLEAN DEFAULT TRUE,
+    -- Both set: vehicle-actuated green between these bounds, driven by detector counts
+    min_green_seconds INT,
+    max_green_seconds INT
 );
 
 CREATE TABLE phase_allowed_directions (
@@ -34,10 +37,52 @@ CREATE TABLE direction_conflicts (
 CREATE TABLE traffic_history (
      id BIGINT AUTO_INCREMENT PRIMARY KEY,
      timestamp TIMESTAMP NOT NULL,
+     intersection_id VARCHAR(64),
      event_type VARCHAR(50),
+     phase_id INT,
+     color VARCHAR(8),
      details VARCHAR(500)
 );
 
+-- Keyset pagination of /history walks (timestamp, id) newest first, optionally within one event type or intersection
+CREATE INDEX idx_history_ts_id ON traffic_history (timestamp DESC, id DESC);
+CREATE INDEX idx_history_type_ts_id ON traffic_history (event_type, timestamp DESC, id DESC);
+CREATE INDEX idx_history_intersection_ts_id ON traffic_history (intersection_id, timestamp DESC, id DESC);
+
+-- Per-phase, per-hour aggregates rolled up from traffic_history before raw rows are compacted away
+CREATE TABLE traffic_history_hourly (
+     intersection_id VARCHAR(64) NOT NULL,
+     phase_id INT NOT NULL,
+     hour_start TIMESTAMP NOT NULL,
+     green_seconds BIGINT NOT NULL,
+     cycles INT NOT NULL,
+     lockouts INT NOT NULL,
+     PRIMARY KEY (intersection_id, phase_id, hour_start)
+);
+
+CREATE INDEX idx_history_hourly_hour ON traffic_history_hourly (hour_start);
+
+-- Raw history before rolled_until has been rolled up and may be compacted. Rows with ids above
+-- rolled_id arrived after the last rollup, possibly for hours it had already closed; hours before
+-- compacted_until have lost raw rows and cannot be rolled up again
+CREATE TABLE traffic_rollup_watermark (
+     name VARCHAR(50) PRIMARY KEY,
+     rolled_until TIMESTAMP NOT NULL,
+     rolled_id BIGINT NOT NULL DEFAULT 0,
+     compacted_until TIMESTAMP
+);
+
+-- The active/standby lease: its holder drives the signals and streams state to the rest on
+-- replication_address. term goes up on every change of holder, renewals on every write; a lease whose
+-- renewals have not moved for a lease period, as timed by the node watching it, has lapsed
+CREATE TABLE controller_lease (
+     lease_name VARCHAR(50) PRIMARY KEY,
+     holder VARCHAR(100),
+     replication_address VARCHAR(100),
+     term BIGINT NOT NULL DEFAULT 0,
+     renewals BIGINT NOT NULL DEFAULT 0
+);
+
 -- 1. DIRECTIONS
 INSERT INTO directions (direction_name, description) VALUES
 ('FROM_NORTH_STRAIGHT', 'Vehicle from North going straight (to South)'),
@@ -109,9 +154,10 @@ INSERT INTO direction_conflicts (direction_id, conflicts_with_direction_id, conf
 (5, 12, 'South-left vs West-right'),
 (6, 10, 'South-right vs West-straight'),
 (6, 11, 'South-right vs West-left'),
-(7, 10, 'East-straight vs West-straight'),
 (7, 11, 'East-straight vs West-left'),
 (8, 10, 'East-left vs West-straight'),
-(8, 11, 'East-left vs West-left'),
 (8, 12, 'East-left vs West-right'),
-(9, 11, 'East-right vs West-left');
\ No newline at end of file
+(9, 11, 'East-right vs West-left');
+
+-- 5. CLUSTER LEASE (unheld)
+INSERT INTO controller_lease (lease_name) VALUES ('traffic-engine');
@@ -12,4 +12,10 @@ Feature: Traffic Engine Transitions and Safety
     And the traffic engine is transitioning to Phase 2
     When the safety check is performed
     Then the system should "PAUSE"
-    And all lights should be "RED"
\ No newline at end of file
+    And all lights should be "RED"
+
+  Scenario: Unsafe sequence is rejected before it starts
+    Given Phase 2 has conflicting directions "North" and "South"
+    And the conflicting rules are loaded
+    When the sequence "1, 2" is submitted
+    Then the sequence should be rejected for Phase 2
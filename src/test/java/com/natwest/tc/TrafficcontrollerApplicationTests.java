@@ -1,11 +1,26 @@
 package com.natwest.tc;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.nio.file.Path;
 
 @SpringBootTest
 class TrafficcontrollerApplicationTests {
 
+	// The context's own checkpoint, so it neither resumes nor overwrites another run's
+	@TempDir
+	static Path dir;
+
+	@DynamicPropertySource
+	static void checkpoint(DynamicPropertyRegistry registry) {
+		registry.add("traffic.checkpoint.enabled", () -> "true");
+		registry.add("traffic.checkpoint.file", () -> dir.resolve("engine.checkpoint").toString());
+	}
+
 	@Test
 	void contextLoads() {
 	}
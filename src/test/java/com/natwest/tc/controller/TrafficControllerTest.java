@@ -1,30 +1,57 @@
 package com.natwest.tc.controller;
 
 
+import com.natwest.tc.model.CorridorRequest;
+import com.natwest.tc.model.DetectorEvent;
+import com.natwest.tc.model.GreenWavePlan;
+import com.natwest.tc.model.HistoryPage;
+import com.natwest.tc.model.HistoryQuery;
+import com.natwest.tc.engine.StateSnapshot;
 import com.natwest.tc.model.IntersectionState;
+import com.natwest.tc.model.JunctionOffset;
 import com.natwest.tc.model.LightColor;
+import com.natwest.tc.model.PhaseCheck;
+import com.natwest.tc.model.PhasePlanReport;
+import com.natwest.tc.model.PhaseSetProposal;
+import com.natwest.tc.model.PhaseSetReport;
 import com.natwest.tc.model.TrafficHistory;
+import com.natwest.tc.service.BlockingCallExecutor;
+import com.natwest.tc.service.GreenWaveService;
+import com.natwest.tc.service.HistoryRetentionService;
+import com.natwest.tc.service.HistoryWriter;
+import com.natwest.tc.service.PhasePlannerService;
+import com.natwest.tc.service.StandbyException;
+import com.natwest.tc.service.StateStreamService;
 import com.natwest.tc.service.TrafficCacheService;
 import com.natwest.tc.service.TrafficEngineService;
+import com.natwest.tc.service.UnsafePlanException;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 @WebMvcTest(TrafficController.class)
+@Import(BlockingCallExecutor.class)
 class TrafficControllerTest {
 
     @Autowired
@@ -36,6 +63,21 @@ class TrafficControllerTest {
     @MockBean
     private TrafficCacheService cacheService;
 
+    @MockBean
+    private HistoryWriter historyWriter;
+
+    @MockBean
+    private HistoryRetentionService retentionService;
+
+    @MockBean
+    private StateStreamService stateStream;
+
+    @MockBean
+    private PhasePlannerService phasePlanner;
+
+    @MockBean
+    private GreenWaveService greenWave;
+
     @Test
     @DisplayName("GET /api/traffic/state - Should return current intersection status")
     void shouldReturnCurrentState() throws Exception {
@@ -44,7 +86,7 @@ class TrafficControllerTest {
         mockState.setCurrentPhaseColor(LightColor.GREEN);
         mockState.setActiveGreenDirections(Map.of(101, LightColor.GREEN));
 
-        when(engineService.getCurrentState()).thenReturn(mockState);
+        when(engineService.getSnapshot()).thenReturn(new StateSnapshot(1, mockState));
 
         mockMvc.perform(get("/api/traffic/state"))
                 .andExpect(status().isOk())
@@ -53,10 +95,31 @@ class TrafficControllerTest {
                 .andExpect(jsonPath("$.activeGreenDirections['101']").value("GREEN"));
     }
 
+    @Test
+    @DisplayName("GET /api/traffic/state - Should answer 304 while the client's ETag is current")
+    void shouldReturnNotModifiedForCurrentEtag() throws Exception {
+        StateSnapshot snapshot = new StateSnapshot(7, new IntersectionState());
+        when(engineService.getSnapshot()).thenReturn(snapshot);
+
+        mockMvc.perform(get("/api/traffic/state"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", snapshot.etag()));
+        mockMvc.perform(get("/api/traffic/state").header("If-None-Match", snapshot.etag()))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+
+        when(engineService.getSnapshot()).thenReturn(new StateSnapshot(8, new IntersectionState()));
+        mockMvc.perform(get("/api/traffic/state").header("If-None-Match", snapshot.etag()))
+                .andExpect(status().isOk());
+    }
+
     @Test
     @DisplayName("POST /api/traffic/refresh-cache - Should trigger reload logic")
     void shouldRefreshCache() throws Exception {
-        mockMvc.perform(post("/api/traffic/refresh-cache"))
+        MvcResult result = mockMvc.perform(post("/api/traffic/refresh-cache"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.status").value("success"))
                 .andExpect(jsonPath("$.message").exists());
@@ -99,15 +162,175 @@ class TrafficControllerTest {
         verify(engineService, times(1)).resumeSystem();
     }
 
+    @Test
+    @DisplayName("POST /api/traffic/pause - Should answer 503 on a standby node")
+    void shouldRefuseCommandsOnStandby() throws Exception {
+        doThrow(new StandbyException()).when(engineService).pauseSystem();
+
+        mockMvc.perform(post("/api/traffic/pause"))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(jsonPath("$.status").value("error"));
+    }
+
+    @Test
+    @DisplayName("GET /api/traffic/cluster - Should answer 404 when clustering is disabled")
+    void shouldReportClusterDisabled() throws Exception {
+        mockMvc.perform(get("/api/traffic/cluster"))
+                .andExpect(status().isNotFound());
+    }
+
     @Test
     @DisplayName("GET /api/traffic/history - Should return list of events")
     void shouldReturnHistory() throws Exception {
-        TrafficHistory event = new TrafficHistory(LocalDateTime.now(), "STATE_CHANGE", "Phase 1 turned GREEN");
-        when(engineService.getHistory()).thenReturn(List.of(event));
+        TrafficHistory event = new TrafficHistory(LocalDateTime.now(), "MAIN_JUNCTION_01", "STATE_CHANGE", "Phase 1 turned GREEN");
+        when(engineService.getHistory(any(HistoryQuery.class))).thenReturn(new HistoryPage(List.of(event), "next-page"));
 
-        mockMvc.perform(get("/api/traffic/history"))
+        MvcResult result = mockMvc.perform(get("/api/traffic/history"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
                 .andExpect(status().isOk())
+                .andExpect(header().string("X-Next-Cursor", "next-page"))
                 .andExpect(jsonPath("$[0].eventType").value("STATE_CHANGE"))
                 .andExpect(jsonPath("$[0].details").value("Phase 1 turned GREEN"));
     }
+
+    @Test
+    @DisplayName("GET /api/traffic/history - Should pass filters and cursor through to the engine")
+    void shouldFilterHistory() throws Exception {
+        when(engineService.getHistory(any(HistoryQuery.class))).thenReturn(new HistoryPage(List.of(), null));
+
+        MvcResult result = mockMvc.perform(get("/api/traffic/history")
+                        .param("eventType", "ERROR")
+                        .param("from", "2024-01-01T00:00:00")
+                        .param("cursor", "abc")
+                        .param("limit", "50"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("X-Next-Cursor"));
+
+        verify(engineService).getHistory(new HistoryQuery(null, "ERROR",
+                LocalDateTime.of(2024, 1, 1, 0, 0), null, "abc", 50));
+    }
+
+    @Test
+    @DisplayName("GET /api/traffic/history - Should answer 400 for a malformed cursor")
+    void shouldRejectMalformedCursor() throws Exception {
+        when(engineService.getHistory(any(HistoryQuery.class))).thenThrow(new IllegalArgumentException("Malformed history cursor"));
+
+        MvcResult result = mockMvc.perform(get("/api/traffic/history").param("cursor", "garbage"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @DisplayName("POST /api/traffic/detectors/events - Should accept a batch of detector counts")
+    void shouldIngestDetections() throws Exception {
+        when(engineService.recordDetections(anyList())).thenReturn(2);
+
+        mockMvc.perform(post("/api/traffic/detectors/events")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"directionId\": 1, \"count\": 3}, {\"directionId\": 2}, {\"directionId\": 999}]"))
+                .andExpect(status().isAccepted())
+                .andExpect(jsonPath("$.accepted").value(2))
+                .andExpect(jsonPath("$.rejected").value(1));
+
+        verify(engineService).recordDetections(List.of(new DetectorEvent(null, 1, 3),
+                new DetectorEvent(null, 2, 1), new DetectorEvent(null, 999, 1)));
+    }
+
+    @Test
+    @DisplayName("GET /api/traffic/rules/plan - Should return phase proposals computed off the request thread")
+    void shouldPlanPhases() throws Exception {
+        PhaseSetProposal proposal = new PhaseSetProposal(1, List.of(List.of(1, 4), List.of(2, 3)), 4, 1.0, 1.0, 40, 23, 0.5);
+        PhaseSetReport report = new PhaseSetReport(3, 4, 3, 3, true, true, 2, 17, 1, List.of(), List.of(), List.of(proposal));
+        when(phasePlanner.plan(17, null)).thenReturn(CompletableFuture.completedFuture(report));
+
+        MvcResult result = mockMvc.perform(get("/api/traffic/rules/plan").param("greenSeconds", "17"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.optimal").value(true))
+                .andExpect(jsonPath("$.proposals[0].phases[1][0]").value(2))
+                .andExpect(jsonPath("$.proposals[0].cycleSeconds").value(40));
+    }
+
+    @Test
+    @DisplayName("POST /api/traffic/corridors/green-wave - Should plan and apply corridor offsets")
+    void shouldPlanGreenWave() throws Exception {
+        GreenWavePlan plan = new GreenWavePlan(60, Instant.parse("2024-01-01T00:00:00Z"), 30, 30, 0.5, 0.5, 8, 2, true,
+                List.of(new JunctionOffset("A", 60, true, 0, 0, 30, 0L), new JunctionOffset("B", 60, true, 30, 0, 30, 1500L)));
+        when(greenWave.plan(any(CorridorRequest.class), eq(true))).thenReturn(CompletableFuture.completedFuture(plan));
+
+        MvcResult result = mockMvc.perform(post("/api/traffic/corridors/green-wave").param("apply", "true")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"junctions\":[{\"intersectionId\":\"A\",\"coordinatedPhaseId\":1,\"travelSecondsToNext\":30},"
+                                + "{\"intersectionId\":\"B\",\"coordinatedPhaseId\":1}]}"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.outboundBandSeconds").value(30))
+                .andExpect(jsonPath("$.junctions[1].offsetSeconds").value(30))
+                .andExpect(jsonPath("$.junctions[1].correctionMillis").value(1500));
+        verify(greenWave).plan(argThat(corridor -> corridor.getJunctions().size() == 2
+                && corridor.getJunctions().get(0).getTravelSecondsToNext() == 30), eq(true));
+    }
+
+    @Test
+    @DisplayName("GET /api/traffic/{id}/state - Should return the state of that intersection")
+    void shouldReturnIntersectionState() throws Exception {
+        IntersectionState mockState = new IntersectionState();
+        mockState.setIntersectionId("JUNCTION_7");
+        mockState.setCurrentPhaseId(3);
+        mockState.setCurrentPhaseColor(LightColor.YELLOW);
+
+        when(engineService.hasIntersection("JUNCTION_7")).thenReturn(true);
+        when(engineService.getSnapshot("JUNCTION_7")).thenReturn(new StateSnapshot(1, mockState));
+
+        mockMvc.perform(get("/api/traffic/JUNCTION_7/state"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.intersectionId").value("JUNCTION_7"))
+                .andExpect(jsonPath("$.currentPhaseColor").value("YELLOW"));
+    }
+
+    @Test
+    @DisplayName("GET /api/traffic/{id}/state - Should return 404 for an unknown intersection")
+    void shouldReturnNotFoundForUnknownIntersection() throws Exception {
+        when(engineService.hasIntersection("NOWHERE")).thenReturn(false);
+
+        mockMvc.perform(get("/api/traffic/NOWHERE/state"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @DisplayName("POST /api/traffic/{id}/sequence - Should start that intersection")
+    void shouldUpdateIntersectionSequence() throws Exception {
+        mockMvc.perform(post("/api/traffic/JUNCTION_7/sequence")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[2, 4]"))
+                .andExpect(status().isOk());
+
+        verify(engineService, times(1)).startCycle("JUNCTION_7", Arrays.asList(2, 4));
+    }
+
+    @Test
+    @DisplayName("POST /api/traffic/sequence - Should reject an unsafe sequence with a per-phase report")
+    void shouldRejectUnsafeSequence() throws Exception {
+        PhaseCheck unsafe = new PhaseCheck(0, 9, "Bad phase", true, 30, false, List.of("1 vs 5"), false);
+        doThrow(new UnsafePlanException(new PhasePlanReport(false, List.of(unsafe))))
+                .when(engineService).startCycle(List.of(9));
+
+        mockMvc.perform(post("/api/traffic/sequence")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[9]"))
+                .andExpect(status().isUnprocessableEntity())
+                .andExpect(jsonPath("$.accepted").value(false))
+                .andExpect(jsonPath("$.phases[0].conflicts[0]").value("1 vs 5"));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,70 @@
+package com.natwest.tc.engine;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConflictMatrixTest {
+
+    @Test
+    @DisplayName("Conflicts stored one way should block both directions")
+    void testConflictsAreSymmetric() {
+        ConflictMatrix matrix = ConflictMatrix.builder()
+                .conflict(1, 5)
+                .phase(1, 1, 3)
+                .phase(2, 5, 1)
+                .build();
+
+        assertTrue(matrix.conflicts(1, 5));
+        assertTrue(matrix.conflicts(5, 1));
+        assertFalse(matrix.conflicts(1, 3));
+        assertTrue(matrix.isPhaseConflictFree(1));
+        assertFalse(matrix.isPhaseConflictFree(2));
+    }
+
+    @Test
+    @DisplayName("Unknown phases have no directions and are always safe")
+    void testUnknownPhaseIsSafe() {
+        assertTrue(ConflictMatrix.EMPTY.isPhaseConflictFree(42));
+        assertEquals(0, ConflictMatrix.EMPTY.phaseMask(42).length);
+    }
+
+    @Test
+    @DisplayName("Should detect conflicts between directions in different words")
+    void testWideMatrix() {
+        ConflictMatrix.Builder builder = ConflictMatrix.builder();
+        for (int id = 1; id <= 300; id++) {
+            builder.direction(id);
+        }
+        ConflictMatrix matrix = builder
+                .conflict(3, 290)
+                .phase(1, 3, 70, 150)
+                .phase(2, 3, 70, 290)
+                .build();
+
+        assertEquals(300, matrix.directionCount());
+        assertEquals(5, matrix.words());
+        assertTrue(matrix.isPhaseConflictFree(1));
+        assertFalse(matrix.isPhaseConflictFree(2));
+        assertTrue(matrix.intersects(matrix.maskOf(290), matrix.phaseMask(1)));
+        assertFalse(matrix.intersects(matrix.maskOf(150), matrix.phaseMask(2)));
+    }
+
+    @Test
+    @DisplayName("Should size phase masks by phase count, not by the largest phase id")
+    void testSparsePhaseIds() {
+        ConflictMatrix matrix = ConflictMatrix.builder()
+                .conflict(1, 5)
+                .phase(7, 1, 3)
+                .phase(2_000_000_000, 5, 1)
+                .build();
+
+        assertTrue(matrix.isPhaseConflictFree(7));
+        assertFalse(matrix.isPhaseConflictFree(2_000_000_000));
+        assertEquals(0, matrix.phaseMask(8).length);
+        assertEquals(0, matrix.phaseMask(-1).length);
+        assertTrue(matrix.footprintBytes() < 1024);
+        assertThrows(IllegalArgumentException.class, () -> ConflictMatrix.builder().phase(-1, 1));
+    }
+}
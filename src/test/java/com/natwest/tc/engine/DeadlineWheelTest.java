@@ -0,0 +1,66 @@
+package com.natwest.tc.engine;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeadlineWheelTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    @DisplayName("Should fire deadlines in order, never early, and skip cancelled ones")
+    void testFiresInOrder() {
+        DeadlineWheel wheel = new DeadlineWheel(8, 16, MS, 0);
+        List<String> fired = new ArrayList<>();
+        wheel.schedule(0, 5 * MS);
+        wheel.schedule(1, 3 * MS + 1); // rounds up to tick 4
+        wheel.schedule(2, 40 * MS);    // two and a half turns of a 16 ms wheel away
+        wheel.schedule(3, 7 * MS);
+        wheel.cancel(3);
+
+        assertEquals(0, wheel.advance(3 * MS, (slot, deadline) -> fired.add(slot + "@" + deadline)));
+        assertEquals(2, wheel.advance(39 * MS, (slot, deadline) -> fired.add(slot + "@" + deadline)));
+        assertEquals(List.of("1@" + (3 * MS + 1), "0@" + 5 * MS), fired);
+        assertEquals(1, wheel.size());
+
+        assertEquals(1, wheel.advance(40 * MS, (slot, deadline) -> fired.add(slot + "@" + deadline)));
+        assertEquals("2@" + 40 * MS, fired.get(2));
+        assertEquals(DeadlineWheel.NO_DEADLINE, wheel.deadline(2));
+    }
+
+    @Test
+    @DisplayName("Should catch up over a stall, including deadlines handlers schedule on the way")
+    void testCatchUp() {
+        DeadlineWheel wheel = new DeadlineWheel(1, 16, MS, 0);
+        List<Long> fired = new ArrayList<>();
+        wheel.schedule(0, 10 * MS);
+
+        // Each firing reschedules 10 ms after its own deadline, as the engine does
+        int count = wheel.advance(1_000 * MS, (slot, deadline) -> {
+            fired.add(deadline / MS);
+            wheel.schedule(slot, deadline + 10 * MS);
+        });
+
+        assertEquals(100, count);
+        assertEquals(10L, fired.get(0));
+        assertEquals(1_000L, fired.get(99));
+        assertEquals(1_010 * MS, wheel.deadline(0));
+    }
+
+    @Test
+    @DisplayName("Should fire a deadline scheduled in the past on the next advance")
+    void testPastDeadline() {
+        DeadlineWheel wheel = new DeadlineWheel(1, 16, MS, 100 * MS);
+        List<Long> fired = new ArrayList<>();
+        wheel.schedule(0, 50 * MS);
+
+        wheel.advance(101 * MS, (slot, deadline) -> fired.add(deadline));
+
+        assertEquals(List.of(50 * MS), fired);
+    }
+}
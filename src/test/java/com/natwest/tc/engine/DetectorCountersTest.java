@@ -0,0 +1,90 @@
+package com.natwest.tc.engine;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DetectorCountersTest {
+
+    @Test
+    @DisplayName("Should count per window and direction, discarding the other directions on roll")
+    void testRollWindows() {
+        DetectorCounters counters = new DetectorCounters(4, 16, 4);
+        counters.define(1, new int[]{9, 3, 5, 3});
+        counters.define(2, new int[]{9});
+        assertEquals(DetectorCounters.NO_DETECTORS, counters.roll(1, new int[]{3}));
+
+        assertTrue(counters.record(1, 3, 2));
+        assertTrue(counters.record(1, 5, 7));
+        assertTrue(counters.record(1, 9, 1));
+        assertFalse(counters.record(1, 16, 1));
+        assertFalse(counters.record(1, -1, 1));
+
+        assertEquals(9, counters.roll(1, new int[]{3, 5}));
+        // Direction 9 was discarded with the closed window, and the new one starts empty
+        assertEquals(0, counters.roll(1, new int[]{3, 5, 9}));
+        counters.record(1, 9, 4);
+        assertEquals(4, counters.roll(1, new int[]{9}));
+        assertEquals(DetectorCounters.NO_DETECTORS, counters.roll(2, new int[]{9}));
+    }
+
+    @Test
+    @DisplayName("Should count only the defined directions and keep counting across a redefinition")
+    void testDefine() {
+        DetectorCounters counters = new DetectorCounters(2, 256, 8);
+        assertTrue(counters.record(0, 200, 5));
+        // Counted nowhere, but the intersection now has detectors
+        assertEquals(0, counters.roll(0, new int[]{200}));
+
+        counters.define(0, new int[]{200, 7, 300});
+        counters.record(0, 200, 5);
+        counters.record(0, 7, 2);
+        assertEquals(7, counters.roll(0, new int[]{7, 200}));
+
+        // The same directions again keep the block; new ones take over at once, and the old counts still roll
+        counters.record(0, 7, 3);
+        counters.define(0, new int[]{7, 200});
+        counters.define(0, new int[]{7, 9});
+        counters.record(0, 9, 4);
+        counters.record(0, 200, 1);
+        assertEquals(7, counters.roll(0, new int[]{7, 9}));
+        counters.record(0, 9, 4);
+        assertEquals(4, counters.roll(0, new int[]{7, 9}));
+        assertEquals(DetectorCounters.NO_DETECTORS, counters.roll(1, new int[]{7}));
+    }
+
+    @Test
+    @DisplayName("Should lose no counts recorded concurrently with rolling")
+    void testConcurrentRecording() throws InterruptedException {
+        DetectorCounters counters = new DetectorCounters(1, 8, 8);
+        counters.define(0, new int[]{0, 1});
+        int threads = 4;
+        int perThread = 200_000;
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    counters.record(0, i & 1, 1);
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        long total = 0;
+        while (writers.stream().anyMatch(Thread::isAlive)) {
+            total += Math.max(0, counters.roll(0, new int[]{0, 1}));
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        // Adds that raced with a flip surface one roll later, so two more rolls collect everything
+        total += counters.roll(0, new int[]{0, 1});
+        total += counters.roll(0, new int[]{0, 1});
+
+        assertEquals((long) threads * perThread, total);
+    }
+}
@@ -0,0 +1,89 @@
+package com.natwest.tc.engine;
+
+import com.natwest.tc.model.LightColor;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.time.Clock;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EngineCheckpointTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    @DisplayName("Should read back every slot's state and sequence after the file is reopened")
+    void testReopen() throws Exception {
+        Path file = dir.resolve("engine.checkpoint");
+        PhasePlan plan = PhasePlan.compile(new int[]{1, 2, 3}, id -> 20, ConflictMatrix.EMPTY);
+        long state = IntersectionTable.withDebtMicros(IntersectionTable.pack(2, LightColor.YELLOW, false), 1500);
+        try (EngineCheckpoint checkpoint = new EngineCheckpoint(file, 8)) {
+            checkpoint.write(0, "J1", plan, 4, state, 1_000_000, 1_250_000, 900_000);
+            checkpoint.write(1, "J2", PhasePlan.EMPTY, 4, IntersectionTable.pack(0, LightColor.RED, true),
+                    1_000_000, EngineCheckpoint.NO_DEADLINE, 0);
+            // A second engine must not write the same file
+            assertThrows(IOException.class, () -> new EngineCheckpoint(file, 8));
+        }
+
+        try (EngineCheckpoint checkpoint = new EngineCheckpoint(file, 8)) {
+            EngineCheckpoint.Entry entry = checkpoint.read(0);
+            assertEquals("J1", entry.intersectionId());
+            assertArrayEquals(new int[]{1, 2, 3}, entry.phaseIds());
+            assertEquals(4, entry.generation());
+            assertEquals(state, entry.state());
+            assertEquals(1_250_000, entry.deadlineMicros());
+            assertEquals(900_000, entry.greenStartMicros());
+            assertEquals(0, checkpoint.read(1).phaseIds().length);
+            assertNull(checkpoint.read(2));
+
+            checkpoint.clear(1);
+            assertNull(checkpoint.read(1));
+        }
+    }
+
+    @Test
+    @DisplayName("Should treat a record torn by a crash mid-write as absent")
+    void testTornRecord() throws Exception {
+        Path file = dir.resolve("engine.checkpoint");
+        PhasePlan plan = PhasePlan.compile(new int[]{1, 2}, id -> 20, ConflictMatrix.EMPTY);
+        try (EngineCheckpoint checkpoint = new EngineCheckpoint(file, 4)) {
+            checkpoint.write(0, "J1", plan, 1, IntersectionTable.pack(0, LightColor.GREEN, false), 1, 2, 1);
+            checkpoint.write(1, "J2", plan, 1, IntersectionTable.pack(1, LightColor.GREEN, false), 1, 2, 1);
+        }
+        // Slot 1's version left odd, as if the process died between the two version writes
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(2L * EngineCheckpoint.RECORD_BYTES);
+            long version = raf.readLong();
+            raf.seek(2L * EngineCheckpoint.RECORD_BYTES);
+            raf.writeLong(version | 1);
+        }
+
+        try (EngineCheckpoint checkpoint = new EngineCheckpoint(file, 4)) {
+            assertEquals("J1", checkpoint.read(0).intersectionId());
+            assertNull(checkpoint.read(1));
+        }
+    }
+
+    @Test
+    @DisplayName("Should refuse an over-long intersection id without tearing the record")
+    void testLongIntersectionId() throws Exception {
+        PhasePlan plan = PhasePlan.compile(new int[]{1, 2}, id -> 20, ConflictMatrix.EMPTY);
+        String longId = "J".repeat(EngineCheckpoint.MAX_INTERSECTION_ID_BYTES + 1);
+        try (EngineCheckpoint checkpoint = new EngineCheckpoint(dir.resolve("engine.checkpoint"), 4)) {
+            checkpoint.write(0, "J1", plan, 1, IntersectionTable.pack(0, LightColor.GREEN, false), 1, 2, 1);
+            assertThrows(IllegalArgumentException.class, () -> checkpoint.write(0, longId, plan, 2,
+                    IntersectionTable.pack(1, LightColor.GREEN, false), 3, 4, 3));
+
+            EngineCheckpoint.Entry entry = checkpoint.read(0);
+            assertEquals("J1", entry.intersectionId());
+            assertEquals(1, entry.generation());
+        }
+        assertThrows(IllegalArgumentException.class, () -> new IntersectionTable(4).register(longId, Clock.systemUTC()));
+    }
+}
@@ -0,0 +1,109 @@
+package com.natwest.tc.engine;
+
+import com.natwest.tc.model.LightColor;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EngineReplicaTest {
+
+    private static final PhasePlan PLAN = PhasePlan.compile(new int[]{1, 2, 3}, id -> 20, ConflictMatrix.EMPTY);
+
+    /** One frame holding J1's definition and state and, if given, a state for slot 1 with no definition. */
+    private static ByteBuffer frame(int flags, long term, long sentAt, long state) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int start = ReplicationFrame.begin(buffer, flags, term, sentAt);
+        ReplicationFrame.putDefine(buffer, 0, "J1", PLAN, 7);
+        ReplicationFrame.putState(buffer, 0, state, 2_000_000, 900_000);
+        ReplicationFrame.putState(buffer, 1, state, EngineCheckpoint.NO_DEADLINE, 0);
+        ReplicationFrame.finish(buffer, start, 3);
+        return buffer;
+    }
+
+    @Test
+    @DisplayName("Should turn frames into checkpoint entries for every defined intersection")
+    void testApply() {
+        long state = IntersectionTable.withDebtMicros(IntersectionTable.pack(1, LightColor.YELLOW, false), 1500);
+        ByteBuffer buffer = frame(0, 3, 1_000_000, state);
+        assertEquals(buffer.position() - 4, ReplicationFrame.length(buffer, 0));
+
+        EngineReplica replica = new EngineReplica();
+        assertTrue(replica.apply(buffer, 0, 0));
+
+        List<EngineCheckpoint.Entry> entries = replica.entries(0, 1_000_000);
+        assertEquals(1, entries.size());
+        EngineCheckpoint.Entry entry = entries.get(0);
+        assertEquals("J1", entry.intersectionId());
+        assertArrayEquals(new int[]{1, 2, 3}, entry.phaseIds());
+        assertEquals(7, entry.generation());
+        assertEquals(state, entry.state());
+        assertEquals(2_000_000, entry.deadlineMicros());
+        assertEquals(900_000, entry.greenStartMicros());
+        assertEquals(3, replica.term());
+
+        // A heartbeat keeps unchanged intersections current
+        ByteBuffer heartbeat = ByteBuffer.allocate(64);
+        ReplicationFrame.finish(heartbeat, ReplicationFrame.begin(heartbeat, 0, 3, 1_500_000), 0);
+        assertTrue(replica.apply(heartbeat, 0, 500_000_000));
+        assertEquals(1_500_000, replica.entries(500_000_000, 1_500_000).get(0).writtenAtMicros());
+    }
+
+    @Test
+    @DisplayName("Should count the time left from the frame's arrival, whatever the standby's wall clock reads")
+    void testClockSkew() {
+        long yellow = IntersectionTable.pack(1, LightColor.YELLOW, false);
+        EngineReplica replica = new EngineReplica();
+        // Sent at 1 s on the leader's clock with its deadline 1 s later; received at nanoTime 7 s
+        assertTrue(replica.apply(frame(0, 1, 1_000_000, yellow), 0, 7_000_000_000L));
+
+        // 400 ms after receipt, on a standby whose wall clock is 5 s behind the leader's
+        EngineCheckpoint.Entry entry = replica.entries(7_400_000_000L, -3_600_000).get(0);
+        assertEquals(-3_000_000, entry.deadlineMicros());
+        assertEquals(-4_100_000, entry.greenStartMicros());
+        assertEquals(-4_000_000, entry.writtenAtMicros());
+        assertEquals(600_000, entry.deadlineMicros() - (-3_600_000));
+    }
+
+    @Test
+    @DisplayName("Should reject a deposed leader's frames and start over on a new term or a reset")
+    void testTerms() {
+        long green = IntersectionTable.pack(0, LightColor.GREEN, false);
+        EngineReplica replica = new EngineReplica();
+        assertTrue(replica.apply(frame(0, 5, 1_000_000, green), 0, 0));
+
+        assertFalse(replica.apply(frame(0, 4, 2_000_000, green), 0, 0));
+        assertEquals(1_000_000, replica.lastFrameMicros());
+
+        // The new leader's first frame defines nothing yet: everything from the old term is gone
+        ByteBuffer next = ByteBuffer.allocate(64);
+        int start = ReplicationFrame.begin(next, 0, 6, 3_000_000);
+        ReplicationFrame.putState(next, 0, green, 4_000_000, 3_000_000);
+        ReplicationFrame.finish(next, start, 1);
+        assertTrue(replica.apply(next, 0, 0));
+        assertTrue(replica.entries(0, 0).isEmpty());
+
+        assertTrue(replica.apply(frame(0, 6, 4_000_000, green), 0, 0));
+        assertEquals(1, replica.entries(0, 0).size());
+        ByteBuffer reset = ByteBuffer.allocate(64);
+        ReplicationFrame.finish(reset, ReplicationFrame.begin(reset, 0, 6, 5_000_000), 0);
+        ReplicationFrame.addFlags(reset, 0, ReplicationFrame.RESET);
+        assertTrue(replica.apply(reset, 0, 0));
+        assertTrue(replica.entries(0, 0).isEmpty());
+    }
+
+    @Test
+    @DisplayName("Should reject a frame with a bad magic number or a record running past its end")
+    void testMalformed() {
+        ByteBuffer buffer = frame(0, 1, 1, IntersectionTable.pack(0, LightColor.GREEN, false));
+        buffer.putShort(4, (short) 0);
+        assertFalse(new EngineReplica().apply(buffer, 0, 0));
+
+        ByteBuffer truncated = frame(0, 1, 1, IntersectionTable.pack(0, LightColor.GREEN, false));
+        truncated.putInt(0, ReplicationFrame.HEADER_BYTES - 4 + 10);
+        assertFalse(new EngineReplica().apply(truncated, 0, 0));
+    }
+}
@@ -0,0 +1,97 @@
+package com.natwest.tc.engine;
+
+import com.natwest.tc.entity.HistoryEvent;
+import com.natwest.tc.model.LightColor;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventJournalTest {
+
+    private static final LocalDateTime T = LocalDateTime.of(2024, 5, 1, 12, 0, 0, 123_456_789);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    @DisplayName("Should return filtered records newest first and resume before a given id")
+    void testScanBackwards() throws Exception {
+        try (EventJournal journal = new EventJournal(dir, 1 << 20, 4)) {
+            journal.append(T, "J1", "STATE_CHANGE", 1, LightColor.GREEN, "Phase 1 turned GREEN");
+            journal.append(T.plusSeconds(1), "J2", "COMMAND", null, null, "New sequence started: [1, 2]");
+            journal.append(T.plusSeconds(2), "J1", "ERROR", 2, LightColor.RED, "Safety violation detected for Phase 2");
+            journal.append(T.plusSeconds(3), "J1", "STATE_CHANGE", 1, LightColor.YELLOW, "Phase 1 turned YELLOW");
+
+            List<HistoryEvent> j1 = journal.scan("J1", null, null, null, Long.MAX_VALUE, 10);
+            assertEquals(List.of(4L, 3L, 1L), j1.stream().map(HistoryEvent::getId).toList());
+            HistoryEvent first = j1.get(2);
+            assertEquals(T, first.getTimestamp());
+            assertEquals(1, first.getPhaseId());
+            assertEquals(LightColor.GREEN, first.getColor());
+            assertEquals("Phase 1 turned GREEN", first.getDetails());
+
+            assertEquals(List.of(3L), journal.scan(null, "ERROR", null, null, Long.MAX_VALUE, 10)
+                    .stream().map(HistoryEvent::getId).toList());
+            assertEquals(List.of(2L, 1L), journal.scan(null, null, null, null, 3, 10)
+                    .stream().map(HistoryEvent::getId).toList());
+            assertEquals(List.of(3L, 2L), journal.scan(null, null, T.plusSeconds(1), T.plusSeconds(3), Long.MAX_VALUE, 10)
+                    .stream().map(HistoryEvent::getId).toList());
+            assertNull(journal.scan(null, "COMMAND", null, null, Long.MAX_VALUE, 1).get(0).getPhaseId());
+        }
+    }
+
+    @Test
+    @DisplayName("Should find records written before the clock went back")
+    void testClockStepBack() throws Exception {
+        try (EventJournal journal = new EventJournal(dir, 1 << 20, 4)) {
+            journal.append(T.plusHours(2), "J1", "STATE_CHANGE", 1, LightColor.GREEN, "before");
+            // Clocks went back: the next records are older than the one before them
+            journal.append(T, "J1", "STATE_CHANGE", 1, LightColor.YELLOW, "after");
+            journal.append(T.plusSeconds(1), "J1", "STATE_CHANGE", 1, LightColor.RED, "after");
+
+            assertEquals(List.of("before"), journal.scan(null, null, T.plusHours(1), null, Long.MAX_VALUE, 10)
+                    .stream().map(HistoryEvent::getDetails).toList());
+        }
+    }
+
+    @Test
+    @DisplayName("Should roll segments by size and drop the oldest beyond the limit")
+    void testSegmentRolling() throws Exception {
+        // Four records per segment, at most two segments
+        try (EventJournal journal = new EventJournal(dir, 4L * EventJournal.RECORD_BYTES, 2)) {
+            for (int i = 0; i < 10; i++) {
+                journal.append(T.plusSeconds(i), "J1", "STATE_CHANGE", i, LightColor.GREEN, "e" + i);
+            }
+            assertEquals(2, journal.segmentCount());
+            assertEquals(5, journal.firstId());
+            assertEquals(10, journal.lastId());
+            assertEquals(List.of("e9", "e8", "e7", "e6", "e5", "e4"), journal.scan(null, null, null, null, Long.MAX_VALUE, 100)
+                    .stream().map(HistoryEvent::getDetails).toList());
+        }
+    }
+
+    @Test
+    @DisplayName("Should resume after the last complete record when reopened")
+    void testReopen() throws Exception {
+        try (EventJournal journal = new EventJournal(dir, 4L * EventJournal.RECORD_BYTES, 8)) {
+            for (int i = 0; i < 6; i++) {
+                journal.append(T, "J1", "STATE_CHANGE", 1, LightColor.GREEN, "before " + i);
+            }
+            // A second journal must not map the same segments
+            assertThrows(IOException.class, () -> new EventJournal(dir, 4L * EventJournal.RECORD_BYTES, 8));
+        }
+        try (EventJournal journal = new EventJournal(dir, 4L * EventJournal.RECORD_BYTES, 8)) {
+            assertEquals(6, journal.lastId());
+            assertEquals(7, journal.append(T, "J1", "COMMAND", null, null, "after"));
+            assertEquals(List.of("after", "before 5"), journal.scan(null, null, null, null, Long.MAX_VALUE, 2)
+                    .stream().map(HistoryEvent::getDetails).toList());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.natwest.tc.engine;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GreenWaveOptimizerTest {
+
+    @Test
+    @DisplayName("Should offset two junctions by the travel time so both directions get the whole green")
+    void testTwoJunctions() {
+        // 30 s of green in a 60 s cycle, 30 s apart: half a cycle serves both directions exactly
+        GreenWaveOptimizer optimizer = new GreenWaveOptimizer(60,
+                new int[]{0, 0}, new int[]{30, 30}, new int[]{0, 30}, new int[]{30, 0}, 1.0);
+
+        GreenWaveOptimizer.Result result = optimizer.optimize(ForkJoinPool.commonPool(), 4, 1);
+
+        assertArrayEquals(new int[]{0, 30}, result.offsets());
+        assertEquals(30, result.outboundBand());
+        assertEquals(30, result.inboundBand());
+    }
+
+    @Test
+    @DisplayName("Should measure a band that wraps round the end of the cycle")
+    void testBandWrapsRoundTheCycle() {
+        long[] mask = {0b1100_0000_0111L};
+
+        // Bits 0-2 and 10-11 of a 12 s cycle are one run of five
+        assertEquals(5, GreenWaveOptimizer.longestRun(mask, 12));
+        assertEquals(3, GreenWaveOptimizer.longestRun(mask, 20));
+        assertEquals(70, GreenWaveOptimizer.longestRun(new long[]{-1L, 0b11_1111L}, 70));
+    }
+
+    @Test
+    @DisplayName("Should plan a 50-junction corridor in under a second, beating both ideal one-way waves")
+    void testFiftyJunctions() {
+        int n = 50;
+        int cycle = 90;
+        SplittableRandom random = new SplittableRandom(7);
+        int[] greenStart = new int[n];
+        int[] green = new int[n];
+        int[] outbound = new int[n];
+        int[] inbound = new int[n];
+        for (int j = 0; j < n; j++) {
+            green[j] = 35 + random.nextInt(20);
+            greenStart[j] = random.nextInt(cycle - green[j]);
+            if (j > 0) {
+                // Blocks about half a cycle apart, as on a regular street grid
+                outbound[j] = outbound[j - 1] + 41 + random.nextInt(9);
+            }
+        }
+        for (int j = 0; j < n; j++) {
+            inbound[j] = outbound[n - 1] - outbound[j];
+        }
+        GreenWaveOptimizer optimizer = new GreenWaveOptimizer(cycle, greenStart, green, outbound, inbound, 1.0);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            long started = System.nanoTime();
+            GreenWaveOptimizer.Result result = optimizer.optimize(pool, 16, 1);
+            long elapsed = System.nanoTime() - started;
+
+            assertTrue(elapsed < TimeUnit.SECONDS.toNanos(1), "took " + elapsed / 1_000_000 + " ms");
+            assertEquals(0, result.offsets()[0]);
+            assertEquals(result.outboundBand(), optimizer.outboundBand(result.offsets()));
+            assertEquals(result.inboundBand(), optimizer.inboundBand(result.offsets()));
+            // The narrowest green bounds either band
+            int narrowest = Arrays.stream(green).min().orElseThrow();
+            assertTrue(result.outboundBand() <= narrowest && result.inboundBand() <= narrowest);
+            assertTrue(result.score() >= idealScore(optimizer, greenStart, outbound, cycle));
+            assertTrue(result.score() >= idealScore(optimizer, greenStart, inbound, cycle));
+            // Half-cycle spacing leaves room for a band in both directions
+            assertTrue(result.outboundBand() > 0 && result.inboundBand() > 0, result.toString());
+
+            // Same seed, same corridor: same offsets
+            assertArrayEquals(result.offsets(), optimizer.optimize(pool, 16, 1).offsets());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Score of the offsets that open every green as the first junction's platoon arrives. */
+    private static double idealScore(GreenWaveOptimizer optimizer, int[] greenStart, int[] arrival, int cycle) {
+        int[] offsets = new int[greenStart.length];
+        for (int j = 1; j < offsets.length; j++) {
+            offsets[j] = Math.floorMod(greenStart[0] - arrival[0] - greenStart[j] + arrival[j], cycle);
+        }
+        return optimizer.outboundBand(offsets) + optimizer.inboundBand(offsets);
+    }
+}
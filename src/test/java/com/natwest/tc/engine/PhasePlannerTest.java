@@ -0,0 +1,134 @@
+package com.natwest.tc.engine;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PhasePlannerTest {
+
+    @Test
+    @DisplayName("Should cover every movement with the fewest maximal conflict-free phases")
+    void testSmallestCover() {
+        ConflictMatrix matrix = ConflictMatrix.builder()
+                .conflict(1, 2)
+                .conflict(3, 4)
+                .conflict(1, 3)
+                .build();
+        PhasePlanner planner = new PhasePlanner(matrix);
+
+        PhasePlanner.Result result = planner.plan(ForkJoinPool.commonPool(), 5, 1000, TimeUnit.SECONDS.toNanos(5));
+
+        // {1,4}, {2,3} and {2,4}; only the first two cover everything in two phases
+        assertEquals(3, result.maximalSets());
+        assertTrue(result.enumerationComplete());
+        assertTrue(result.optimal());
+        assertEquals(1, result.covers().size());
+        long[][] phases = result.covers().get(0);
+        assertEquals(2, phases.length);
+        long[] covered = new long[matrix.words()];
+        for (long[] phase : phases) {
+            assertTrue(matrix.isConflictFree(phase));
+            assertEquals(0, Long.bitCount(planner.addable(phase)[0]));
+            covered[0] |= phase[0];
+        }
+        assertEquals(0b1111, covered[0]);
+    }
+
+    @Test
+    @DisplayName("Should plan a 132-movement junction within its budget, in parallel")
+    void testLargeJunction() {
+        ConflictMatrix matrix = junction(12);
+        PhasePlanner planner = new PhasePlanner(matrix);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            long started = System.nanoTime();
+            PhasePlanner.Result result = planner.plan(pool, 3, 200_000, TimeUnit.SECONDS.toNanos(4));
+            long elapsed = System.nanoTime() - started;
+
+            assertEquals(132, planner.movements());
+            assertTrue(elapsed < TimeUnit.SECONDS.toNanos(6), "took " + elapsed / 1_000_000 + " ms");
+            assertFalse(result.covers().isEmpty());
+            // 12 mutually conflicting movements need a phase each, and a cover that small is found
+            assertEquals(12, result.lowerBound());
+            assertTrue(result.optimal());
+            for (long[][] phases : result.covers()) {
+                assertTrue(phases.length >= result.lowerBound());
+                assertEquals(result.covers().get(0).length, phases.length);
+                long[] covered = new long[matrix.words()];
+                for (long[] phase : phases) {
+                    assertTrue(matrix.isConflictFree(phase));
+                    for (int w = 0; w < covered.length; w++) {
+                        covered[w] |= phase[w];
+                    }
+                }
+                int movements = 0;
+                for (long word : covered) {
+                    movements += Long.bitCount(word);
+                }
+                assertEquals(132, movements);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    @DisplayName("Should order phases so a movement served twice gets its greens spread out")
+    void testOrderingSpreadsRepeatedService() {
+        ConflictMatrix matrix = ConflictMatrix.builder().direction(1).direction(2).direction(3).build();
+        PhasePlanner planner = new PhasePlanner(matrix);
+        long[] a = matrix.maskOf(1, 3);
+        long[] b = matrix.maskOf(1);
+        long[] c = matrix.maskOf(2);
+        long[] d = matrix.maskOf(3);
+
+        long[][] ordered = planner.order(new long[][]{a, b, c, d});
+
+        // Direction 1 is in a and b, direction 3 in a and d: one of b and d goes opposite a
+        assertSame(a, ordered[0]);
+        assertTrue(ordered[2] == b || ordered[2] == d);
+        int[] runs = planner.longestRedRuns(ordered);
+        assertEquals(3, runs[1]);
+        assertEquals(3, runs[0] + runs[2]);
+    }
+
+    /**
+     * Every arm of a junction drawn as points on a circle, each movement a chord from its entry to
+     * one of the other exits; movements conflict when their chords cross or they merge into the same
+     * exit.
+     */
+    static ConflictMatrix junction(int arms) {
+        ConflictMatrix.Builder builder = ConflictMatrix.builder();
+        int[][] movements = new int[arms * (arms - 1)][];
+        int n = 0;
+        for (int from = 0; from < arms; from++) {
+            for (int to = 0; to < arms; to++) {
+                if (from != to) {
+                    movements[n] = new int[]{2 * from, 2 * to + 1};
+                    builder.direction(++n);
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                if (movements[i][1] == movements[j][1] || crosses(movements[i], movements[j])) {
+                    builder.conflict(i + 1, j + 1);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private static boolean crosses(int[] a, int[] b) {
+        int lo = Math.min(a[0], a[1]);
+        int hi = Math.max(a[0], a[1]);
+        boolean first = b[0] > lo && b[0] < hi;
+        boolean second = b[1] > lo && b[1] < hi;
+        // Chords sharing an entry point diverge and do not cross
+        return a[0] != b[0] && first != second;
+    }
+}
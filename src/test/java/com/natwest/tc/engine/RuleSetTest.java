@@ -0,0 +1,63 @@
+package com.natwest.tc.engine;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RuleSetTest {
+
+    @Test
+    @DisplayName("Should remap ids to indexes and answer lookups from the primitive tables")
+    void testLookups() {
+        RuleSet rules = RuleSet.builder()
+                .phase(2, "East-West", 45)
+                .phase(1, "North-South", RuleSet.NO_DURATION)
+                .direction(102, "South")
+                .direction(101, "North")
+                .direction(103, "East")
+                .allow(1, 102)
+                .allow(1, 101)
+                .allow(1, 101) // duplicate row collapses
+                .allow(2, 103)
+                .allow(9, 101) // unknown phase is dropped
+                .conflict(101, 103)
+                .build();
+
+        assertEquals(2, rules.phaseCount());
+        assertEquals(3, rules.directionCount());
+        assertEquals(3, rules.allowanceCount());
+        assertEquals(1, rules.conflictCount());
+        assertEquals(0, rules.phaseIndexOf(1));
+        assertEquals(-1, rules.phaseIndexOf(9));
+        assertEquals(45, rules.greenSeconds(2));
+        assertEquals(RuleSet.NO_DURATION, rules.greenSeconds(1));
+        assertEquals("North-South", rules.phaseName(1));
+        assertEquals("South", rules.directionName(102));
+        assertArrayEquals(new int[]{101, 102}, rules.allowedDirectionIds(1));
+        assertArrayEquals(new int[0], rules.allowedDirectionIds(9));
+        assertArrayEquals(new int[]{103}, rules.conflictIds(101));
+
+        assertTrue(rules.matrix().conflicts(103, 101));
+        assertTrue(rules.matrix().isPhaseConflictFree(1));
+    }
+
+    @Test
+    @DisplayName("Should look up sparse ids by binary search and report a footprint")
+    void testSparseIdsAndFootprint() {
+        RuleSet rules = RuleSet.builder()
+                .phase(1_000_000, "Late", 30)
+                .direction(7, "West")
+                .direction(2_000_000, "Far")
+                .allow(1_000_000, 2_000_000)
+                .build();
+
+        assertEquals(0, rules.phaseIndexOf(1_000_000));
+        assertEquals(1, rules.directionIndexOf(2_000_000));
+        assertEquals(-1, rules.directionIndexOf(8));
+        assertArrayEquals(new int[]{2_000_000}, rules.allowedDirectionIds(1_000_000));
+        assertEquals(4, rules.ruleCount());
+        assertTrue(rules.footprintBytes() > 0);
+        assertEquals(0, RuleSet.EMPTY.bytesPerRule());
+    }
+}
@@ -0,0 +1,72 @@
+package com.natwest.tc.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockingCallExecutorTest {
+
+    private BlockingCallExecutor executor;
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        executor.shutdown();
+    }
+
+    @Test
+    @DisplayName("Should run blocking calls off the caller's thread and pass failures through")
+    void testRunsOffCallerThread() throws Exception {
+        executor = new BlockingCallExecutor(BlockingCallExecutor.Mode.PLATFORM, 2);
+
+        assertEquals(BlockingCallExecutor.Mode.PLATFORM, executor.getMode());
+        assertNull(executor.requestExecutor());
+        String thread = executor.submit(() -> Thread.currentThread().getName()).get(5, TimeUnit.SECONDS);
+        assertTrue(thread.startsWith("traffic-io-"));
+
+        CompletableFuture<Object> failed = executor.submit(() -> {
+            throw new IllegalArgumentException("bad cursor");
+        });
+        ExecutionException e = assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalArgumentException.class, e.getCause());
+    }
+
+    @Test
+    @DisplayName("Should let no more than the configured number of calls block at once")
+    void testBoundsConcurrency() throws Exception {
+        executor = new BlockingCallExecutor(BlockingCallExecutor.Mode.VIRTUAL, 1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<Integer> first = executor.submit(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 1;
+        });
+        CompletableFuture<Integer> second = executor.submit(() -> 2);
+
+        Thread.sleep(100);
+        assertFalse(second.isDone());
+        release.countDown();
+        assertEquals(1, first.get(5, TimeUnit.SECONDS));
+        assertEquals(2, second.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    @DisplayName("Should fall back to platform threads when the runtime has no virtual threads")
+    void testVirtualModeMatchesRuntime() {
+        executor = new BlockingCallExecutor(BlockingCallExecutor.Mode.VIRTUAL, 4);
+
+        boolean supported = Runtime.version().feature() >= 21;
+        assertEquals(supported ? BlockingCallExecutor.Mode.VIRTUAL : BlockingCallExecutor.Mode.PLATFORM, executor.getMode());
+        assertEquals(supported, executor.requestExecutor() != null);
+    }
+}
@@ -0,0 +1,141 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.engine.ConflictMatrix;
+import com.natwest.tc.entity.SignalPhase;
+import com.natwest.tc.model.IntersectionState;
+import com.natwest.tc.model.LightColor;
+import com.natwest.tc.repository.LeaseRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class ClusterServiceTest {
+
+    @Mock
+    private TrafficCacheService cacheService;
+
+    @Mock
+    private HistoryStore historyStore;
+
+    @Mock
+    private StateStreamService stateStream;
+
+    private JdbcTemplate jdbcTemplate;
+    private final List<ClusterService> nodes = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        when(cacheService.getConflictMatrix()).thenReturn(ConflictMatrix.EMPTY);
+        when(cacheService.getPhase(anyInt())).thenAnswer(inv -> {
+            SignalPhase phase = new SignalPhase();
+            phase.setPhaseId(inv.getArgument(0));
+            phase.setDurationSeconds(60);
+            return phase;
+        });
+        when(cacheService.getAllowedDirectionIds(anyInt())).thenReturn(new int[0]);
+
+        jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource("jdbc:h2:mem:cluster-" + System.nanoTime() + ";DB_CLOSE_DELAY=-1"));
+        jdbcTemplate.execute("CREATE TABLE controller_lease (lease_name VARCHAR(50) PRIMARY KEY, holder VARCHAR(100), "
+                + "replication_address VARCHAR(100), term BIGINT NOT NULL DEFAULT 0, renewals BIGINT NOT NULL DEFAULT 0)");
+        jdbcTemplate.update("INSERT INTO controller_lease (lease_name) VALUES (?)", ClusterService.LEASE);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        for (ClusterService node : nodes) {
+            node.stop();
+        }
+        jdbcTemplate.execute("SHUTDOWN");
+    }
+
+    /** A node whose engine runs on the system clock without its scheduler, so its lights only change on command. */
+    private ClusterService node(String id, TrafficEngineService engine) throws Exception {
+        ClusterService node = new ClusterService(engine, new LeaseRepository(jdbcTemplate), id, 0, "localhost",
+                300, 50, 20, 5, 20, 65536, 1 << 20);
+        node.bind();
+        nodes.add(node);
+        return node;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    @DisplayName("Should lead alone, replicate to a standby and hand over to it in the same phase")
+    void testFailover() throws Exception {
+        TrafficEngineService first = new TrafficEngineService(cacheService, historyStore, stateStream);
+        TrafficEngineService second = new TrafficEngineService(cacheService, historyStore, stateStream);
+        ClusterService a = node("a", first);
+        ClusterService b = node("b", second);
+        AtomicBoolean coldStarted = new AtomicBoolean();
+
+        a.join(() -> first.startCycle(Arrays.asList(1, 2)));
+        assertTrue(a.isLeader());
+        first.startCycle("J2", Arrays.asList(2, 1));
+
+        b.join(() -> coldStarted.set(true));
+        assertFalse(b.isLeader());
+        assertThrows(StandbyException.class, () -> second.pauseSystem());
+        await(() -> ((Number) b.getStatus().get("replicatedIntersections")).intValue() == 2);
+        assertEquals(1, a.getStatus().get("followers"));
+
+        a.stop();
+        assertTrue(first.isStandby());
+        assertNull(new LeaseRepository(jdbcTemplate).find(ClusterService.LEASE).orElseThrow().holder());
+        await(b::isLeader);
+
+        assertFalse(coldStarted.get());
+        IntersectionState state = second.getCurrentState();
+        assertEquals(1, state.getCurrentPhaseId());
+        assertEquals(LightColor.GREEN, state.getCurrentPhaseColor());
+        assertEquals(2, second.getCurrentState("J2").getCurrentPhaseId());
+        assertEquals(2L, b.getStatus().get("term"));
+        second.pauseSystem();
+    }
+
+    @Test
+    @DisplayName("Should take a lease over only once it has gone a lease period without a renewal")
+    void testLapsedLease() throws Exception {
+        // Held by a node that died without releasing it
+        jdbcTemplate.update("UPDATE controller_lease SET holder = 'crashed', replication_address = 'localhost:1', "
+                + "term = 4, renewals = 9");
+        TrafficEngineService engine = new TrafficEngineService(cacheService, historyStore, stateStream);
+        ClusterService node = node("b", engine);
+        long joined = System.nanoTime();
+
+        node.join(() -> engine.startCycle(Arrays.asList(1, 2)));
+        assertFalse(node.isLeader());
+        assertTrue(engine.isStandby());
+        await(node::isLeader);
+
+        assertTrue(System.nanoTime() - joined >= TimeUnit.MILLISECONDS.toNanos(300));
+        assertEquals(5L, node.getStatus().get("term"));
+        assertEquals(LightColor.GREEN, engine.getCurrentState().getCurrentPhaseColor());
+    }
+}
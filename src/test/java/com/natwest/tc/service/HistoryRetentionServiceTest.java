@@ -0,0 +1,141 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.model.LightColor;
+import com.natwest.tc.model.PhaseHourRollup;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryRetentionServiceTest {
+
+    private static final LocalDateTime HOUR = LocalDateTime.of(2024, 1, 1, 10, 0);
+
+    private EmbeddedDatabase database;
+    private JdbcTemplate jdbcTemplate;
+    private HistoryRetentionService retention;
+
+    @BeforeEach
+    void setUp() {
+        database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true)
+                .addScript("data.sql").build();
+        jdbcTemplate = new JdbcTemplate(database);
+        retention = new HistoryRetentionService(jdbcTemplate, 1, 365, 2, 100, 48);
+    }
+
+    @AfterEach
+    void tearDown() {
+        database.shutdown();
+    }
+
+    private void insert(LocalDateTime timestamp, String type, Integer phaseId, LightColor color) {
+        jdbcTemplate.update(HistoryWriter.INSERT_SQL, timestamp, "J1", type, phaseId,
+                color != null ? color.name() : null, "test");
+    }
+
+    private int rawRows() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM traffic_history", Integer.class);
+    }
+
+    @Test
+    @DisplayName("Should roll up green time, cycles and lockouts per phase and hour")
+    void testRollUp() {
+        insert(HOUR.plusMinutes(10), "STATE_CHANGE", 1, LightColor.GREEN);
+        insert(HOUR.plusMinutes(11), "STATE_CHANGE", 1, LightColor.YELLOW);
+        insert(HOUR.plusMinutes(11).plusSeconds(3), "STATE_CHANGE", 1, LightColor.RED);
+        insert(HOUR.plusMinutes(11).plusSeconds(3), "ERROR", 2, LightColor.RED);
+        // Turns green in this hour and stays green into the next one
+        insert(HOUR.plusMinutes(59), "STATE_CHANGE", 1, LightColor.GREEN);
+        insert(HOUR.plusMinutes(61), "STATE_CHANGE", 1, LightColor.YELLOW);
+        insert(HOUR.plusMinutes(30), "COMMAND", null, null);
+
+        assertEquals(2, retention.rollUp(HOUR.plusHours(2).plusMinutes(5)));
+
+        List<PhaseHourRollup> rollups = retention.getRollups("J1", null, HOUR, HOUR.plusHours(1), 10);
+        assertEquals(2, rollups.size());
+        PhaseHourRollup phase1 = rollups.stream().filter(r -> r.getPhaseId() == 1).findFirst().orElseThrow();
+        // The last green counts up to the end of the hour; the rest of it belongs to the next one
+        assertEquals(60 + 60, phase1.getGreenSeconds());
+        assertEquals(2, phase1.getCycles());
+        assertEquals(0, phase1.getLockouts());
+        PhaseHourRollup carried = retention.getRollups("J1", 1, HOUR.plusHours(1), null, 10).get(0);
+        assertEquals(60, carried.getGreenSeconds());
+        assertEquals(0, carried.getCycles());
+        PhaseHourRollup phase2 = rollups.stream().filter(r -> r.getPhaseId() == 2).findFirst().orElseThrow();
+        assertEquals(1, phase2.getLockouts());
+        assertEquals(HOUR.plusHours(2), retention.getRolledUntil());
+    }
+
+    @Test
+    @DisplayName("Should end a phase's green time when the intersection is paused")
+    void testRollUpAcrossPause() {
+        insert(HOUR.plusMinutes(10), "STATE_CHANGE", 1, LightColor.GREEN);
+        insert(HOUR.plusMinutes(10).plusSeconds(20), "COMMAND", null, LightColor.RED);
+        // Resuming turns the same phase green again a while later
+        insert(HOUR.plusMinutes(40), "COMMAND", null, null);
+        insert(HOUR.plusMinutes(40), "STATE_CHANGE", 1, LightColor.GREEN);
+        insert(HOUR.plusMinutes(40).plusSeconds(15), "COMMAND", null, null);
+        insert(HOUR.plusMinutes(41), "STATE_CHANGE", 1, LightColor.YELLOW);
+
+        retention.rollUp(HOUR.plusHours(1).plusMinutes(5));
+
+        PhaseHourRollup phase1 = retention.getRollups("J1", 1, null, null, 10).get(0);
+        assertEquals(20 + 60, phase1.getGreenSeconds());
+        assertEquals(2, phase1.getCycles());
+    }
+
+    @Test
+    @DisplayName("Should roll an hour up again when rows for it arrive after it was rolled up")
+    void testLateRows() {
+        insert(HOUR.plusMinutes(10), "STATE_CHANGE", 1, LightColor.GREEN);
+        insert(HOUR.plusMinutes(11), "STATE_CHANGE", 1, LightColor.YELLOW);
+        assertEquals(1, retention.rollUp(HOUR.plusHours(1).plusMinutes(5)));
+        assertEquals(60, retention.getRollups("J1", 1, null, null, 10).get(0).getGreenSeconds());
+
+        // Replayed from a spill file once the database came back
+        insert(HOUR.plusMinutes(20), "STATE_CHANGE", 1, LightColor.GREEN);
+        insert(HOUR.plusMinutes(22), "STATE_CHANGE", 1, LightColor.YELLOW);
+        assertEquals(0, retention.rollUp(HOUR.plusHours(1).plusMinutes(10)));
+
+        PhaseHourRollup phase1 = retention.getRollups("J1", 1, null, null, 10).get(0);
+        assertEquals(60 + 120, phase1.getGreenSeconds());
+        assertEquals(2, phase1.getCycles());
+        // With the hour before, whose last green may run into it
+        assertEquals(2L, retention.getStats().get("lateHoursRolledUp"));
+
+        // Once the hour has been compacted, rows still arriving for it are counted as lost
+        assertEquals(4, retention.compact(HOUR.plusHours(3)));
+        insert(HOUR.plusMinutes(30), "STATE_CHANGE", 1, LightColor.GREEN);
+        retention.rollUp(HOUR.plusHours(3));
+        assertEquals(180, retention.getRollups("J1", 1, HOUR, HOUR.plusHours(1), 10).get(0).getGreenSeconds());
+        assertEquals(1L, retention.getStats().get("lateRowsLost"));
+    }
+
+    @Test
+    @DisplayName("Should only compact rows that are past retention and already rolled up")
+    void testCompaction() {
+        for (int i = 0; i < 5; i++) {
+            insert(HOUR.plusMinutes(i), "STATE_CHANGE", 1, LightColor.GREEN);
+        }
+        insert(HOUR.plusHours(3), "STATE_CHANGE", 1, LightColor.GREEN);
+
+        // Nothing rolled up yet, so nothing may be deleted
+        assertEquals(0, retention.compact(HOUR.plusHours(5)));
+        assertEquals(6, rawRows());
+
+        retention.rollUp(HOUR.plusHours(1).plusMinutes(5));
+        // Deleted two rows per statement until the rolled-up hour is gone
+        assertEquals(5, retention.compact(HOUR.plusHours(5)));
+        assertEquals(1, rawRows());
+        assertEquals(1, retention.getRollups(null, 1, null, null, 10).size());
+    }
+}
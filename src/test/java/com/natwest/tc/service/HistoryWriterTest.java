@@ -0,0 +1,143 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.entity.HistoryEvent;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentMatchers;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class HistoryWriterTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final List<String> persisted = new ArrayList<>();
+    private boolean databaseDown;
+
+    private HistoryWriter writer(int capacity, HistoryWriter.OverflowPolicy policy) {
+        when(jdbcTemplate.batchUpdate(eq(HistoryWriter.INSERT_SQL), anyCollection(), anyInt(),
+                ArgumentMatchers.<ParameterizedPreparedStatementSetter<HistoryEvent>>any())).thenAnswer(inv -> {
+            if (databaseDown) {
+                throw new IllegalStateException("Database down");
+            }
+            Collection<HistoryEvent> batch = inv.getArgument(1);
+            batch.forEach(e -> persisted.add(e.getDetails()));
+            return new int[0][];
+        });
+        return new HistoryWriter(jdbcTemplate, capacity, 100, 10, policy, tempDir.resolve("history.spill").toString());
+    }
+
+    private static HistoryEvent event(String details) {
+        return new HistoryEvent(LocalDateTime.now(), "J1", "STATE_CHANGE", details);
+    }
+
+    @Test
+    @DisplayName("Should write queued events in one JDBC batch")
+    void testBatchedWrite() {
+        HistoryWriter writer = writer(8, HistoryWriter.OverflowPolicy.DROP_OLDEST);
+        writer.append(event("a"));
+        writer.append(event("b"));
+        assertEquals(2, writer.getQueueDepth());
+
+        writer.flush();
+
+        assertEquals(List.of("a", "b"), persisted);
+        verify(jdbcTemplate, times(1)).batchUpdate(anyString(), anyCollection(), anyInt(),
+                ArgumentMatchers.<ParameterizedPreparedStatementSetter<HistoryEvent>>any());
+        assertEquals(2L, writer.getStats().get("written"));
+    }
+
+    @Test
+    @DisplayName("Should drop the oldest event when the ring is full")
+    void testDropOldest() {
+        HistoryWriter writer = writer(2, HistoryWriter.OverflowPolicy.DROP_OLDEST);
+        writer.append(event("a"));
+        writer.append(event("b"));
+        writer.append(event("c"));
+
+        writer.flush();
+
+        assertEquals(List.of("b", "c"), persisted);
+        assertEquals(1L, writer.getStats().get("dropped"));
+    }
+
+    @Test
+    @DisplayName("Should spill overflow to disk and replay it once the ring drains")
+    void testSpill() {
+        HistoryWriter writer = writer(2, HistoryWriter.OverflowPolicy.SPILL);
+        writer.append(event("a"));
+        writer.append(event("b"));
+        writer.append(event("c"));
+        assertEquals(1L, writer.getStats().get("spilled"));
+        assertTrue(Files.exists(tempDir.resolve("history.spill")));
+
+        writer.flush();
+
+        assertEquals(List.of("a", "b", "c"), persisted);
+        assertFalse(Files.exists(tempDir.resolve("history.spill")));
+    }
+
+    @Test
+    @DisplayName("Should keep the spill file to one SPILL writer at a time")
+    void testSpillFileOwnership() throws Exception {
+        HistoryWriter first = writer(2, HistoryWriter.OverflowPolicy.SPILL);
+        assertThrows(IllegalStateException.class, () -> writer(2, HistoryWriter.OverflowPolicy.SPILL));
+        for (String details : List.of("a", "b", "c")) {
+            first.append(event(details));
+        }
+        first.stop();
+
+        // A writer that never spills leaves the file alone
+        writer(2, HistoryWriter.OverflowPolicy.DROP_OLDEST).flush();
+        assertTrue(persisted.isEmpty());
+        assertTrue(Files.exists(tempDir.resolve("history.spill")));
+
+        writer(2, HistoryWriter.OverflowPolicy.SPILL).flush();
+        assertEquals(List.of("c"), persisted);
+    }
+
+    @Test
+    @DisplayName("Should replay a leftover replay file and the complete events before a torn tail")
+    void testDamagedSpill() throws Exception {
+        Path spill = tempDir.resolve("history.spill");
+        Path replay = tempDir.resolve("history.spill.replay");
+        databaseDown = true;
+        // As a crash leaves them: an earlier replay that never finished...
+        HistoryWriter first = writer(2, HistoryWriter.OverflowPolicy.SPILL);
+        for (String details : List.of("a", "b", "c", "d")) {
+            first.append(event(details));
+        }
+        first.stop();
+        Files.move(spill, replay);
+        // ...and a spill file whose last record was cut short
+        HistoryWriter second = writer(2, HistoryWriter.OverflowPolicy.SPILL);
+        for (String details : List.of("e", "f", "g", "h")) {
+            second.append(event(details));
+        }
+        second.stop();
+        byte[] spilled = Files.readAllBytes(spill);
+        Files.write(spill, Arrays.copyOf(spilled, spilled.length - 3));
+        databaseDown = false;
+
+        writer(8, HistoryWriter.OverflowPolicy.SPILL).flush();
+
+        assertEquals(List.of("c", "d", "g"), persisted);
+        assertFalse(Files.exists(spill));
+        assertFalse(Files.exists(replay));
+    }
+}
@@ -0,0 +1,98 @@
+package com.natwest.tc.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.natwest.tc.model.LightColor;
+import com.natwest.tc.model.StateDelta;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StateStreamServiceTest {
+
+    private final StateStreamService stream = new StateStreamService(new ObjectMapper(), 16, 2, 10, 1, 60_000, 15_000, 200);
+
+    @Test
+    @DisplayName("Should keep only the latest delta per intersection for a slow subscriber")
+    void testCoalescing() {
+        StateStreamService.Subscriber subscriber = stream.new Subscriber(null, null);
+        subscriber.offer("J1", "green");
+        subscriber.offer("J1", "yellow");
+        subscriber.offer("J2", "red");
+
+        assertEquals(List.of("yellow", "red"), subscriber.take());
+        assertFalse(subscriber.hasPending());
+        assertEquals(1L, stream.getStats().get("coalesced"));
+    }
+
+    @Test
+    @DisplayName("Should drop the oldest intersection when a subscriber's buffer is full")
+    void testBoundedBuffer() {
+        StateStreamService.Subscriber subscriber = stream.new Subscriber(null, null);
+        subscriber.offer("J1", "a");
+        subscriber.offer("J2", "b");
+        subscriber.offer("J3", "c");
+
+        assertEquals(List.of("b", "c"), subscriber.take());
+        assertEquals(1L, stream.getStats().get("dropped"));
+    }
+
+    @Test
+    @DisplayName("Should not queue anything while nobody is subscribed")
+    void testPublishWithoutSubscribers() {
+        stream.publish(new StateDelta("J1", 1L, "TRANSITION", 1, LightColor.GREEN, false, 0L));
+        assertEquals(0L, stream.getStats().get("published"));
+    }
+
+    @Test
+    @DisplayName("Should disconnect a subscriber that stops reading and keep serving the others")
+    void testStalledSubscriber() throws Exception {
+        CountDownLatch never = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        List<Object> received = new CopyOnWriteArrayList<>();
+        stream.start();
+        try {
+            // The only sender thread blocks in this write, as on a full socket buffer
+            stream.subscribe(null, null, new SseEmitter() {
+                @Override
+                public void send(SseEventBuilder builder) {
+                    blocked.countDown();
+                    // Like a socket write, it does not give up when interrupted
+                    while (never.getCount() > 0) {
+                        try {
+                            never.await();
+                        } catch (InterruptedException e) {
+                            // Keep blocking
+                        }
+                    }
+                }
+            });
+            stream.publish(new StateDelta("J1", 1L, "TRANSITION", 1, LightColor.GREEN, false, 0L));
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+            stream.subscribe("J2", null, new SseEmitter() {
+                @Override
+                public void send(SseEventBuilder builder) {
+                    received.add(builder);
+                }
+            });
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (received.isEmpty()) {
+                assertTrue(System.nanoTime() < deadline, "Timed out");
+                stream.publish(new StateDelta("J2", 1L, "TRANSITION", 1, LightColor.GREEN, false, 0L));
+                Thread.sleep(20);
+            }
+            assertEquals(1L, stream.getStats().get("stalled"));
+            assertEquals(1L, stream.getStats().get("subscribers"));
+        } finally {
+            never.countDown();
+            stream.stop();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.engine.TelemetryFrame;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class TelemetryListenerTest {
+
+    @Mock
+    private TrafficEngineService engine;
+
+    private TelemetryListener listener;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(engine.slotOf("MAIN_JUNCTION_01")).thenReturn(0);
+        when(engine.slotOf("JUNCTION_02")).thenReturn(1);
+        listener = new TelemetryListener(engine, 0, 0, 2, 64, new String[]{"MAIN_JUNCTION_01", "JUNCTION_02"});
+        listener.start();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        listener.stop();
+    }
+
+    @Test
+    @DisplayName("Should reassemble TCP frames split across writes and hand them to the engine")
+    void testTcpFramesSplitAcrossWrites() throws Exception {
+        ByteBuffer frames = ByteBuffer.allocate(3 * TelemetryFrame.SIZE);
+        TelemetryFrame.put(frames, TelemetryFrame.DETECTOR, 0, 11, 2, 1);
+        TelemetryFrame.put(frames, TelemetryFrame.DETECTOR, 1, 12, 1, 2);
+        TelemetryFrame.put(frames, TelemetryFrame.HEARTBEAT, 1, 0, 0b101, 3);
+        frames.flip();
+
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", listener.getTcpPort()))) {
+            // Cuts the first frame after 5 bytes and the second mid-way
+            for (int cut : new int[]{5, 24, 3 * TelemetryFrame.SIZE}) {
+                ByteBuffer part = frames.duplicate().limit(cut);
+                channel.write(part);
+                frames.position(cut);
+                Thread.sleep(20);
+            }
+            await(() -> listener.getStats().get("frames") == 3);
+        }
+
+        verify(engine).recordDetection(0, 11, 2);
+        verify(engine).recordDetection(1, 12, 1);
+        assertEquals(1, listener.getStats().get("heartbeats"));
+        assertEquals(0, listener.getStats().get("malformed"));
+        assertEquals(1, listener.getStats().get("connections"));
+        // The connection's buffer went back to the pool when the client hung up
+        await(() -> listener.getStats().get("freeBuffers") == 1);
+    }
+
+    @Test
+    @DisplayName("Should decode every frame of a datagram and count a truncated or bad one as malformed once")
+    void testUdpDatagrams() throws Exception {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            InetSocketAddress target = new InetSocketAddress("localhost", listener.getUdpPort());
+            ByteBuffer datagram = ByteBuffer.allocate(2 * TelemetryFrame.SIZE);
+            TelemetryFrame.put(datagram, TelemetryFrame.DETECTOR, 0, 11, 4, 1);
+            TelemetryFrame.put(datagram, TelemetryFrame.DETECTOR, 7, 11, 1, 2);
+            channel.send(datagram.flip(), target);
+            // One at a time: the test listener's receive buffer holds little more than one datagram
+            await(() -> listener.getStats().get("frames") == 2);
+            channel.send(ByteBuffer.wrap(new byte[]{0x54, 0x43, 1}), target);
+            await(() -> listener.getStats().get("malformed") == 1);
+            // A version this build does not read is counted once, then one more good frame
+            ByteBuffer bad = ByteBuffer.allocate(TelemetryFrame.SIZE);
+            TelemetryFrame.put(bad, TelemetryFrame.DETECTOR, 0, 11, 9, 3);
+            channel.send(bad.put(3, (byte) (TelemetryFrame.VERSION + 1)).flip(), target);
+            await(() -> listener.getStats().get("malformed") >= 2);
+            ByteBuffer last = ByteBuffer.allocate(TelemetryFrame.SIZE);
+            TelemetryFrame.put(last, TelemetryFrame.DETECTOR, 0, 11, 2, 4);
+            channel.send(last.flip(), target);
+
+            await(() -> listener.getStats().get("frames") == 3);
+        }
+
+        verify(engine).recordDetection(0, 11, 4);
+        // Code 7 is not in traffic.telemetry.intersections
+        verify(engine).recordDetection(-1, 11, 1);
+        verify(engine).recordDetection(0, 11, 2);
+        assertEquals(2, listener.getStats().get("malformed"));
+    }
+
+    @Test
+    @DisplayName("Should close a connection whose stream loses framing and refuse one when buffers run out")
+    void testBadMagicAndRefusal() throws Exception {
+        try (SocketChannel first = SocketChannel.open(new InetSocketAddress("localhost", listener.getTcpPort()))) {
+            await(() -> listener.getStats().get("connections") == 1);
+            // The UDP socket holds the other buffer
+            try (SocketChannel second = SocketChannel.open(new InetSocketAddress("localhost", listener.getTcpPort()))) {
+                await(() -> listener.getStats().get("refused") == 1);
+                assertEquals(-1, second.read(ByteBuffer.allocate(1)));
+            }
+
+            first.write(ByteBuffer.wrap(new byte[TelemetryFrame.SIZE]));
+            assertEquals(-1, first.read(ByteBuffer.allocate(1)));
+        }
+
+        assertEquals(1, listener.getStats().get("malformed"));
+        verify(engine, never()).recordDetection(anyInt(), anyInt(), anyInt());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for the listener");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.natwest.tc.service;
+
+import com.natwest.tc.engine.ConflictMatrix;
+import com.natwest.tc.model.RuleValidationReport;
+import com.natwest.tc.repository.RuleProjectionRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.doAnswer;
+
+class TrafficCacheServiceTest {
+
+    private EmbeddedDatabase database;
+    private JdbcTemplate jdbcTemplate;
+    private TrafficCacheService cacheService;
+
+    @BeforeEach
+    void setUp() {
+        database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true)
+                .addScript("data.sql").build();
+        jdbcTemplate = new JdbcTemplate(database);
+        cacheService = new TrafficCacheService(new RuleProjectionRepository(jdbcTemplate), 2);
+        cacheService.reloadCache();
+    }
+
+    @AfterEach
+    void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    @DisplayName("Should load phases, allowed directions and conflicts from flat projections")
+    void testInitialLoad() {
+        assertEquals(60, cacheService.getPhase(1).getDurationSeconds());
+        assertEquals(List.of(1, 3, 4, 6), cacheService.getAllowedDirectionsForPhase(1).stream()
+                .map(d -> d.getDirectionId()).sorted().toList());
+        assertArrayEquals(new int[]{1, 3, 4, 6}, cacheService.getAllowedDirectionIds(1));
+        assertTrue(cacheService.getConflictMatrix().isPhaseConflictFree(1));
+        assertFalse(cacheService.getConflictsForDirection(1).isEmpty());
+    }
+
+    @Test
+    @DisplayName("Should keep the compiled rules when nothing changed")
+    void testUnchangedReload() {
+        ConflictMatrix before = cacheService.getConflictMatrix();
+        cacheService.reloadCache();
+        assertSame(before, cacheService.getConflictMatrix());
+    }
+
+    @Test
+    @DisplayName("Should pick up a changed conflict and a changed phase on reload")
+    void testIncrementalReload() {
+        ConflictMatrix before = cacheService.getConflictMatrix();
+        // Directions 1 and 3 both go green in phase 1
+        jdbcTemplate.update("INSERT INTO direction_conflicts (direction_id, conflicts_with_direction_id) VALUES (1, 3)");
+        jdbcTemplate.update("UPDATE signal_phases SET duration_seconds = 45 WHERE phase_id = 2");
+
+        cacheService.reloadCache();
+
+        assertNotSame(before, cacheService.getConflictMatrix());
+        assertFalse(cacheService.getConflictMatrix().isPhaseConflictFree(1));
+        assertTrue(cacheService.getConflictsForDirection(1).contains(3));
+        assertEquals(45, cacheService.getPhase(2).getDurationSeconds());
+
+        jdbcTemplate.update("DELETE FROM direction_conflicts WHERE direction_id = 1 AND conflicts_with_direction_id = 3");
+        cacheService.reloadCache();
+        assertTrue(cacheService.getConflictMatrix().isPhaseConflictFree(1));
+    }
+
+    @Test
+    @DisplayName("Should see a value move from one nullable column to the next on reload")
+    void testNullableColumnReload() {
+        jdbcTemplate.update("UPDATE signal_phases SET min_green_seconds = 20, max_green_seconds = NULL WHERE phase_id = 2");
+        cacheService.reloadCache();
+        jdbcTemplate.update("UPDATE signal_phases SET min_green_seconds = NULL, max_green_seconds = 20 WHERE phase_id = 2");
+
+        cacheService.reloadCache();
+
+        assertNull(cacheService.getPhase(2).getMinGreenSeconds());
+        assertEquals(20, cacheService.getPhase(2).getMaxGreenSeconds());
+    }
+
+    @Test
+    @DisplayName("Should refuse an unsafe staged generation, promote a safe one and roll back")
+    void testStagePromoteRollback() {
+        ConflictMatrix first = cacheService.getConflictMatrix();
+        long firstGeneration = cacheService.getGeneration();
+
+        jdbcTemplate.update("INSERT INTO direction_conflicts (direction_id, conflicts_with_direction_id) VALUES (1, 3)");
+        RuleValidationReport unsafe = cacheService.stage();
+        assertFalse(unsafe.isValid());
+        assertEquals(List.of("1 vs 3"), unsafe.getConflicts().get(1));
+        assertThrows(UnsafeRulesException.class, () -> cacheService.promote(unsafe.getGeneration(), false));
+        assertSame(first, cacheService.getConflictMatrix());
+
+        jdbcTemplate.update("DELETE FROM direction_conflicts WHERE direction_id = 1 AND conflicts_with_direction_id = 3");
+        jdbcTemplate.update("UPDATE signal_phases SET duration_seconds = 45 WHERE phase_id = 2");
+        RuleValidationReport safe = cacheService.stage();
+        assertTrue(safe.isValid());
+        assertThrows(IllegalArgumentException.class, () -> cacheService.promote(unsafe.getGeneration(), true));
+
+        cacheService.promote(safe.getGeneration(), false);
+        assertEquals(safe.getGeneration(), cacheService.getGeneration());
+        assertEquals(45, cacheService.getPhase(2).getDurationSeconds());
+        // The promoted generation carries its checksums, so an unchanged reload keeps it
+        ConflictMatrix promoted = cacheService.getConflictMatrix();
+        cacheService.reloadCache();
+        assertSame(promoted, cacheService.getConflictMatrix());
+
+        cacheService.rollback();
+        assertEquals(firstGeneration, cacheService.getGeneration());
+        assertSame(first, cacheService.getConflictMatrix());
+        assertEquals(30, cacheService.getPhase(2).getDurationSeconds());
+        assertThrows(IllegalArgumentException.class, () -> cacheService.rollback());
+    }
+
+    @Test
+    @DisplayName("Should read the rules again when they change while a generation is being staged")
+    void testStageDuringChange() {
+        RuleProjectionRepository repository = Mockito.spy(new RuleProjectionRepository(jdbcTemplate));
+        TrafficCacheService service = new TrafficCacheService(repository, 2);
+        service.reloadCache();
+        // Committed after the checksums were read but before the phase rows are
+        doAnswer(inv -> {
+            jdbcTemplate.update("UPDATE signal_phases SET duration_seconds = 45 WHERE phase_id = 2");
+            return inv.callRealMethod();
+        }).doCallRealMethod().when(repository).findPhases();
+
+        service.promote(service.stage().getGeneration(), false);
+        assertEquals(45, service.getPhase(2).getDurationSeconds());
+        // The staged checksums match the staged rows, so the reload finds nothing new
+        ConflictMatrix promoted = service.getConflictMatrix();
+        service.reloadCache();
+        assertSame(promoted, service.getConflictMatrix());
+        service.shutdown();
+    }
+}
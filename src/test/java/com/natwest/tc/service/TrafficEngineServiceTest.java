@@ -1,29 +1,54 @@
 package com.natwest.tc.service;
 
 
+import com.natwest.tc.engine.ConflictMatrix;
+import com.natwest.tc.engine.EngineReplica;
+import com.natwest.tc.engine.ReplicationFrame;
+import com.natwest.tc.engine.RuleSet;
+import com.natwest.tc.engine.StateSnapshot;
+import com.natwest.tc.engine.VirtualClock;
 import com.natwest.tc.entity.Direction;
-import com.natwest.tc.entity.DirectionConflict;
 import com.natwest.tc.entity.HistoryEvent;
 import com.natwest.tc.entity.SignalPhase;
+import com.natwest.tc.model.DetectorEvent;
+import com.natwest.tc.model.HistoryPage;
+import com.natwest.tc.model.HistoryQuery;
 import com.natwest.tc.model.IntersectionState;
 import com.natwest.tc.model.LightColor;
-import com.natwest.tc.repository.HistoryRepository;
+import com.natwest.tc.model.PhasePlanReport;
+import com.natwest.tc.model.StateDelta;
+import com.natwest.tc.model.TrafficHistory;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
 
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -34,7 +59,10 @@ class TrafficEngineServiceTest {
     private TrafficCacheService cacheService;
 
     @Mock
-    private HistoryRepository historyRepository;
+    private HistoryStore historyStore;
+
+    @Mock
+    private StateStreamService stateStream;
 
     @InjectMocks
     private TrafficEngineService trafficEngineService;
@@ -42,7 +70,26 @@ class TrafficEngineServiceTest {
     @BeforeEach
     void setUp() {
         // Ensure we start with a clean state before each test
-        when(historyRepository.save(any(HistoryEvent.class))).thenReturn(new HistoryEvent());
+        when(cacheService.getConflictMatrix()).thenReturn(ConflictMatrix.EMPTY);
+        // Every phase exists with a 60 second green unless a test says otherwise
+        when(cacheService.getPhase(anyInt())).thenAnswer(inv -> phase(inv.getArgument(0), 60));
+        when(cacheService.getAllowedDirectionIds(anyInt())).thenReturn(new int[0]);
+        // Seconds pass only when a test advances them
+        trafficEngineService.setClock(new VirtualClock(Instant.parse("2024-01-01T00:00:00Z"), ZoneOffset.UTC));
+    }
+
+    private static SignalPhase phase(int id, int durationSeconds) {
+        SignalPhase phase = new SignalPhase();
+        phase.setPhaseId(id);
+        phase.setDurationSeconds(durationSeconds);
+        return phase;
+    }
+
+    @Test
+    @DisplayName("Should stamp a new intersection's initial state with the engine's clock")
+    void testInitialStateUsesEngineClock() {
+        assertEquals(LocalDateTime.of(2024, 1, 1, 0, 0),
+                trafficEngineService.getCurrentState().getPhaseStartTime());
     }
 
     @Test
@@ -70,7 +117,7 @@ class TrafficEngineServiceTest {
 
         // Act: Simulate 5 ticks (seconds)
         for (int i = 0; i < 5; i++) {
-            trafficEngineService.trafficTick();
+            trafficEngineService.advanceTime(1);
         }
 
         // Assert
@@ -80,20 +127,19 @@ class TrafficEngineServiceTest {
     @Test
     @DisplayName("Should transition from YELLOW to RED and move to next phase")
     void testYellowToRedToNextPhase() {
-        // Arrange: Start in Phase 1 YELLOW
-        trafficEngineService.startCycle(Arrays.asList(1, 2));
-
-        // Manual color change for test setup (internal state via ticks)
+        // Arrange: Phase 1 lasts 1 second (durations are compiled when the cycle starts)
         SignalPhase phase1 = new SignalPhase();
         phase1.setPhaseId(1);
         phase1.setDurationSeconds(1);
         when(cacheService.getPhase(1)).thenReturn(phase1);
 
-        trafficEngineService.trafficTick(); // Turns Yellow
+        trafficEngineService.startCycle(Arrays.asList(1, 2));
+
+        trafficEngineService.advanceTime(1); // Turns Yellow
 
         // Act: Yellow lasts 3 seconds. Simulate 3 ticks.
         for (int i = 0; i < 3; i++) {
-            trafficEngineService.trafficTick();
+            trafficEngineService.advanceTime(1);
         }
 
         // Assert: Should now be Phase 2 GREEN
@@ -102,14 +148,14 @@ class TrafficEngineServiceTest {
     }
 
     @Test
-    @DisplayName("Should Pause and turn RED on safety conflict")
+    @DisplayName("Should Pause and turn RED when reloaded rules make the next phase unsafe")
     void testSafetyConflictPause() {
         // 1. Setup Phase 1 (Initial State)
         SignalPhase p1 = new SignalPhase();
         p1.setPhaseId(1);
         p1.setDurationSeconds(0); // Trigger immediate transition
         when(cacheService.getPhase(1)).thenReturn(p1);
-        when(cacheService.getAllowedDirectionsForPhase(1)).thenReturn(Collections.emptyList());
+        when(cacheService.getAllowedDirectionIds(1)).thenReturn(new int[0]);
 
         // 2. Setup Phase 2 Directions
         Direction north = new Direction();
@@ -121,34 +167,237 @@ class TrafficEngineServiceTest {
         south.setDirectionName("South");
 
         // Phase 2 contains both North and South
-        when(cacheService.getAllowedDirectionsForPhase(2)).thenReturn(Arrays.asList(north, south));
+        when(cacheService.getAllowedDirectionIds(2)).thenReturn(new int[]{north.getDirectionId(), south.getDirectionId()});
 
-        // 3. Create the Conflict: North (101) conflicts with South (102)
-        DirectionConflict conflict = new DirectionConflict();
-        conflict.setDirection(north);
-
-        // The "conflictingDirection" MUST have ID 102 to match 'south'
-        Direction danger = new Direction();
-        danger.setDirectionId(102);
-        conflict.setConflictingDirection(danger);
+        // 3. Start while the rules have no conflicts, so the sequence compiles as safe
+        trafficEngineService.startCycle(Arrays.asList(1, 2));
 
-        // Stub: When checking conflicts for ID 101, return this conflict
-        when(cacheService.getConflictsForDirection(101)).thenReturn(List.of(conflict));
+        // 4. Rules reload mid-cycle: North (101) now conflicts with South (102)
+        ConflictMatrix matrix = ConflictMatrix.builder()
+                .conflict(north.getDirectionId(), south.getDirectionId())
+                .phase(2, north.getDirectionId(), south.getDirectionId())
+                .build();
+        when(cacheService.getConflictMatrix()).thenReturn(matrix);
 
-        // 4. Act: Trigger the ticks
-        trafficEngineService.startCycle(Arrays.asList(1, 2));
+        // 5. Act: Trigger the ticks
 
         // We need enough ticks to pass the 3-second Yellow duration
-        trafficEngineService.trafficTick(); // Green -> Yellow
-        trafficEngineService.trafficTick(); // Yellow (1s)
-        trafficEngineService.trafficTick(); // Yellow (2s)
-        trafficEngineService.trafficTick(); // Yellow (3s) -> Transitions to RED -> Checks Phase 2
+        trafficEngineService.advanceTime(1); // Green -> Yellow
+        trafficEngineService.advanceTime(1); // Yellow (1s)
+        trafficEngineService.advanceTime(1); // Yellow (2s)
+        trafficEngineService.advanceTime(1); // Yellow (3s) -> Transitions to RED -> Checks Phase 2
 
-        // 5. Assert
+        // 6. Assert
         IntersectionState state = trafficEngineService.getCurrentState();
         assertTrue(state.isPaused(), "Engine should be paused due to Phase 2 conflict");
         assertEquals(LightColor.RED, state.getCurrentPhaseColor());
     }
+
+    @Test
+    @DisplayName("Should record safety checks, lockouts and history appends in the metrics")
+    void testMetricsRecorded() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        trafficEngineService.setMetrics(new TrafficMetrics(registry));
+        when(cacheService.getPhase(1)).thenReturn(phase(1, 0));
+        trafficEngineService.startCycle(Arrays.asList(1, 2));
+
+        // Phase 2 becomes unsafe, so the end of phase 1's yellow locks the intersection
+        when(cacheService.getConflictMatrix()).thenReturn(ConflictMatrix.builder()
+                .conflict(101, 102)
+                .phase(2, 101, 102)
+                .build());
+        trafficEngineService.advanceTime(4);
+
+        // Compiled once at start and once more after the reload
+        assertEquals(2, registry.get("traffic.safety.check").timer().count());
+        assertEquals(1.0, registry.get("traffic.safety.lockouts").counter().count());
+        assertTrue(registry.get("traffic.history.append").timer().count() > 0);
+    }
+
+    @Test
+    @DisplayName("Should warm up the safety check without starting, logging or timing anything")
+    void testWarmUpSafetyCheck() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        trafficEngineService.setMetrics(new TrafficMetrics(registry));
+        when(cacheService.getRuleSet()).thenReturn(RuleSet.builder()
+                .phase(1, "North", 30)
+                .phase(2, "East", 30)
+                .build());
+
+        assertTrue(trafficEngineService.warmUpSafetyCheck(50) > 0);
+
+        verify(cacheService, times(50)).getConflictMatrix();
+        assertEquals(0, registry.get("traffic.safety.check").timer().count());
+        assertTrue(trafficEngineService.getPlan(TrafficEngineService.DEFAULT_INTERSECTION).isEmpty());
+        verify(historyStore, never()).append(any());
+    }
+
+    @Test
+    @DisplayName("Should catch up after a stall with a full yellow, then win the time back from the next green")
+    void testCatchUpAfterStall() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        TrafficEngineService engine = new TrafficEngineService(cacheService, historyStore, stateStream);
+        engine.setMetrics(new TrafficMetrics(registry));
+        when(cacheService.getPhase(anyInt())).thenAnswer(inv -> phase(inv.getArgument(0), 30));
+        long t0 = System.nanoTime();
+        engine.startCycle(Arrays.asList(1, 2));
+
+        // Phase 1 was due to turn yellow at 30 s; the scheduler only gets to run at 40 s
+        engine.fireDue(t0 + seconds(40));
+        assertEquals(LightColor.YELLOW, engine.getCurrentState().getCurrentPhaseColor());
+        assertTrue(registry.get("traffic.transition.lateness").timer().max(TimeUnit.SECONDS) >= 9.5);
+        assertEquals(1, registry.get("traffic.tick.duration").timer().count());
+
+        // The yellow still lasts its full 3 seconds from when it actually appeared
+        engine.fireDue(t0 + seconds(42.5));
+        assertEquals(LightColor.YELLOW, engine.getCurrentState().getCurrentPhaseColor());
+        engine.fireDue(t0 + seconds(43.5));
+        assertEquals(2, engine.getCurrentState().getCurrentPhaseId());
+        assertEquals(LightColor.GREEN, engine.getCurrentState().getCurrentPhaseColor());
+
+        // Phase 2's green gives back the 10 seconds, so it ends on the original schedule (30 + 3 + 30)
+        engine.fireDue(t0 + seconds(62.5));
+        assertEquals(LightColor.GREEN, engine.getCurrentState().getCurrentPhaseColor());
+        engine.fireDue(t0 + seconds(63.5));
+        assertEquals(LightColor.YELLOW, engine.getCurrentState().getCurrentPhaseColor());
+    }
+
+    private static long seconds(double seconds) {
+        return (long) (seconds * 1_000_000_000L);
+    }
+
+    private void actuate(int phaseId, int durationSeconds, int minGreenSeconds, int maxGreenSeconds) {
+        SignalPhase phase = phase(phaseId, durationSeconds);
+        phase.setMinGreenSeconds(minGreenSeconds);
+        phase.setMaxGreenSeconds(maxGreenSeconds);
+        when(cacheService.getPhase(phaseId)).thenReturn(phase);
+        when(cacheService.getConflictMatrix()).thenReturn(ConflictMatrix.builder()
+                .direction(11).direction(12).phase(1, 11).phase(2, 12).build());
+    }
+
+    @Test
+    @DisplayName("Should end an actuated green at its minimum when its own directions see no vehicles")
+    void testActuatedGreenGapsOut() {
+        actuate(1, 20, 10, 30);
+        trafficEngineService.startCycle(Arrays.asList(1, 2));
+
+        // Vehicles on phase 2's direction do not hold phase 1 green
+        trafficEngineService.recordDetections(List.of(new DetectorEvent(null, 12, 5)));
+        trafficEngineService.advanceTime(9);
+        assertEquals(LightColor.GREEN, trafficEngineService.getCurrentState().getCurrentPhaseColor());
+        trafficEngineService.advanceTime(1);
+
+        assertEquals(LightColor.YELLOW, trafficEngineService.getCurrentState().getCurrentPhaseColor());
+        assertEquals(1L, trafficEngineService.getDetectorStats().get("gapOuts"));
+    }
+
+    @Test
+    @DisplayName("Should extend an actuated green while vehicles keep arriving, up to its maximum")
+    void testActuatedGreenExtendsToMax() {
+        actuate(1, 20, 10, 30);
+        trafficEngineService.startCycle(Arrays.asList(1, 2));
+
+        for (int second = 1; second < 30; second++) {
+            trafficEngineService.recordDetections(List.of(new DetectorEvent(TrafficEngineService.DEFAULT_INTERSECTION, 11, 1)));
+            trafficEngineService.advanceTime(1);
+            assertEquals(LightColor.GREEN, trafficEngineService.getCurrentState().getCurrentPhaseColor(), "second " + second);
+        }
+        trafficEngineService.advanceTime(1);
+
+        assertEquals(LightColor.YELLOW, trafficEngineService.getCurrentState().getCurrentPhaseColor());
+        assertEquals(1L, trafficEngineService.getDetectorStats().get("maxOuts"));
+        assertEquals(29L, trafficEngineService.getDetectorStats().get("accepted"));
+    }
+
+    @Test
+    @DisplayName("Should run an actuated phase for its fixed duration while no detector has reported")
+    void testActuatedGreenWithoutDetectors() {
+        actuate(1, 20, 10, 30);
+        trafficEngineService.startCycle(Arrays.asList(1, 2));
+
+        trafficEngineService.advanceTime(19);
+        assertEquals(LightColor.GREEN, trafficEngineService.getCurrentState().getCurrentPhaseColor());
+        trafficEngineService.advanceTime(1);
+
+        assertEquals(LightColor.YELLOW, trafficEngineService.getCurrentState().getCurrentPhaseColor());
+        // Unknown intersections and out-of-range directions are rejected, not recorded
+        assertEquals(0, trafficEngineService.recordDetections(List.of(
+                new DetectorEvent("NOWHERE", 11, 1), new DetectorEvent(null, 100_000, 1))));
+        assertEquals(2L, trafficEngineService.getDetectorStats().get("rejected"));
+    }
+
+    @Test
+    @DisplayName("Should hold the running green when that is the shorter way to a corridor offset")
+    void testAlignCycleHoldsGreen() {
+        // Two 20 s greens with their yellows: a 46 s cycle, started at the epoch
+        when(cacheService.getPhase(anyInt())).thenAnswer(inv -> phase(inv.getArgument(0), 20));
+        trafficEngineService.startCycle(Arrays.asList(1, 2));
+
+        // Phase 1 should start 10 s after the epoch: 10 s of holding, or 36 s to win back
+        long correction = trafficEngineService.alignCycle(TrafficEngineService.DEFAULT_INTERSECTION,
+                Instant.parse("2024-01-01T00:00:00Z"), 10_000);
+
+        assertEquals(-10_000, correction);
+        trafficEngineService.advanceTime(29);
+        assertEquals(LightColor.GREEN, trafficEngineService.getCurrentState().getCurrentPhaseColor());
+        trafficEngineService.advanceTime(26);
+        assertEquals(2, trafficEngineService.getCurrentState().getCurrentPhaseId());
+        trafficEngineService.advanceTime(1);
+        assertEquals(1, trafficEngineService.getCurrentState().getCurrentPhaseId());
+        assertEquals(LightColor.GREEN, trafficEngineService.getCurrentState().getCurrentPhaseColor());
+    }
+
+    @Test
+    @DisplayName("Should win back time from later greens, never below the minimum, to reach a corridor offset")
+    void testAlignCycleCatchesUp() {
+        when(cacheService.getPhase(anyInt())).thenAnswer(inv -> phase(inv.getArgument(0), 20));
+        trafficEngineService.startCycle(Arrays.asList(1, 2));
+
+        // Phase 1 should start 40 s after the epoch, 6 s before this cycle would bring it round
+        long correction = trafficEngineService.alignCycle(TrafficEngineService.DEFAULT_INTERSECTION,
+                Instant.parse("2024-01-01T00:00:00Z"), 40_000);
+
+        assertEquals(6_000, correction);
+        // Phase 1 keeps its 20 s; phase 2 gives up 6 s of its green
+        trafficEngineService.advanceTime(23);
+        assertEquals(2, trafficEngineService.getCurrentState().getCurrentPhaseId());
+        trafficEngineService.advanceTime(13);
+        assertEquals(LightColor.GREEN, trafficEngineService.getCurrentState().getCurrentPhaseColor());
+        trafficEngineService.advanceTime(1);
+        assertEquals(LightColor.YELLOW, trafficEngineService.getCurrentState().getCurrentPhaseColor());
+        trafficEngineService.advanceTime(3);
+        assertEquals(1, trafficEngineService.getCurrentState().getCurrentPhaseId());
+        assertEquals(LightColor.GREEN, trafficEngineService.getCurrentState().getCurrentPhaseColor());
+
+        trafficEngineService.pauseSystem();
+        assertThrows(IllegalArgumentException.class, () -> trafficEngineService.alignCycle(
+                TrafficEngineService.DEFAULT_INTERSECTION, Instant.parse("2024-01-01T00:00:00Z"), 0));
+    }
+
+    @Test
+    @DisplayName("Should reject a sequence with a conflicting phase before it starts")
+    void testUnsafeSequenceRejected() {
+        ConflictMatrix matrix = ConflictMatrix.builder()
+                .conflict(101, 102)
+                .phase(1, 103)
+                .phase(2, 101, 102)
+                .build();
+        when(cacheService.getConflictMatrix()).thenReturn(matrix);
+        when(cacheService.getPhase(7)).thenReturn(null);
+
+        UnsafePlanException e = assertThrows(UnsafePlanException.class,
+                () -> trafficEngineService.startCycle(Arrays.asList(1, 2, 7)));
+
+        PhasePlanReport report = e.getReport();
+        assertFalse(report.isAccepted());
+        assertTrue(report.getPhases().get(0).isConflictFree());
+        assertFalse(report.getPhases().get(0).isTransitionSafe());
+        assertEquals(List.of("101 vs 102"), report.getPhases().get(1).getConflicts());
+        assertFalse(report.getPhases().get(2).isKnown());
+        // The previous (empty) cycle is left untouched
+        assertTrue(trafficEngineService.getCurrentState().isPaused());
+    }
+
     @Test
     @DisplayName("Should not process ticks when system is paused")
     void testNoTickWhenPaused() {
@@ -156,10 +405,248 @@ class TrafficEngineServiceTest {
         trafficEngineService.pauseSystem();
 
         // Act: Run a tick
-        trafficEngineService.trafficTick();
+        trafficEngineService.advanceTime(1);
 
         // Assert: Time in state should not have progressed logically toward color change
         assertTrue(trafficEngineService.getCurrentState().isPaused());
         assertEquals(LightColor.RED, trafficEngineService.getCurrentState().getCurrentPhaseColor());
     }
-}
\ No newline at end of file
+
+    @Test
+    @DisplayName("Should drive several intersections independently")
+    void testIndependentIntersections() {
+        SignalPhase phase1 = new SignalPhase();
+        phase1.setPhaseId(1);
+        phase1.setDurationSeconds(2);
+        when(cacheService.getPhase(1)).thenReturn(phase1);
+
+        trafficEngineService.startCycle("JUNCTION_A", Arrays.asList(1, 2));
+        trafficEngineService.startCycle("JUNCTION_B", Arrays.asList(1, 2));
+        trafficEngineService.pauseSystem("JUNCTION_B");
+
+        trafficEngineService.advanceTime(1);
+        trafficEngineService.advanceTime(1);
+
+        assertEquals(LightColor.YELLOW, trafficEngineService.getCurrentState("JUNCTION_A").getCurrentPhaseColor());
+        IntersectionState b = trafficEngineService.getCurrentState("JUNCTION_B");
+        assertTrue(b.isPaused());
+        assertEquals(LightColor.RED, b.getCurrentPhaseColor());
+        assertEquals("JUNCTION_B", b.getIntersectionId());
+        assertTrue(trafficEngineService.getIntersectionIds().containsAll(List.of("JUNCTION_A", "JUNCTION_B")));
+    }
+
+    @Test
+    @DisplayName("Should return a capped history page with a cursor that resumes after its last row")
+    void testHistoryKeysetPage() {
+        LocalDateTime t = LocalDateTime.of(2024, 5, 1, 12, 0);
+        HistoryEvent newest = new HistoryEvent(t, "J1", "STATE_CHANGE", "c");
+        newest.setId(3L);
+        HistoryEvent middle = new HistoryEvent(t, "J1", "STATE_CHANGE", "b");
+        middle.setId(2L);
+        HistoryEvent oldest = new HistoryEvent(t.minusSeconds(1), "J1", "STATE_CHANGE", "a");
+        oldest.setId(1L);
+        when(historyStore.findPage(null, "STATE_CHANGE", null, null, null, null, 3))
+                .thenReturn(List.of(newest, middle, oldest));
+
+        HistoryPage first = trafficEngineService.getHistory(new HistoryQuery(null, "STATE_CHANGE", null, null, null, 2));
+
+        assertEquals(List.of("c", "b"), first.getItems().stream().map(TrafficHistory::getDetails).toList());
+        assertNotNull(first.getNextCursor());
+
+        trafficEngineService.getHistory(new HistoryQuery(null, "STATE_CHANGE", null, null, first.getNextCursor(), 2));
+        verify(historyStore).findPage(null, "STATE_CHANGE", null, null, t, 2L, 3);
+    }
+
+    @Test
+    @DisplayName("Should resume mid-cycle from the checkpoint after a restart")
+    void testRestoreCheckpoint(@TempDir Path dir) throws Exception {
+        when(cacheService.getPhase(anyInt())).thenAnswer(inv -> phase(inv.getArgument(0), 20));
+        Path file = dir.resolve("engine.checkpoint");
+        trafficEngineService.openCheckpoint(file);
+        trafficEngineService.startCycle(Arrays.asList(1, 2));
+        trafficEngineService.advanceTime(23);
+        trafficEngineService.advanceTime(7); // 7 s into phase 2's green
+        trafficEngineService.shutdown();
+
+        // Back 2 s later
+        TrafficEngineService restarted = new TrafficEngineService(cacheService, historyStore, stateStream);
+        restarted.setClock(new VirtualClock(Instant.parse("2024-01-01T00:00:32Z"), ZoneOffset.UTC));
+        restarted.openCheckpoint(file);
+        assertEquals(1, restarted.restoreCheckpoint());
+
+        assertEquals(2, restarted.getCurrentState().getCurrentPhaseId());
+        assertEquals(LightColor.GREEN, restarted.getCurrentState().getCurrentPhaseColor());
+        restarted.advanceTime(10);
+        assertEquals(LightColor.GREEN, restarted.getCurrentState().getCurrentPhaseColor());
+        restarted.advanceTime(1);
+        assertEquals(LightColor.YELLOW, restarted.getCurrentState().getCurrentPhaseColor());
+        restarted.shutdown();
+    }
+
+    @Test
+    @DisplayName("Should not resume a checkpointed sequence the loaded rules make unsafe, nor a stale one")
+    void testRestoreCheckpointRechecksSafety(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("engine.checkpoint");
+        trafficEngineService.openCheckpoint(file);
+        trafficEngineService.startCycle(Arrays.asList(1, 2));
+        trafficEngineService.shutdown();
+        Path copy = Files.copy(file, dir.resolve("copy.checkpoint"));
+
+        when(cacheService.getConflictMatrix()).thenReturn(ConflictMatrix.builder()
+                .conflict(11, 12).phase(1, 11, 12).phase(2, 12).build());
+        TrafficEngineService restarted = new TrafficEngineService(cacheService, historyStore, stateStream);
+        restarted.setClock(new VirtualClock(Instant.parse("2024-01-01T00:00:01Z"), ZoneOffset.UTC));
+        restarted.openCheckpoint(file);
+        assertEquals(0, restarted.restoreCheckpoint());
+        assertTrue(restarted.getPlan(TrafficEngineService.DEFAULT_INTERSECTION).isEmpty());
+        assertTrue(restarted.getCurrentState().isPaused());
+        restarted.shutdown();
+
+        // Safe again, but the checkpoint is now older than five minutes
+        when(cacheService.getConflictMatrix()).thenReturn(ConflictMatrix.EMPTY);
+        TrafficEngineService late = new TrafficEngineService(cacheService, historyStore, stateStream);
+        late.setClock(new VirtualClock(Instant.parse("2024-01-01T00:10:00Z"), ZoneOffset.UTC));
+        late.openCheckpoint(copy);
+        assertEquals(0, late.restoreCheckpoint());
+        late.shutdown();
+    }
+
+    @Test
+    @DisplayName("Should take over from the leader's replicated state in the same phase with the same time left")
+    void testTakeOverFromReplica() {
+        when(cacheService.getPhase(anyInt())).thenAnswer(inv -> phase(inv.getArgument(0), 20));
+        trafficEngineService.replicateAll();
+        trafficEngineService.startCycle(Arrays.asList(1, 2));
+        trafficEngineService.advanceTime(23);
+        trafficEngineService.advanceTime(7); // 7 s into phase 2's green
+
+        EngineReplica replica = new EngineReplica();
+        ByteBuffer frame = ByteBuffer.allocate(4096);
+        int start = ReplicationFrame.begin(frame, 0, 1,
+                TimeUnit.MILLISECONDS.toMicros(Instant.parse("2024-01-01T00:00:30Z").toEpochMilli()));
+        int records = trafficEngineService.drainReplication(frame);
+        ReplicationFrame.finish(frame, start, records);
+        assertEquals(2, records);
+        assertTrue(replica.apply(frame, 0, 0));
+        assertEquals(0, trafficEngineService.drainReplication(ByteBuffer.allocate(4096)));
+
+        // The standby takes over 2 s after the frame arrived, its wall clock a minute behind the leader's
+        TrafficEngineService standby = new TrafficEngineService(cacheService, historyStore, stateStream);
+        Instant standbyNow = Instant.parse("2023-12-31T23:59:32Z");
+        standby.setClock(new VirtualClock(standbyNow, ZoneOffset.UTC));
+        standby.standBy();
+        assertEquals(1, standby.takeOver(replica.entries(TimeUnit.SECONDS.toNanos(2),
+                TimeUnit.MILLISECONDS.toMicros(standbyNow.toEpochMilli())), Long.MAX_VALUE));
+
+        assertFalse(standby.isStandby());
+        assertEquals(2, standby.getCurrentState().getCurrentPhaseId());
+        assertEquals(LightColor.GREEN, standby.getCurrentState().getCurrentPhaseColor());
+        standby.advanceTime(10);
+        assertEquals(LightColor.GREEN, standby.getCurrentState().getCurrentPhaseColor());
+        standby.advanceTime(1);
+        assertEquals(LightColor.YELLOW, standby.getCurrentState().getCurrentPhaseColor());
+    }
+
+    @Test
+    @DisplayName("Should neither fire transitions nor accept commands while standing by")
+    void testStandbyIsInert() {
+        trafficEngineService.startCycle(Arrays.asList(1, 2));
+        trafficEngineService.replicateAll();
+        trafficEngineService.standBy();
+
+        assertTrue(trafficEngineService.isStandby());
+        assertThrows(StandbyException.class, () -> trafficEngineService.startCycle(Arrays.asList(2, 1)));
+        assertThrows(StandbyException.class, () -> trafficEngineService.pauseSystem());
+        trafficEngineService.advanceTime(600);
+        assertEquals(1, trafficEngineService.getCurrentState().getCurrentPhaseId());
+        assertEquals(LightColor.GREEN, trafficEngineService.getCurrentState().getCurrentPhaseColor());
+        assertEquals(0, trafficEngineService.drainReplication(ByteBuffer.allocate(4096)));
+    }
+
+    @Test
+    @DisplayName("Should stop firing once the lease may have lapsed")
+    void testLeaseFence() {
+        TrafficEngineService engine = new TrafficEngineService(cacheService, historyStore, stateStream);
+        engine.startCycle(Arrays.asList(1, 2));
+        long t0 = System.nanoTime();
+        engine.holdLeaseUntil(t0 - 1);
+        engine.fireDue(t0 + TimeUnit.SECONDS.toNanos(61));
+        assertEquals(LightColor.GREEN, engine.getCurrentState().getCurrentPhaseColor());
+
+        engine.holdLeaseUntil(Long.MAX_VALUE);
+        engine.fireDue(t0 + TimeUnit.SECONDS.toNanos(61));
+        assertEquals(LightColor.YELLOW, engine.getCurrentState().getCurrentPhaseColor());
+    }
+
+    @Test
+    @DisplayName("Should publish a full-state delta for every transition and command")
+    void testStateDeltasPublished() {
+        when(cacheService.getPhase(1)).thenReturn(phase(1, 1));
+        trafficEngineService.startCycle(Arrays.asList(1, 2));
+        trafficEngineService.advanceTime(1); // GREEN -> YELLOW
+        trafficEngineService.pauseSystem();
+
+        ArgumentCaptor<StateDelta> deltas = ArgumentCaptor.forClass(StateDelta.class);
+        verify(stateStream, times(3)).publish(deltas.capture());
+        assertEquals(List.of("CYCLE_STARTED", "TRANSITION", "PAUSED"),
+                deltas.getAllValues().stream().map(StateDelta::getEvent).toList());
+        StateDelta yellow = deltas.getAllValues().get(1);
+        assertEquals(TrafficEngineService.DEFAULT_INTERSECTION, yellow.getIntersectionId());
+        assertEquals(1, yellow.getPhaseId());
+        assertEquals(LightColor.YELLOW, yellow.getColor());
+        assertTrue(deltas.getAllValues().get(2).isPaused());
+    }
+
+    @Test
+    @DisplayName("Should publish a new snapshot version per transition and reuse it between transitions")
+    void testSnapshotVersioning() {
+        trafficEngineService.startCycle(Arrays.asList(1, 2));
+        StateSnapshot started = trafficEngineService.getSnapshot();
+
+        trafficEngineService.advanceTime(1); // still GREEN: nothing to publish
+        assertSame(started, trafficEngineService.getSnapshot());
+        assertSame(started.state(), trafficEngineService.getCurrentState());
+
+        trafficEngineService.pauseSystem();
+        StateSnapshot paused = trafficEngineService.getSnapshot();
+        assertEquals(started.version() + 1, paused.version());
+        assertNotEquals(started.etag(), paused.etag());
+        assertTrue(paused.state().isPaused());
+    }
+
+    @Test
+    @DisplayName("Should reject a malformed history cursor")
+    void testMalformedHistoryCursor() {
+        assertThrows(IllegalArgumentException.class,
+                () -> trafficEngineService.getHistory(new HistoryQuery(null, null, null, null, "not-a-cursor", 10)));
+    }
+
+    @Test
+    @DisplayName("Should run an hour of virtual time instantly and produce the same history every run")
+    void testVirtualTimeIsDeterministic() {
+        List<String> first = simulateHour();
+        List<String> second = simulateHour();
+
+        assertEquals(first, second);
+        // 1 minute greens and 3 second yellows: a STATE_CHANGE at every GREEN, YELLOW and RED
+        assertTrue(first.size() > 150, "Expected about 57 cycles of events, got " + first.size());
+        assertTrue(first.get(first.size() - 1).startsWith("2024-01-01T00:5"));
+        assertThrows(IllegalArgumentException.class, () -> new TrafficEngineService(cacheService, historyStore,
+                stateStream).advanceTime(1));
+    }
+
+    private List<String> simulateHour() {
+        TrafficEngineService engine = new TrafficEngineService(cacheService, historyStore, stateStream);
+        engine.setClock(new VirtualClock(Instant.parse("2024-01-01T00:00:00Z"), ZoneOffset.UTC));
+        ArgumentCaptor<HistoryEvent> events = ArgumentCaptor.forClass(HistoryEvent.class);
+        clearInvocations(historyStore);
+
+        engine.startCycle(Arrays.asList(1, 2));
+        assertEquals(3600, engine.advanceTime(3600).getSimulatedSeconds());
+
+        verify(historyStore, atLeastOnce()).append(events.capture());
+        return events.getAllValues().stream()
+                .map(event -> event.getTimestamp() + " " + event.getEventType() + " " + event.getDetails())
+                .toList();
+    }
+}
@@ -1,31 +1,60 @@
 package com.natwest.tc.stepdefs;
 
+import com.natwest.tc.engine.ConflictMatrix;
+import com.natwest.tc.engine.VirtualClock;
 import com.natwest.tc.entity.Direction;
-import com.natwest.tc.entity.DirectionConflict;
 import com.natwest.tc.entity.SignalPhase;
 import com.natwest.tc.model.LightColor;
-import com.natwest.tc.repository.HistoryRepository;
+import com.natwest.tc.service.HistoryStore;
+import com.natwest.tc.service.StateStreamService;
 import com.natwest.tc.service.TrafficCacheService;
 import com.natwest.tc.service.TrafficEngineService;
+import com.natwest.tc.service.UnsafePlanException;
 import io.cucumber.java.en.Given;
 import io.cucumber.java.en.Then;
 import io.cucumber.java.en.When;
 
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.*;
 
 public class TrafficStepDefinitions {
 
     // Mocking the dependencies to isolate the Engine logic
     private final TrafficCacheService cacheService = mock(TrafficCacheService.class);
-    private final HistoryRepository historyRepository = mock(HistoryRepository.class);
+    private final HistoryStore historyStore = mock(HistoryStore.class);
+    private final StateStreamService stateStream = mock(StateStreamService.class);
 
     // Injecting mocks into the service
-    private final TrafficEngineService engineService = new TrafficEngineService(cacheService, historyRepository);
+    private final TrafficEngineService engineService = new TrafficEngineService(cacheService, historyStore, stateStream);
+
+    // Conflict rules a scenario has defined but not yet loaded into the cache
+    private ConflictMatrix pendingRules;
+    private UnsafePlanException rejection;
+
+    {
+        // No conflicts unless a scenario defines some, and every phase exists with a 60 second green
+        lenient().when(cacheService.getConflictMatrix()).thenReturn(ConflictMatrix.EMPTY);
+        lenient().when(cacheService.getPhase(anyInt())).thenAnswer(inv -> {
+            SignalPhase phase = new SignalPhase();
+            phase.setPhaseId(inv.getArgument(0));
+            phase.setDurationSeconds(60);
+            return phase;
+        });
+        lenient().when(cacheService.getAllowedDirectionIds(anyInt())).thenReturn(new int[0]);
+        // Scenarios run on virtual time, so "5 seconds pass" takes no real time
+        engineService.setClock(new VirtualClock(Instant.parse("2024-01-01T00:00:00Z"), ZoneOffset.UTC));
+    }
+
+    // Simulates POST /refresh-cache: running plans are recompiled against the new rules on the next tick
+    private void reloadRules(ConflictMatrix rules) {
+        lenient().when(cacheService.getConflictMatrix()).thenReturn(rules);
+    }
 
     // --- SETUP STEPS ---
 
@@ -52,7 +81,8 @@ public class TrafficStepDefinitions {
 
         // Using lenient to prevent Mockito from failing if a test pauses before calling these
         lenient().when(cacheService.getPhase(id)).thenReturn(phase);
-        lenient().when(cacheService.getAllowedDirectionsForPhase(id)).thenReturn(Collections.emptyList());
+        lenient().when(cacheService.getAllowedDirectionIds(id)).thenReturn(new int[0]);
+        reloadRules(ConflictMatrix.builder().build());
     }
 
     @Given("Phase {int} has conflicting directions {string} and {string}")
@@ -66,17 +96,18 @@ public class TrafficStepDefinitions {
         d2.setDirectionName(dirName2);
 
         // Tell cache what directions are in this phase
-        when(cacheService.getAllowedDirectionsForPhase(phaseId)).thenReturn(Arrays.asList(d1, d2));
+        when(cacheService.getAllowedDirectionIds(phaseId)).thenReturn(new int[]{d1.getDirectionId(), d2.getDirectionId()});
 
         // Define the conflict
-        DirectionConflict conflict = new DirectionConflict();
-        conflict.setDirection(d1);
-
-        Direction conflictingDir = new Direction();
-        conflictingDir.setDirectionId(102);
-        conflict.setConflictingDirection(conflictingDir);
+        pendingRules = ConflictMatrix.builder()
+                .conflict(d1.getDirectionId(), d2.getDirectionId())
+                .phase(phaseId, d1.getDirectionId(), d2.getDirectionId())
+                .build();
+    }
 
-        when(cacheService.getConflictsForDirection(101)).thenReturn(List.of(conflict));
+    @Given("the conflicting rules are loaded")
+    public void the_conflicting_rules_are_loaded() {
+        reloadRules(pendingRules);
     }
 
     @Given("the traffic engine is transitioning to Phase {int}")
@@ -86,30 +117,42 @@ public class TrafficStepDefinitions {
         p1.setPhaseId(1);
         p1.setDurationSeconds(0);
         when(cacheService.getPhase(1)).thenReturn(p1);
-        when(cacheService.getAllowedDirectionsForPhase(1)).thenReturn(Collections.emptyList());
+        when(cacheService.getAllowedDirectionIds(1)).thenReturn(new int[0]);
 
         engineService.startCycle(List.of(1, phaseId));
 
+        // The conflicting rules arrive mid-cycle, after the sequence was accepted
+        if (pendingRules != null) {
+            reloadRules(pendingRules);
+        }
+
         // Tick through Phase 1 states to reach the transition point
-        engineService.trafficTick(); // To Yellow
-        engineService.trafficTick(); // Yellow 1
-        engineService.trafficTick(); // Yellow 2
-        engineService.trafficTick(); // Yellow 3 -> Ready to transition to Phase 2
+        engineService.advanceTime(1); // To Yellow
+        engineService.advanceTime(1); // Yellow 1
+        engineService.advanceTime(1); // Yellow 2
+        engineService.advanceTime(1); // Yellow 3 -> Ready to transition to Phase 2
     }
 
     // --- ACTION STEPS ---
 
     @When("{int} seconds pass")
     public void secondsPass(int seconds) {
-        for (int i = 0; i < seconds; i++) {
-            engineService.trafficTick();
+        engineService.advanceTime(seconds);
+    }
+
+    @When("the sequence {string} is submitted")
+    public void the_sequence_is_submitted(String seq) {
+        try {
+            startEngine(seq);
+        } catch (UnsafePlanException e) {
+            rejection = e;
         }
     }
 
     @When("the safety check is performed")
     public void the_safety_check_is_performed() {
         // Triggers the state change logic where isSafeToTurnGreen is evaluated
-        engineService.trafficTick();
+        engineService.advanceTime(1);
     }
 
     // --- ASSERTION STEPS ---
@@ -129,6 +172,14 @@ public class TrafficStepDefinitions {
         }
     }
 
+    @Then("the sequence should be rejected for Phase {int}")
+    public void the_sequence_should_be_rejected_for_phase(Integer phaseId) {
+        assertNotNull(rejection, "Sequence should have been rejected");
+        assertFalse(rejection.getReport().isAccepted());
+        assertTrue(rejection.getReport().getPhases().stream()
+                .anyMatch(check -> phaseId.equals(check.getPhaseId()) && !check.isConflictFree()));
+    }
+
     @Then("all lights should be {string}")
     public void all_lights_should_be(String colorStr) {
         LightColor expected = LightColor.valueOf(colorStr.toUpperCase());